@@ -9,9 +9,24 @@ plugins {
 group = "ru.maksm"
 version = "0.0.1-SNAPSHOT"
 
+// -PjavaVersion=21 собирает и запускает на Java 21 (нужно для режима виртуальных потоков)
+val javaVersion = (findProperty("javaVersion") as String?)?.toInt() ?: 17
+
 java {
     toolchain {
-        languageVersion = JavaLanguageVersion.of(17)
+        languageVersion = JavaLanguageVersion.of(javaVersion)
+    }
+}
+
+// JMH бенчмарки горячего пути лежат отдельно от тестов: src/jmh/java, нагрузочный прогон - src/loadtest/java
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+    create("loadtest") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
     }
 }
 
@@ -19,6 +34,18 @@ configurations {
     compileOnly {
         extendsFrom(configurations.annotationProcessor.get())
     }
+    named("jmhImplementation") {
+        extendsFrom(configurations.implementation.get())
+    }
+    named("jmhRuntimeOnly") {
+        extendsFrom(configurations.runtimeOnly.get())
+    }
+    named("loadtestImplementation") {
+        extendsFrom(configurations.implementation.get())
+    }
+    named("loadtestRuntimeOnly") {
+        extendsFrom(configurations.runtimeOnly.get())
+    }
 }
 
 repositories {
@@ -53,8 +80,169 @@ dependencies {
     testImplementation("org.awaitility:awaitility:4.2.0")
     testImplementation("com.h2database:h2")
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    "jmhRuntimeOnly"("com.h2database:h2")
+    "loadtestImplementation"("org.testcontainers:postgresql")
+    "loadtestImplementation"("org.hdrhistogram:HdrHistogram:2.2.2")
 }
 
 tasks.withType<Test> {
     useJUnitPlatform()
 }
+
+// бенчмарки гоняются только отдельными задачами
+tasks.test {
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+// вставка в ledger на растущем объеме, партиционированная таблица против плоской (нужен docker)
+// gradle ledgerBenchmark -PledgerBenchmarkSteps=2000000,2000000,2000000
+tasks.register<Test>("ledgerBenchmark") {
+    description = "Латентность вставки в ledger по мере роста таблицы"
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    filter {
+        includeTestsMatching("*LedgerInsertBenchmark")
+    }
+    systemProperty("ledger.benchmark.steps", findProperty("ledgerBenchmarkSteps") ?: "1000000,1000000,1000000")
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+}
+
+// ключи ledger: случайный UUIDv4 против UUIDv7 и прежние индексы против урезанных (нужен docker)
+// gradle ledgerIdBenchmark -PledgerIdBenchmarkSteps=10 -PledgerIdBenchmarkStepRows=1000000
+tasks.register<Test>("ledgerIdBenchmark") {
+    description = "Пропускная вставки в ledger и размер индексов: UUIDv4 против UUIDv7"
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    filter {
+        includeTestsMatching("*LedgerIdBenchmark")
+    }
+    systemProperty("ledger.id-benchmark.steps", findProperty("ledgerIdBenchmarkSteps") ?: "5")
+    systemProperty("ledger.id-benchmark.step-rows", findProperty("ledgerIdBenchmarkStepRows") ?: "1000000")
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+}
+
+// gradle jmh                                  - все бенчмарки, с профайлером аллокаций (gc.alloc.rate.norm)
+// gradle jmh -PjmhInclude=JsonBenchmark       - по регулярке имени
+// gradle jmh -PjmhArgs="-wi 1 -i 1 -f 1"      - доп. аргументы JMH
+tasks.register<JavaExec>("jmh") {
+    description = "JMH бенчмарки горячего пути POST /api/v1/wallet"
+    group = "benchmark"
+    mainClass = "org.openjdk.jmh.Main"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    doFirst {
+        results.get().asFile.parentFile.mkdirs()
+    }
+    args = listOf("-prof", "gc", "-rf", "json", "-rff", results.get().asFile.path) +
+            ((findProperty("jmhArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()) +
+            listOfNotNull(findProperty("jmhInclude") as String?)
+}
+
+// нагрузка на один кошелек и на кошельки по Ципфу, HDR гистограммы и сверка ledger с балансами (нужен docker)
+// gradle loadTest -Ploadtest.clients=500 -Ploadtest.duration=PT60S
+// gradle loadTest -Ploadtest.app=wallet.engine=sql,wallet.combining.enabled=true   - стратегия для сравнения
+// gradle loadTest -Ploadtest.protocol=binary -Ploadtest.binary-connections=4          - те же операции по бинарному протоколу
+// остальные параметры: loadtest.warmup, loadtest.workloads=single,zipf, loadtest.wallets,
+// loadtest.zipf-exponent, loadtest.withdraw-ratio
+tasks.register<JavaExec>("loadTest") {
+    description = "Нагрузочный прогон POST /api/v1/wallet с отчетом по латентности и сверкой"
+    group = "benchmark"
+    mainClass = "ru.maksm.walletservice.loadtest.WalletLoadTest"
+    classpath = sourceSets["loadtest"].runtimeClasspath
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    systemProperties(project.properties.filterKeys { it.startsWith("loadtest.") })
+}
+
+// платформенные потоки против виртуальных: латентность и память обоих режимов одной таблицей (нужен docker и Java 21)
+// gradle threadModels -PjavaVersion=21 -Pthreadmodels.clients=2000 -Pthreadmodels.duration=PT60S
+// остальные параметры: threadmodels.warmup, threadmodels.wallets, threadmodels.withdraw-ratio
+tasks.register<JavaExec>("threadModels") {
+    description = "Сравнение платформенных и виртуальных потоков: p50/p99/p99.9, RSS, heap, потоки"
+    group = "benchmark"
+    dependsOn(tasks.bootJar)
+    mainClass = "ru.maksm.walletservice.loadtest.ThreadModelComparison"
+    classpath = sourceSets["loadtest"].runtimeClasspath
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    systemProperty("threadmodels.jar", tasks.bootJar.get().archiveFile.get().asFile.path)
+    systemProperties(project.properties.filterKeys { it.startsWith("threadmodels.") })
+}
+
+// быстрый старт для автоскейлинга (README "Быстрый старт")
+// gradle bootJar -PfastStart=true       - в jar добавляется AOT контекста под профиль fast-start
+// gradle cdsArchive -PfastStart=true    - распакованный jar и CDS архив с тренировочного запуска, build/fast-start
+// gradle startupTime -PfastStart=true   - время до первого успешного запроса: обычный старт против быстрого (нужен docker)
+// AOT замораживает условия бинов на этапе сборки: настройки вроде wallet.engine=sql или
+// wallet.datasource.replica.enabled=true передаются и сюда: -PfastStartArgs="--wallet.engine=sql"
+val fastStart = (findProperty("fastStart") as String?)?.toBoolean() ?: false
+val fastStartArgs = listOf("--spring.profiles.active=fast-start") +
+        ((findProperty("fastStartArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList())
+val fastStartDir = layout.buildDirectory.dir("fast-start")
+
+if (fastStart) {
+    apply(plugin = "org.springframework.boot.aot")
+
+    tasks.named<org.springframework.boot.gradle.tasks.aot.ProcessAot>("processAot") {
+        args(fastStartArgs)
+    }
+
+    val cdsExtract = tasks.register<Exec>("cdsExtract") {
+        description = "Распаковка jar для CDS: приложение и библиотеки отдельными jar"
+        group = "build"
+        dependsOn(tasks.bootJar)
+        val jar = tasks.bootJar.flatMap { it.archiveFile }
+        doFirst {
+            delete(fastStartDir)
+        }
+        executable = javaToolchains.launcherFor(java.toolchain).get().executablePath.asFile.path
+        argumentProviders.add(CommandLineArgumentProvider {
+            listOf("-Djarmode=tools", "-jar", jar.get().asFile.path, "extract",
+                    "--destination", fastStartDir.get().asFile.path)
+        })
+    }
+
+    // тренировочный запуск: контекст поднимается без БД (профиль cds-training) и выходит после refresh,
+    // все загруженные при этом классы JVM сохраняет в архив
+    tasks.register<Exec>("cdsArchive") {
+        description = "CDS архив для быстрого старта"
+        group = "build"
+        dependsOn(cdsExtract)
+        val jarName = tasks.bootJar.flatMap { it.archiveFileName }
+        executable = javaToolchains.launcherFor(java.toolchain).get().executablePath.asFile.path
+        argumentProviders.add(CommandLineArgumentProvider {
+            val dir = fastStartDir.get().asFile
+            listOf("-XX:ArchiveClassesAtExit=" + dir.resolve("application.jsa").path,
+                    "-Dspring.aot.enabled=true", "-Dspring.context.exit=onRefresh",
+                    "-jar", dir.resolve(jarName.get()).path) +
+                    fastStartArgs.map { if (it.startsWith("--spring.profiles.active=")) "$it,cds-training" else it }
+        })
+    }
+
+    // gradle startupTime -PfastStart=true -Pstartup.runs=5
+    tasks.register<JavaExec>("startupTime") {
+        description = "Время от запуска JVM до первого успешного POST /api/v1/wallet, обычный и быстрый старт"
+        group = "benchmark"
+        dependsOn("cdsArchive")
+        mainClass = "ru.maksm.walletservice.loadtest.StartupTimeProbe"
+        classpath = sourceSets["loadtest"].runtimeClasspath
+        javaLauncher = javaToolchains.launcherFor(java.toolchain)
+        systemProperty("startup.jar", tasks.bootJar.get().archiveFile.get().asFile.path)
+        systemProperty("startup.fast-start-dir", fastStartDir.get().asFile.path)
+        systemProperty("startup.fast-start-args", fastStartArgs.joinToString(" "))
+        systemProperties(project.properties.filterKeys { it.startsWith("startup.") })
+    }
+}
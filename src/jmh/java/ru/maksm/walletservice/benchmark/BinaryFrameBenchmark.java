@@ -0,0 +1,57 @@
+package ru.maksm.walletservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.maksm.walletservice.binary.WalletFrame;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кадры бинарного протокола на тех же данных, что и JsonBenchmark: сравнивать readRequest/writeResponse попарно
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryFrameBenchmark {
+
+    private ByteBuffer requestFrame;
+    private WalletFrame.Response response;
+
+    @Setup
+    public void setUp() {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(UUID.randomUUID());
+        request.setOperationType(OperationType.DEPOSIT);
+        request.setAmount(Money.parse("1000.00"));
+        requestFrame = WalletFrame.encodeOperation(1, request, null);
+        response = new WalletFrame.Response(1, WalletFrame.Status.OK, Money.parse("12345.67").minor(), 42L, 0,
+                "Операция выполнена успешно");
+    }
+
+    @Benchmark
+    public WalletFrame.Request readRequest() throws Exception {
+        ByteBuffer input = requestFrame.duplicate();
+        return WalletFrame.decodeRequest(WalletFrame.nextFrame(input));
+    }
+
+    @Benchmark
+    public ByteBuffer writeResponse() {
+        return WalletFrame.encodeResponse(response);
+    }
+}
@@ -0,0 +1,56 @@
+package ru.maksm.walletservice.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson на горячем пути POST /api/v1/wallet: разбор запроса и запись ответа
+ * ObjectMapper собран тем же билдером, что и у Spring MVC
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+
+    private ObjectMapper objectMapper;
+    private byte[] requestJson;
+    private WalletOperationResponse response;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        requestJson = ("{\"walletId\":\"" + UUID.randomUUID() + "\",\"operationType\":\"DEPOSIT\",\"amount\":1000.00}")
+                .getBytes();
+        response = new WalletOperationResponse(UUID.randomUUID(), Money.parse("12345.67"),
+                "Операция выполнена успешно", 42L);
+    }
+
+    @Benchmark
+    public WalletOperationRequest readRequest() throws Exception {
+        return objectMapper.readValue(requestJson, WalletOperationRequest.class);
+    }
+
+    @Benchmark
+    public byte[] writeResponse() throws Exception {
+        return objectMapper.writeValueAsBytes(response);
+    }
+}
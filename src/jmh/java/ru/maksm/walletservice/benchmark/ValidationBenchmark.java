@@ -0,0 +1,72 @@
+package ru.maksm.walletservice.benchmark;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.ValidatorFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bean Validation запроса операции (@Valid в контроллере): корректный запрос и запрос с нарушениями
+ * нарушения дороже - интерполяция сообщений и сборка ConstraintViolation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private ValidatorFactory validatorFactory;
+    private Validator validator;
+    private WalletOperationRequest valid;
+    private WalletOperationRequest invalid;
+
+    @Setup
+    public void setUp() {
+        validatorFactory = Validation.buildDefaultValidatorFactory();
+        validator = validatorFactory.getValidator();
+
+        valid = new WalletOperationRequest();
+        valid.setWalletId(UUID.randomUUID());
+        valid.setOperationType(OperationType.WITHDRAW);
+        valid.setAmount(Money.parse("250.00"));
+
+        invalid = new WalletOperationRequest();
+        invalid.setOperationType(OperationType.REBALANCE);
+        invalid.setAmount(Money.parse("-1.00"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        validatorFactory.close();
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<WalletOperationRequest>> validRequest() {
+        return validator.validate(valid);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<WalletOperationRequest>> invalidRequest() {
+        return validator.validate(invalid);
+    }
+}
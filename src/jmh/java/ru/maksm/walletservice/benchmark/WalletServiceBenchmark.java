@@ -0,0 +1,108 @@
+package ru.maksm.walletservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.maksm.walletservice.WalletServiceApplication;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.service.WalletService;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WalletService.performOperation целиком (движок jpa, блокировка строки, ledger) на встроенной H2
+ * абсолютные цифры на H2 не равны postgres, смысл - ловить регрессии в коде вокруг БД:
+ * лишние запросы, аллокации, блокировки в приложении
+ *
+ * sql движок тут не гоняется: H2 не умеет UPDATE ... RETURNING внутри WITH
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class WalletServiceBenchmark {
+
+    private static final Money INITIAL_BALANCE = Money.parse("1000000000.00");
+    private static final Money AMOUNT = Money.parse("1.00");
+
+    @Param({"false", "true"})
+    public boolean combining;
+
+    @Param({"1000"})
+    public int wallets;
+
+    private ConfigurableApplicationContext context;
+    private WalletService walletService;
+    private UUID[] walletIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(WalletServiceApplication.class)
+                .properties("spring.config.location=classpath:jmh-application.properties",
+                        "wallet.combining.enabled=" + combining)
+                .run();
+        walletService = context.getBean(WalletService.class);
+
+        walletIds = new UUID[wallets];
+        for (int i = 0; i < wallets; i++) {
+            walletIds[i] = UUID.randomUUID();
+            walletService.createWallet(walletIds[i]);
+            walletService.performOperation(request(walletIds[i], OperationType.DEPOSIT, INITIAL_BALANCE));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Все потоки в один кошелек: очередь на блокировку строки
+     */
+    @Benchmark
+    public WalletOperationResponse singleWallet() {
+        return walletService.performOperation(request(walletIds[0], randomType(), AMOUNT));
+    }
+
+    /**
+     * Операции по случайным кошелькам: почти без конкуренции, чистая стоимость пути
+     */
+    @Benchmark
+    public WalletOperationResponse spreadWallets() {
+        UUID walletId = walletIds[ThreadLocalRandom.current().nextInt(walletIds.length)];
+        return walletService.performOperation(request(walletId, randomType(), AMOUNT));
+    }
+
+    private static OperationType randomType() {
+        return ThreadLocalRandom.current().nextBoolean() ? OperationType.DEPOSIT : OperationType.WITHDRAW;
+    }
+
+    private static WalletOperationRequest request(UUID walletId, OperationType type, Money amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(amount);
+        return request;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.maksm.walletservice.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Арифметика баланса (WalletBalances) в копейках на long: то, что все движки делают под блокировкой кошелька
+ * лежит в пакете service, потому что WalletBalances package-private
+ *
+ * bigDecimalDeposit - прежний вариант на BigDecimal, для сравнения (-prof gc)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceMathBenchmark {
+
+    private long balance;
+    private BigDecimal decimalBalance;
+    private BigDecimal decimalAmount;
+    private WalletOperationRequest deposit;
+    private WalletOperationRequest withdraw;
+
+    @Setup
+    public void setUp() {
+        balance = Money.parse("1000000.00").minor();
+        decimalBalance = new BigDecimal("1000000.00");
+        decimalAmount = new BigDecimal("100.50");
+        deposit = request(OperationType.DEPOSIT, "100.50");
+        withdraw = request(OperationType.WITHDRAW, "99.99");
+    }
+
+    @Benchmark
+    public long deposit() {
+        return WalletBalances.apply(balance, deposit);
+    }
+
+    @Benchmark
+    public long withdraw() {
+        return WalletBalances.apply(balance, withdraw);
+    }
+
+    @Benchmark
+    public long delta() {
+        return WalletBalances.delta(withdraw);
+    }
+
+    @Benchmark
+    public BigDecimal bigDecimalDeposit() {
+        return decimalBalance.add(decimalAmount);
+    }
+
+    private static WalletOperationRequest request(OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(UUID.randomUUID());
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
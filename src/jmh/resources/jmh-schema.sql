@@ -0,0 +1,26 @@
+-- таблицы без JPA сущностей, в том же виде, что в changelog
+CREATE TABLE IF NOT EXISTS wallet_slots (
+    wallet_id UUID NOT NULL,
+    slot INT NOT NULL,
+    balance DECIMAL(19, 2) DEFAULT 0.00 NOT NULL,
+    version BIGINT DEFAULT 0 NOT NULL,
+    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    PRIMARY KEY (wallet_id, slot)
+);
+
+CREATE TABLE IF NOT EXISTS idempotency_keys (
+    idempotency_key VARCHAR(128) PRIMARY KEY,
+    wallet_id UUID NOT NULL,
+    operation_type VARCHAR(20) NOT NULL,
+    amount DECIMAL(19, 2) NOT NULL,
+    balance DECIMAL(19, 2),
+    wallet_version BIGINT,
+    message VARCHAR(255),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS journal_state (
+    journal_id VARCHAR(64) PRIMARY KEY,
+    drained_lsn BIGINT DEFAULT 0 NOT NULL,
+    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
@@ -0,0 +1,163 @@
+package ru.maksm.walletservice.loadtest;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время от запуска JVM до первого успешного POST /api/v1/wallet: обычный jar против быстрого старта
+ * (AOT + CDS из build/fast-start), каждый вариант запускается отдельным процессом startup.runs раз
+ *
+ * - postgres из testcontainers, схему один раз накатывает миграционный запуск (wallet.schema.migrate-and-exit),
+ *   дальше оба варианта стартуют на готовой схеме, как инстансы в проде
+ * - замер снаружи процесса: опрос операцией пополнения раз в 10 мс, пока не вернется 200
+ * - в конце min / медиана / max по каждому варианту
+ *
+ * gradle startupTime -PfastStart=true -Pstartup.runs=5
+ */
+public class StartupTimeProbe {
+
+    private static final Duration START_TIMEOUT = Duration.ofMinutes(3);
+
+    private final String jar = System.getProperty("startup.jar");
+    private final Path fastStartDir = Path.of(System.getProperty("startup.fast-start-dir", "build/fast-start"));
+    private final List<String> fastStartArgs = Arrays.stream(System.getProperty("startup.fast-start-args",
+            "--spring.profiles.active=fast-start").split(" ")).filter(arg -> !arg.isBlank()).toList();
+    private final int runs = Integer.getInteger("startup.runs", 3);
+    private final String java = ProcessHandle.current().info().command().orElse("java");
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(1))
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        try (PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine")) {
+            postgres.start();
+            new StartupTimeProbe().run(postgres);
+        }
+        System.exit(0);
+    }
+
+    private void run(PostgreSQLContainer<?> postgres) throws Exception {
+        List<String> database = List.of(
+                "--spring.datasource.url=" + postgres.getJdbcUrl(),
+                "--spring.datasource.username=" + postgres.getUsername(),
+                "--spring.datasource.password=" + postgres.getPassword(),
+                "--spring.cloud.config.enabled=false",
+                "--spring.cloud.config.import-check.enabled=false");
+
+        List<String> migrate = new ArrayList<>(List.of(java, "-jar", jar,
+                "--wallet.schema.migrate-and-exit=true", "--spring.main.web-application-type=none"));
+        migrate.addAll(database);
+        Process migration = start(migrate);
+        if (!migration.waitFor(START_TIMEOUT.toSeconds(), TimeUnit.SECONDS) || migration.exitValue() != 0) {
+            throw new IllegalStateException("Миграционный запуск не завершился успешно");
+        }
+
+        UUID walletId = UUID.randomUUID();
+        new JdbcTemplate(new DriverManagerDataSource(postgres.getJdbcUrl(), postgres.getUsername(),
+                postgres.getPassword()))
+                .update("INSERT INTO wallets (id, wallet_id, balance, version, created_at, updated_at)"
+                        + " VALUES (?, ?, 0, 0, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP)", UUID.randomUUID(), walletId);
+
+        String fastJar = fastStartDir.resolve(Path.of(jar).getFileName()).toString();
+        List<String> regular = new ArrayList<>(List.of(java, "-jar", jar));
+        regular.addAll(database);
+        List<String> fast = new ArrayList<>(List.of(java,
+                "-XX:SharedArchiveFile=" + fastStartDir.resolve("application.jsa"), "-Xlog:cds=off",
+                "-Dspring.aot.enabled=true", "-jar", fastJar));
+        fast.addAll(fastStartArgs);
+        fast.addAll(database);
+
+        System.out.printf("%nзапусков на вариант: %d%n", runs);
+        report("обычный старт", measure(regular, walletId));
+        report("быстрый старт", measure(fast, walletId));
+    }
+
+    private long[] measure(List<String> command, UUID walletId) throws Exception {
+        long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            int port = freePort();
+            List<String> withPort = new ArrayList<>(command);
+            withPort.add("--server.port=" + port);
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/api/v1/wallet"))
+                    .timeout(Duration.ofSeconds(5))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"walletId\":\"" + walletId
+                            + "\",\"operationType\":\"DEPOSIT\",\"amount\":1.00}"))
+                    .build();
+
+            long started = System.nanoTime();
+            Process process = start(withPort);
+            try {
+                millis[i] = awaitFirstSuccess(process, request, started);
+            } finally {
+                process.destroy();
+                if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+        return millis;
+    }
+
+    private long awaitFirstSuccess(Process process, HttpRequest request, long started) throws Exception {
+        long deadline = started + START_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Приложение завершилось при старте, код " + process.exitValue());
+            }
+            try {
+                if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                }
+            } catch (IOException e) {
+                // порт еще не слушается
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Приложение не ответило за " + START_TIMEOUT);
+    }
+
+    private static Process start(List<String> command) throws IOException {
+        File log = Files.createTempFile("wallet-startup-", ".log").toFile();
+        log.deleteOnExit();
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    private static void report(String variant, long[] millis) {
+        long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        System.out.printf("[%s] до первого успешного запроса, мс: min %d  медиана %d  max %d%n",
+                variant, sorted[0], sorted[sorted.length / 2], sorted[sorted.length - 1]);
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package ru.maksm.walletservice.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Платформенные потоки против виртуальных на одной и той же нагрузке: jar запускается двумя процессами
+ * (spring.threads.virtual.enabled=false/true, шлюз коннектов включается вместе с виртуальными, как по умолчанию),
+ * в конце таблица с обоими режимами рядом
+ *
+ * - postgres из testcontainers, схему один раз накатывает миграционный запуск, как в StartupTimeProbe
+ * - N клиентов замкнутым циклом по threadmodels.wallets кошелькам равномерно: упираемся в потоки и пул коннектов,
+ *   а не в блокировку одной строки; клиентов по умолчанию больше, чем потоков Tomcat
+ * - латентность в HDR гистограмме (p50/p99/p99.9/max), пропускная, разбивка ответов по статусам
+ * - память процесса во время замера раз в 500 мс: RSS из /proc (только linux), jvm.memory.used heap/nonheap и
+ *   jvm.threads.live из /actuator/metrics - берется пик; после замера стеки потоков по NMT (jcmd VM.native_memory),
+ *   у виртуальных потоков стеки лежат в куче и в NMT Thread не попадают
+ *
+ * gradle threadModels -PjavaVersion=21 -Pthreadmodels.clients=2000 -Pthreadmodels.duration=PT60S
+ */
+public class ThreadModelComparison {
+
+    private static final Duration START_TIMEOUT = Duration.ofMinutes(3);
+    private static final long MAX_LATENCY_MICROS = TimeUnit.SECONDS.toMicros(60);
+    private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000.00");
+    private static final Pattern RSS = Pattern.compile("VmRSS:\\s+(\\d+) kB");
+    private static final Pattern NMT_THREAD = Pattern.compile("Thread \\(reserved=\\d+KB, committed=(\\d+)KB\\)");
+    private static final Pattern NMT_THREAD_COUNT = Pattern.compile("\\(thread #(\\d+)\\)");
+    private static final Pattern METRIC_VALUE = Pattern.compile("\"statistic\":\"VALUE\",\"value\":([0-9.E+-]+)");
+
+    private final String jar = System.getProperty("threadmodels.jar");
+    private final int clients = Integer.getInteger("threadmodels.clients", 1000);
+    private final Duration warmup = Duration.parse(System.getProperty("threadmodels.warmup", "PT10S"));
+    private final Duration duration = Duration.parse(System.getProperty("threadmodels.duration", "PT30S"));
+    private final int wallets = Integer.getInteger("threadmodels.wallets", 1000);
+    private final double withdrawRatio = Double.parseDouble(System.getProperty("threadmodels.withdraw-ratio", "0.5"));
+    private final String java = ProcessHandle.current().info().command().orElse("java");
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        if (Runtime.version().feature() < 21) {
+            throw new IllegalStateException("Виртуальные потоки нужны на Java 21: gradle threadModels -PjavaVersion=21");
+        }
+        try (PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine")) {
+            postgres.start();
+            new ThreadModelComparison().run(postgres);
+        }
+        System.exit(0);
+    }
+
+    private void run(PostgreSQLContainer<?> postgres) throws Exception {
+        List<String> database = List.of(
+                "--spring.datasource.url=" + postgres.getJdbcUrl(),
+                "--spring.datasource.username=" + postgres.getUsername(),
+                "--spring.datasource.password=" + postgres.getPassword(),
+                "--spring.cloud.config.enabled=false",
+                "--spring.cloud.config.import-check.enabled=false");
+
+        List<String> migrate = new ArrayList<>(List.of(java, "-jar", jar,
+                "--wallet.schema.migrate-and-exit=true", "--spring.main.web-application-type=none"));
+        migrate.addAll(database);
+        Process migration = start(migrate);
+        if (!migration.waitFor(START_TIMEOUT.toSeconds(), TimeUnit.SECONDS) || migration.exitValue() != 0) {
+            throw new IllegalStateException("Миграционный запуск не завершился успешно");
+        }
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(postgres.getJdbcUrl(),
+                postgres.getUsername(), postgres.getPassword()));
+        UUID[] walletIds = new UUID[wallets];
+        List<Object[]> rows = new ArrayList<>(wallets);
+        for (int i = 0; i < wallets; i++) {
+            walletIds[i] = UUID.randomUUID();
+            rows.add(new Object[]{UUID.randomUUID(), walletIds[i], INITIAL_BALANCE});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO wallets (id, wallet_id, balance, version, created_at, updated_at)"
+                + " VALUES (?, ?, ?, 0, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP)", rows);
+
+        System.out.printf("%nклиентов: %d, кошельков: %d, прогрев: %s, замер: %s, доля списаний: %.2f%n",
+                clients, wallets, warmup, duration, withdrawRatio);
+        Result platform = measure(database, false, walletIds);
+        Result virtual = measure(database, true, walletIds);
+        report(platform, virtual);
+    }
+
+    private Result measure(List<String> database, boolean virtualThreads, UUID[] walletIds) throws Exception {
+        int port = freePort();
+        List<String> command = new ArrayList<>(List.of(java, "-XX:NativeMemoryTracking=summary", "-jar", jar,
+                "--server.port=" + port,
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--wallet.db.permit-gate.enabled=" + virtualThreads,
+                "--logging.level.root=WARN",
+                "--logging.level.ru.maksm.walletservice=WARN"));
+        command.addAll(database);
+        String base = "http://127.0.0.1:" + port;
+
+        System.out.printf("%n[%s] запуск и нагрузка...%n", label(virtualThreads));
+        Process process = start(command);
+        try {
+            awaitReady(process, base);
+            return drive(process, base, walletIds);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private Result drive(Process process, String base, UUID[] walletIds) throws Exception {
+        URI operationUri = URI.create(base + "/api/v1/wallet");
+        Recorder recorder = new Recorder(MAX_LATENCY_MICROS, 3);
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        long warmupEnd = System.nanoTime() + warmup.toNanos();
+        long end = warmupEnd + duration.toNanos();
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            pool.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    boolean measured = now >= warmupEnd;
+                    String outcome = send(operationUri, walletIds[random.nextInt(walletIds.length)], random,
+                            recorder, measured);
+                    if (measured) {
+                        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+
+        // пики памяти и потоков только за время замера, прогрев не считаем
+        Result result = new Result();
+        while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+            if (System.nanoTime() < warmupEnd) {
+                continue;
+            }
+            result.rssMb = Math.max(result.rssMb, rssMb(process.pid()));
+            result.heapMb = Math.max(result.heapMb, metric(base, "jvm.memory.used?tag=area:heap") / (1 << 20));
+            result.nonHeapMb = Math.max(result.nonHeapMb, metric(base, "jvm.memory.used?tag=area:nonheap") / (1 << 20));
+            result.threads = Math.max(result.threads, metric(base, "jvm.threads.live"));
+        }
+        readNativeThreads(process.pid(), result);
+
+        result.histogram = recorder.getIntervalHistogram();
+        result.outcomes = new TreeMap<>();
+        outcomes.forEach((outcome, count) -> result.outcomes.put(outcome, count.sum()));
+        return result;
+    }
+
+    private String send(URI operationUri, UUID walletId, ThreadLocalRandom random, Recorder recorder,
+                        boolean measured) {
+        boolean withdraw = random.nextDouble() < withdrawRatio;
+        String body = "{\"walletId\":\"" + walletId + "\",\"operationType\":\"" + (withdraw ? "WITHDRAW" : "DEPOSIT")
+                + "\",\"amount\":" + BigDecimal.valueOf(random.nextLong(100, 10_000), 2) + "}";
+        HttpRequest request = HttpRequest.newBuilder(operationUri)
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            if (measured) {
+                recorder.recordValue(Math.min(MAX_LATENCY_MICROS, (System.nanoTime() - start) / 1_000));
+            }
+            return String.valueOf(response.statusCode());
+        } catch (HttpTimeoutException e) {
+            return "timeout";
+        } catch (Exception e) {
+            return "io:" + e.getClass().getSimpleName();
+        }
+    }
+
+    private void awaitReady(Process process, String base) throws Exception {
+        long deadline = System.nanoTime() + START_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Приложение завершилось при старте, код " + process.exitValue());
+            }
+            if (metric(base, "jvm.threads.live") > 0) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Приложение не ответило за " + START_TIMEOUT);
+    }
+
+    /**
+     * Значение метрики из /actuator/metrics; -1 если недоступна
+     */
+    private double metric(String base, String nameAndTags) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/actuator/metrics/" + nameAndTags))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            Matcher matcher = METRIC_VALUE.matcher(response.body());
+            return response.statusCode() == 200 && matcher.find() ? Double.parseDouble(matcher.group(1)) : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static double rssMb(long pid) {
+        try {
+            Matcher matcher = RSS.matcher(Files.readString(Path.of("/proc", String.valueOf(pid), "status")));
+            return matcher.find() ? Long.parseLong(matcher.group(1)) / 1024.0 : -1;
+        } catch (IOException e) {
+            // не linux
+            return -1;
+        }
+    }
+
+    /**
+     * Стеки платформенных потоков по NMT: jcmd из того же JDK, что и java
+     */
+    private void readNativeThreads(long pid, Result result) {
+        Path jcmd = Path.of(java).resolveSibling("jcmd");
+        if (!Files.isExecutable(jcmd)) {
+            return;
+        }
+        try {
+            Process process = new ProcessBuilder(jcmd.toString(), String.valueOf(pid), "VM.native_memory", "summary")
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            process.waitFor(30, TimeUnit.SECONDS);
+            Matcher committed = NMT_THREAD.matcher(output);
+            if (committed.find()) {
+                result.nativeThreadStacksMb = Long.parseLong(committed.group(1)) / 1024.0;
+            }
+            Matcher count = NMT_THREAD_COUNT.matcher(output);
+            if (count.find()) {
+                result.nativeThreads = Long.parseLong(count.group(1));
+            }
+        } catch (IOException e) {
+            // без jcmd строка отчета останется пустой
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(Result platform, Result virtual) {
+        System.out.printf("%n%-44s %16s %16s%n", "", label(false), label(true));
+        row("пропускная, rps", platform, virtual, r -> r.total() / (double) duration.toMillis() * 1000, "%.0f");
+        row("латентность p50, мс", platform, virtual, r -> millis(r.histogram.getValueAtPercentile(50)), "%.2f");
+        row("латентность p99, мс", platform, virtual, r -> millis(r.histogram.getValueAtPercentile(99)), "%.2f");
+        row("латентность p99.9, мс", platform, virtual, r -> millis(r.histogram.getValueAtPercentile(99.9)), "%.2f");
+        row("латентность max, мс", platform, virtual, r -> millis(r.histogram.getMaxValue()), "%.2f");
+        row("RSS процесса, пик, МБ", platform, virtual, r -> r.rssMb, "%.0f");
+        row("jvm.memory.used heap, пик, МБ", platform, virtual, r -> r.heapMb, "%.0f");
+        row("jvm.memory.used nonheap, пик, МБ", platform, virtual, r -> r.nonHeapMb, "%.0f");
+        row("jvm.threads.live, пик", platform, virtual, r -> r.threads, "%.0f");
+        row("платформенных потоков по NMT", platform, virtual, r -> (double) r.nativeThreads, "%.0f");
+        row("стеки потоков по NMT, committed, МБ", platform, virtual, r -> r.nativeThreadStacksMb, "%.1f");
+        System.out.printf("%nответы [%s]: %s%n", label(false), platform.outcomes);
+        System.out.printf("ответы [%s]: %s%n", label(true), virtual.outcomes);
+    }
+
+    private static void row(String name, Result platform, Result virtual, Function<Result, Double> value,
+                            String format) {
+        System.out.printf("%-44s %16s %16s%n", name, cell(value.apply(platform), format),
+                cell(value.apply(virtual), format));
+    }
+
+    private static String cell(double value, String format) {
+        return value < 0 ? "н/д" : String.format(format, value);
+    }
+
+    private static String label(boolean virtualThreads) {
+        return virtualThreads ? "виртуальные" : "платформенные";
+    }
+
+    private static Process start(List<String> command) throws IOException {
+        File log = Files.createTempFile("wallet-thread-models-", ".log").toFile();
+        log.deleteOnExit();
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Result {
+
+        private Histogram histogram;
+        private Map<String, Long> outcomes;
+        private double rssMb = -1;
+        private double heapMb = -1;
+        private double nonHeapMb = -1;
+        private double threads = -1;
+        private long nativeThreads = -1;
+        private double nativeThreadStacksMb = -1;
+
+        long total() {
+            return outcomes.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package ru.maksm.walletservice.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import ru.maksm.walletservice.WalletServiceApplication;
+import ru.maksm.walletservice.binary.WalletBinaryClient;
+import ru.maksm.walletservice.binary.WalletBinaryServer;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный прогон на конкуренцию за кошелек: поднимает приложение на postgres из testcontainers
+ * и гоняет N клиентов замкнутым циклом (ответ - следующий запрос)
+ *
+ * - single: все клиенты в один кошелек, ровно сценарий "1000 rps на один кошелек" из README
+ * - zipf: кошельки выбираются по закону Ципфа, несколько горячих и длинный холодный хвост
+ * - смесь пополнений и списаний, 422 (нет средств) - нормальный бизнес-ответ, не ошибка
+ * - латентность в HDR гистограммах (p50/p99/p99.9/max), пропускная, разбивка ответов по статусам
+ * - в конце сверка: баланс в БД = начальный + подтвержденные клиенту операции = сумма по ledger
+ *
+ * стратегии сравниваются прогоном с разными настройками приложения:
+ * gradle loadTest -Ploadtest.app=wallet.engine=sql,wallet.combining.enabled=true
+ *
+ * протоколы - прогоном с loadtest.protocol=rest|binary: binary шлет те же операции через WalletBinaryClient,
+ * клиентские потоки делят loadtest.binary-connections соединений, исходы пишутся кодами REST для сравнения
+ */
+public class WalletLoadTest {
+
+    private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000.00");
+    private static final long MAX_LATENCY_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+    private final int clients = Integer.getInteger("loadtest.clients", 200);
+    private final Duration warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT5S"));
+    private final Duration duration = Duration.parse(System.getProperty("loadtest.duration", "PT30S"));
+    private final int wallets = Integer.getInteger("loadtest.wallets", 1000);
+    private final double zipfExponent = Double.parseDouble(System.getProperty("loadtest.zipf-exponent", "1.1"));
+    private final double withdrawRatio = Double.parseDouble(System.getProperty("loadtest.withdraw-ratio", "0.5"));
+    private final List<String> workloads = List.of(System.getProperty("loadtest.workloads", "single,zipf").split(","));
+    private final String appProperties = System.getProperty("loadtest.app", "");
+    private final String protocol = System.getProperty("loadtest.protocol", "rest");
+    private final int binaryConnections = Integer.getInteger("loadtest.binary-connections", 4);
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    // подтвержденное клиенту изменение баланса по кошельку, в копейках
+    private final Map<UUID, LongAdder> confirmedCents = new ConcurrentHashMap<>();
+    private final LongAdder unknownOutcomes = new LongAdder();
+
+    private JdbcTemplate jdbcTemplate;
+    private URI operationUri;
+    private WalletBinaryClient[] binaryClients;
+
+    public static void main(String[] args) throws Exception {
+        boolean consistent;
+        try (PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine")) {
+            postgres.start();
+            consistent = new WalletLoadTest().run(postgres);
+        }
+        System.exit(consistent ? 0 : 1);
+    }
+
+    private boolean run(PostgreSQLContainer<?> postgres) throws Exception {
+        List<String> properties = new ArrayList<>(List.of(
+                "server.port=0",
+                "spring.datasource.url=" + postgres.getJdbcUrl(),
+                "spring.datasource.username=" + postgres.getUsername(),
+                "spring.datasource.password=" + postgres.getPassword(),
+                "spring.cloud.config.enabled=false",
+                "spring.cloud.config.import-check.enabled=false",
+                "logging.level.root=WARN",
+                "logging.level.ru.maksm.walletservice=WARN",
+                "logging.level.org.springframework.transaction=WARN"));
+        Arrays.stream(appProperties.split(",")).filter(property -> !property.isBlank()).forEach(properties::add);
+        boolean binary = switch (protocol) {
+            case "rest" -> false;
+            case "binary" -> true;
+            default -> throw new IllegalArgumentException("Неизвестный протокол: " + protocol);
+        };
+        if (binary) {
+            properties.add("wallet.binary.enabled=true");
+            properties.add("wallet.binary.port=0");
+        }
+
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(WalletServiceApplication.class)
+                .properties(properties.toArray(String[]::new))
+                .run()) {
+            operationUri = URI.create("http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                    + "/api/v1/wallet");
+            jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                    postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword()));
+            if (binary) {
+                int binaryPort = context.getBean(WalletBinaryServer.class).port();
+                binaryClients = new WalletBinaryClient[binaryConnections];
+                for (int i = 0; i < binaryConnections; i++) {
+                    binaryClients[i] = WalletBinaryClient.connect("127.0.0.1", binaryPort);
+                }
+            }
+
+            UUID[] walletIds = createWallets();
+            System.out.printf("%nприложение: %s%nпротокол: %s%nклиентов: %d, прогрев: %s, замер: %s, доля списаний: %.2f%n",
+                    appProperties.isBlank() ? "настройки по умолчанию" : appProperties,
+                    binary ? "binary, соединений " + binaryConnections : "rest", clients, warmup, duration, withdrawRatio);
+
+            for (String workload : workloads) {
+                WalletPicker picker = switch (workload.trim()) {
+                    case "single" -> random -> walletIds[0];
+                    case "zipf" -> new ZipfPicker(walletIds, zipfExponent);
+                    default -> throw new IllegalArgumentException("Неизвестная нагрузка: " + workload);
+                };
+                drive(workload.trim(), picker);
+            }
+
+            if (binary) {
+                for (WalletBinaryClient client : binaryClients) {
+                    client.close();
+                }
+            }
+            return checkConsistency(walletIds);
+        }
+    }
+
+    private UUID[] createWallets() {
+        UUID[] walletIds = new UUID[wallets];
+        List<Object[]> rows = new ArrayList<>(wallets);
+        for (int i = 0; i < wallets; i++) {
+            walletIds[i] = UUID.randomUUID();
+            rows.add(new Object[]{UUID.randomUUID(), walletIds[i], INITIAL_BALANCE});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO wallets (id, wallet_id, balance, version, created_at, updated_at)"
+                + " VALUES (?, ?, ?, 0, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP)", rows);
+        return walletIds;
+    }
+
+    private void drive(String workload, WalletPicker picker) throws InterruptedException {
+        Recorder recorder = new Recorder(MAX_LATENCY_MICROS, 3);
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        long warmupEnd = System.nanoTime() + warmup.toNanos();
+        long end = warmupEnd + duration.toNanos();
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            WalletBinaryClient binaryClient = binaryClients == null ? null : binaryClients[i % binaryClients.length];
+            pool.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    boolean measured = now >= warmupEnd;
+                    String outcome = binaryClient == null
+                            ? send(picker.pick(random), random, recorder, measured)
+                            : sendBinary(binaryClient, picker.pick(random), random, recorder, measured);
+                    if (measured) {
+                        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(duration.plus(warmup).toSeconds() + 120, TimeUnit.SECONDS);
+
+        Histogram histogram = recorder.getIntervalHistogram();
+        long total = outcomes.values().stream().mapToLong(LongAdder::sum).sum();
+        System.out.printf("%n[%s] запросов: %d, пропускная: %.0f rps%n", workload, total,
+                total / (double) duration.toMillis() * 1000);
+        System.out.printf("[%s] латентность, мс: p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n", workload,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+        System.out.printf("[%s] ответы: %s%n", workload, new TreeMap<>(outcomes));
+    }
+
+    /**
+     * Один запрос; возвращает класс исхода для разбивки (код ответа или вид сетевой ошибки)
+     */
+    private String send(UUID walletId, ThreadLocalRandom random, Recorder recorder, boolean measured) {
+        boolean withdraw = random.nextDouble() < withdrawRatio;
+        long cents = random.nextLong(100, 10_000);
+        String body = "{\"walletId\":\"" + walletId + "\",\"operationType\":\"" + (withdraw ? "WITHDRAW" : "DEPOSIT")
+                + "\",\"amount\":" + BigDecimal.valueOf(cents, 2) + "}";
+        HttpRequest request = HttpRequest.newBuilder(operationUri)
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            if (measured) {
+                recorder.recordValue(Math.min(MAX_LATENCY_MICROS, (System.nanoTime() - start) / 1_000));
+            }
+            if (response.statusCode() == 200) {
+                confirmedCents.computeIfAbsent(walletId, id -> new LongAdder()).add(withdraw ? -cents : cents);
+            }
+            return String.valueOf(response.statusCode());
+        } catch (HttpTimeoutException e) {
+            // операция могла примениться, а мы об этом не узнали
+            unknownOutcomes.increment();
+            return "timeout";
+        } catch (Exception e) {
+            unknownOutcomes.increment();
+            return "io:" + e.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * Тот же запрос через бинарный протокол; исход - код, который вернул бы REST
+     */
+    private String sendBinary(WalletBinaryClient client, UUID walletId, ThreadLocalRandom random, Recorder recorder,
+                              boolean measured) {
+        boolean withdraw = random.nextDouble() < withdrawRatio;
+        long cents = random.nextLong(100, 10_000);
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(withdraw ? OperationType.WITHDRAW : OperationType.DEPOSIT);
+        request.setAmount(Money.ofMinor(cents));
+
+        long start = System.nanoTime();
+        String outcome;
+        try {
+            client.performOperation(request).get(30, TimeUnit.SECONDS);
+            confirmedCents.computeIfAbsent(walletId, id -> new LongAdder()).add(withdraw ? -cents : cents);
+            outcome = "200";
+        } catch (ExecutionException e) {
+            outcome = restStatus(e.getCause());
+            if (outcome == null) {
+                unknownOutcomes.increment();
+                return "io:" + e.getCause().getClass().getSimpleName();
+            }
+        } catch (TimeoutException e) {
+            unknownOutcomes.increment();
+            return "timeout";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unknownOutcomes.increment();
+            return "interrupted";
+        }
+        if (measured) {
+            recorder.recordValue(Math.min(MAX_LATENCY_MICROS, (System.nanoTime() - start) / 1_000));
+        }
+        return outcome;
+    }
+
+    private static String restStatus(Throwable error) {
+        if (error instanceof WalletNotFoundException) {
+            return "404";
+        } else if (error instanceof IdempotencyKeyConflictException) {
+            return "409";
+        } else if (error instanceof InsufficientFundsException) {
+            return "422";
+        } else if (error instanceof WalletQueueFullException) {
+            return "429";
+        } else if (error instanceof ServiceOverloadedException) {
+            return "503";
+        } else if (error instanceof IllegalArgumentException) {
+            return "400";
+        } else if (error instanceof IllegalStateException) {
+            return "500";
+        }
+        return null;
+    }
+
+    /**
+     * Сверка после нагрузки; движок journal сливает в БД асинхронно, поэтому ждем схождения до 30 секунд
+     */
+    private boolean checkConsistency(UUID[] walletIds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        int[] mismatches;
+        do {
+            mismatches = compare(walletIds);
+            if (mismatches[0] == 0 && mismatches[1] == 0) {
+                break;
+            }
+            Thread.sleep(500);
+        } while (System.nanoTime() < deadline);
+
+        System.out.printf("%nсверка по %d кошелькам:%n", walletIds.length);
+        System.out.printf("  баланс в БД != начальный + подтвержденные клиенту операции: %d%s%n", mismatches[0],
+                unknownOutcomes.sum() > 0 ? " (исход неизвестен у " + unknownOutcomes.sum() + " запросов, расхождение возможно)" : "");
+        System.out.printf("  баланс в БД != начальный + сумма по ledger: %d%n", mismatches[1]);
+
+        boolean consistent = mismatches[1] == 0 && (mismatches[0] == 0 || unknownOutcomes.sum() > 0);
+        System.out.println(consistent ? "РЕЗУЛЬТАТ: согласовано" : "РЕЗУЛЬТАТ: РАСХОЖДЕНИЕ");
+        return consistent;
+    }
+
+    private int[] compare(UUID[] walletIds) {
+        Map<UUID, BigDecimal> balances = new ConcurrentHashMap<>();
+        // у striped кошелька часть баланса лежит в слотах
+        jdbcTemplate.query("SELECT w.wallet_id, w.balance + COALESCE((SELECT SUM(s.balance) FROM wallet_slots s"
+                + " WHERE s.wallet_id = w.wallet_id), 0) AS total FROM wallets w", rs -> {
+            balances.put(rs.getObject("wallet_id", UUID.class), rs.getBigDecimal("total"));
+        });
+        Map<UUID, BigDecimal> ledger = new ConcurrentHashMap<>();
+        jdbcTemplate.query("SELECT wallet_id, SUM(CASE operation_type WHEN 'DEPOSIT' THEN amount"
+                + " WHEN 'WITHDRAW' THEN -amount ELSE 0 END) AS delta FROM transactions GROUP BY wallet_id", rs -> {
+            ledger.put(rs.getObject("wallet_id", UUID.class), rs.getBigDecimal("delta"));
+        });
+
+        int[] mismatches = new int[2];
+        for (UUID walletId : walletIds) {
+            BigDecimal balance = balances.get(walletId);
+            LongAdder confirmed = confirmedCents.get(walletId);
+            BigDecimal expected = INITIAL_BALANCE.add(BigDecimal.valueOf(confirmed == null ? 0 : confirmed.sum(), 2));
+            if (balance.compareTo(expected) != 0) {
+                mismatches[0]++;
+            }
+            if (balance.compareTo(INITIAL_BALANCE.add(ledger.getOrDefault(walletId, BigDecimal.ZERO))) != 0) {
+                mismatches[1]++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    @FunctionalInterface
+    private interface WalletPicker {
+        UUID pick(ThreadLocalRandom random);
+    }
+
+    /**
+     * Выбор кошелька по Ципфу: вероятность k-го кошелька пропорциональна 1 / k^s
+     */
+    private static final class ZipfPicker implements WalletPicker {
+
+        private final UUID[] walletIds;
+        private final double[] cumulative;
+
+        ZipfPicker(UUID[] walletIds, double exponent) {
+            this.walletIds = walletIds;
+            this.cumulative = new double[walletIds.length];
+            double sum = 0;
+            for (int k = 0; k < walletIds.length; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < cumulative.length; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        @Override
+        public UUID pick(ThreadLocalRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return walletIds[Math.min(walletIds.length - 1, index >= 0 ? index : -index - 1)];
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ru.maksm.walletservice.binary;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+import ru.maksm.walletservice.model.Money;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Клиент бинарного протокола для внутренних сервисов
+ *
+ * - одно TCP соединение на много потоков: запросы уходят сразу, не дожидаясь ответов на предыдущие
+ * - ответы разбирает отдельный поток и завершает CompletableFuture по correlationId
+ * - ошибки те же, что у REST клиента: join() бросает CompletionException, внутри WalletNotFoundException,
+ *   InsufficientFundsException, IdempotencyKeyConflictException, WalletQueueFullException (429),
+ *   ServiceOverloadedException (503), IllegalArgumentException (400), IllegalStateException (500)
+ * - продолжения thenApply/thenAccept без Async выполняются в потоке чтения - блокироваться в них нельзя
+ * - соединение оборвалось - все ожидающие запросы завершаются IOException, исход операций неизвестен,
+ *   повтор с тем же Idempotency-Key безопасен
+ */
+@Slf4j
+public final class WalletBinaryClient implements AutoCloseable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final Map<Long, CompletableFuture<WalletFrame.Response>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong correlationIds = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Thread reader;
+    private volatile boolean closed;
+
+    private WalletBinaryClient(SocketChannel channel) {
+        this.channel = channel;
+        this.reader = new Thread(this::readLoop, "wallet-binary-client-" + channel.socket().getLocalPort());
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    public static WalletBinaryClient connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new WalletBinaryClient(channel);
+    }
+
+    /**
+     * Операция с кошельком, аналог POST /api/v1/wallet
+     *
+     * @param idempotencyKey ключ идемпотентности, null - без него
+     */
+    public CompletableFuture<WalletOperationResponse> performOperation(WalletOperationRequest request,
+                                                                       String idempotencyKey) {
+        UUID walletId = request.getWalletId();
+        long correlationId = correlationIds.incrementAndGet();
+        return send(correlationId, WalletFrame.encodeOperation(correlationId, request, idempotencyKey))
+                .thenApply(response -> new WalletOperationResponse(walletId, Money.ofMinor(response.balance()),
+                        response.message(), response.version() < 0 ? null : response.version()));
+    }
+
+    public CompletableFuture<WalletOperationResponse> performOperation(WalletOperationRequest request) {
+        return performOperation(request, null);
+    }
+
+    /**
+     * Баланс кошелька, аналог GET /api/v1/wallets/{walletId}
+     *
+     * @param minVersion баланс не старее этой версии (как X-Min-Version), null - любой
+     */
+    public CompletableFuture<WalletBalanceResponse> getBalance(UUID walletId, Long minVersion) {
+        long correlationId = correlationIds.incrementAndGet();
+        return send(correlationId, WalletFrame.encodeBalance(correlationId, walletId, minVersion))
+                .thenApply(response -> new WalletBalanceResponse(walletId, Money.ofMinor(response.balance()),
+                        response.version() < 0 ? null : response.version()));
+    }
+
+    /**
+     * Запросов без ответа на этом соединении
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    private CompletableFuture<WalletFrame.Response> send(long correlationId, ByteBuffer frame) {
+        if (frame.remaining() - WalletFrame.LENGTH_SIZE > WalletFrame.MAX_FRAME_SIZE) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Запрос не помещается в кадр"));
+        }
+        CompletableFuture<WalletFrame.Response> future = new CompletableFuture<>();
+        pending.put(correlationId, future);
+        if (closed) {
+            pending.remove(correlationId);
+            return CompletableFuture.failedFuture(new IOException("Соединение закрыто"));
+        }
+
+        writeLock.lock();
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        } catch (IOException e) {
+            pending.remove(correlationId);
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            writeLock.unlock();
+        }
+        return future.thenApply(WalletBinaryClient::checkStatus);
+    }
+
+    private static WalletFrame.Response checkStatus(WalletFrame.Response response) {
+        String message = response.message();
+        return switch (response.status()) {
+            case OK -> response;
+            case WALLET_NOT_FOUND -> throw new WalletNotFoundException(message);
+            case INSUFFICIENT_FUNDS -> throw new InsufficientFundsException(message);
+            case IDEMPOTENCY_CONFLICT -> throw new IdempotencyKeyConflictException(message);
+            case BAD_REQUEST -> throw new IllegalArgumentException(message);
+            case QUEUE_FULL -> throw new WalletQueueFullException(message, response.retryAfterSeconds());
+            case OVERLOADED -> throw new ServiceOverloadedException(message, response.retryAfterSeconds());
+            case INTERNAL_ERROR -> throw new IllegalStateException(message);
+        };
+    }
+
+    private void readLoop() {
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        IOException failure = new IOException("Соединение закрыто");
+        try {
+            while (channel.read(input) >= 0) {
+                input.flip();
+                ByteBuffer body;
+                while ((body = WalletFrame.nextFrame(input)) != null) {
+                    WalletFrame.Response response = WalletFrame.decodeResponse(body);
+                    CompletableFuture<WalletFrame.Response> future = pending.remove(response.correlationId());
+                    if (future != null) {
+                        future.complete(response);
+                    }
+                }
+                input.compact();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.warn("Бинарный клиент: соединение оборвалось: {}", e.getMessage());
+                failure = e;
+            }
+        } finally {
+            closed = true;
+            for (Long correlationId : pending.keySet()) {
+                CompletableFuture<WalletFrame.Response> future = pending.remove(correlationId);
+                if (future != null) {
+                    future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        try {
+            reader.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ru.maksm.walletservice.binary;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.service.WalletService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Бинарный вход для внутренних сервисов (wallet.binary.enabled=true)
+ *
+ * тот же POST /api/v1/wallet и GET баланса, но без servlet-стека, Jackson и Bean Validation:
+ * - кадры с длиной (см WalletFrame) поверх одного NIO селектора, соединения долгоживущие
+ * - клиент шлет запросы не дожидаясь ответов, ответы уходят по готовности и сопоставляются по correlationId
+ * - запросы выполняются на пуле worker-threads через WalletService - те же движки, идемпотентность,
+ *   очередь допуска и шлюз коннектов, что и у REST; исключения превращаются в статусы как в WalletController
+ * - на соединение не больше max-in-flight невыполненных запросов: на пределе разбор кадров останавливается,
+ *   остаток ждет в буфере чтения, селектор перестает читать сокет, и клиента сдерживает TCP окно,
+ *   а не растущая очередь в памяти
+ * - при остановке начатые запросы доделываются, но ответы на них могут не дойти - клиент повторяет
+ *   с тем же Idempotency-Key
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.binary.enabled", havingValue = "true")
+@Slf4j
+public class WalletBinaryServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    private static final int MAX_GATHERED_WRITES = 64;
+
+    private final WalletService walletService;
+    private final String host;
+    private final int port;
+    private final int workerThreads;
+    private final int maxInFlight;
+    private final Counter[] responses;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<Connection> writeReady = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public WalletBinaryServer(WalletService walletService,
+                              MeterRegistry meterRegistry,
+                              @Value("${wallet.binary.host:0.0.0.0}") String host,
+                              @Value("${wallet.binary.port:9090}") int port,
+                              @Value("${wallet.binary.worker-threads:200}") int workerThreads,
+                              @Value("${wallet.binary.max-in-flight:256}") int maxInFlight) {
+        this.walletService = walletService;
+        this.host = host;
+        this.port = port;
+        this.workerThreads = workerThreads;
+        this.maxInFlight = maxInFlight;
+
+        WalletFrame.Status[] statuses = WalletFrame.Status.values();
+        this.responses = new Counter[statuses.length];
+        for (WalletFrame.Status status : statuses) {
+            responses[status.ordinal()] = Counter.builder("wallet.binary.responses")
+                    .tag("status", status.name())
+                    .register(meterRegistry);
+        }
+        Gauge.builder("wallet.binary.connections", connections, Set::size).register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread thread = new Thread(task, "wallet-binary-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "wallet-binary-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        log.info("Бинарный протокол слушает {}, воркеров {}, запросов в полете на соединение до {}",
+                serverChannel.getLocalAddress(), workerThreads, maxInFlight);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        running = false;
+        selector.wakeup();
+        selectorThread.join();
+        serverChannel.close();
+
+        workers.shutdown();
+        if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Бинарный протокол: не все начатые запросы завершились за 10 секунд");
+            workers.shutdownNow();
+        }
+        connections.forEach(Connection::close);
+        selector.close();
+    }
+
+    /**
+     * Фактический порт (при wallet.binary.port=0 выбирается свободный)
+     */
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select();
+                Connection ready;
+                while ((ready = writeReady.poll()) != null) {
+                    ready.flush();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Ошибка селектора бинарного протокола: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        log.debug("Бинарный протокол: новое соединение {}", channel.getRemoteAddress());
+    }
+
+    private WalletFrame.Response handle(WalletFrame.Request request) {
+        try {
+            return switch (request.opcode()) {
+                case WalletFrame.OP_OPERATION -> operation(request);
+                case WalletFrame.OP_BALANCE -> balance(request);
+                default -> error(request, WalletFrame.Status.BAD_REQUEST, 0, "Неизвестная команда: " + request.opcode());
+            };
+        } catch (WalletNotFoundException e) {
+            return error(request, WalletFrame.Status.WALLET_NOT_FOUND, 0, e.getMessage());
+        } catch (InsufficientFundsException e) {
+            return error(request, WalletFrame.Status.INSUFFICIENT_FUNDS, 0, e.getMessage());
+        } catch (IdempotencyKeyConflictException e) {
+            return error(request, WalletFrame.Status.IDEMPOTENCY_CONFLICT, 0, e.getMessage());
+        } catch (WalletQueueFullException e) {
+            return error(request, WalletFrame.Status.QUEUE_FULL, e.getRetryAfterSeconds(), e.getMessage());
+        } catch (ServiceOverloadedException e) {
+            return error(request, WalletFrame.Status.OVERLOADED, e.getRetryAfterSeconds(), e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(request, WalletFrame.Status.BAD_REQUEST, 0, e.getMessage());
+        } catch (Exception e) {
+            log.error("Ошибка при выполнении бинарного запроса: {}", e.getMessage(), e);
+            return error(request, WalletFrame.Status.INTERNAL_ERROR, 0, "Внутренняя ошибка сервера");
+        }
+    }
+
+    private WalletFrame.Response operation(WalletFrame.Request frame) {
+        // те же проверки, что аннотации WalletOperationRequest и WalletController, без рефлексии валидатора
+        if (frame.operationType() == null || !frame.operationType().isClientOperation()) {
+            return error(frame, WalletFrame.Status.BAD_REQUEST, 0, "Недопустимый тип операции");
+        }
+        if (frame.amount() <= 0) {
+            return error(frame, WalletFrame.Status.BAD_REQUEST, 0, "Сумма должна быть положительной");
+        }
+        String key = frame.idempotencyKey();
+        if (key != null && (key.isBlank() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            return error(frame, WalletFrame.Status.BAD_REQUEST, 0,
+                    "Idempotency-Key должен быть непустым и не длиннее " + MAX_IDEMPOTENCY_KEY_LENGTH + " символов");
+        }
+
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(frame.walletId());
+        request.setOperationType(frame.operationType());
+        request.setAmount(Money.ofMinor(frame.amount()));
+        WalletOperationResponse response = walletService.performOperation(request, key, null, null);
+        return ok(frame, response.getBalance(), response.getVersion(), response.getMessage());
+    }
+
+    private WalletFrame.Response balance(WalletFrame.Request frame) {
+        WalletBalanceResponse response = walletService.getBalance(frame.walletId(),
+                frame.minVersion() < 0 ? null : frame.minVersion());
+        return ok(frame, response.getBalance(), response.getVersion(), null);
+    }
+
+    private static WalletFrame.Response ok(WalletFrame.Request request, Money balance, Long version, String message) {
+        return new WalletFrame.Response(request.correlationId(), WalletFrame.Status.OK, balance.minor(),
+                version == null ? -1 : version, 0, message);
+    }
+
+    private static WalletFrame.Response error(WalletFrame.Request request, WalletFrame.Status status,
+                                              long retryAfterSeconds, String message) {
+        return new WalletFrame.Response(request.correlationId(), status, 0, -1, (int) retryAfterSeconds, message);
+    }
+
+    /**
+     * Соединение клиента; буферы чтения и записи трогает только поток селектора,
+     * воркеры лишь кладут готовые ответы в outbox
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private boolean readPaused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (channel.read(input) < 0) {
+                    close();
+                    return;
+                }
+                dispatchBuffered();
+            } catch (IOException e) {
+                // битый кадр или оборванное соединение: без длины кадра дальше поток не разобрать
+                log.warn("Бинарный протокол: соединение закрыто: {}", e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Отдать воркерам кадры из буфера чтения, пока в полете меньше max-in-flight;
+         * на пределе остаток остается в буфере, а чтение сокета встает до ответов
+         */
+        private void dispatchBuffered() throws IOException {
+            input.flip();
+            boolean full = false;
+            while (true) {
+                if (inFlight.get() >= maxInFlight) {
+                    full = true;
+                    break;
+                }
+                ByteBuffer body = WalletFrame.nextFrame(input);
+                if (body == null) {
+                    break;
+                }
+                WalletFrame.Request request = WalletFrame.decodeRequest(body);
+                inFlight.incrementAndGet();
+                workers.execute(() -> respond(handle(request)));
+            }
+            input.compact();
+            readPaused = full;
+            updateInterest();
+        }
+
+        void respond(WalletFrame.Response response) {
+            responses[response.status().ordinal()].increment();
+            outbox.add(WalletFrame.encodeResponse(response));
+            inFlight.decrementAndGet();
+            // будим селектор один раз на серию ответов, а не на каждый
+            if (flushScheduled.compareAndSet(false, true)) {
+                writeReady.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void flush() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            flushScheduled.set(false);
+            try {
+                ByteBuffer next;
+                while ((next = outbox.poll()) != null) {
+                    writing.add(next);
+                }
+                while (!writing.isEmpty()) {
+                    // gathering write: пачка ответов одним системным вызовом
+                    ByteBuffer[] batch = writing.stream().limit(MAX_GATHERED_WRITES).toArray(ByteBuffer[]::new);
+                    channel.write(batch);
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                        writing.poll();
+                    }
+                    if (batch[batch.length - 1].hasRemaining()) {
+                        break;
+                    }
+                }
+                if (readPaused && inFlight.get() < maxInFlight) {
+                    // сначала кадры, что уже ждут в буфере: клиент мог прислать все и больше не писать
+                    dispatchBuffered();
+                } else {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                log.warn("Бинарный протокол: ошибка соединения, соединение закрыто: {}", e.getMessage());
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ)
+                        | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Бинарный протокол: ошибка при закрытии соединения: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package ru.maksm.walletservice.binary;
+
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Кадры бинарного протокола (WalletBinaryServer / WalletBinaryClient)
+ *
+ * кадр: [int длина тела][тело], числа big-endian, суммы - long в копейках, строки - [short длина][utf-8], -1 = null
+ * - запрос: [long correlationId][byte команда] и дальше по команде
+ *   OPERATION: [uuid кошелька][byte тип операции][long сумма][строка Idempotency-Key]
+ *   BALANCE:   [uuid кошелька][long минимальная версия, -1 - любая]
+ * - ответ:  [long correlationId][byte статус][long баланс][long версия, -1 - нет][int retry-after, с][строка сообщение]
+ *
+ * ответы по соединению приходят в порядке готовности, а не отправки - клиент сверяет их по correlationId
+ * новые команды, типы операций и статусы - только в конец: на проводе они порядковые номера
+ */
+public final class WalletFrame {
+
+    public static final byte OP_OPERATION = 1;
+    public static final byte OP_BALANCE = 2;
+
+    // кадр больше - битый поток или чужой протокол, соединение закрывается
+    public static final int MAX_FRAME_SIZE = 4096;
+
+    static final int LENGTH_SIZE = 4;
+
+    // длинные сообщения об ошибках режем, чтобы ответ всегда влезал в кадр
+    private static final int MAX_MESSAGE_LENGTH = 512;
+    private static final OperationType[] OPERATION_TYPES = OperationType.values();
+    private static final Status[] STATUSES = Status.values();
+
+    /**
+     * Статус ответа, соответствует коду ответа REST API
+     */
+    public enum Status {
+        OK,                    // 200
+        WALLET_NOT_FOUND,      // 404
+        INSUFFICIENT_FUNDS,    // 422
+        IDEMPOTENCY_CONFLICT,  // 409
+        BAD_REQUEST,           // 400
+        QUEUE_FULL,            // 429
+        OVERLOADED,            // 503
+        INTERNAL_ERROR         // 500
+    }
+
+    /**
+     * Разобранный запрос; operationType = null - неизвестный тип (ответ BAD_REQUEST)
+     */
+    public record Request(long correlationId, byte opcode, UUID walletId, OperationType operationType,
+                          long amount, String idempotencyKey, long minVersion) {
+    }
+
+    /**
+     * Разобранный ответ; version = -1 - версии нет
+     */
+    public record Response(long correlationId, Status status, long balance, long version,
+                           int retryAfterSeconds, String message) {
+    }
+
+    private WalletFrame() {
+    }
+
+    public static ByteBuffer encodeOperation(long correlationId, WalletOperationRequest request, String idempotencyKey) {
+        byte[] key = bytes(idempotencyKey);
+        ByteBuffer buffer = frame(8 + 1 + 16 + 1 + 8 + 2 + (key == null ? 0 : key.length));
+        buffer.putLong(correlationId);
+        buffer.put(OP_OPERATION);
+        putUuid(buffer, request.getWalletId());
+        buffer.put((byte) request.getOperationType().ordinal());
+        buffer.putLong(request.getAmount().minor());
+        putBytes(buffer, key);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeBalance(long correlationId, UUID walletId, Long minVersion) {
+        ByteBuffer buffer = frame(8 + 1 + 16 + 8);
+        buffer.putLong(correlationId);
+        buffer.put(OP_BALANCE);
+        putUuid(buffer, walletId);
+        buffer.putLong(minVersion == null ? -1 : minVersion);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeResponse(Response response) {
+        String message = response.message();
+        if (message != null && message.length() > MAX_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_MESSAGE_LENGTH);
+        }
+        byte[] text = bytes(message);
+        ByteBuffer buffer = frame(8 + 1 + 8 + 8 + 4 + 2 + (text == null ? 0 : text.length));
+        buffer.putLong(response.correlationId());
+        buffer.put((byte) response.status().ordinal());
+        buffer.putLong(response.balance());
+        buffer.putLong(response.version());
+        buffer.putInt(response.retryAfterSeconds());
+        putBytes(buffer, text);
+        return buffer.flip();
+    }
+
+    /**
+     * Следующий целый кадр из буфера (в режиме чтения)
+     *
+     * @return тело кадра (срез буфера, позиция сдвигается за кадр) или null, если кадр еще не дочитан
+     * @throws ProtocolException длина кадра вне допустимых пределов
+     */
+    public static ByteBuffer nextFrame(ByteBuffer input) throws ProtocolException {
+        if (input.remaining() < LENGTH_SIZE) {
+            return null;
+        }
+        int length = input.getInt(input.position());
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Недопустимая длина кадра: " + length);
+        }
+        if (input.remaining() < LENGTH_SIZE + length) {
+            return null;
+        }
+        int start = input.position() + LENGTH_SIZE;
+        ByteBuffer body = input.slice(start, length);
+        input.position(start + length);
+        return body;
+    }
+
+    public static Request decodeRequest(ByteBuffer body) throws ProtocolException {
+        try {
+            long correlationId = body.getLong();
+            byte opcode = body.get();
+            return switch (opcode) {
+                case OP_OPERATION -> {
+                    UUID walletId = getUuid(body);
+                    int type = body.get();
+                    OperationType operationType = type >= 0 && type < OPERATION_TYPES.length
+                            ? OPERATION_TYPES[type] : null;
+                    long amount = body.getLong();
+                    yield new Request(correlationId, opcode, walletId, operationType, amount, getString(body), -1);
+                }
+                case OP_BALANCE -> new Request(correlationId, opcode, getUuid(body), null, 0, null, body.getLong());
+                default -> new Request(correlationId, opcode, null, null, 0, null, -1);
+            };
+        } catch (RuntimeException e) {
+            // BufferUnderflowException и т.п. - тело короче, чем требует команда
+            throw new ProtocolException("Битый кадр запроса: " + e);
+        }
+    }
+
+    public static Response decodeResponse(ByteBuffer body) throws ProtocolException {
+        try {
+            long correlationId = body.getLong();
+            int status = body.get();
+            if (status < 0 || status >= STATUSES.length) {
+                throw new ProtocolException("Неизвестный статус ответа: " + status);
+            }
+            return new Response(correlationId, STATUSES[status], body.getLong(), body.getLong(), body.getInt(),
+                    getString(body));
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Битый кадр ответа: " + e);
+        }
+    }
+
+    private static ByteBuffer frame(int bodySize) {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + bodySize);
+        buffer.putInt(bodySize);
+        return buffer;
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID value) {
+        buffer.putLong(value.getMostSignificantBits());
+        buffer.putLong(value.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,169 @@
+package ru.maksm.walletservice.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ru.maksm.walletservice.model.Money;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Ближний кэш балансов кошельков в памяти инстанса
+ *
+ * дашборды и мобилки опрашивают баланс гораздо чаще, чем он меняется, поэтому GET не должен каждый раз ходить в postgres:
+ * - размер ограничен, вытеснение LRU; карта разбита на сегменты, чтобы читатели не толкались на одном локе
+ * - запись живет не дольше max-staleness: так доезжают изменения, сделанные другими инстансами
+ * - после коммита операции кэш обновляется новым балансом, но только если Wallet.version новее,
+ *   поэтому запоздавший читатель со старой версией не перетрет свежую запись
+ * - consistency=strict полностью выключает кэш, каждый GET идет в БД
+ */
+@Component
+@Slf4j
+public class WalletBalanceCache {
+
+    private static final int SEGMENTS = 16;
+    private static final String CACHE_NAME = "wallet-balance";
+
+    private final boolean strict;
+    private final long maxStalenessNanos;
+    private final Segment[] segments;
+    private final LongSupplier clock;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter puts;
+    private final Counter evictions;
+
+    @Autowired
+    public WalletBalanceCache(MeterRegistry meterRegistry,
+                              @Value("${wallet.cache.consistency:bounded}") String consistency,
+                              @Value("${wallet.cache.max-staleness:PT2S}") Duration maxStaleness,
+                              @Value("${wallet.cache.max-size:100000}") int maxSize) {
+        this(meterRegistry, consistency, maxStaleness, maxSize, System::nanoTime);
+    }
+
+    WalletBalanceCache(MeterRegistry meterRegistry, String consistency, Duration maxStaleness, int maxSize,
+                       LongSupplier clock) {
+        this.strict = "strict".equalsIgnoreCase(consistency);
+        this.maxStalenessNanos = maxStaleness.toNanos();
+        this.clock = clock;
+        this.segments = new Segment[SEGMENTS];
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+
+        this.hits = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "miss").register(meterRegistry);
+        this.puts = Counter.builder("cache.puts").tag("cache", CACHE_NAME).register(meterRegistry);
+        this.evictions = Counter.builder("cache.evictions").tag("cache", CACHE_NAME).register(meterRegistry);
+        Gauge.builder("cache.size", this, WalletBalanceCache::size).tag("cache", CACHE_NAME).register(meterRegistry);
+
+        log.info("Кэш балансов: режим {}, max-staleness {}, размер {}",
+                strict ? "strict" : "bounded", maxStaleness, maxSize);
+    }
+
+    /**
+     * Включен ли кэш (в strict режиме все чтения идут в БД)
+     */
+    public boolean isEnabled() {
+        return !strict;
+    }
+
+    /**
+     * Получить баланс, если он в кэше и не старше max-staleness
+     */
+    public Optional<CachedBalance> get(UUID walletId) {
+        if (strict) {
+            return Optional.empty();
+        }
+        CachedBalance cached = segment(walletId).get(walletId);
+        if (cached == null || clock.getAsLong() - cached.loadedAtNanos() > maxStalenessNanos) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(cached);
+    }
+
+    /**
+     * Положить баланс; запись с версией старше уже закэшированной игнорируется
+     */
+    public void put(UUID walletId, Money balance, Long version) {
+        if (strict || balance == null || version == null) {
+            return;
+        }
+        if (segment(walletId).put(walletId, new CachedBalance(balance, version, clock.getAsLong()))) {
+            puts.increment();
+        }
+    }
+
+    public void invalidate(UUID walletId) {
+        segment(walletId).remove(walletId);
+    }
+
+    public long size() {
+        return Arrays.stream(segments).mapToLong(Segment::size).sum();
+    }
+
+    private Segment segment(UUID walletId) {
+        return segments[(walletId.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    /**
+     * Закэшированный баланс с версией кошелька, из которой он получен
+     */
+    public record CachedBalance(Money balance, long version, long loadedAtNanos) {
+    }
+
+    private final class Segment {
+
+        private final LinkedHashMap<UUID, CachedBalance> entries;
+
+        private Segment(int maxSize) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, CachedBalance> eldest) {
+                    if (size() > maxSize) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized CachedBalance get(UUID walletId) {
+            return entries.get(walletId);
+        }
+
+        synchronized boolean put(UUID walletId, CachedBalance balance) {
+            CachedBalance current = entries.get(walletId);
+            // та же версия просто продлевает свежесть записи, более старая отбрасывается
+            if (current != null && current.version() > balance.version()) {
+                return false;
+            }
+            entries.put(walletId, balance);
+            return true;
+        }
+
+        synchronized void remove(UUID walletId) {
+            entries.remove(walletId);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ru.maksm.walletservice.cluster;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Состав кластера и владельцы кошельков (wallet.cluster.enabled=true)
+ *
+ * - участники - базовые адреса инстансов в wallet.cluster.members, свой адрес - wallet.cluster.self
+ * - список статический или из config server: после POST /actuator/refresh кольцо перестраивается
+ *   без рестарта, у смены состава растет epoch
+ * - в течение handoff-window после смены состава помним прошлое кольцо: новый владелец кошелька
+ *   сначала дожидается, пока прошлый доделает начатые по нему операции (см WalletOwnership)
+ * - инстанс, которого нет в списке, ничем не владеет и все пересылает: так узел выводится из кластера
+ */
+@Component
+@Slf4j
+public class ClusterMembership {
+
+    private static final String MEMBERS_PROPERTY = "wallet.cluster.members";
+
+    private final Environment environment;
+    private final boolean enabled;
+    private final String self;
+    private final int virtualNodes;
+    private final long handoffWindowNanos;
+
+    private volatile View view;
+
+    /**
+     * Текущее кольцо и прошлое (до последней смены состава)
+     */
+    record View(long epoch, ConsistentHashRing ring, ConsistentHashRing previous, long changedAtNanos) {
+    }
+
+    public ClusterMembership(Environment environment,
+                             MeterRegistry meterRegistry,
+                             @Value("${wallet.cluster.enabled:false}") boolean enabled,
+                             @Value("${wallet.cluster.self:}") String self,
+                             @Value("${wallet.cluster.virtual-nodes:128}") int virtualNodes,
+                             @Value("${wallet.cluster.handoff-window:PT30S}") Duration handoffWindow,
+                             @Value("${wallet.engine:jpa}") String engine) {
+        this.environment = environment;
+        this.enabled = enabled;
+        this.self = normalize(self);
+        this.virtualNodes = virtualNodes;
+        this.handoffWindowNanos = handoffWindow.toNanos();
+
+        ConsistentHashRing ring = new ConsistentHashRing(readMembers(), virtualNodes);
+        this.view = new View(0, ring, ring, System.nanoTime() - handoffWindowNanos);
+
+        if (enabled) {
+            if ("journal".equals(engine)) {
+                // журнал держит балансы всех кошельков в памяти одного инстанса, делить их между узлами он не умеет
+                throw new IllegalStateException("wallet.cluster.enabled несовместим с wallet.engine=journal");
+            }
+            if (this.self.isEmpty()) {
+                throw new IllegalStateException("Для кластерного режима нужен wallet.cluster.self - адрес этого инстанса");
+            }
+            if (!ring.members().contains(this.self)) {
+                log.warn("Инстанс {} не входит в wallet.cluster.members, все операции будут пересылаться", this.self);
+            }
+            log.info("Кластерный режим: {} участников, этот инстанс {}", ring.members().size(), this.self);
+        }
+
+        Gauge.builder("wallet.cluster.members", this, m -> m.view.ring().members().size()).register(meterRegistry);
+        Gauge.builder("wallet.cluster.epoch", this, m -> m.view.epoch()).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public long epoch() {
+        return view.epoch();
+    }
+
+    /**
+     * Владелец кошелька по текущему кольцу, null - кольцо пустое
+     */
+    public String owner(UUID walletId) {
+        return view.ring().owner(walletId);
+    }
+
+    /**
+     * Прошлый владелец кошелька, если кошелек сменил владельца недавно (в пределах handoff-window)
+     * null - не менял или передача уже считается завершенной
+     */
+    public String previousOwner(UUID walletId) {
+        View current = view;
+        if (System.nanoTime() - current.changedAtNanos() >= handoffWindowNanos) {
+            return null;
+        }
+        String previous = current.previous().owner(walletId);
+        return previous == null || previous.equals(current.ring().owner(walletId)) ? null : previous;
+    }
+
+    /**
+     * Адрес - участник кластера: текущего кольца или прошлого, пока идет передача после смены состава
+     */
+    public boolean isMember(String address) {
+        if (address == null) {
+            return false;
+        }
+        String member = normalize(address);
+        View current = view;
+        return current.ring().members().contains(member)
+                || (System.nanoTime() - current.changedAtNanos() < handoffWindowNanos
+                && current.previous().members().contains(member));
+    }
+
+    /**
+     * Конфиг обновился (POST /actuator/refresh) - перечитать состав
+     */
+    @EventListener
+    public void onEnvironmentChange(EnvironmentChangeEvent event) {
+        if (event.getKeys().stream().anyMatch(key -> key.startsWith(MEMBERS_PROPERTY))) {
+            update(readMembers());
+        }
+    }
+
+    synchronized void update(List<String> members) {
+        View current = view;
+        ConsistentHashRing ring = new ConsistentHashRing(members, virtualNodes);
+        if (ring.members().equals(current.ring().members())) {
+            return;
+        }
+        view = new View(current.epoch() + 1, ring, current.ring(), System.nanoTime());
+        log.info("Состав кластера изменился (epoch {}): {} -> {}",
+                current.epoch() + 1, current.ring().members(), ring.members());
+    }
+
+    private List<String> readMembers() {
+        String members = environment.getProperty(MEMBERS_PROPERTY, "");
+        return Arrays.stream(members.split(","))
+                .map(ClusterMembership::normalize)
+                .filter(member -> !member.isEmpty())
+                .toList();
+    }
+
+    static String normalize(String address) {
+        String value = address.strip();
+        return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.maksm.walletservice.cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+
+/**
+ * Подпись запросов между инстансами кластера общим секретом wallet.cluster.secret
+ *
+ * - значение заголовка: {epochSeconds}.{base64url HMAC-SHA256(отправитель, предмет, epochSeconds)}
+ * - предмет - то, на что дается право: операция (кошелек, тип, сумма) или передача кошелька,
+ *   поэтому подпись одного запроса не подходит к другому
+ * - подпись старше max-clock-skew (или из будущего) не принимается, сравнение - за постоянное время
+ */
+final class ClusterSignature {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long maxSkewSeconds;
+
+    ClusterSignature(String secret, Duration maxClockSkew) {
+        this.key = secret == null || secret.isEmpty()
+                ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.maxSkewSeconds = maxClockSkew.toSeconds();
+    }
+
+    boolean isConfigured() {
+        return key != null;
+    }
+
+    String sign(String sender, String subject) {
+        return sign(sender, subject, System.currentTimeMillis() / 1000);
+    }
+
+    String sign(String sender, String subject, long epochSecond) {
+        return epochSecond + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac(sender, subject, epochSecond));
+    }
+
+    /**
+     * Подпись сделана этим секретом для этого отправителя и предмета и не устарела
+     */
+    boolean verify(String sender, String subject, String signature) {
+        if (key == null || sender == null || signature == null) {
+            return false;
+        }
+        int dot = signature.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        long epochSecond;
+        byte[] presented;
+        try {
+            epochSecond = Long.parseLong(signature.substring(0, dot));
+            presented = Base64.getUrlDecoder().decode(signature.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (Math.abs(System.currentTimeMillis() / 1000 - epochSecond) > maxSkewSeconds) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac(sender, subject, epochSecond), presented);
+    }
+
+    private byte[] mac(String sender, String subject, long epochSecond) {
+        if (key == null) {
+            throw new IllegalStateException("Не задан wallet.cluster.secret");
+        }
+        try {
+            // Mac не потокобезопасен, на каждую подпись свой
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            String message = ClusterMembership.normalize(sender) + "\n" + subject + "\n" + epochSecond;
+            return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC недоступен", e);
+        }
+    }
+}
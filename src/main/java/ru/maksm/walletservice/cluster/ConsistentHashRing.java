@@ -0,0 +1,93 @@
+package ru.maksm.walletservice.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Кольцо консистентного хеширования: кошелек -> инстанс-владелец
+ *
+ * - каждый участник ставит на кольцо virtualNodes точек, кошелек принадлежит первой точке по часовой
+ * - добавление или удаление участника переносит только ~1/N кошельков, остальные остаются у своих владельцев
+ * - хеши не зависят от JVM (не String.hashCode и не порядок в списке), поэтому все инстансы
+ *   с одинаковым списком участников считают одинаковых владельцев
+ *
+ * неизменяемое, при смене состава строится новое
+ */
+public final class ConsistentHashRing {
+
+    private final List<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(List<String> members, int virtualNodes) {
+        this.members = members.stream().distinct().sorted().toList();
+
+        int size = this.members.size() * virtualNodes;
+        long[] hashes = new long[size];
+        String[] pointOwners = new String[size];
+        int i = 0;
+        for (String member : this.members) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = mix(fnv1a(member + "#" + v));
+                pointOwners[i] = member;
+                i++;
+            }
+        }
+
+        // сортируем точки вместе с владельцами; при совпадении хешей побеждает меньший участник
+        Integer[] order = new Integer[size];
+        for (int j = 0; j < size; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b]
+                ? Long.compare(hashes[a], hashes[b])
+                : pointOwners[a].compareTo(pointOwners[b]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int j = 0; j < size; j++) {
+            points[j] = hashes[order[j]];
+            owners[j] = pointOwners[order[j]];
+        }
+    }
+
+    public List<String> members() {
+        return members;
+    }
+
+    public boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * Владелец кошелька, null - кольцо пустое
+     */
+    public String owner(UUID walletId) {
+        if (points.length == 0) {
+            return null;
+        }
+        long hash = mix(walletId.getMostSignificantBits() ^ Long.rotateLeft(walletId.getLeastSignificantBits(), 32));
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    private static long fnv1a(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // финализатор splitmix64: uuid v4 и fnv по отдельности размазаны по кольцу неравномерно
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,395 @@
+package ru.maksm.walletservice.cluster;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClient;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Владение кошельками в кластерном режиме (wallet.cluster.enabled=true)
+ *
+ * - операция по чужому кошельку пересылается владельцу по HTTP (один прыжок: пересланное
+ *   выполняется на месте, даже если у получателя другое мнение о владельце)
+ * - владелец сериализует операции своих кошельков в памяти, в БД по кошельку идет одна транзакция
+ *   за раз, и блокировки строки не делят инстансы между собой
+ * - передача при смене состава: новый владелец перед первой операцией по кошельку просит прошлого
+ *   отпустить его; прошлый с этого момента пересылает кошелек новому и ждет, пока доделаются начатые
+ * - владелец недоступен и запрос до него не дошел - выполняем сами; запрос ушел, а ответа нет - 503,
+ *   клиент повторяет с Idempotency-Key
+ * - пересылка и запрос передачи подписаны общим секретом (см ClusterSignature): заголовок с адресом
+ *   отправителя сам по себе ничего не доказывает, его может прислать любой клиент
+ *
+ * корректность балансов по-прежнему держат блокировки строк в БД: владение убирает конкуренцию между
+ * инстансами, а не заменяет блокировки, поэтому гонки при смене состава стоят только лишнего ожидания
+ */
+@Component
+@Slf4j
+public class WalletOwnership {
+
+    public static final String FORWARDED_BY_HEADER = "X-Wallet-Forwarded-By";
+    public static final String SIGNATURE_HEADER = "X-Wallet-Cluster-Signature";
+
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final String OPERATION_PATH = "/api/v1/wallet";
+    private static final String HANDOFF_PATH = "/api/v1/cluster/handoff/";
+    private static final ParameterizedTypeReference<Map<String, Object>> ERROR_BODY = new ParameterizedTypeReference<>() {
+    };
+
+    private final ClusterMembership membership;
+    private final RestClient restClient;
+    private final ClusterSignature signature;
+    private final long maxWaitNanos;
+    private final long retryAfterSeconds;
+    private final long handoffTimeoutNanos;
+    private final long handoffWindowNanos;
+
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+    // кошельки, отпущенные новому владельцу: до конца handoff-window пересылаются ему, пока начатые доделываются здесь
+    private final ConcurrentHashMap<UUID, Release> released = new ConcurrentHashMap<>();
+    private final AtomicReference<Handoffs> handoffs = new AtomicReference<>(new Handoffs(-1, new ConcurrentHashMap<>()));
+
+    private final Counter routedLocal;
+    private final Counter routedForwarded;
+    private final Counter routedFallback;
+    private final Counter handoffDrained;
+    private final Counter handoffTimeout;
+    private final Counter handoffUnreachable;
+
+    private record Release(String owner, long expiresAtNanos) {
+    }
+
+    /**
+     * Передачи, запрошенные этим инстансом в текущем epoch: первая операция по кошельку делает запрос,
+     * остальные ждут ее
+     */
+    private record Handoffs(long epoch, ConcurrentHashMap<UUID, CompletableFuture<Void>> wallets) {
+    }
+
+    public WalletOwnership(ClusterMembership membership,
+                           RestClient.Builder restClientBuilder,
+                           MeterRegistry meterRegistry,
+                           @Value("${wallet.cluster.max-wait:PT2S}") Duration maxWait,
+                           @Value("${wallet.cluster.connect-timeout:PT1S}") Duration connectTimeout,
+                           @Value("${wallet.cluster.forward-timeout:PT10S}") Duration forwardTimeout,
+                           @Value("${wallet.cluster.handoff-timeout:PT5S}") Duration handoffTimeout,
+                           @Value("${wallet.cluster.handoff-window:PT30S}") Duration handoffWindow,
+                           @Value("${wallet.cluster.secret:}") String secret,
+                           @Value("${wallet.cluster.max-clock-skew:PT1M}") Duration maxClockSkew) {
+        this.membership = membership;
+        this.signature = new ClusterSignature(secret, maxClockSkew);
+        if (membership.isEnabled() && !signature.isConfigured()) {
+            throw new IllegalStateException("Для кластерного режима нужен wallet.cluster.secret - общий секрет подписи запросов между инстансами");
+        }
+        this.maxWaitNanos = maxWait.toNanos();
+        this.retryAfterSeconds = Math.max(1, (maxWait.toMillis() + 999) / 1000);
+        this.handoffTimeoutNanos = handoffTimeout.toNanos();
+        this.handoffWindowNanos = handoffWindow.toNanos();
+
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(
+                HttpClient.newBuilder().connectTimeout(connectTimeout).build());
+        requestFactory.setReadTimeout(forwardTimeout);
+        this.restClient = restClientBuilder.requestFactory(requestFactory).build();
+
+        this.routedLocal = Counter.builder("wallet.cluster.operations").tag("route", "local").register(meterRegistry);
+        this.routedForwarded = Counter.builder("wallet.cluster.operations").tag("route", "forwarded").register(meterRegistry);
+        this.routedFallback = Counter.builder("wallet.cluster.operations").tag("route", "fallback").register(meterRegistry);
+        this.handoffDrained = Counter.builder("wallet.cluster.handoffs").tag("outcome", "drained").register(meterRegistry);
+        this.handoffTimeout = Counter.builder("wallet.cluster.handoffs").tag("outcome", "timeout").register(meterRegistry);
+        this.handoffUnreachable = Counter.builder("wallet.cluster.handoffs").tag("outcome", "unreachable")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return membership.isEnabled();
+    }
+
+    /**
+     * Кошельком владеет другой инстанс
+     */
+    public boolean isRemote(UUID walletId) {
+        if (!membership.isEnabled()) {
+            return false;
+        }
+        String owner = ownerOf(walletId);
+        return owner != null && !owner.equals(membership.self());
+    }
+
+    /**
+     * Переслать операцию владельцу кошелька
+     *
+     * @return ответ владельца; пусто - владелец недоступен и запрос до него не дошел, выполнить на месте
+     */
+    public Optional<WalletOperationResponse> forward(WalletOperationRequest request, String idempotencyKey) {
+        String owner = ownerOf(request.getWalletId());
+        try {
+            WalletOperationResponse response = restClient.post()
+                    .uri(owner + OPERATION_PATH)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(FORWARDED_BY_HEADER, membership.self())
+                    .header(SIGNATURE_HEADER, signature.sign(membership.self(), operationSubject(request)))
+                    .headers(headers -> {
+                        if (idempotencyKey != null) {
+                            headers.set(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+                        }
+                    })
+                    .body(request)
+                    .exchange((clientRequest, clientResponse) -> {
+                        if (clientResponse.getStatusCode().is2xxSuccessful()) {
+                            return clientResponse.bodyTo(WalletOperationResponse.class);
+                        }
+                        throw failure(owner, clientResponse.getStatusCode(), clientResponse.getHeaders(),
+                                clientResponse.bodyTo(ERROR_BODY));
+                    });
+            routedForwarded.increment();
+            return Optional.of(response);
+        } catch (ResourceAccessException e) {
+            if (notSent(e)) {
+                routedFallback.increment();
+                log.warn("Владелец {} кошелька {} недоступен, выполняем операцию на месте: {}",
+                        owner, request.getWalletId(), e.getMessage());
+                return Optional.empty();
+            }
+            log.warn("Владелец {} кошелька {} не ответил: {}", owner, request.getWalletId(), e.getMessage());
+            throw new ServiceOverloadedException("Владелец кошелька не ответил, повторите операцию", retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Выполнить операцию как владелец: дождаться передачи кошелька от прошлого владельца
+     * и встать в очередь кошелька
+     *
+     * @param serialize false - только учет начатых операций (комбайнер и striped кошельки сериализуют сами)
+     */
+    public <T> T runAsOwner(UUID walletId, boolean serialize, Supplier<T> action) {
+        if (!membership.isEnabled()) {
+            return action.get();
+        }
+        routedLocal.increment();
+        awaitHandoff(walletId);
+
+        Entry entry = entries.compute(walletId, (id, current) -> {
+            Entry result = current == null ? new Entry() : current;
+            result.users++;
+            return result;
+        });
+        try {
+            if (!serialize) {
+                return action.get();
+            }
+            if (!acquire(entry)) {
+                log.warn("Операция по кошельку {} не дождалась очереди владельца за {} мс", walletId, maxWaitNanos / 1_000_000);
+                throw new WalletQueueFullException("Кошелек занят, повторите операцию позже", retryAfterSeconds);
+            }
+            try {
+                return action.get();
+            } finally {
+                entry.permit.release();
+            }
+        } finally {
+            entries.computeIfPresent(walletId, (id, current) -> --current.users == 0 ? null : current);
+        }
+    }
+
+    /**
+     * Операцию переслал участник кластера: адрес в X-Wallet-Forwarded-By - участник и подпись
+     * этой операции от его имени сделана общим секретом. Один заголовок с адресом не в счет -
+     * его подставит любой клиент и выполнит операцию мимо владельца
+     */
+    public boolean isTrustedForwarder(String forwardedBy, String forwardSignature, WalletOperationRequest request) {
+        return membership.isEnabled() && membership.isMember(forwardedBy)
+                && signature.verify(forwardedBy, operationSubject(request), forwardSignature);
+    }
+
+    /**
+     * Просящий передачу действительно владеет кошельком по текущему кольцу: отпуск перенаправляет
+     * операции кошелька (вместе с Idempotency-Key) на его адрес, поэтому чужому адресу не отдаем
+     */
+    public boolean isHandoffTarget(UUID walletId, String newOwner) {
+        return membership.isMember(newOwner) && ClusterMembership.normalize(newOwner).equals(membership.owner(walletId));
+    }
+
+    /**
+     * Запрос передачи подписан общим секретом от имени просящего
+     */
+    public boolean isSignedHandoff(UUID walletId, String newOwner, String handoffSignature) {
+        return signature.verify(newOwner, handoffSubject(walletId), handoffSignature);
+    }
+
+    /**
+     * Отпустить кошелек новому владельцу: новые операции сразу пересылаются ему,
+     * начатые доделываются здесь
+     *
+     * @return true - начатых операций больше нет; false - не успели за handoff-timeout
+     */
+    public boolean release(UUID walletId, String newOwner) {
+        if (!isHandoffTarget(walletId, newOwner)) {
+            throw new IllegalArgumentException("Инстанс " + newOwner + " не владелец кошелька " + walletId);
+        }
+        released.put(walletId, new Release(newOwner, System.nanoTime() + handoffWindowNanos));
+        long deadline = System.nanoTime() + handoffTimeoutNanos;
+        while (entries.containsKey(walletId)) {
+            if (System.nanoTime() - deadline >= 0) {
+                log.warn("Кошелек {} не освободился для {} за {} мс", walletId, newOwner, handoffTimeoutNanos / 1_000_000);
+                return false;
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+        log.debug("Кошелек {} передан {}", walletId, newOwner);
+        return true;
+    }
+
+    /**
+     * Забыть истекшие отпуски: к этому времени состав обновился и здесь
+     */
+    @Scheduled(fixedDelayString = "${wallet.cluster.handoff-window:PT30S}")
+    public void purgeReleased() {
+        long now = System.nanoTime();
+        released.values().removeIf(release -> now - release.expiresAtNanos() >= 0);
+    }
+
+    private String ownerOf(UUID walletId) {
+        Release release = released.get(walletId);
+        if (release != null && System.nanoTime() - release.expiresAtNanos() < 0) {
+            return release.owner();
+        }
+        return membership.owner(walletId);
+    }
+
+    private void awaitHandoff(UUID walletId) {
+        String previous = membership.previousOwner(walletId);
+        if (previous == null || previous.equals(membership.self())) {
+            return;
+        }
+
+        long epoch = membership.epoch();
+        Handoffs current = handoffs.updateAndGet(h -> h.epoch() == epoch ? h : new Handoffs(epoch, new ConcurrentHashMap<>()));
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> requested = current.wallets().putIfAbsent(walletId, done);
+        if (requested != null) {
+            try {
+                requested.get(handoffTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (Exception e) {
+                // не дождались чужого запроса передачи - идем дальше, порядок сохранят блокировки в БД
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return;
+        }
+
+        try {
+            HttpStatusCode status = restClient.post()
+                    .uri(previous + HANDOFF_PATH + walletId)
+                    .header(FORWARDED_BY_HEADER, membership.self())
+                    .header(SIGNATURE_HEADER, signature.sign(membership.self(), handoffSubject(walletId)))
+                    .exchange((clientRequest, clientResponse) -> clientResponse.getStatusCode());
+            if (status.is2xxSuccessful()) {
+                handoffDrained.increment();
+            } else {
+                handoffTimeout.increment();
+                log.warn("Прошлый владелец {} не освободил кошелек {}: {}", previous, walletId, status);
+            }
+        } catch (RuntimeException e) {
+            // прошлый владелец выведен или упал - начатых им операций уже нет
+            handoffUnreachable.increment();
+            log.warn("Прошлый владелец {} кошелька {} недоступен: {}", previous, walletId, e.getMessage());
+        } finally {
+            done.complete(null);
+        }
+    }
+
+    static String operationSubject(WalletOperationRequest request) {
+        return "operation:" + request.getWalletId() + ":" + request.getOperationType() + ":"
+                + (request.getAmount() == null ? "" : request.getAmount().minor());
+    }
+
+    static String handoffSubject(UUID walletId) {
+        return "handoff:" + walletId;
+    }
+
+    /**
+     * Ответ владельца с ошибкой - то же исключение, что бросил бы свой сервис
+     */
+    private RuntimeException failure(String owner, HttpStatusCode status, HttpHeaders headers, Map<String, Object> body) {
+        String message = body == null ? null : String.valueOf(body.get("message"));
+        return switch (status.value()) {
+            case 404 -> new WalletNotFoundException(message);
+            case 409 -> new IdempotencyKeyConflictException(message);
+            case 422 -> new InsufficientFundsException(message);
+            case 429 -> new WalletQueueFullException(message, retryAfter(headers));
+            case 503 -> new ServiceOverloadedException(message, retryAfter(headers));
+            default -> new IllegalStateException("Владелец " + owner + " ответил " + status + ": " + message);
+        };
+    }
+
+    private long retryAfter(HttpHeaders headers) {
+        String value = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        try {
+            return value == null ? retryAfterSeconds : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * Запрос точно не ушел владельцу: отказ или таймаут соединения
+     */
+    private static boolean notSent(ResourceAccessException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException) {
+                return true;
+            }
+            if (!(cause instanceof IOException)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean acquire(Entry entry) {
+        try {
+            return entry.permit.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        private final Semaphore permit = new Semaphore(1, true);
+        // меняется только внутри compute/computeIfPresent карты
+        private volatile int users;
+    }
+}
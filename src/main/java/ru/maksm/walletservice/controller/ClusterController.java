@@ -0,0 +1,56 @@
+package ru.maksm.walletservice.controller;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import ru.maksm.walletservice.cluster.WalletOwnership;
+
+import java.util.UUID;
+
+/**
+ * Служебные эндпоинты кластерного режима, их зовут только другие инстансы
+ */
+@RestController
+@RequestMapping("/api/v1/cluster")
+@RequiredArgsConstructor
+@Slf4j
+public class ClusterController {
+
+    private final WalletOwnership walletOwnership;
+
+    /**
+     * Отпустить кошелек новому владельцу и дождаться начатых по нему операций
+     *
+     * @param walletId ID кошелька
+     * @param newOwner адрес нового владельца
+     * @param signature подпись запроса общим секретом кластера
+     * @return 204 - начатых операций больше нет, 503 - не дождались за handoff-timeout,
+     *         403 - подпись не сошлась, просящий не участник кластера или не владелец кошелька по текущему кольцу
+     */
+    @PostMapping("/handoff/{walletId}")
+    public ResponseEntity<Void> handoff(@PathVariable UUID walletId,
+                                        @RequestHeader(WalletOwnership.FORWARDED_BY_HEADER) String newOwner,
+                                        @RequestHeader(value = WalletOwnership.SIGNATURE_HEADER, required = false) String signature) {
+        if (!walletOwnership.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!walletOwnership.isSignedHandoff(walletId, newOwner, signature)) {
+            log.warn("Отклонена передача кошелька {} инстансу {}: подпись не сошлась", walletId, newOwner);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        if (!walletOwnership.isHandoffTarget(walletId, newOwner)) {
+            log.warn("Отклонена передача кошелька {} инстансу {}: не владелец по текущему составу", walletId, newOwner);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        log.info("Передача кошелька {} инстансу {}", walletId, newOwner);
+        return walletOwnership.release(walletId, newOwner)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+}
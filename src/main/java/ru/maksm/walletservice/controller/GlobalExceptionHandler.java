@@ -1,6 +1,7 @@
 package ru.maksm.walletservice.controller;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
@@ -9,6 +10,8 @@ import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -81,6 +84,42 @@ public class GlobalExceptionHandler {
         return ResponseEntity.badRequest().body(response);
     }
     
+    /**
+     * Обработка переполненной очереди кошелька: быстрый 429 вместо долгого ожидания блокировки
+     */
+    @ExceptionHandler(WalletQueueFullException.class)
+    public ResponseEntity<Map<String, Object>> handleWalletQueueFull(WalletQueueFullException ex) {
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("error", "Слишком много запросов");
+        response.put("message", ex.getMessage());
+        response.put("status", HttpStatus.TOO_MANY_REQUESTS.value());
+        
+        log.warn("Очередь кошелька переполнена: {}", ex.getMessage());
+        
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(response);
+    }
+    
+    /**
+     * Обработка перегрузки: клиент получает Retry-After и может повторить запрос позже
+     */
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleServiceOverloaded(ServiceOverloadedException ex) {
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("error", "Сервис перегружен");
+        response.put("message", ex.getMessage());
+        response.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+        
+        log.warn("Перегрузка: {}", ex.getMessage());
+        
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(response);
+    }
+    
     /**
      * Обработка общих исключений
      */
@@ -1,18 +1,42 @@
 package ru.maksm.walletservice.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.maksm.walletservice.cluster.WalletOwnership;
+import ru.maksm.walletservice.dto.BatchOperationRequest;
+import ru.maksm.walletservice.dto.BatchOperationResponse;
+import ru.maksm.walletservice.dto.TransactionHistoryResponse;
+import ru.maksm.walletservice.dto.TransferBatchRequest;
+import ru.maksm.walletservice.dto.TransferBatchResponse;
+import ru.maksm.walletservice.dto.TransferRequest;
+import ru.maksm.walletservice.dto.TransferResponse;
+import ru.maksm.walletservice.dto.WalletBalanceAtResponse;
 import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletImportResponse;
 import ru.maksm.walletservice.dto.WalletOperationRequest;
 import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.dto.WalletStatementResponse;
+import ru.maksm.walletservice.dto.WalletStripingResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
 import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
 import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.service.PointInTimeBalanceService;
+import ru.maksm.walletservice.service.TransactionHistoryService;
+import ru.maksm.walletservice.service.WalletImportService;
 import ru.maksm.walletservice.service.WalletService;
+import ru.maksm.walletservice.service.WalletStatementService;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.UUID;
 
 /**
@@ -25,23 +49,46 @@ import java.util.UUID;
 @Slf4j
 public class WalletController {
     
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    private static final String MIN_VERSION_HEADER = "X-Min-Version";
+    private static final String NDJSON = "application/x-ndjson";
+    
     private final WalletService walletService;
+    private final TransactionHistoryService historyService;
+    private final WalletStatementService statementService;
+    private final WalletImportService importService;
+    private final PointInTimeBalanceService pointInTimeBalanceService;
     
     /**
      * Выполнить операцию с кошельком (пополнение или списание)
+     * с заголовком Idempotency-Key повтор запроса вернет исходный результат и не спишет деньги второй раз
      * 
      * @param request запрос с данными операции
+     * @param idempotencyKey ключ идемпотентности (необязательный)
+     * @param forwardedBy инстанс, переславший операцию владельцу кошелька (кластерный режим)
+     * @param forwardSignature подпись пересылки общим секретом кластера
      * @return результат операции
      */
     @PostMapping("/wallet")
     public ResponseEntity<WalletOperationResponse> performOperation(
-            @Valid @RequestBody WalletOperationRequest request) {
+            @Valid @RequestBody WalletOperationRequest request,
+            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+            @RequestHeader(value = WalletOwnership.FORWARDED_BY_HEADER, required = false) String forwardedBy,
+            @RequestHeader(value = WalletOwnership.SIGNATURE_HEADER, required = false) String forwardSignature) {
         
         log.info("Получен запрос на операцию {} для кошелька {} на сумму {}", 
                 request.getOperationType(), request.getWalletId(), request.getAmount());
         
+        if (idempotencyKey != null && (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            log.warn("Некорректный ключ идемпотентности для кошелька {}", request.getWalletId());
+            return ResponseEntity.badRequest()
+                    .body(new WalletOperationResponse(request.getWalletId(), null,
+                            "Idempotency-Key должен быть непустым и не длиннее " + MAX_IDEMPOTENCY_KEY_LENGTH + " символов"));
+        }
+        
         try {
-            WalletOperationResponse response = walletService.performOperation(request);
+            WalletOperationResponse response = walletService.performOperation(request, idempotencyKey, forwardedBy, forwardSignature);
             return ResponseEntity.ok(response);
         } catch (WalletNotFoundException e) {
             log.warn("Кошелек не найден: {}", request.getWalletId());
@@ -51,6 +98,13 @@ public class WalletController {
             log.warn("Недостаточно средств для операции: {}", e.getMessage());
             return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
                     .body(new WalletOperationResponse(request.getWalletId(), null, e.getMessage()));
+        } catch (IdempotencyKeyConflictException e) {
+            log.warn("Конфликт ключа идемпотентности: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(new WalletOperationResponse(request.getWalletId(), null, e.getMessage()));
+        } catch (ServiceOverloadedException e) {
+            // отдаем GlobalExceptionHandler, он проставит статус (429/503) и Retry-After
+            throw e;
         } catch (Exception e) {
             log.error("Ошибка при выполнении операции: {}", e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -58,26 +112,328 @@ public class WalletController {
         }
     }
     
+    /**
+     * Выполнить пачку операций по многим кошелькам
+     * без atomic каждая операция получает свой результат и неудачные не мешают остальным,
+     * с atomic любая неудача откатывает всю пачку и ответ идет со статусом 422
+     * 
+     * @param request список операций и режим атомарности
+     * @return результат по каждой операции
+     */
+    @PostMapping("/wallets/operations/batch")
+    public ResponseEntity<BatchOperationResponse> performBatch(
+            @Valid @RequestBody BatchOperationRequest request) {
+        
+        log.info("Получен пакетный запрос из {} операций, atomic: {}", 
+                request.getOperations().size(), request.isAtomic());
+        
+        try {
+            BatchOperationResponse response = walletService.performBatch(request);
+            HttpStatus status = response.isCommitted() ? HttpStatus.OK : HttpStatus.UNPROCESSABLE_ENTITY;
+            return ResponseEntity.status(status).body(response);
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный пакетный запрос: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при выполнении пакетного запроса: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * Перевести деньги с одного кошелька на другой
+     * списание и зачисление идут одной транзакцией, в истории обоих кошельков будет общий transferId
+     * 
+     * @param request кошельки и сумма
+     * @return балансы обеих сторон после перевода
+     */
+    @PostMapping("/transfers")
+    public ResponseEntity<TransferResponse> transfer(@Valid @RequestBody TransferRequest request) {
+        
+        log.info("Получен запрос на перевод {} -> {} на сумму {}", 
+                request.getFromWalletId(), request.getToWalletId(), request.getAmount());
+        
+        try {
+            return ResponseEntity.ok(walletService.transfer(request));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек для перевода не найден: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(transferError(request, e.getMessage()));
+        } catch (InsufficientFundsException e) {
+            log.warn("Недостаточно средств для перевода: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(transferError(request, e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный перевод: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(transferError(request, e.getMessage()));
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при выполнении перевода: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(transferError(request, "Внутренняя ошибка сервера"));
+        }
+    }
+    
+    /**
+     * Выполнить пачку переводов (ночной неттинг)
+     * все участники блокируются разом, с atomic любая неудача откатывает всю пачку и ответ идет со статусом 422
+     * 
+     * @param request список переводов и режим атомарности
+     * @return результат по каждому переводу
+     */
+    @PostMapping("/transfers/batch")
+    public ResponseEntity<TransferBatchResponse> transferBatch(@Valid @RequestBody TransferBatchRequest request) {
+        
+        log.info("Получена пачка из {} переводов, atomic: {}", request.getTransfers().size(), request.isAtomic());
+        
+        try {
+            TransferBatchResponse response = walletService.transferBatch(request);
+            HttpStatus status = response.isCommitted() ? HttpStatus.OK : HttpStatus.UNPROCESSABLE_ENTITY;
+            return ResponseEntity.status(status).body(response);
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректная пачка переводов: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при выполнении пачки переводов: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * Массовый импорт кошельков с начальными балансами
+     * тело читается потоком (text/csv "wallet_id,balance" или NDJSON), уже существующие кошельки пропускаются
+     * 
+     * @param request запрос, из которого читается тело
+     * @return сколько создано, пропущено и отклонено
+     */
+    @PostMapping(value = "/wallets/import", consumes = {"text/csv", NDJSON})
+    public ResponseEntity<WalletImportResponse> importWallets(HttpServletRequest request) {
+        
+        WalletImportService.Format format = request.getContentType().startsWith(NDJSON)
+                ? WalletImportService.Format.NDJSON
+                : WalletImportService.Format.CSV;
+        log.info("Получен запрос на импорт кошельков, формат {}", format);
+        
+        try {
+            return ResponseEntity.ok(importService.importWallets(request.getInputStream(), format));
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            // созданные пачки уже закоммичены, повтор импорта их пропустит
+            log.error("Ошибка при импорте кошельков: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
     /**
      * Получить баланс кошелька
      * 
      * @param walletId ID кошелька
+     * @param minVersion версия из ответа последней записи клиента: баланс будет не старее нее
      * @return баланс кошелька
      */
     @GetMapping("/wallets/{walletId}")
-    public ResponseEntity<WalletBalanceResponse> getBalance(@PathVariable UUID walletId) {
+    public ResponseEntity<WalletBalanceResponse> getBalance(@PathVariable UUID walletId,
+                                                            @RequestHeader(value = MIN_VERSION_HEADER, required = false) Long minVersion) {
         
         log.info("Получен запрос на баланс кошелька: {}", walletId);
         
         try {
-            WalletBalanceResponse response = walletService.getBalance(walletId);
+            WalletBalanceResponse response = walletService.getBalance(walletId, minVersion);
             return ResponseEntity.ok(response);
         } catch (WalletNotFoundException e) {
             log.warn("Кошелек не найден: {}", walletId);
             return ResponseEntity.notFound().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Ошибка при получении баланса: {}", e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
+    
+    /**
+     * Баланс кошелька на момент времени
+     * считается от ближайшей точки баланса, цена не зависит от возраста кошелька
+     * 
+     * @param walletId ID кошелька
+     * @param asOf момент: учитываются операции не позже него
+     * @return баланс на момент
+     */
+    @GetMapping("/wallets/{walletId}/balance")
+    public ResponseEntity<WalletBalanceAtResponse> getBalanceAt(
+            @PathVariable UUID walletId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime asOf) {
+        
+        log.info("Получен запрос на баланс кошелька {} на момент {}", walletId, asOf);
+        
+        try {
+            return ResponseEntity.ok(pointInTimeBalanceService.balanceAt(walletId, asOf));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос баланса на момент: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при получении баланса на момент: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * История операций кошелька постранично, от новых к старым
+     * 
+     * @param walletId ID кошелька
+     * @param cursor курсор из nextCursor предыдущей страницы (для первой страницы не передается)
+     * @param limit размер страницы
+     * @return страница истории
+     */
+    @GetMapping("/wallets/{walletId}/transactions")
+    public ResponseEntity<TransactionHistoryResponse> getTransactions(@PathVariable UUID walletId,
+                                                                      @RequestParam(required = false) String cursor,
+                                                                      @RequestParam(required = false) Integer limit) {
+        
+        log.info("Получен запрос на историю кошелька: {}", walletId);
+        
+        try {
+            return ResponseEntity.ok(historyService.page(walletId, cursor, limit));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", walletId);
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос истории: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при получении истории: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * Выгрузка истории операций за период в NDJSON, от старых к новым
+     * ответ пишется потоком по мере чтения из БД, размер периода не ограничен
+     * 
+     * @param walletId ID кошелька
+     * @param from начало периода включительно
+     * @param to конец периода не включительно
+     * @return поток записей, по одной JSON записи на строку; 404 - кошелек не найден
+     */
+    @GetMapping(value = "/wallets/{walletId}/transactions/export", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> exportTransactions(
+            @PathVariable UUID walletId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        
+        log.info("Получен запрос на выгрузку истории кошелька {} за период {} - {}", walletId, from, to);
+        
+        // как и у постраничной истории: неизвестный кошелек - 404, а не пустой 200
+        try {
+            historyService.requireWallet(walletId);
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", walletId);
+            return ResponseEntity.notFound().build();
+        }
+        
+        StreamingResponseBody body = out -> historyService.export(walletId, from, to, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NDJSON))
+                .body(body);
+    }
+    
+    /**
+     * Выписка по кошельку: обороты и остатки по дням или месяцам
+     * считается по дневным оборотам, цена не зависит от числа операций за период
+     * 
+     * @param walletId ID кошелька
+     * @param from первый день периода включительно
+     * @param to день окончания периода не включительно
+     * @param granularity day или month
+     * @return выписка
+     */
+    @GetMapping("/wallets/{walletId}/statement")
+    public ResponseEntity<WalletStatementResponse> getStatement(
+            @PathVariable UUID walletId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(defaultValue = "day") String granularity) {
+        
+        log.info("Получен запрос на выписку кошелька {} за период {} - {}, детализация {}", walletId, from, to, granularity);
+        
+        try {
+            return ResponseEntity.ok(statementService.statement(walletId, from, to, granularity));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", walletId);
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос выписки: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (ServiceOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка при построении выписки: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * Перевести горячий кошелек в striped режим (баланс раскладывается по слотам)
+     * 
+     * @param walletId ID кошелька
+     * @param slots количество слотов
+     * @return состояние кошелька
+     */
+    @PostMapping("/wallets/{walletId}/striping")
+    public ResponseEntity<WalletStripingResponse> promoteToStriped(@PathVariable UUID walletId,
+                                                                   @RequestParam(defaultValue = "8") int slots) {
+        
+        log.info("Получен запрос на перевод кошелька {} в striped режим, слотов: {}", walletId, slots);
+        
+        try {
+            return ResponseEntity.ok(walletService.promoteToStriped(walletId, slots));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", walletId);
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос на перевод в striped режим: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    /**
+     * Вернуть кошелек из striped режима в обычный
+     * 
+     * @param walletId ID кошелька
+     * @return состояние кошелька
+     */
+    @DeleteMapping("/wallets/{walletId}/striping")
+    public ResponseEntity<WalletStripingResponse> demoteFromStriped(@PathVariable UUID walletId) {
+        
+        log.info("Получен запрос на возврат кошелька {} в обычный режим", walletId);
+        
+        try {
+            return ResponseEntity.ok(walletService.demoteFromStriped(walletId));
+        } catch (WalletNotFoundException e) {
+            log.warn("Кошелек не найден: {}", walletId);
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный запрос на возврат из striped режима: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    private static TransferResponse transferError(TransferRequest request, String message) {
+        TransferResponse response = new TransferResponse();
+        response.setFromWalletId(request.getFromWalletId());
+        response.setToWalletId(request.getToWalletId());
+        response.setMessage(message);
+        return response;
+    }
 }
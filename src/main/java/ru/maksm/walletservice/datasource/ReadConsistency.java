@@ -0,0 +1,77 @@
+package ru.maksm.walletservice.datasource;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Требования к свежести чтений текущего запроса, привязанные к потоку (как OperationPhases)
+ *
+ * ReadRoutingDataSource смотрит сюда, когда read-only транзакции нужен коннект:
+ * - maxStaleness - какое отставание реплики допустимо, null - по умолчанию (wallet.datasource.replica.max-staleness),
+ *   ноль - только primary
+ * - lastTarget - куда ушло последнее чтение потока, по нему сервис решает, нужно ли перечитать с primary
+ *   (например, реплика еще не догнала версию, которую клиент получил от своей записи)
+ */
+public final class ReadConsistency {
+
+    public enum Target {
+        PRIMARY, REPLICA
+    }
+
+    private static final ThreadLocal<Duration> MAX_STALENESS = new ThreadLocal<>();
+    private static final ThreadLocal<Target> LAST_TARGET = new ThreadLocal<>();
+
+    private ReadConsistency() {
+    }
+
+    /**
+     * Выполнить чтения с заданной допустимой задержкой реплики
+     */
+    public static <T> T withMaxStaleness(Duration maxStaleness, Supplier<T> action) {
+        Duration previous = replaceMaxStaleness(maxStaleness);
+        try {
+            return action.get();
+        } finally {
+            replaceMaxStaleness(previous);
+        }
+    }
+
+    /**
+     * Выполнить чтения только на primary
+     */
+    public static <T> T onPrimary(Supplier<T> action) {
+        return withMaxStaleness(Duration.ZERO, action);
+    }
+
+    /**
+     * Куда ушло последнее чтение в этом потоке; сбрасывает отметку
+     */
+    public static Target takeLastTarget() {
+        Target target = LAST_TARGET.get();
+        LAST_TARGET.remove();
+        return target == null ? Target.PRIMARY : target;
+    }
+
+    /**
+     * Поставить допустимую задержку потока, null - по умолчанию
+     *
+     * @return предыдущее значение, его нужно вернуть на место
+     */
+    static Duration replaceMaxStaleness(Duration maxStaleness) {
+        Duration previous = MAX_STALENESS.get();
+        if (maxStaleness == null) {
+            MAX_STALENESS.remove();
+        } else {
+            MAX_STALENESS.set(maxStaleness);
+        }
+        return previous;
+    }
+
+    static Duration maxStaleness() {
+        return MAX_STALENESS.get();
+    }
+
+    static void routed(Target target) {
+        LAST_TARGET.set(target);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.maksm.walletservice.datasource;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Заголовок X-Max-Staleness (миллисекунды): какое отставание реплики клиент готов принять для чтений запроса
+ * 0 - читать только с primary, без заголовка - wallet.datasource.replica.max-staleness
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.datasource.replica.enabled", havingValue = "true")
+public class ReadConsistencyFilter extends OncePerRequestFilter {
+
+    public static final String MAX_STALENESS_HEADER = "X-Max-Staleness";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String header = request.getHeader(MAX_STALENESS_HEADER);
+        long millis;
+        try {
+            millis = header == null ? -1 : Long.parseLong(header.strip());
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if (millis < 0) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Duration previous = ReadConsistency.replaceMaxStaleness(Duration.ofMillis(millis));
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ReadConsistency.replaceMaxStaleness(previous);
+        }
+    }
+}
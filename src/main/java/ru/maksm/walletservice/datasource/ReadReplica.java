@@ -0,0 +1,54 @@
+package ru.maksm.walletservice.datasource;
+
+import javax.sql.DataSource;
+
+/**
+ * Реплика для чтений и ее последнее измеренное отставание (ставит ReplicaLagMonitor)
+ */
+public final class ReadReplica {
+
+    private final String name;
+    private final DataSource dataSource;
+
+    // -1 - отставание неизвестно (еще не мерили или замер упал), такую реплику не выбираем
+    private volatile long lagMillis = -1;
+    private volatile long checkedAtNanos;
+
+    public ReadReplica(String name, DataSource dataSource) {
+        this.name = name;
+        this.dataSource = dataSource;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public DataSource dataSource() {
+        return dataSource;
+    }
+
+    public long lagMillis() {
+        return lagMillis;
+    }
+
+    void recordLag(long lagMillis) {
+        this.lagMillis = lagMillis;
+        this.checkedAtNanos = System.nanoTime();
+    }
+
+    void markUnknown() {
+        this.lagMillis = -1;
+    }
+
+    /**
+     * Годится ли реплика для чтения с такой допустимой задержкой
+     * замер тоже стареет: к измеренному отставанию прибавляем время с момента замера
+     */
+    boolean acceptable(long maxStalenessMillis, long nowNanos) {
+        long lag = lagMillis;
+        if (lag < 0) {
+            return false;
+        }
+        return lag + (nowNanos - checkedAtNanos) / 1_000_000 <= maxStalenessMillis;
+    }
+}
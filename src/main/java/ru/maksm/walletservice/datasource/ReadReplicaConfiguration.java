@@ -0,0 +1,91 @@
+package ru.maksm.walletservice.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.liquibase.LiquibaseDataSource;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Чтения с реплик (wallet.datasource.replica.enabled=true)
+ *
+ * - primaryDataSource - обычный пул spring.datasource.*, на нем миграции liquibase и все пишущие транзакции
+ * - пулы реплик - по адресу из wallet.datasource.replica.urls, логин/пароль по умолчанию как у primary
+ * - основной DataSource приложения (JPA, JdbcTemplate, менеджер транзакций) - ленивый прокси над маршрутизатором,
+ *   так что сервисы ничего не знают о репликах: read-only транзакция сама уходит на реплику
+ *
+ * выключено - бины не создаются, остается автоконфигурация spring boot с одним пулом
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "wallet.datasource.replica.enabled", havingValue = "true")
+@Slf4j
+public class ReadReplicaConfiguration {
+
+    @Bean
+    @LiquibaseDataSource
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primary");
+        return dataSource;
+    }
+
+    /**
+     * Пулы реплик не бины: ими владеет монитор отставания и закрывает их при остановке
+     */
+    @Bean
+    public ReplicaLagMonitor replicaLagMonitor(DataSourceProperties properties,
+                                               MeterRegistry meterRegistry,
+                                               @Value("${wallet.datasource.replica.urls:}") List<String> urls,
+                                               @Value("${wallet.datasource.replica.username:}") String username,
+                                               @Value("${wallet.datasource.replica.password:}") String password,
+                                               @Value("${wallet.datasource.replica.pool-size:10}") int poolSize) {
+        List<ReadReplica> replicas = new ArrayList<>();
+        for (String url : urls) {
+            if (url.isBlank()) {
+                continue;
+            }
+            String name = "replica-" + replicas.size();
+            HikariDataSource pool = new HikariDataSource();
+            pool.setPoolName(name);
+            pool.setJdbcUrl(url.strip());
+            pool.setDriverClassName(properties.determineDriverClassName());
+            pool.setUsername(username.isEmpty() ? properties.determineUsername() : username);
+            pool.setPassword(password.isEmpty() ? properties.determinePassword() : password);
+            pool.setMaximumPoolSize(poolSize);
+            pool.setReadOnly(true);
+            pool.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+            replicas.add(new ReadReplica(name, pool));
+        }
+        if (replicas.isEmpty()) {
+            log.warn("Чтения с реплик включены, но wallet.datasource.replica.urls пуст - все читается с primary");
+        } else {
+            log.info("Чтения с реплик: {}", urls);
+        }
+        return new ReplicaLagMonitor(replicas, meterRegistry);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") HikariDataSource primary,
+                                 ReplicaLagMonitor replicaLagMonitor,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${wallet.datasource.replica.max-staleness:PT1S}") Duration maxStaleness) {
+        return new LazyConnectionDataSourceProxy(
+                new ReadRoutingDataSource(primary, replicaLagMonitor.replicas(), maxStaleness, meterRegistry));
+    }
+}
@@ -0,0 +1,99 @@
+package ru.maksm.walletservice.datasource;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Маршрутизация коннектов: read-only транзакции - на реплики, все остальное - на primary
+ *
+ * - решение принимается в момент, когда транзакции нужен настоящий коннект, поэтому снаружи стоит
+ *   LazyConnectionDataSourceProxy: к первому запросу флаг read-only транзакции уже выставлен
+ * - реплика берется, только если ее отставание (ReplicaLagMonitor) плюс возраст замера укладывается
+ *   в допустимую задержку запроса (ReadConsistency), иначе чтение уходит на primary
+ * - среди подходящих реплик - по кругу
+ * - вне транзакции и в пишущих транзакциях всегда primary: движки записи, журнал, свертки сюда не попадают
+ * - каждое решение считается в wallet.datasource.route (target, reason)
+ */
+public class ReadRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+
+    private final List<ReadReplica> replicas;
+    private final long defaultMaxStalenessMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Counter readWrite;
+    private final Counter forcedPrimary;
+    private final Counter staleReplicas;
+    private final Map<String, Counter> replicaReads = new HashMap<>();
+
+    public ReadRoutingDataSource(DataSource primary, List<ReadReplica> replicas, Duration defaultMaxStaleness,
+                                 MeterRegistry meterRegistry) {
+        this.replicas = List.copyOf(replicas);
+        this.defaultMaxStalenessMillis = defaultMaxStaleness.toMillis();
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (ReadReplica replica : replicas) {
+            targets.put(replica.name(), replica.dataSource());
+            replicaReads.put(replica.name(), Counter.builder("wallet.datasource.route")
+                    .tag("target", replica.name()).tag("reason", "replica").register(meterRegistry));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+
+        this.readWrite = routeCounter(meterRegistry, "read_write");
+        this.forcedPrimary = routeCounter(meterRegistry, "forced");
+        this.staleReplicas = routeCounter(meterRegistry, "stale");
+
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            readWrite.increment();
+            ReadConsistency.routed(ReadConsistency.Target.PRIMARY);
+            return PRIMARY;
+        }
+
+        Duration requested = ReadConsistency.maxStaleness();
+        long maxStalenessMillis = requested == null ? defaultMaxStalenessMillis : requested.toMillis();
+        if (maxStalenessMillis <= 0) {
+            forcedPrimary.increment();
+            ReadConsistency.routed(ReadConsistency.Target.PRIMARY);
+            return PRIMARY;
+        }
+
+        long now = System.nanoTime();
+        int start = Math.floorMod(next.getAndIncrement(), Math.max(1, replicas.size()));
+        for (int i = 0; i < replicas.size(); i++) {
+            ReadReplica replica = replicas.get((start + i) % replicas.size());
+            if (replica.acceptable(maxStalenessMillis, now)) {
+                replicaReads.get(replica.name()).increment();
+                ReadConsistency.routed(ReadConsistency.Target.REPLICA);
+                return replica.name();
+            }
+        }
+
+        // ни одна реплика не укладывается в допустимую задержку (или замера нет) - читаем с primary
+        staleReplicas.increment();
+        ReadConsistency.routed(ReadConsistency.Target.PRIMARY);
+        return PRIMARY;
+    }
+
+    private static Counter routeCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("wallet.datasource.route").tag("target", PRIMARY).tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,91 @@
+package ru.maksm.walletservice.datasource;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.util.List;
+
+/**
+ * Замер отставания реплик: раз в wallet.datasource.replica.lag-check-interval прямо в пул реплики
+ *
+ * - отставание - время с последней проигранной транзакции, но если реплика проиграла все, что получила,
+ *   она догнала primary и отставание 0 (иначе на простаивающем primary отставание росло бы само по себе)
+ * - "проиграла все, что получила" значит "догнала" только пока WAL receiver в статусе streaming:
+ *   у отключенной реплики receive и replay lsn тоже равны, поэтому без streaming отставание неизвестно.
+ *   статус виден пользователю с ролью pg_read_all_stats (или pg_monitor), иначе реплика не выбирается
+ * - база не в режиме восстановления (обычная БД вместо реплики, как в локальной проверке) - отставание 0
+ * - замер упал - отставание неизвестно, реплика не выбирается до следующего удачного замера
+ * - отставание публикуется в wallet.datasource.replica.lag (секунды, тег replica; -1 - неизвестно)
+ */
+@Slf4j
+public class ReplicaLagMonitor implements AutoCloseable {
+
+    private static final String LAG_SQL = """
+            SELECT CASE
+                       WHEN NOT pg_is_in_recovery() THEN 0
+                       WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN NULL
+                       WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+                       ELSE (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::BIGINT
+                   END
+            """;
+
+    private final List<ReadReplica> replicas;
+    private final List<JdbcTemplate> probes;
+
+    public ReplicaLagMonitor(List<ReadReplica> replicas, MeterRegistry meterRegistry) {
+        this.replicas = List.copyOf(replicas);
+        this.probes = replicas.stream().map(replica -> new JdbcTemplate(replica.dataSource())).toList();
+        for (ReadReplica replica : replicas) {
+            Gauge.builder("wallet.datasource.replica.lag", replica,
+                            r -> r.lagMillis() < 0 ? -1 : r.lagMillis() / 1000.0)
+                    .tag("replica", replica.name())
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+        }
+    }
+
+    public List<ReadReplica> replicas() {
+        return replicas;
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.datasource.replica.lag-check-interval:PT0.5S}")
+    public void check() {
+        for (int i = 0; i < replicas.size(); i++) {
+            ReadReplica replica = replicas.get(i);
+            try {
+                // NULL - реплика еще ничего не проиграла или не стримит с primary, отставание неизвестно
+                Long lag = probes.get(i).queryForObject(LAG_SQL, Long.class);
+                if (lag == null) {
+                    replica.markUnknown();
+                } else {
+                    replica.recordLag(Math.max(0, lag));
+                }
+            } catch (RuntimeException e) {
+                if (replica.lagMillis() >= 0) {
+                    log.warn("Не удалось замерить отставание реплики {}, чтения уходят на primary: {}",
+                            replica.name(), e.getMessage());
+                }
+                replica.markUnknown();
+            }
+        }
+    }
+
+    /**
+     * Закрыть пулы реплик
+     */
+    @Override
+    public void close() {
+        for (ReadReplica replica : replicas) {
+            if (replica.dataSource() instanceof AutoCloseable pool) {
+                try {
+                    pool.close();
+                } catch (Exception e) {
+                    log.warn("Не удалось закрыть пул реплики {}: {}", replica.name(), e.getMessage());
+                }
+            }
+        }
+    }
+}
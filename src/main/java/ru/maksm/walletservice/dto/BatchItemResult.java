@@ -0,0 +1,24 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+
+/**
+ * DTO с результатом одной операции пакетного запроса
+ * index - позиция операции во входном списке
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchItemResult {
+    
+    private int index;
+    private UUID walletId;
+    private BatchItemStatus status;
+    private Money balance;
+    private String message;
+}
@@ -0,0 +1,17 @@
+package ru.maksm.walletservice.dto;
+
+/**
+ * Статус отдельной операции в пакетном запросе
+ * APPLIED - операция применена
+ * WALLET_NOT_FOUND - кошелек не найден
+ * INSUFFICIENT_FUNDS - недостаточно средств
+ * ROLLED_BACK - операция была бы применена, но атомарная пачка откатилась из-за соседней
+ * REJECTED - операция не принята (например, striped кошелек в атомарной пачке)
+ */
+public enum BatchItemStatus {
+    APPLIED,
+    WALLET_NOT_FOUND,
+    INSUFFICIENT_FUNDS,
+    ROLLED_BACK,
+    REJECTED
+}
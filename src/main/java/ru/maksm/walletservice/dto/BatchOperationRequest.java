@@ -0,0 +1,20 @@
+package ru.maksm.walletservice.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * DTO для пакетного запроса операций по нескольким кошелькам
+ */
+@Data
+public class BatchOperationRequest {
+    
+    @NotEmpty(message = "Список операций не может быть пустым")
+    private List<@Valid WalletOperationRequest> operations;
+    
+    // atomic = true: любая неудачная операция откатывает всю пачку
+    private boolean atomic;
+}
@@ -0,0 +1,21 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * DTO для ответа на пакетный запрос: сводка и результат по каждой операции
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchOperationResponse {
+    
+    private int applied;
+    private int failed;
+    private boolean committed;
+    private List<BatchItemResult> results;
+}
@@ -0,0 +1,26 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.time.LocalDate;
+
+/**
+ * DTO с оборотом кошелька за один период выписки (день или месяц)
+ * from включительно, to не включительно; крайние периоды обрезаны границами выписки
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StatementBucket {
+
+    private LocalDate from;
+    private LocalDate to;
+    private Money deposits;
+    private Money withdrawals;
+    private long depositCount;
+    private long withdrawalCount;
+    private Money closingBalance;
+}
@@ -0,0 +1,25 @@
+package ru.maksm.walletservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * DTO со страницей истории операций
+ * nextCursor передается в следующий запрос как есть, null - страниц больше нет
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransactionHistoryResponse {
+    
+    private UUID walletId;
+    private List<TransactionItem> items;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String nextCursor;
+}
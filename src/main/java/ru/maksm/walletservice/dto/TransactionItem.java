@@ -0,0 +1,37 @@
+package ru.maksm.walletservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * DTO с одной записью истории операций кошелька
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransactionItem {
+    
+    private UUID id;
+    private UUID walletId;
+    private OperationType operationType;
+    private Money amount;
+    private Money balanceBefore;
+    private Money balanceAfter;
+    
+    // слот striped кошелька, у обычных операций не заполняется
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer slot;
+    
+    // общий id пары записей перевода, по нему находится вторая сторона
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private UUID transferId;
+    
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,20 @@
+package ru.maksm.walletservice.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * DTO для пачки переводов (например, ночной неттинг)
+ */
+@Data
+public class TransferBatchRequest {
+    
+    @NotEmpty(message = "Список переводов не может быть пустым")
+    private List<@Valid TransferRequest> transfers;
+    
+    // atomic = true: любой неудачный перевод откатывает всю пачку
+    private boolean atomic;
+}
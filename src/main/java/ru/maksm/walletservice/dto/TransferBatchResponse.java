@@ -0,0 +1,21 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * DTO для ответа на пачку переводов: сводка и результат по каждому переводу
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferBatchResponse {
+    
+    private int applied;
+    private int failed;
+    private boolean committed;
+    private List<TransferItemResult> results;
+}
@@ -0,0 +1,27 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+
+/**
+ * DTO с результатом одного перевода из пачки
+ * index - позиция перевода во входном списке, transferId - только у примененных
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferItemResult {
+    
+    private int index;
+    private UUID transferId;
+    private UUID fromWalletId;
+    private UUID toWalletId;
+    private BatchItemStatus status;
+    private Money fromBalance;
+    private Money toBalance;
+    private String message;
+}
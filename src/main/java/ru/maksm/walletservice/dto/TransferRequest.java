@@ -0,0 +1,33 @@
+package ru.maksm.walletservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.Data;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+
+/**
+ * DTO для перевода между кошельками
+ */
+@Data
+public class TransferRequest {
+    
+    @NotNull(message = "Кошелек списания не может быть пустым")
+    private UUID fromWalletId;
+    
+    @NotNull(message = "Кошелек зачисления не может быть пустым")
+    private UUID toWalletId;
+    
+    @NotNull(message = "Сумма не может быть пустой")
+    @Positive(message = "Сумма должна быть положительной")
+    private Money amount;
+    
+    @JsonIgnore
+    @AssertTrue(message = "Кошельки списания и зачисления должны различаться")
+    public boolean isDistinctWallets() {
+        return fromWalletId == null || !fromWalletId.equals(toWalletId);
+    }
+}
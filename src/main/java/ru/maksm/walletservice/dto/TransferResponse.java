@@ -0,0 +1,30 @@
+package ru.maksm.walletservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+
+/**
+ * DTO для ответа на перевод: балансы обеих сторон после перевода
+ * версии кошельков можно передать в X-Min-Version при чтении баланса
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TransferResponse {
+    
+    private UUID transferId;
+    private UUID fromWalletId;
+    private UUID toWalletId;
+    private Money amount;
+    private Money fromBalance;
+    private Money toBalance;
+    private Long fromVersion;
+    private Long toVersion;
+    private String message;
+}
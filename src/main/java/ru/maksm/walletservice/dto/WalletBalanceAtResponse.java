@@ -0,0 +1,28 @@
+package ru.maksm.walletservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * DTO с балансом кошелька на момент asOf
+ * checkpointAsOf - точка баланса, от которой велся счет (null - от текущего баланса),
+ * scannedOperations - сколько операций ledger пришлось прочитать
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WalletBalanceAtResponse {
+
+    private UUID walletId;
+    private LocalDateTime asOf;
+    private Money balance;
+    private LocalDateTime checkpointAsOf;
+    private long scannedOperations;
+}
@@ -1,10 +1,11 @@
 package ru.maksm.walletservice.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
 
-import java.math.BigDecimal;
 import java.util.UUID;
 
 /**
@@ -16,5 +17,14 @@ import java.util.UUID;
 public class WalletBalanceResponse {
     
     private UUID walletId;
-    private BigDecimal balance;
+    private Money balance;
+    
+    // версия кошелька, из которой прочитан баланс (у striped кошельков не заполняется)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long version;
+    
+    public WalletBalanceResponse(UUID walletId, Money balance) {
+        this.walletId = walletId;
+        this.balance = balance;
+    }
 }
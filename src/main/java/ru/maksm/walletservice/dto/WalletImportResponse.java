@@ -0,0 +1,26 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * DTO с итогом массового импорта кошельков
+ * skipped - кошелек уже был (баланс не тронут), rejected - строка не разобралась,
+ * в errors первые ошибки с номерами строк
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletImportResponse {
+
+    private long lines;
+    private long created;
+    private long skipped;
+    private long rejected;
+    private List<String> errors;
+    private long durationMs;
+    private double walletsPerSecond;
+}
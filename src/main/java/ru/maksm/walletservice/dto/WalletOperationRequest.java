@@ -1,11 +1,13 @@
 package ru.maksm.walletservice.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.validation.constraints.AssertTrue;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Positive;
 import lombok.Data;
+import ru.maksm.walletservice.model.Money;
 import ru.maksm.walletservice.model.OperationType;
 
-import java.math.BigDecimal;
 import java.util.UUID;
 
 /**
@@ -22,5 +24,14 @@ public class WalletOperationRequest {
     
     @NotNull(message = "Сумма не может быть пустой")
     @Positive(message = "Сумма должна быть положительной")
-    private BigDecimal amount;
+    private Money amount;
+    
+    /**
+     * Внутренние типы операций (REBALANCE, TRANSFER_OUT, TRANSFER_IN) клиенту недоступны
+     */
+    @JsonIgnore
+    @AssertTrue(message = "Недопустимый тип операции")
+    public boolean isClientOperation() {
+        return operationType == null || operationType.isClientOperation();
+    }
 }
@@ -1,10 +1,11 @@
 package ru.maksm.walletservice.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
 
-import java.math.BigDecimal;
 import java.util.UUID;
 
 /**
@@ -16,6 +17,16 @@ import java.util.UUID;
 public class WalletOperationResponse {
     
     private UUID walletId;
-    private BigDecimal balance;
+    private Money balance;
     private String message;
+    
+    // версия кошелька после операции, по ней упорядочиваются обновления кэша
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long version;
+    
+    public WalletOperationResponse(UUID walletId, Money balance, String message) {
+        this.walletId = walletId;
+        this.balance = balance;
+        this.message = message;
+    }
 }
@@ -0,0 +1,27 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * DTO с выпиской кошелька: обороты по периодам и остатки на начало и конец
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletStatementResponse {
+
+    private UUID walletId;
+    private LocalDate from;
+    private LocalDate to;
+    private String granularity;
+    private Money openingBalance;
+    private Money closingBalance;
+    private List<StatementBucket> buckets;
+}
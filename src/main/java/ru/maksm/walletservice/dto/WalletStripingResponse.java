@@ -0,0 +1,21 @@
+package ru.maksm.walletservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.maksm.walletservice.model.Money;
+
+import java.util.UUID;
+
+/**
+ * DTO для ответа на перевод кошелька в striped режим и обратно
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletStripingResponse {
+    
+    private UUID walletId;
+    private int slots;
+    private Money balance;
+}
@@ -0,0 +1,11 @@
+package ru.maksm.walletservice.exception;
+
+/**
+ * Исключение при повторном использовании Idempotency-Key с другими параметрами операции
+ */
+public class IdempotencyKeyConflictException extends RuntimeException {
+    
+    public IdempotencyKeyConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package ru.maksm.walletservice.exception;
+
+/**
+ * Исключение при перегрузке сервиса: запрос не дождался ресурса (коннекта к БД и т.п.)
+ * retryAfterSeconds уходит клиенту в заголовке Retry-After
+ */
+public class ServiceOverloadedException extends RuntimeException {
+    
+    private final long retryAfterSeconds;
+    
+    public ServiceOverloadedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,12 @@
+package ru.maksm.walletservice.exception;
+
+/**
+ * Исключение при переполнении очереди операций одного кошелька
+ * отдается клиенту как 429 Too Many Requests с Retry-After
+ */
+public class WalletQueueFullException extends ServiceOverloadedException {
+    
+    public WalletQueueFullException(String message, long retryAfterSeconds) {
+        super(message, retryAfterSeconds);
+    }
+}
@@ -0,0 +1,68 @@
+package ru.maksm.walletservice.journal;
+
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+/**
+ * Запись журнала: одна примененная операция, ровно то, что потом ляжет строкой в transactions
+ * плюс версия кошелька после операции, чтобы при сливе в wallets проставить balance и version как есть
+ *
+ * формат в сегменте: [int длина тела][int crc32 тела][тело], суммы - long в копейках, тело фиксированной длины
+ */
+public record JournalRecord(UUID transactionId,
+                            UUID walletId,
+                            OperationType operationType,
+                            Money amount,
+                            Money balanceBefore,
+                            Money balanceAfter,
+                            long version,
+                            LocalDateTime createdAt) {
+
+    // заголовок: длина тела + crc32
+    static final int HEADER_SIZE = 8;
+
+    // два uuid, тип операции, версия, время и три суммы
+    static final int BODY_SIZE = 16 + 16 + 1 + 8 + 8 + 3 * 8;
+
+    int bodySize() {
+        return BODY_SIZE;
+    }
+
+    void writeBody(ByteBuffer buffer) {
+        buffer.putLong(transactionId.getMostSignificantBits());
+        buffer.putLong(transactionId.getLeastSignificantBits());
+        buffer.putLong(walletId.getMostSignificantBits());
+        buffer.putLong(walletId.getLeastSignificantBits());
+        buffer.put((byte) operationType.ordinal());
+        buffer.putLong(version);
+        buffer.putLong(toEpochMicros(createdAt));
+        buffer.putLong(amount.minor());
+        buffer.putLong(balanceBefore.minor());
+        buffer.putLong(balanceAfter.minor());
+    }
+
+    static JournalRecord readBody(ByteBuffer buffer) {
+        UUID transactionId = new UUID(buffer.getLong(), buffer.getLong());
+        UUID walletId = new UUID(buffer.getLong(), buffer.getLong());
+        OperationType operationType = OperationType.values()[buffer.get()];
+        long version = buffer.getLong();
+        LocalDateTime createdAt = fromEpochMicros(buffer.getLong());
+        return new JournalRecord(transactionId, walletId, operationType,
+                Money.ofMinor(buffer.getLong()), Money.ofMinor(buffer.getLong()), Money.ofMinor(buffer.getLong()),
+                version, createdAt);
+    }
+
+    private static long toEpochMicros(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + time.getNano() / 1_000;
+    }
+
+    private static LocalDateTime fromEpochMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                (int) Math.floorMod(micros, 1_000_000) * 1_000, ZoneOffset.UTC);
+    }
+}
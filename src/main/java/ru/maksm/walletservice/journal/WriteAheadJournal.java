@@ -0,0 +1,392 @@
+package ru.maksm.walletservice.journal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Локальный write-ahead журнал на memory-mapped сегментах с групповым fsync
+ *
+ * - позиция в журнале (lsn) сквозная по всем сегментам, имя сегмента - lsn его начала
+ * - append копирует записи в mmap под локом (это просто запись в память) и возвращает lsn конца пачки
+ * - отдельный поток сбрасывает на диск все, что накопилось с прошлого fsync, одним force:
+ *   пока идет один fsync, новые записи копятся и уходят следующим, то есть fsync на группу, а не на операцию
+ * - awaitDurable(lsn) ждет, пока fsync покроет lsn - только после этого операцию можно подтверждать
+ * - записи держатся в очереди "не слито в БД", пока потребитель не подтвердит слив (release),
+ *   сегменты, целиком слитые в БД, удаляются
+ * - рваный хвост после kill -9 отсекается по длине и crc32: такие записи никто не подтверждал
+ */
+@Slf4j
+public class WriteAheadJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private final Path dir;
+    private final int segmentSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    // все поля ниже - под lock, кроме volatile
+    private final Deque<Segment> sealed = new ArrayDeque<>();
+    private final Deque<Entry> undrained = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private Segment active;
+    private long writeLsn;
+    private volatile long durableLsn;
+    private volatile RuntimeException failure;
+    private volatile boolean closed;
+    private long fsyncs;
+
+    private final Thread flusher;
+
+    /**
+     * Запись журнала и lsn ее конца: запись надежна, когда durableLsn дошел до endLsn
+     */
+    public record Entry(JournalRecord record, long endLsn) {
+    }
+
+    private WriteAheadJournal(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.flusher = new Thread(this::flushLoop, "wallet-journal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Открыть журнал: прочитать уцелевшие сегменты и начать новый сегмент после последней целой записи
+     *
+     * @param drainedLsn до какого lsn записи уже слиты в БД (такие в очередь слива не попадут)
+     */
+    public static WriteAheadJournal open(Path dir, int segmentSize, long drainedLsn) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadJournal journal = new WriteAheadJournal(dir, segmentSize);
+
+        long end = drainedLsn;
+        for (Path path : listSegments(dir)) {
+            Segment segment = journal.recover(path, drainedLsn);
+            if (segment.end == segment.base || segment.end <= drainedLsn) {
+                Files.delete(path);
+            } else {
+                journal.sealed.add(segment);
+            }
+            end = Math.max(end, segment.end);
+        }
+
+        journal.active = journal.openSegment(end);
+        journal.writeLsn = end;
+        journal.durableLsn = end;
+        journal.flusher.start();
+
+        log.info("Журнал открыт: {}, lsn {}, не слито в БД записей: {}", dir, end, journal.undrained.size());
+        return journal;
+    }
+
+    /**
+     * Дописать записи в журнал
+     *
+     * @return lsn конца последней записи, его надо дождаться через awaitDurable перед подтверждением
+     */
+    public long append(List<JournalRecord> records) {
+        lock.lock();
+        try {
+            ensureWritable();
+            for (JournalRecord record : records) {
+                int bodySize = record.bodySize();
+                int size = JournalRecord.HEADER_SIZE + bodySize;
+                if (size > segmentSize) {
+                    throw new IllegalArgumentException("Запись больше сегмента журнала: " + size);
+                }
+                if (active.buffer.remaining() < size) {
+                    roll();
+                }
+
+                MappedByteBuffer buffer = active.buffer;
+                int start = buffer.position();
+                buffer.position(start + JournalRecord.HEADER_SIZE);
+                record.writeBody(buffer);
+                crc.reset();
+                crc.update(buffer.slice(start + JournalRecord.HEADER_SIZE, bodySize));
+                buffer.putInt(start, bodySize);
+                buffer.putInt(start + 4, (int) crc.getValue());
+
+                writeLsn = active.base + buffer.position();
+                undrained.add(new Entry(record, writeLsn));
+            }
+            written.signal();
+            return writeLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дождаться, пока fsync покроет lsn
+     */
+    public void awaitDurable(long lsn) {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                ensureWritable();
+                flushed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Прервано ожидание fsync журнала", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Первые надежные (уже на диске), но еще не слитые в БД записи, в порядке журнала
+     */
+    public List<Entry> peekDurable(int max) {
+        lock.lock();
+        try {
+            List<Entry> entries = new ArrayList<>(Math.min(max, undrained.size()));
+            for (Entry entry : undrained) {
+                if (entries.size() >= max || entry.endLsn() > durableLsn) {
+                    break;
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Подтвердить слив первых count записей в БД; сегменты, которые больше не нужны, удаляются
+     */
+    public void release(int count) {
+        lock.lock();
+        try {
+            long drainedLsn = 0;
+            for (int i = 0; i < count; i++) {
+                drainedLsn = undrained.poll().endLsn();
+            }
+            while (!sealed.isEmpty() && sealed.peek().end <= drainedLsn) {
+                Segment segment = sealed.poll();
+                segment.close();
+                Files.deleteIfExists(segment.path);
+            }
+        } catch (IOException e) {
+            log.warn("Не удалось удалить слитый сегмент журнала: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int undrainedCount() {
+        lock.lock();
+        try {
+            return undrained.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long fsyncCount() {
+        lock.lock();
+        try {
+            return fsyncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            written.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            active.close();
+            sealed.forEach(Segment::close);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Segment segment;
+            long target;
+            int from;
+            lock.lock();
+            try {
+                while (!closed && writeLsn == durableLsn) {
+                    written.awaitUninterruptibly();
+                }
+                if (writeLsn == durableLsn) {
+                    return;
+                }
+                segment = active;
+                target = writeLsn;
+                from = segment.forcedOffset;
+            } finally {
+                lock.unlock();
+            }
+
+            int to = (int) (target - segment.base);
+            try {
+                // force только грязного диапазона: msync на то, что записали с прошлого раза
+                segment.buffer.force(from, to - from);
+            } catch (RuntimeException e) {
+                log.error("fsync журнала не удался, запись в журнал остановлена: {}", e.getMessage(), e);
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                segment.forcedOffset = Math.max(segment.forcedOffset, to);
+                durableLsn = Math.max(durableLsn, target);
+                fsyncs++;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Сегмент закончился: дописанный сбрасываем целиком и начинаем новый с текущего lsn
+     */
+    private void roll() {
+        active.buffer.force();
+        active.forcedOffset = active.buffer.position();
+        active.end = writeLsn;
+        sealed.add(active);
+        try {
+            active = openSegment(writeLsn);
+        } catch (IOException e) {
+            failure = new UncheckedIOException("Не удалось открыть новый сегмент журнала", e);
+            throw failure;
+        }
+    }
+
+    private void ensureWritable() {
+        if (failure != null) {
+            throw new IllegalStateException("Журнал недоступен после ошибки fsync", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Журнал закрыт");
+        }
+    }
+
+    private Segment openSegment(long base) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // файл сразу растягивается до размера сегмента и заполнен нулями: нулевая длина = конец записей
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        return new Segment(base, path, channel, buffer);
+    }
+
+    private Segment recover(Path path, long drainedLsn) throws IOException {
+        long base = Long.parseLong(path.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= JournalRecord.HEADER_SIZE) {
+                int start = buffer.position();
+                int bodySize = buffer.getInt(start);
+                int checksum = buffer.getInt(start + 4);
+                if (bodySize <= 0 || bodySize > buffer.remaining() - JournalRecord.HEADER_SIZE) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice(start + JournalRecord.HEADER_SIZE, bodySize);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Рваный хвост сегмента {} на смещении {}, отбрасываем", path.getFileName(), start);
+                    break;
+                }
+
+                JournalRecord record = JournalRecord.readBody(body);
+                buffer.position(start + JournalRecord.HEADER_SIZE + bodySize);
+                long endLsn = base + buffer.position();
+                if (endLsn > drainedLsn) {
+                    undrained.add(new Entry(record, endLsn));
+                }
+            }
+            Segment segment = new Segment(base, path, null, null);
+            segment.end = base + buffer.position();
+            return segment;
+        }
+    }
+
+    private static List<Path> listSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static final class Segment {
+
+        final long base;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        long end;
+        int forcedOffset;
+
+        Segment(long base, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.base = base;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Не удалось закрыть сегмент журнала {}: {}", path.getFileName(), e.getMessage());
+            }
+        }
+    }
+}
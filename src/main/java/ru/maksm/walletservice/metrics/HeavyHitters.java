@@ -0,0 +1,92 @@
+package ru.maksm.walletservice.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Потоковый top-K кошельков по весу (Space-Saving): память ограничена capacity, сколько бы кошельков ни было
+ *
+ * - счетчиков не больше capacity; новый кошелек при полной таблице вытесняет минимальный
+ *   и наследует его счет как погрешность (error), поэтому count - оценка сверху, count - error - снизу
+ * - любой кошелек с весом больше total / capacity гарантированно в таблице
+ * - таблица разбита на полосы по хешу кошелька: кошелек всегда в одной полосе,
+ *   поэтому полосы не пересекаются и top собирается простым слиянием, а конкуренция только внутри полосы
+ */
+public class HeavyHitters {
+
+    private final Stripe[] stripes;
+
+    public record Entry(UUID walletId, long count, long error) {
+    }
+
+    public HeavyHitters(int capacity, int stripes) {
+        this.stripes = new Stripe[stripes];
+        int perStripe = Math.max(1, capacity / stripes);
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    public void add(UUID walletId, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        stripes[Math.floorMod(walletId.hashCode(), stripes.length)].add(walletId, weight);
+    }
+
+    /**
+     * k самых тяжелых кошельков по убыванию оценки
+     */
+    public List<Entry> top(int k) {
+        List<Entry> entries = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.collect(entries);
+        }
+        entries.sort(Comparator.comparingLong(Entry::count).reversed());
+        return entries.size() > k ? List.copyOf(entries.subList(0, k)) : entries;
+    }
+
+    private static final class Stripe {
+
+        private final int capacity;
+        // [count, error]
+        private final Map<UUID, long[]> counters;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.counters = new HashMap<>(capacity * 2);
+        }
+
+        synchronized void add(UUID walletId, long weight) {
+            long[] counter = counters.get(walletId);
+            if (counter != null) {
+                counter[0] += weight;
+                return;
+            }
+            if (counters.size() < capacity) {
+                counters.put(walletId, new long[]{weight, 0});
+                return;
+            }
+
+            // вытесняем минимальный; полоса маленькая, линейный проход дешевле поддержки кучи
+            UUID minKey = null;
+            long[] min = null;
+            for (Map.Entry<UUID, long[]> entry : counters.entrySet()) {
+                if (min == null || entry.getValue()[0] < min[0]) {
+                    minKey = entry.getKey();
+                    min = entry.getValue();
+                }
+            }
+            counters.remove(minKey);
+            counters.put(walletId, new long[]{min[0] + weight, min[0]});
+        }
+
+        synchronized void collect(List<Entry> target) {
+            counters.forEach((walletId, counter) -> target.add(new Entry(walletId, counter[0], counter[1])));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.maksm.walletservice.metrics;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GET /actuator/hotwallets - самые горячие кошельки за последнее закрытое окно
+ * по числу операций (с оценкой rps) и по суммарному ожиданию блокировки, top-20
+ * GET /actuator/hotwallets/{limit} - то же с другим размером top-K
+ *
+ * размер - отдельным путем, а не необязательным параметром: необязательный параметр actuator
+ * понимает только с @Nullable, а его мета-аннотации JSR-305 не лежат на classpath компиляции
+ *
+ * оценки из Space-Saving: count - сверху, count - error - снизу
+ */
+@Component
+@Endpoint(id = "hotwallets")
+@RequiredArgsConstructor
+public class HotWalletsEndpoint {
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    private final WalletOperationMetrics operationMetrics;
+
+    public record HotWallets(Instant from, Instant to, List<ByRequests> byRequests, List<ByLockWait> byLockWait) {
+    }
+
+    public record ByRequests(UUID walletId, long requests, long error, double perSecond) {
+    }
+
+    public record ByLockWait(UUID walletId, double lockWaitMs, double errorMs) {
+    }
+
+    @ReadOperation
+    public HotWallets hotWallets() {
+        return top(DEFAULT_LIMIT);
+    }
+
+    @ReadOperation
+    public HotWallets hotWallets(@Selector int limit) {
+        if (limit < 1) {
+            throw new InvalidEndpointRequestException("limit должен быть положительным: " + limit, "limit < 1");
+        }
+        return top(limit);
+    }
+
+    private HotWallets top(int k) {
+        WalletOperationMetrics.Window window = operationMetrics.reportWindow();
+        Instant to = operationMetrics.reportWindowEnd(window);
+        double seconds = Math.max(0.001, Duration.between(window.start(), to).toMillis() / 1000.0);
+
+        List<ByRequests> byRequests = window.requests().top(k).stream()
+                .map(entry -> new ByRequests(entry.walletId(), entry.count(), entry.error(), entry.count() / seconds))
+                .toList();
+        List<ByLockWait> byLockWait = window.lockWait().top(k).stream()
+                .map(entry -> new ByLockWait(entry.walletId(), entry.count() / 1_000_000.0, entry.error() / 1_000_000.0))
+                .toList();
+        return new HotWallets(window.start(), to, byRequests, byLockWait);
+    }
+}
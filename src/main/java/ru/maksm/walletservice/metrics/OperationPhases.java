@@ -0,0 +1,115 @@
+package ru.maksm.walletservice.metrics;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Отметки фаз текущей операции, привязанные к потоку (как TransactionSynchronizationManager у спринга)
+ *
+ * очередь, шлюз и движки просто ставят отметку "дошли до такой-то точки", ничего не зная о метриках;
+ * вне операции (чтения, фоновые потоки) отметки ничего не делают.
+ * длительности фаз считает WalletOperationMetrics по разнице отметок в конце операции
+ */
+public final class OperationPhases {
+
+    static final int START = 0;
+    static final int ADMITTED = 1;
+    static final int PERMITTED = 2;
+    static final int CONNECTED = 3;
+    static final int LOCKED = 4;
+    static final int RELEASED = 5;
+    static final int COMMITTING = 6;
+    static final int COMPLETED = 7;
+    static final int MARKS = 8;
+
+    private static final ThreadLocal<long[]> CURRENT = new ThreadLocal<>();
+
+    private OperationPhases() {
+    }
+
+    /**
+     * Дошли до головы очереди кошелька
+     */
+    public static void admitted() {
+        mark(ADMITTED);
+    }
+
+    /**
+     * Получили разрешение шлюза коннектов
+     */
+    public static void permitted() {
+        mark(PERMITTED);
+    }
+
+    /**
+     * Вошли в тело транзакции движка: коннект из пула взят, BEGIN отправлен
+     * заодно подписываемся на коммит транзакции, чтобы отметить его начало и конец
+     */
+    public static void transactionStarted() {
+        long[] marks = CURRENT.get();
+        if (marks == null) {
+            return;
+        }
+        marks[CONNECTED] = System.nanoTime();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    marks[COMMITTING] = System.nanoTime();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    marks[COMPLETED] = System.nanoTime();
+                }
+            });
+        }
+    }
+
+    /**
+     * Блокировка кошелька взята (строка FOR UPDATE или локальный лок)
+     */
+    public static void lockAcquired() {
+        mark(LOCKED);
+    }
+
+    /**
+     * Блокировка отпущена раньше конца операции (локальный лок журнала)
+     * у блокировки строки отметки нет: она живет до конца транзакции
+     */
+    public static void lockReleased() {
+        mark(RELEASED);
+    }
+
+    /**
+     * Начали фиксацию вне транзакции спринга (fsync журнала)
+     */
+    public static void commitStarted() {
+        mark(COMMITTING);
+    }
+
+    /**
+     * Закончили фиксацию вне транзакции спринга
+     */
+    public static void completed() {
+        mark(COMPLETED);
+    }
+
+    static long[] begin() {
+        long[] marks = new long[MARKS];
+        marks[START] = System.nanoTime();
+        CURRENT.set(marks);
+        return marks;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    private static void mark(int phase) {
+        long[] marks = CURRENT.get();
+        if (marks != null) {
+            marks[phase] = System.nanoTime();
+        }
+    }
+}
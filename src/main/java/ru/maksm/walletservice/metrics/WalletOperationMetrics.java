@@ -0,0 +1,197 @@
+package ru.maksm.walletservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Таймеры фаз POST /api/v1/wallet и горячие кошельки
+ *
+ * - wallet.operation: вся операция, теги type (DEPOSIT/WITHDRAW) и outcome
+ * - wallet.operation.phase: фазы, тег phase:
+ *   admission - ожидание в очереди кошелька, permit - в шлюзе коннектов,
+ *   connection - взятие коннекта из hikari и BEGIN, lock_wait - ожидание блокировки кошелька,
+ *   lock_hold - удержание блокировки (для строки - до конца коммита), commit - flush и COMMIT (в журнале - fsync)
+ * - фаза пишется, только если в операции были обе ее отметки: с выключенной очередью admission просто нет
+ * - в sql движке блокировка берется внутри единственного выражения, его lock_wait включает само выражение
+ * - в режиме комбайнера фазы пишет лидер за всю пачку, у остальных только общая длительность
+ * - таймеры собраны заранее в массив: на горячем пути нет поиска в реестре и строк тегов,
+ *   гистограмма - фиксированные бакеты в заданном диапазоне, без подсчета перцентилей на клиенте
+ * - по кошелькам тегов нет: горячие кошельки считает потоковый top-K (HeavyHitters) по окнам,
+ *   отдается эндпоинтом /actuator/hotwallets
+ */
+@Component
+public class WalletOperationMetrics {
+
+    enum Outcome {
+        SUCCESS, INSUFFICIENT_FUNDS, NOT_FOUND, REJECTED, ERROR
+    }
+
+    private static final String[] PHASES = {
+            "admission", "permit", "connection", "lock_wait", "lock_hold", "commit"
+    };
+    private static final int LOCK_HOLD = 4;
+    private static final int COMMIT = 5;
+
+    private final boolean enabled;
+    private final int heavyHittersCapacity;
+    private final int heavyHittersStripes;
+
+    // [operationType][outcome] и [phase][operationType][outcome]
+    private final Timer[][] operationTimers;
+    private final Timer[][][] phaseTimers;
+
+    private volatile Window current;
+    private volatile Window previous;
+
+    /**
+     * Окно подсчета горячих кошельков: по запросам и по суммарному ожиданию блокировки
+     */
+    record Window(Instant start, HeavyHitters requests, HeavyHitters lockWait) {
+    }
+
+    public WalletOperationMetrics(MeterRegistry meterRegistry,
+                                  @Value("${wallet.metrics.enabled:true}") boolean enabled,
+                                  @Value("${wallet.metrics.histogram.enabled:true}") boolean histogram,
+                                  @Value("${wallet.metrics.histogram.min:PT0.0001S}") Duration histogramMin,
+                                  @Value("${wallet.metrics.histogram.max:PT30S}") Duration histogramMax,
+                                  @Value("${wallet.metrics.heavy-hitters.capacity:512}") int heavyHittersCapacity,
+                                  @Value("${wallet.metrics.heavy-hitters.stripes:16}") int heavyHittersStripes) {
+        this.enabled = enabled;
+        this.heavyHittersCapacity = heavyHittersCapacity;
+        this.heavyHittersStripes = heavyHittersStripes;
+
+        OperationType[] types = OperationType.values();
+        Outcome[] outcomes = Outcome.values();
+        this.operationTimers = new Timer[types.length][outcomes.length];
+        this.phaseTimers = new Timer[PHASES.length][types.length][outcomes.length];
+        for (OperationType type : types) {
+            for (Outcome outcome : outcomes) {
+                String outcomeTag = outcome.name().toLowerCase(Locale.ROOT);
+                operationTimers[type.ordinal()][outcome.ordinal()] = Timer.builder("wallet.operation")
+                        .tag("type", type.name()).tag("outcome", outcomeTag)
+                        .publishPercentileHistogram(histogram)
+                        .minimumExpectedValue(histogramMin).maximumExpectedValue(histogramMax)
+                        .register(meterRegistry);
+                for (int phase = 0; phase < PHASES.length; phase++) {
+                    phaseTimers[phase][type.ordinal()][outcome.ordinal()] = Timer.builder("wallet.operation.phase")
+                            .tag("phase", PHASES[phase]).tag("type", type.name()).tag("outcome", outcomeTag)
+                            .publishPercentileHistogram(histogram)
+                            .minimumExpectedValue(histogramMin).maximumExpectedValue(histogramMax)
+                            .register(meterRegistry);
+                }
+            }
+        }
+
+        this.current = newWindow();
+    }
+
+    /**
+     * Выполнить операцию, замерив ее целиком и по фазам
+     */
+    public <T> T record(WalletOperationRequest request, Supplier<T> operation) {
+        if (!enabled) {
+            return operation.get();
+        }
+
+        long[] marks = OperationPhases.begin();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            T result = operation.get();
+            outcome = Outcome.SUCCESS;
+            return result;
+        } catch (InsufficientFundsException e) {
+            outcome = Outcome.INSUFFICIENT_FUNDS;
+            throw e;
+        } catch (WalletNotFoundException e) {
+            outcome = Outcome.NOT_FOUND;
+            throw e;
+        } catch (ServiceOverloadedException e) {
+            outcome = Outcome.REJECTED;
+            throw e;
+        } finally {
+            OperationPhases.end();
+            finish(request, marks, System.nanoTime(), outcome);
+        }
+    }
+
+    /**
+     * Новое окно горячих кошельков; закрытое окно остается для отчета
+     */
+    @Scheduled(fixedDelayString = "${wallet.metrics.heavy-hitters.window:PT1M}",
+            initialDelayString = "${wallet.metrics.heavy-hitters.window:PT1M}")
+    public void rotate() {
+        previous = current;
+        current = newWindow();
+    }
+
+    /**
+     * Последнее закрытое окно, а до первой ротации - текущее
+     */
+    Window reportWindow() {
+        Window closed = previous;
+        return closed != null ? closed : current;
+    }
+
+    /**
+     * Конец окна для отчета: у закрытого - начало текущего, у текущего - сейчас
+     */
+    Instant reportWindowEnd(Window window) {
+        return window == current ? Instant.now() : current.start();
+    }
+
+    private void finish(WalletOperationRequest request, long[] marks, long end, Outcome outcome) {
+        int type = request.getOperationType().ordinal();
+        int result = outcome.ordinal();
+        operationTimers[type][result].record(end - marks[OperationPhases.START], TimeUnit.NANOSECONDS);
+
+        // фазы ожидания идут подряд: каждая считается от предыдущей поставленной отметки
+        long last = marks[OperationPhases.START];
+        long lockWait = 0;
+        for (int phase = OperationPhases.ADMITTED; phase <= OperationPhases.LOCKED; phase++) {
+            if (marks[phase] != 0) {
+                long duration = marks[phase] - last;
+                phaseTimers[phase - 1][type][result].record(duration, TimeUnit.NANOSECONDS);
+                if (phase == OperationPhases.LOCKED) {
+                    lockWait = duration;
+                }
+                last = marks[phase];
+            }
+        }
+
+        long locked = marks[OperationPhases.LOCKED];
+        long released = marks[OperationPhases.RELEASED] != 0
+                ? marks[OperationPhases.RELEASED]
+                : marks[OperationPhases.COMPLETED];
+        if (locked != 0 && released != 0) {
+            phaseTimers[LOCK_HOLD][type][result].record(released - locked, TimeUnit.NANOSECONDS);
+        }
+        if (marks[OperationPhases.COMMITTING] != 0 && marks[OperationPhases.COMPLETED] != 0) {
+            phaseTimers[COMMIT][type][result].record(
+                    marks[OperationPhases.COMPLETED] - marks[OperationPhases.COMMITTING], TimeUnit.NANOSECONDS);
+        }
+
+        Window window = current;
+        window.requests().add(request.getWalletId(), 1);
+        window.lockWait().add(request.getWalletId(), lockWait);
+    }
+
+    private Window newWindow() {
+        return new Window(Instant.now(),
+                new HeavyHitters(heavyHittersCapacity, heavyHittersStripes),
+                new HeavyHitters(heavyHittersCapacity, heavyHittersStripes));
+    }
+}
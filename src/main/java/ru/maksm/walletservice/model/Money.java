@@ -0,0 +1,267 @@
+package ru.maksm.walletservice.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Денежная сумма в копейках (minor units): long вместо BigDecimal
+ *
+ * в БД колонки DECIMAL(19,2), то есть ровно два знака после запятой - это целое число копеек.
+ * BigDecimal на горячем пути давал по несколько объектов на операцию (разбор суммы, add/subtract, toString в логах),
+ * long - ноль: арифметика над копейками идет в примитивах (plus/minus над minor), Money - только обертка на границах
+ *
+ * правила:
+ * - арифметика с проверкой переполнения (Math.*Exact), переполнение - ArithmeticException, а не тихий перенос знака
+ * - на входе JSON сумма принимается только точно: больше двух значащих знаков после запятой - ошибка разбора (400),
+ *   никакого округления ("10.005" отклоняется, "10.500" - это 10.50)
+ * - на выходе всегда два знака после запятой числом JSON: 100 -> 100.00
+ * - в БД и из БД через BigDecimal (MoneyConverter для сущностей, of/toBigDecimal для jdbc), тоже без округления
+ * - диапазон: |сумма| <= Long.MAX_VALUE копеек, примерно 9.2 * 10^16 рублей
+ */
+@Schema(type = "number", format = "decimal", example = "100.00")
+@JsonSerialize(using = Money.Serializer.class)
+@JsonDeserialize(using = Money.Deserializer.class)
+public final class Money implements Comparable<Money> {
+
+    public static final int SCALE = 2;
+    public static final Money ZERO = new Money(0);
+
+    private static final long MINOR_PER_UNIT = 100;
+    // знак, 19 цифр long и точка
+    private static final int MAX_CHARS = 21;
+    // за этими пределами сумма заведомо не влезает в long или не точна, а setScale на 1e99999999 считает
+    // 10^99999999 - такой вход отклоняется сразу
+    private static final int MAX_ABS_SCALE = 20;
+
+    private final long minor;
+
+    private Money(long minor) {
+        this.minor = minor;
+    }
+
+    public static Money ofMinor(long minor) {
+        return minor == 0 ? ZERO : new Money(minor);
+    }
+
+    /**
+     * Точное преобразование: больше двух знаков после запятой или выход за long - ArithmeticException
+     */
+    public static Money of(BigDecimal value) {
+        if (value.signum() == 0) {
+            return ZERO;
+        }
+        if (Math.abs(value.scale()) > MAX_ABS_SCALE) {
+            throw new ArithmeticException("Сумма вне допустимого диапазона или точности: порядок " + (-value.scale()));
+        }
+        return ofMinor(value.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact());
+    }
+
+    /**
+     * Разбор десятичной строки вида "-123.45" без промежуточного BigDecimal
+     */
+    public static Money parse(String value) {
+        return ofMinor(parseMinor(value.toCharArray(), 0, value.length()));
+    }
+
+    public long minor() {
+        return minor;
+    }
+
+    public BigDecimal toBigDecimal() {
+        return toBigDecimal(minor);
+    }
+
+    /**
+     * Копейки в BigDecimal для параметров jdbc
+     */
+    public static BigDecimal toBigDecimal(long minor) {
+        return BigDecimal.valueOf(minor, SCALE);
+    }
+
+    public Money plus(Money other) {
+        return ofMinor(plus(minor, other.minor));
+    }
+
+    public Money minus(Money other) {
+        return ofMinor(minus(minor, other.minor));
+    }
+
+    public Money negate() {
+        return ofMinor(Math.negateExact(minor));
+    }
+
+    public boolean isPositive() {
+        return minor > 0;
+    }
+
+    public boolean isNegative() {
+        return minor < 0;
+    }
+
+    public static long plus(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long minus(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minor, other.minor);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Money other && minor == other.minor;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minor);
+    }
+
+    /**
+     * "123.45", всегда два знака после запятой
+     */
+    @Override
+    public String toString() {
+        return format(minor);
+    }
+
+    public static String format(long minor) {
+        char[] chars = new char[MAX_CHARS];
+        int start = writeTo(chars, minor);
+        return new String(chars, start, MAX_CHARS - start);
+    }
+
+    /**
+     * Записать сумму в конец буфера длиной не меньше MAX_CHARS, вернуть индекс первого символа
+     * считаем в отрицательных числах, чтобы Long.MIN_VALUE не переполнялся на Math.abs
+     */
+    static int writeTo(char[] chars, long minor) {
+        int pos = chars.length;
+        long rest = minor < 0 ? minor : -minor;
+        for (int i = 0; i < SCALE; i++) {
+            chars[--pos] = (char) ('0' - rest % 10);
+            rest /= 10;
+        }
+        chars[--pos] = '.';
+        do {
+            chars[--pos] = (char) ('0' - rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (minor < 0) {
+            chars[--pos] = '-';
+        }
+        return pos;
+    }
+
+    /**
+     * Копейки из десятичной записи [offset, offset + length): знак, цифры, точка, до двух значащих дробных цифр
+     */
+    static long parseMinor(char[] chars, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long units = 0;
+        int digits = 0;
+        for (; i < end && chars[i] != '.'; i++, digits++) {
+            units = Math.addExact(Math.multiplyExact(units, 10), digit(chars, i));
+        }
+
+        long cents = 0;
+        int fraction = 0;
+        if (i < end) {
+            for (i++; i < end; i++, fraction++) {
+                int digit = digit(chars, i);
+                if (fraction < SCALE) {
+                    cents = cents * 10 + digit;
+                } else if (digit != 0) {
+                    throw new ArithmeticException("Больше " + SCALE + " знаков после запятой: "
+                            + new String(chars, offset, length));
+                }
+            }
+        }
+        if (digits == 0 && fraction == 0) {
+            throw new NumberFormatException("Пустая сумма");
+        }
+        for (; fraction < SCALE; fraction++) {
+            cents *= 10;
+        }
+
+        long minor = Math.addExact(Math.multiplyExact(units, MINOR_PER_UNIT), cents);
+        return negative ? -minor : minor;
+    }
+
+    private static int digit(char[] chars, int index) {
+        char c = chars[index];
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Неверный символ в сумме: " + c);
+        }
+        return c - '0';
+    }
+
+    /**
+     * В JSON - число с двумя знаками, без промежуточного BigDecimal и String
+     */
+    public static final class Serializer extends JsonSerializer<Money> {
+
+        @Override
+        public void serialize(Money value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            // char[] генератор кодирует сразу в выходной буфер, без промежуточной строки
+            char[] chars = new char[MAX_CHARS];
+            int start = writeTo(chars, value.minor);
+            generator.writeNumber(chars, start, MAX_CHARS - start);
+        }
+    }
+
+    /**
+     * Из JSON - число или строка, по тексту токена, точно (см правила в описании класса)
+     */
+    public static final class Deserializer extends JsonDeserializer<Money> {
+
+        @Override
+        public Money deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            JsonToken token = parser.currentToken();
+            try {
+                if (token == JsonToken.VALUE_NUMBER_INT) {
+                    return ofMinor(Math.multiplyExact(parser.getLongValue(), MINOR_PER_UNIT));
+                }
+                if (token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_STRING) {
+                    char[] chars = parser.getTextCharacters();
+                    int offset = parser.getTextOffset();
+                    int length = parser.getTextLength();
+                    for (int i = offset; i < offset + length; i++) {
+                        if (chars[i] == 'e' || chars[i] == 'E') {
+                            // экспоненциальная запись встречается редко, тут можно и через BigDecimal;
+                            // огромный порядок отклоняет of, до setScale
+                            return of(new BigDecimal(parser.getText()));
+                        }
+                    }
+                    return ofMinor(parseMinor(chars, offset, length));
+                }
+            } catch (ArithmeticException | NumberFormatException e) {
+                return (Money) context.handleWeirdStringValue(Money.class, parser.getText(), e.getMessage());
+            }
+            return (Money) context.handleUnexpectedToken(Money.class, parser);
+        }
+    }
+}
@@ -4,8 +4,30 @@ package ru.maksm.walletservice.model;
  * Тип операции с кошельком
  * DEPOSIT - пополнение
  * WITHDRAW - списание
+ * REBALANCE - внутреннее перемещение средств между слотами striped кошелька,
+ *             пишется только сервисом и через API не принимается
+ * TRANSFER_OUT / TRANSFER_IN - списание и зачисление перевода между кошельками, всегда парой
+ *             с общим transfer_id; пишутся переводом (POST /api/v1/transfers), в операции кошелька не принимаются
+ *
+ * новые типы - только в конец: журнал хранит тип порядковым номером
  */
 public enum OperationType {
-    DEPOSIT,
-    WITHDRAW
+    DEPOSIT(true),
+    WITHDRAW(true),
+    REBALANCE(false),
+    TRANSFER_OUT(false),
+    TRANSFER_IN(false);
+
+    private final boolean clientOperation;
+
+    OperationType(boolean clientOperation) {
+        this.clientOperation = clientOperation;
+    }
+
+    /**
+     * Можно ли передать этот тип в запросе клиента
+     */
+    public boolean isClientOperation() {
+        return clientOperation;
+    }
 }
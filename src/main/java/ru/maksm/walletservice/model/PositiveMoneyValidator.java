@@ -0,0 +1,18 @@
+package ru.maksm.walletservice.model;
+
+import jakarta.validation.ConstraintValidator;
+import jakarta.validation.ConstraintValidatorContext;
+import jakarta.validation.constraints.Positive;
+
+/**
+ * Стандартный @Positive для Money: hibernate validator подхватывает его через
+ * META-INF/services/jakarta.validation.ConstraintValidator, поэтому в DTO аннотации остаются прежними
+ */
+public class PositiveMoneyValidator implements ConstraintValidator<Positive, Money> {
+
+    @Override
+    public boolean isValid(Money value, ConstraintValidatorContext context) {
+        // null проверяет @NotNull
+        return value == null || value.isPositive();
+    }
+}
@@ -0,0 +1,26 @@
+package ru.maksm.walletservice.model;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+
+import java.util.EnumSet;
+
+import static org.hibernate.generator.EventTypeSets.INSERT_ONLY;
+
+/**
+ * Генератор для @TimeOrderedId: id выдается до инсерта, батчи hibernate не ломаются
+ */
+public class TimeOrderedIdGenerator implements BeforeExecutionGenerator {
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue,
+                           EventType eventType) {
+        return TimeOrderedUuid.next();
+    }
+
+    @Override
+    public EnumSet<EventType> getEventTypes() {
+        return INSERT_ONLY;
+    }
+}
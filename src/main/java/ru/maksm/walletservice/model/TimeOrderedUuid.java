@@ -0,0 +1,50 @@
+package ru.maksm.walletservice.model;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Идентификаторы по времени в раскладке UUIDv7 (RFC 9562)
+ *
+ * случайный v4 кладет каждый инсерт на случайную страницу b-tree первичного ключа: в кэше должен жить
+ * весь индекс, страницы делятся и заполнены наполовину. У v7 старшие 48 бит - unix-время в миллисекундах,
+ * новые ключи идут в правый край индекса, как у последовательности, но генерируются без обращения к БД:
+ * - 48 бит времени, версия 7, 12 бит счетчика внутри миллисекунды, вариант, 62 случайных бита
+ * - в пределах процесса значения строго растут: при совпадении миллисекунды растет счетчик,
+ *   при его переполнении и при откате часов назад время берется из предыдущего значения + 1
+ * - между инстансами порядок - с точностью до расхождения часов, для локальности индекса этого достаточно
+ * - случайная часть из ThreadLocalRandom: id операций не секрет и не используются как токены
+ *
+ * в SQL то же делает функция uuid_generate_v7() (changeset 014), без счетчика внутри миллисекунды
+ */
+public final class TimeOrderedUuid {
+
+    private static final long VERSION_7 = 0x7000L;
+    private static final long VARIANT = 0x8000000000000000L;
+    private static final long RANDOM_MASK = 0x3fffffffffffffffL;
+
+    // последние выданные 48 бит времени и 12 бит счетчика
+    private static final AtomicLong LAST = new AtomicLong();
+
+    private TimeOrderedUuid() {
+    }
+
+    public static UUID next() {
+        long now = System.currentTimeMillis() << 12;
+        long stamp = LAST.updateAndGet(last -> Math.max(now, last + 1));
+        long msb = (stamp >>> 12) << 16 | VERSION_7 | (stamp & 0xfff);
+        long lsb = VARIANT | (ThreadLocalRandom.current().nextLong() & RANDOM_MASK);
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Момент создания id в миллисекундах unix-времени
+     */
+    public static long timestamp(UUID id) {
+        if (id.version() != 7) {
+            throw new IllegalArgumentException("Не UUIDv7: " + id);
+        }
+        return id.getMostSignificantBits() >>> 16;
+    }
+}
@@ -6,7 +6,6 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.hibernate.annotations.CreationTimestamp;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
@@ -15,17 +14,19 @@ import java.util.UUID;
  * хранит историю всех операций с кошельками
  */
 @Entity
+// таблица партиционирована по месяцам created_at (changeset 007), первичный ключ в БД - (id, created_at)
 @Table(name = "transactions", indexes = {
-    @Index(name = "idx_transaction_wallet_id", columnList = "wallet_id"),
-    @Index(name = "idx_transaction_created_at", columnList = "created_at")
+    // в БД еще INCLUDE остальных колонок истории (changeset 014), в @Index это не выражается
+    @Index(name = "idx_transaction_wallet_history", columnList = "wallet_id, created_at, id")
 })
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Transaction {
     
+    // UUIDv7: новые ключи ложатся в правый край индекса, а не на случайную страницу
     @Id
-    @GeneratedValue(strategy = GenerationType.UUID)
+    @TimeOrderedId
     private UUID id;
     
     @Column(name = "wallet_id", nullable = false)
@@ -36,24 +37,39 @@ public class Transaction {
     private OperationType operationType;
     
     @Column(name = "amount", nullable = false, precision = 19, scale = 2)
-    private BigDecimal amount;
+    private Money amount;
     
     @Column(name = "balance_before", nullable = false, precision = 19, scale = 2)
-    private BigDecimal balanceBefore;
+    private Money balanceBefore;
     
     @Column(name = "balance_after", nullable = false, precision = 19, scale = 2)
-    private BigDecimal balanceAfter;
+    private Money balanceAfter;
+    
+    // слот striped кошелька; null - операция над основной строкой кошелька
+    // цепочка balance_before/balance_after непрерывна в пределах (wallet_id, slot)
+    @Column(name = "slot")
+    private Integer slot;
+    
+    // общий у пары записей перевода (TRANSFER_OUT и TRANSFER_IN); null - не перевод
+    @Column(name = "transfer_id")
+    private UUID transferId;
     
     @CreationTimestamp
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
     
-    public Transaction(UUID walletId, OperationType operationType, BigDecimal amount, 
-                      BigDecimal balanceBefore, BigDecimal balanceAfter) {
+    public Transaction(UUID walletId, OperationType operationType, Money amount, 
+                      Money balanceBefore, Money balanceAfter) {
         this.walletId = walletId;
         this.operationType = operationType;
         this.amount = amount;
         this.balanceBefore = balanceBefore;
         this.balanceAfter = balanceAfter;
     }
+    
+    public Transaction(UUID walletId, OperationType operationType, Money amount,
+                      Money balanceBefore, Money balanceAfter, UUID transferId) {
+        this(walletId, operationType, amount, balanceBefore, balanceAfter);
+        this.transferId = transferId;
+    }
 }
@@ -7,7 +7,6 @@ import lombok.NoArgsConstructor;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
@@ -16,23 +15,23 @@ import java.util.UUID;
  * содержит информацию о балансе и метаданные
  */
 @Entity
-@Table(name = "wallets", indexes = {
-    @Index(name = "idx_wallet_id", columnList = "wallet_id")
-})
+// wallet_id ищется по индексу unique-ограничения, отдельный idx_wallet_id убран changeset 014
+@Table(name = "wallets")
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Wallet {
     
+    // UUIDv7: новые ключи ложатся в правый край индекса, а не на случайную страницу
     @Id
-    @GeneratedValue(strategy = GenerationType.UUID)
+    @TimeOrderedId
     private UUID id;
     
     @Column(name = "wallet_id", unique = true, nullable = false)
     private UUID walletId;
     
     @Column(name = "balance", nullable = false, precision = 19, scale = 2)
-    private BigDecimal balance = BigDecimal.ZERO;
+    private Money balance = Money.ZERO;
     
     @Column(name = "version", nullable = false)
     @Version
@@ -50,6 +49,6 @@ public class Wallet {
     
     public Wallet(UUID walletId) {
         this.walletId = walletId;
-        this.balance = BigDecimal.ZERO;
+        this.balance = Money.ZERO;
     }
 }
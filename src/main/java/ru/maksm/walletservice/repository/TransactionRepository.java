@@ -21,11 +21,16 @@ public interface TransactionRepository extends JpaRepository<Transaction, UUID>
     
     /**
      * Получить все транзакции для кошелька с пагинацией
+     * OFFSET + COUNT, на длинной истории деградирует - для API есть keyset страницы в TransactionHistoryService
+     * без условия на created_at читает все партиции ledger
      */
     Page<Transaction> findByWalletIdOrderByCreatedAtDesc(UUID walletId, Pageable pageable);
     
     /**
      * Получить транзакции за период
+     * весь период грузится в память - для больших периодов есть потоковая выгрузка в TransactionHistoryService
+     * для оборотов за период (суммы, количество, остатки) - выписка по дневным оборотам в WalletStatementService
+     * диапазон по created_at отсекает лишние партиции ledger, даже с параметрами (runtime pruning)
      */
     @Query("SELECT t FROM Transaction t WHERE t.walletId = :walletId " +
            "AND t.createdAt BETWEEN :startDate AND :endDate " +
@@ -2,12 +2,16 @@ package ru.maksm.walletservice.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.maksm.walletservice.model.Wallet;
 
 import jakarta.persistence.LockModeType;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -31,6 +35,15 @@ public interface WalletRepository extends JpaRepository<Wallet, UUID> {
     @Query("SELECT w FROM Wallet w WHERE w.walletId = :walletId")
     Optional<Wallet> findByWalletIdWithLock(@Param("walletId") UUID walletId);
     
+    /**
+     * Найти и заблокировать несколько кошельков сразу
+     * строки блокируются в порядке wallet_id: две пачки с пересекающимися кошельками
+     * всегда берут блокировки в одном порядке и не могут встать в дедлок
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT w FROM Wallet w WHERE w.walletId IN :walletIds ORDER BY w.walletId")
+    List<Wallet> findAllByWalletIdInWithLock(@Param("walletIds") Collection<UUID> walletIds);
+    
     /**
      * Найти кошелек по walletId без блокировки
      * используется для чтения баланса
@@ -41,4 +54,18 @@ public interface WalletRepository extends JpaRepository<Wallet, UUID> {
      * Проверить существование кошелька
      */
     boolean existsByWalletId(UUID walletId);
+    
+    /**
+     * Создать кошелек с нулевым балансом, если его еще нет
+     * одно выражение вместо exists + save: нет лишнего похода в БД и гонки двух создающих,
+     * проигравший просто получает 0 строк
+     * без цели конфликта: так выражение понимает и H2 в бенчмарках, а в wallets уникальны только id и wallet_id
+     *
+     * @return 1 - кошелек создан, 0 - уже был
+     */
+    @Modifying
+    @Query(value = "INSERT INTO wallets (id, wallet_id, balance, version, created_at, updated_at)"
+            + " VALUES (:id, :walletId, 0, 0, :createdAt, :createdAt) ON CONFLICT DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("id") UUID id, @Param("walletId") UUID walletId,
+                       @Param("createdAt") LocalDateTime createdAt);
 }
@@ -0,0 +1,166 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+
+/**
+ * Точки баланса кошельков (wallet_balance_checkpoints, см. changeset 012) для запросов "баланс на момент"
+ *
+ * - запуск рассматривает окно ledger (checkpointed_until, now - settle-delay]: к его концу все транзакции
+ *   закоммичены и журнал успел слиться, как и для свертки оборотов
+ * - точка на конец окна ставится кошелькам с операциями в окне, у которых с прошлой точки набралось
+ *   every-operations операций или прошло max-age, либо точки еще нет - так между соседними точками
+ *   не больше every-operations операций плюс операции одного запуска
+ * - баланс точки считается назад от текущего (wallets + слоты) минус чистый оборот после нее, в одном
+ *   repeatable read снимке: точка не зависит от предыдущих, ошибка одной не тянется в следующие
+ * - на горячем пути ничего не меняется, окно - одно выражение и одна транзакция под advisory lock
+ * - при включенном ретеншне ledger точки старше хранимых партиций удаляются: посчитать от них уже нечего
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.checkpoint.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class BalanceCheckpointWriter {
+
+    // ключ advisory lock записи точек баланса, общий для всех инстансов
+    private static final long CHECKPOINT_LOCK_KEY = 0x434845434b505453L;
+
+    static final String STATE_ID = "balance";
+
+    private static final String CHECKPOINTED_UNTIL_SQL =
+            "SELECT checkpointed_until FROM wallet_checkpoint_state WHERE id = ?";
+
+    private static final String INSERT_CHECKPOINTS_SQL = """
+            INSERT INTO wallet_balance_checkpoints (wallet_id, as_of, balance)
+            SELECT a.wallet_id, ?,
+                   w.balance + COALESCE((SELECT SUM(s.balance) FROM wallet_slots s WHERE s.wallet_id = a.wallet_id), 0)
+                   - COALESCE((SELECT SUM(CASE WHEN t.operation_type IN ('DEPOSIT', 'TRANSFER_IN') THEN t.amount
+                                               ELSE -t.amount END)
+                                 FROM transactions t
+                                WHERE t.wallet_id = a.wallet_id AND t.created_at > ?
+                                  AND t.operation_type <> 'REBALANCE'), 0)
+              FROM (SELECT DISTINCT wallet_id FROM transactions WHERE created_at > ? AND created_at <= ?) a
+              JOIN wallets w ON w.wallet_id = a.wallet_id
+              LEFT JOIN LATERAL (SELECT c.as_of FROM wallet_balance_checkpoints c
+                                  WHERE c.wallet_id = a.wallet_id ORDER BY c.as_of DESC LIMIT 1) latest ON TRUE
+             WHERE latest.as_of IS NULL
+                OR latest.as_of <= ?
+                OR (SELECT COUNT(*) FROM (SELECT 1 FROM transactions t
+                                           WHERE t.wallet_id = a.wallet_id
+                                             AND t.created_at > latest.as_of AND t.created_at <= ?
+                                           LIMIT ?) recent) >= ?
+                ON CONFLICT (wallet_id, as_of) DO NOTHING
+            """;
+
+    private static final String UPDATE_STATE_SQL = """
+            UPDATE wallet_checkpoint_state SET checkpointed_until = ?, updated_at = CURRENT_TIMESTAMP
+             WHERE id = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration settleDelay;
+    private final int everyOperations;
+    private final Duration maxAge;
+    private final boolean retentionEnabled;
+    private final int keepMonths;
+    private final Counter createdCheckpoints;
+
+    public BalanceCheckpointWriter(JdbcTemplate jdbcTemplate,
+                                   PlatformTransactionManager transactionManager,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${wallet.checkpoint.settle-delay:PT15M}") Duration settleDelay,
+                                   @Value("${wallet.checkpoint.every-operations:1000}") int everyOperations,
+                                   @Value("${wallet.checkpoint.max-age:P1D}") Duration maxAge,
+                                   @Value("${wallet.ledger.retention.enabled:false}") boolean retentionEnabled,
+                                   @Value("${wallet.ledger.retention.keep-months:24}") int keepMonths) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.settleDelay = settleDelay;
+        this.everyOperations = everyOperations;
+        this.maxAge = maxAge;
+        this.retentionEnabled = retentionEnabled;
+        this.keepMonths = keepMonths;
+
+        // текущий баланс и ledger после точки должны быть из одного снимка
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+
+        this.createdCheckpoints = Counter.builder("wallet.checkpoints.created").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.checkpoint.interval:PT5M}",
+            initialDelayString = "${wallet.checkpoint.initial-delay:PT1M}")
+    public void checkpoint() {
+        try {
+            writeCheckpoints();
+        } catch (RuntimeException e) {
+            // checkpointed_until не сдвинулся, окно рассмотрится в следующий запуск целиком
+            log.error("Ошибка записи точек баланса: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Поставить точки на конец следующего окна
+     *
+     * @return число новых точек, -1 - окно еще не закрылось или запись держит другой инстанс
+     */
+    int writeCheckpoints() {
+        Integer created = transactionTemplate.execute(status -> {
+            Boolean locked = jdbcTemplate.queryForObject("SELECT pg_try_advisory_xact_lock(?)", Boolean.class,
+                    CHECKPOINT_LOCK_KEY);
+            if (!Boolean.TRUE.equals(locked)) {
+                log.debug("Точки баланса пишет другой инстанс");
+                return -1;
+            }
+
+            List<LocalDateTime> state = jdbcTemplate.query(CHECKPOINTED_UNTIL_SQL,
+                    (rs, rowNum) -> rs.getTimestamp(1).toLocalDateTime(), STATE_ID);
+            if (state.isEmpty()) {
+                log.warn("Нет строки состояния в wallet_checkpoint_state, точки баланса не пишутся");
+                return -1;
+            }
+
+            LocalDateTime from = state.get(0);
+            LocalDateTime asOf = LocalDateTime.now().minus(settleDelay);
+            if (!asOf.isAfter(from)) {
+                return -1;
+            }
+
+            Timestamp end = Timestamp.valueOf(asOf);
+            int inserted = jdbcTemplate.update(INSERT_CHECKPOINTS_SQL, end, end, Timestamp.valueOf(from), end,
+                    Timestamp.valueOf(asOf.minus(maxAge)), end, everyOperations, everyOperations);
+            jdbcTemplate.update(UPDATE_STATE_SQL, end, STATE_ID);
+
+            if (retentionEnabled) {
+                LocalDateTime horizon = YearMonth.now().minusMonths(keepMonths).atDay(1).atStartOfDay();
+                int pruned = jdbcTemplate.update("DELETE FROM wallet_balance_checkpoints WHERE as_of < ?",
+                        Timestamp.valueOf(horizon));
+                if (pruned > 0) {
+                    log.info("Удалены точки баланса старше хранимого ledger: {}", pruned);
+                }
+            }
+
+            log.debug("Точки баланса на {}: новых {}", asOf, inserted);
+            return inserted;
+        });
+        int result = created == null ? -1 : created;
+        if (result > 0) {
+            createdCheckpoints.increment(result);
+        }
+        return result;
+    }
+}
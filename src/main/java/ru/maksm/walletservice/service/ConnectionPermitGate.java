@@ -0,0 +1,78 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.metrics.OperationPhases;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Шлюз разрешений на работу с БД
+ *
+ * на виртуальных потоках запросов может быть тысячи, а коннектов в hikari 20:
+ * без шлюза все они разом встают в очередь пула и валятся по connection-timeout пачками.
+ * тут справедливый семафор на число коннектов: в транзакцию заходит не больше запросов, чем есть коннектов,
+ * остальные ждут дешево (виртуальный поток паркуется без стека платформенного потока)
+ * и если не дождались за permit-timeout - быстро получают 503 с Retry-After вместо 30-секундного висения
+ */
+@Component
+@Slf4j
+public class ConnectionPermitGate {
+
+    private final boolean enabled;
+    private final Semaphore permits;
+    private final long timeoutNanos;
+    private final long retryAfterSeconds;
+
+    public ConnectionPermitGate(MeterRegistry meterRegistry,
+                                @Value("${wallet.db.permit-gate.enabled:false}") boolean enabled,
+                                @Value("${wallet.db.permit-gate.permits:20}") int permits,
+                                @Value("${wallet.db.permit-gate.timeout:PT5S}") Duration timeout) {
+        this.enabled = enabled;
+        this.permits = new Semaphore(permits, true);
+        this.timeoutNanos = timeout.toNanos();
+        this.retryAfterSeconds = Math.max(1, timeout.toSeconds());
+
+        Gauge.builder("wallet.db.permits.available", this.permits, Semaphore::availablePermits).register(meterRegistry);
+        Gauge.builder("wallet.db.permits.waiting", this.permits, Semaphore::getQueueLength).register(meterRegistry);
+
+        if (enabled) {
+            log.info("Шлюз коннектов к БД включен: разрешений {}, ожидание не дольше {}", permits, timeout);
+        }
+    }
+
+    /**
+     * Выполнить действие, удерживая одно разрешение на коннект
+     */
+    public <T> T call(Supplier<T> action) {
+        if (!enabled) {
+            return action.get();
+        }
+
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceOverloadedException("Ожидание коннекта к БД прервано", retryAfterSeconds);
+        }
+        if (!acquired) {
+            log.warn("Не дождались свободного коннекта к БД, в очереди {}", permits.getQueueLength());
+            throw new ServiceOverloadedException("Сервис перегружен, повторите запрос позже", retryAfterSeconds);
+        }
+
+        OperationPhases.permitted();
+        try {
+            return action.get();
+        } finally {
+            permits.release();
+        }
+    }
+}
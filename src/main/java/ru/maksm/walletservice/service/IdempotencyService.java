@@ -0,0 +1,177 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Идемпотентность операций по заголовку Idempotency-Key
+ *
+ * клиенты под нагрузкой ловят таймаут и ретраят, без ключа каждый ретрай - новое списание и новая блокировка,
+ * то есть двойное списание и двойная нагрузка ровно тогда, когда мы и так на пределе:
+ * - недавние ключи лежат в ограниченном индексе в памяти, повтор отвечается без похода в БД
+ * - источник правды - таблица idempotency_keys с уникальным ключом: переживает рестарт и общая для инстансов
+ * - ключ занимается INSERT ... ON CONFLICT DO NOTHING в той же транзакции, что и операция,
+ *   поэтому два одновременных запроса с одним ключом не выполнят операцию дважды:
+ *   второй дождется коммита первого на уникальном индексе и вернет его результат
+ * - сохраняются только успешные результаты: отказ (нет средств) откатывает и ключ, ретрай выполнится заново
+ */
+@Service
+@Slf4j
+public class IdempotencyService {
+
+    private static final String CLAIM_SQL = """
+            INSERT INTO idempotency_keys (idempotency_key, wallet_id, operation_type, amount, created_at)
+            VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)
+            ON CONFLICT (idempotency_key) DO NOTHING
+            """;
+
+    private static final String COMPLETE_SQL = """
+            UPDATE idempotency_keys SET balance = ?, wallet_version = ?, message = ?
+             WHERE idempotency_key = ?
+            """;
+
+    private static final String FIND_SQL = """
+            SELECT wallet_id, operation_type, amount, balance, wallet_version, message
+              FROM idempotency_keys WHERE idempotency_key = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration retention;
+    private final Map<String, StoredOperation> recent;
+
+    public IdempotencyService(JdbcTemplate jdbcTemplate,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${wallet.idempotency.memory-size:100000}") int memorySize,
+                              @Value("${wallet.idempotency.retention:P1D}") Duration retention) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.retention = retention;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(Isolation.READ_COMMITTED.value());
+        this.transactionTemplate.setTimeout(30);
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, StoredOperation> eldest) {
+                return size() > memorySize;
+            }
+        };
+    }
+
+    /**
+     * Найти результат уже выполненной операции в индексе недавних ключей, без похода в БД
+     * если ключ использовался с другими параметрами - IdempotencyKeyConflictException
+     */
+    public Optional<WalletOperationResponse> findRecent(String key, WalletOperationRequest request) {
+        StoredOperation stored;
+        synchronized (recent) {
+            stored = recent.get(key);
+        }
+        return Optional.ofNullable(stored).map(operation -> replay(key, request, operation));
+    }
+
+    /**
+     * Найти результат уже выполненной операции в БД (ключ мог прийти на другой инстанс или до рестарта)
+     */
+    public Optional<WalletOperationResponse> findStored(String key, WalletOperationRequest request) {
+        return load(key).map(operation -> {
+            remember(key, operation);
+            return replay(key, request, operation);
+        });
+    }
+
+    /**
+     * Выполнить операцию ровно один раз для ключа
+     * занятие ключа и сама операция - одна транзакция, движки записи присоединяются к ней
+     */
+    public WalletOperationResponse executeOnce(String key, WalletOperationRequest request,
+                                               Supplier<WalletOperationResponse> operation) {
+        StoredOperation stored = transactionTemplate.execute(status -> {
+            int claimed = jdbcTemplate.update(CLAIM_SQL, key, request.getWalletId(),
+                    request.getOperationType().name(), request.getAmount().toBigDecimal());
+            if (claimed == 0) {
+                // ключ занял параллельный запрос и уже закоммитил результат
+                return load(key).orElseThrow(() ->
+                        new IllegalStateException("Ключ идемпотентности занят, но не найден: " + key));
+            }
+
+            WalletOperationResponse response = operation.get();
+            jdbcTemplate.update(COMPLETE_SQL, response.getBalance().toBigDecimal(), response.getVersion(), response.getMessage(), key);
+            return new StoredOperation(request.getWalletId(), request.getOperationType(), request.getAmount(),
+                    response.getBalance(), response.getVersion(), response.getMessage());
+        });
+
+        remember(key, stored);
+        return stored.responseFor(key, request);
+    }
+
+    /**
+     * Удаление ключей старше retention, чтобы таблица не росла бесконечно
+     */
+    @Scheduled(fixedDelayString = "${wallet.idempotency.cleanup-interval:PT10M}")
+    public void cleanup() {
+        int deleted = jdbcTemplate.update("DELETE FROM idempotency_keys WHERE created_at < ?",
+                Timestamp.valueOf(LocalDateTime.now().minus(retention)));
+        if (deleted > 0) {
+            log.info("Удалено устаревших ключей идемпотентности: {}", deleted);
+        }
+    }
+
+    private WalletOperationResponse replay(String key, WalletOperationRequest request, StoredOperation stored) {
+        WalletOperationResponse response = stored.responseFor(key, request);
+        log.info("Повтор операции по ключу идемпотентности {} для кошелька {}", key, request.getWalletId());
+        return response;
+    }
+
+    private Optional<StoredOperation> load(String key) {
+        List<StoredOperation> stored = jdbcTemplate.query(FIND_SQL, (rs, rowNum) -> new StoredOperation(
+                rs.getObject("wallet_id", UUID.class),
+                OperationType.valueOf(rs.getString("operation_type")),
+                Money.of(rs.getBigDecimal("amount")),
+                rs.getBigDecimal("balance") == null ? null : Money.of(rs.getBigDecimal("balance")),
+                rs.getObject("wallet_version", Long.class),
+                rs.getString("message")), key);
+        return stored.stream().findFirst();
+    }
+
+    private void remember(String key, StoredOperation stored) {
+        synchronized (recent) {
+            recent.put(key, stored);
+        }
+    }
+
+    private record StoredOperation(UUID walletId, OperationType operationType, Money amount,
+                                   Money balance, Long version, String message) {
+
+        WalletOperationResponse responseFor(String key, WalletOperationRequest request) {
+            boolean same = walletId.equals(request.getWalletId())
+                    && operationType == request.getOperationType()
+                    && amount.equals(request.getAmount());
+            if (!same) {
+                throw new IdempotencyKeyConflictException(
+                        "Ключ идемпотентности уже использован для другой операции: " + key);
+            }
+            return new WalletOperationResponse(walletId, balance, message, version);
+        }
+    }
+}
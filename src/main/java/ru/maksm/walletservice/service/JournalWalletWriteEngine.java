@@ -0,0 +1,416 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.ServiceOverloadedException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.journal.JournalRecord;
+import ru.maksm.walletservice.journal.WriteAheadJournal;
+import ru.maksm.walletservice.metrics.OperationPhases;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.TimeOrderedUuid;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Движок записи через локальный журнал (wallet.engine=journal)
+ *
+ * для самых нагруженных тенантов, где латентность операции - это коммит в postgres:
+ * - баланс проверяется по карте в памяти, она авторитетна (кошелек грузится из wallets при первом обращении)
+ * - операция дописывается в memory-mapped журнал и подтверждается после группового fsync,
+ *   без единого запроса в БД
+ * - отдельный поток сливает журнал в transactions/wallets большими пачками и двигает drained_lsn
+ *   в той же транзакции, поэтому после kill -9 повтор хвоста журнала восстанавливает балансы в точности
+ * - при старте хвост сливается в БД до первого запроса, при остановке - до закрытия журнала
+ * - состояние кошелька, по которому давно не было операций и все уже слито, выгружается из карты
+ *   (wallet.journal.state-idle-timeout): при следующем обращении оно снова грузится из wallets
+ *
+ * ограничения режима:
+ * - кошельками владеет один инстанс: другой инстанс или запись в wallets в обход движка разойдутся с картой,
+ *   поэтому пачки и striped режим в этом режиме выключены
+ * - история (transactions) и wallets отстают от подтвержденных операций на время слива
+ * - если слив не успевает (БД недоступна), после wallet.journal.max-pending записей операции получают 503
+ */
+@Service
+@ConditionalOnProperty(name = "wallet.engine", havingValue = "journal")
+@Slf4j
+public class JournalWalletWriteEngine implements WalletWriteEngine {
+
+    private static final String INSERT_TRANSACTION_SQL = """
+            INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private static final String UPDATE_WALLET_SQL = """
+            UPDATE wallets SET balance = ?, version = ?, updated_at = CURRENT_TIMESTAMP
+             WHERE wallet_id = ?
+            """;
+
+    private static final String UPDATE_DRAINED_SQL = """
+            UPDATE journal_state SET drained_lsn = ?, updated_at = CURRENT_TIMESTAMP
+             WHERE journal_id = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final String journalId;
+    private final Path journalDir;
+    private final DataSize segmentSize;
+    private final int drainBatchSize;
+    private final Duration drainInterval;
+    private final int maxPending;
+    private final long stateIdleNanos;
+
+    private final ConcurrentHashMap<UUID, WalletState> states = new ConcurrentHashMap<>();
+    private WriteAheadJournal journal;
+    private Thread drainer;
+    private volatile boolean running;
+    // до какого lsn записи слиты в БД; пишет только поток слива (и старт/остановка)
+    private volatile long drainedLsn;
+
+    public JournalWalletWriteEngine(JdbcTemplate jdbcTemplate,
+                                    PlatformTransactionManager transactionManager,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${wallet.journal.id:default}") String journalId,
+                                    @Value("${wallet.journal.dir:./journal}") Path journalDir,
+                                    @Value("${wallet.journal.segment-size:64MB}") DataSize segmentSize,
+                                    @Value("${wallet.journal.drain-batch-size:5000}") int drainBatchSize,
+                                    @Value("${wallet.journal.drain-interval:PT0.05S}") Duration drainInterval,
+                                    @Value("${wallet.journal.max-pending:1000000}") int maxPending,
+                                    @Value("${wallet.journal.state-idle-timeout:PT10M}") Duration stateIdleTimeout) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.meterRegistry = meterRegistry;
+        this.journalId = journalId;
+        this.journalDir = journalDir;
+        this.segmentSize = segmentSize;
+        this.drainBatchSize = drainBatchSize;
+        this.drainInterval = drainInterval;
+        this.maxPending = maxPending;
+        this.stateIdleNanos = stateIdleTimeout.toNanos();
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(Isolation.READ_COMMITTED.value());
+        this.transactionTemplate.setTimeout(30);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        jdbcTemplate.update("INSERT INTO journal_state (journal_id) VALUES (?) ON CONFLICT (journal_id) DO NOTHING", journalId);
+        Long drainedLsn = jdbcTemplate.queryForObject(
+                "SELECT drained_lsn FROM journal_state WHERE journal_id = ?", Long.class, journalId);
+        journal = WriteAheadJournal.open(journalDir, (int) segmentSize.toBytes(), drainedLsn);
+        this.drainedLsn = drainedLsn;
+
+        // карта балансов грузится из wallets, поэтому уцелевший хвост должен оказаться в БД до первого запроса
+        int recovered = 0;
+        List<WriteAheadJournal.Entry> entries;
+        while (!(entries = journal.peekDurable(drainBatchSize)).isEmpty()) {
+            drain(entries);
+            recovered += entries.size();
+        }
+        if (recovered > 0) {
+            log.info("Повтор журнала {}: в БД слито {} записей", journalId, recovered);
+        }
+
+        Gauge.builder("wallet.journal.pending", journal, WriteAheadJournal::undrainedCount).register(meterRegistry);
+        Gauge.builder("wallet.journal.states", states, Map::size).register(meterRegistry);
+        FunctionCounter.builder("wallet.journal.fsyncs", journal, WriteAheadJournal::fsyncCount).register(meterRegistry);
+
+        running = true;
+        drainer = new Thread(this::drainLoop, "wallet-journal-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainer);
+        drainer.join();
+
+        // все записанное сливаем до закрытия журнала, чтобы следующий старт не начинался с повтора:
+        // после close сегменты закрыты, а release удаляет их файлы
+        try {
+            while (journal.undrainedCount() > 0) {
+                List<WriteAheadJournal.Entry> entries = journal.peekDurable(drainBatchSize);
+                if (entries.isEmpty()) {
+                    // хвост еще не покрыт fsync, поток сброса журнала работает до close
+                    LockSupport.parkNanos(drainInterval.toNanos());
+                    continue;
+                }
+                drain(entries);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Журнал слит в БД не полностью, остаток повторится при старте: {}", e.getMessage());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Override
+    public WalletOperationResponse apply(WalletOperationRequest request) {
+        return applyBatch(request.getWalletId(), List.of(request)).get(0).getOrThrow();
+    }
+
+    @Override
+    public List<WalletOperationResult> applyBatch(UUID walletId, List<WalletOperationRequest> requests) {
+        if (journal.undrainedCount() >= maxPending) {
+            throw new ServiceOverloadedException("Журнал не успевает сливаться в БД", 1);
+        }
+
+        List<WalletOperationResult> results = new ArrayList<>(requests.size());
+        WalletState state;
+        try {
+            state = lockState(walletId);
+        } catch (WalletNotFoundException e) {
+            requests.forEach(request -> results.add(WalletOperationResult.failure(e)));
+            return results;
+        }
+
+        long lsn;
+        long balance;
+        OperationPhases.lockAcquired();
+        try {
+            state.lastUsedNanos = System.nanoTime();
+            balance = state.balance;
+            long version = state.version;
+            LocalDateTime createdAt = state.nextCreatedAt();
+            List<JournalRecord> records = new ArrayList<>(requests.size());
+            WalletOperationResponse last = null;
+            for (WalletOperationRequest request : requests) {
+                try {
+                    long newBalance = WalletBalances.apply(balance, request);
+                    Money after = Money.ofMinor(newBalance);
+                    version++;
+                    records.add(new JournalRecord(TimeOrderedUuid.next(), walletId, request.getOperationType(),
+                            request.getAmount(), Money.ofMinor(balance), after, version,
+                            createdAt.plus(records.size(), ChronoUnit.MICROS)));
+                    balance = newBalance;
+                    last = new WalletOperationResponse(walletId, after, "Операция выполнена успешно");
+                    results.add(WalletOperationResult.success(last));
+                } catch (InsufficientFundsException e) {
+                    results.add(WalletOperationResult.failure(e));
+                }
+            }
+            if (records.isEmpty()) {
+                return results;
+            }
+
+            // следующая операция кошелька может идти сразу, не дожидаясь fsync: она ляжет в журнал дальше,
+            // и ее подтверждение все равно придет только после нашего
+            lsn = journal.append(records);
+            state.balance = balance;
+            state.version = version;
+            state.lastLsn = lsn;
+            state.lastCreatedAt = records.get(records.size() - 1).createdAt();
+            last.setVersion(version);
+        } finally {
+            state.lock.unlock();
+            OperationPhases.lockReleased();
+        }
+
+        OperationPhases.commitStarted();
+        journal.awaitDurable(lsn);
+        OperationPhases.completed();
+        log.debug("Операции кошелька {} записаны в журнал, новый баланс: {}", walletId, Money.ofMinor(balance));
+        return results;
+    }
+
+    @Override
+    public boolean ownsBalances() {
+        return true;
+    }
+
+    @Override
+    public Optional<WalletBalanceResponse> ownedBalance(UUID walletId) {
+        WalletState state = lockState(walletId);
+        long balance;
+        long version;
+        long lsn;
+        try {
+            balance = state.balance;
+            version = state.version;
+            lsn = state.lastLsn;
+        } finally {
+            state.lock.unlock();
+        }
+        // не показываем баланс, который еще может пропасть при падении
+        journal.awaitDurable(lsn);
+        return Optional.of(new WalletBalanceResponse(walletId, Money.ofMinor(balance), version));
+    }
+
+    /**
+     * Состояние кошелька под его lock; выгруженное, пока ждали lock, берется заново
+     */
+    private WalletState lockState(UUID walletId) {
+        while (true) {
+            WalletState state = state(walletId);
+            state.lock.lock();
+            if (!state.evicted) {
+                return state;
+            }
+            state.lock.unlock();
+        }
+    }
+
+    private WalletState state(UUID walletId) {
+        WalletState state = states.get(walletId);
+        if (state != null) {
+            return state;
+        }
+        // кошелька нет в карте - значит и неслитых записей по нему нет, wallets актуален.
+        // грузим внутри computeIfAbsent: прочитанное из wallets не может лечь в карту поверх состояния,
+        // которое успели создать, изменить и выгрузить, пока шел запрос
+        return states.computeIfAbsent(walletId, id -> {
+            List<WalletState> loaded = jdbcTemplate.query("SELECT balance, version FROM wallets WHERE wallet_id = ?",
+                    (rs, rowNum) -> new WalletState(Money.of(rs.getBigDecimal("balance")).minor(), rs.getLong("version")),
+                    id);
+            if (loaded.isEmpty()) {
+                throw new WalletNotFoundException("Кошелек не найден: " + id);
+            }
+            return loaded.get(0);
+        });
+    }
+
+    /**
+     * Выгрузить из карты состояния кошельков без операций дольше state-idle-timeout, у которых все слито в БД:
+     * иначе карта растет на каждый кошелек, к которому хоть раз обращались
+     */
+    private void evictIdleStates() {
+        long now = System.nanoTime();
+        long drained = drainedLsn;
+        int evicted = 0;
+        for (Map.Entry<UUID, WalletState> entry : states.entrySet()) {
+            WalletState state = entry.getValue();
+            // занятый кошелек не ждем - он не простаивает
+            if (!state.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (state.lastLsn <= drained && now - state.lastUsedNanos >= stateIdleNanos) {
+                    state.evicted = true;
+                    states.remove(entry.getKey(), state);
+                    evicted++;
+                }
+            } finally {
+                state.lock.unlock();
+            }
+        }
+        if (evicted > 0) {
+            log.debug("Из карты журнала выгружено простаивающих кошельков: {}", evicted);
+        }
+    }
+
+    private void drainLoop() {
+        long evictionInterval = Math.max(Duration.ofSeconds(1).toNanos(), stateIdleNanos / 4);
+        long nextEviction = System.nanoTime() + evictionInterval;
+        while (running) {
+            if (System.nanoTime() - nextEviction >= 0) {
+                evictIdleStates();
+                nextEviction = System.nanoTime() + evictionInterval;
+            }
+            List<WriteAheadJournal.Entry> entries = journal.peekDurable(drainBatchSize);
+            if (entries.isEmpty()) {
+                LockSupport.parkNanos(drainInterval.toNanos());
+                continue;
+            }
+            try {
+                drain(entries);
+            } catch (RuntimeException e) {
+                // записи остаются в очереди и на диске, повторим той же пачкой
+                log.error("Слив журнала в БД не удался, повтор через секунду: {}", e.getMessage(), e);
+                LockSupport.parkNanos(Duration.ofSeconds(1).toNanos());
+            }
+        }
+    }
+
+    /**
+     * Одна транзакция: батч-инсерт в ledger, итоговый баланс и версия каждого кошелька, новая позиция слива
+     */
+    private void drain(List<WriteAheadJournal.Entry> entries) {
+        List<Object[]> transactions = new ArrayList<>(entries.size());
+        // кошельки обновляем в одном порядке, чтобы не ловить дедлоки с другими писателями
+        Map<UUID, JournalRecord> latest = new TreeMap<>();
+        for (WriteAheadJournal.Entry entry : entries) {
+            JournalRecord record = entry.record();
+            transactions.add(new Object[]{
+                    record.transactionId(), record.walletId(), record.operationType().name(),
+                    record.amount().toBigDecimal(), record.balanceBefore().toBigDecimal(),
+                    record.balanceAfter().toBigDecimal(), Timestamp.valueOf(record.createdAt())
+            });
+            latest.put(record.walletId(), record);
+        }
+        List<Object[]> wallets = latest.values().stream()
+                .map(record -> new Object[]{record.balanceAfter().toBigDecimal(), record.version(), record.walletId()})
+                .toList();
+        long drainedLsn = entries.get(entries.size() - 1).endLsn();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.batchUpdate(INSERT_TRANSACTION_SQL, transactions);
+            jdbcTemplate.batchUpdate(UPDATE_WALLET_SQL, wallets);
+            jdbcTemplate.update(UPDATE_DRAINED_SQL, drainedLsn, journalId);
+        });
+        journal.release(entries.size());
+        this.drainedLsn = drainedLsn;
+
+        log.debug("Из журнала слито {} записей по {} кошелькам, lsn {}", entries.size(), wallets.size(), drainedLsn);
+    }
+
+    /**
+     * Авторитетное состояние кошелька; поля меняются только под lock
+     */
+    private static final class WalletState {
+
+        final ReentrantLock lock = new ReentrantLock();
+        // в копейках
+        long balance;
+        long version;
+        long lastLsn;
+        LocalDateTime lastCreatedAt;
+        long lastUsedNanos = System.nanoTime();
+        // выгружен из карты: держатель ссылки должен взять состояние заново
+        boolean evicted;
+
+        WalletState(long balance, long version) {
+            this.balance = balance;
+            this.version = version;
+        }
+
+        // created_at в ledger строго растет внутри кошелька, даже если пачки идут в одну микросекунду
+        LocalDateTime nextCreatedAt() {
+            LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+            return lastCreatedAt == null || now.isAfter(lastCreatedAt) ? now : lastCreatedAt.plus(1, ChronoUnit.MICROS);
+        }
+    }
+}
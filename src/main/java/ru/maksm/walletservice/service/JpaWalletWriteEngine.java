@@ -0,0 +1,142 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.metrics.OperationPhases;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.model.Wallet;
+import ru.maksm.walletservice.repository.TransactionRepository;
+import ru.maksm.walletservice.repository.WalletRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Движок записи через JPA (режим по умолчанию)
+ * берет строку кошелька на PESSIMISTIC_WRITE, меняет баланс в сущности и сохраняет через hibernate
+ */
+@Service
+@ConditionalOnProperty(name = "wallet.engine", havingValue = "jpa", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class JpaWalletWriteEngine implements WalletWriteEngine {
+
+    private final WalletRepository walletRepository;
+    private final TransactionRepository transactionRepository;
+
+    /**
+     * Выполнить одну операцию с кошельком
+     * использует pessimistic locking для предотвращения race conditions
+     *
+     * примечание про настройки:
+     * - isolation READ_COMMITTED тут ок потому что мы блокируем запись и читаем внутри транзакции
+     * - timeout 30 сек чтобы очередь под высокой нагрузкой не превращалась в дедлок навсегда
+     */
+    @Override
+    @Transactional(isolation = Isolation.READ_COMMITTED, timeout = 30)
+    public WalletOperationResponse apply(WalletOperationRequest request) {
+        log.debug("Выполнение операции {} для кошелька {} на сумму {}",
+                 request.getOperationType(), request.getWalletId(), request.getAmount());
+        OperationPhases.transactionStarted();
+
+        // получаем кошелек с блокировкой для записи
+        // тут важный момент для конкурентности 1000 rps: блокируем ровно одну строку и максимально коротко
+        Wallet wallet = walletRepository.findByWalletIdWithLock(request.getWalletId())
+                .orElseThrow(() -> new WalletNotFoundException("Кошелек не найден: " + request.getWalletId()));
+        OperationPhases.lockAcquired();
+
+        Money balanceBefore = wallet.getBalance();
+        Money newBalance = WalletBalances.apply(balanceBefore, request);
+
+        // обновляем баланс
+        // сохраняем сразу чтобы отпустить блокировку побыстрее после коммита
+        wallet.setBalance(newBalance);
+        walletRepository.save(wallet);
+
+        // создаем запись о транзакции
+        Transaction transaction = new Transaction(
+                request.getWalletId(),
+                request.getOperationType(),
+                request.getAmount(),
+                balanceBefore,
+                newBalance
+        );
+        transactionRepository.save(transaction);
+
+        log.info("Операция {} выполнена успешно. Кошелек: {}, новый баланс: {}",
+                request.getOperationType(), request.getWalletId(), newBalance);
+
+        // версия поднимется при флеше ровно на единицу, строка под нашей блокировкой
+        return new WalletOperationResponse(
+                request.getWalletId(),
+                newBalance,
+                "Операция выполнена успешно",
+                wallet.getVersion() + 1
+        );
+    }
+
+    /**
+     * Применить пачку операций одного кошелька под одной блокировкой строки
+     * итог по БД: один SELECT FOR UPDATE, один UPDATE баланса и один батч-инсерт в transactions
+     */
+    @Override
+    @Transactional(isolation = Isolation.READ_COMMITTED, timeout = 30)
+    public List<WalletOperationResult> applyBatch(UUID walletId, List<WalletOperationRequest> requests) {
+        log.debug("Выполнение пачки из {} операций для кошелька {}", requests.size(), walletId);
+        OperationPhases.transactionStarted();
+
+        List<WalletOperationResult> results = new ArrayList<>(requests.size());
+        Wallet wallet = walletRepository.findByWalletIdWithLock(walletId).orElse(null);
+        if (wallet == null) {
+            WalletNotFoundException notFound = new WalletNotFoundException("Кошелек не найден: " + walletId);
+            requests.forEach(request -> results.add(WalletOperationResult.failure(notFound)));
+            return results;
+        }
+        OperationPhases.lockAcquired();
+
+        Money balance = wallet.getBalance();
+        List<Transaction> transactions = new ArrayList<>(requests.size());
+        WalletOperationResponse last = null;
+        for (WalletOperationRequest request : requests) {
+            try {
+                Money newBalance = WalletBalances.apply(balance, request);
+                transactions.add(new Transaction(
+                        walletId,
+                        request.getOperationType(),
+                        request.getAmount(),
+                        balance,
+                        newBalance
+                ));
+                balance = newBalance;
+                last = new WalletOperationResponse(walletId, newBalance, "Операция выполнена успешно");
+                results.add(WalletOperationResult.success(last));
+            } catch (InsufficientFundsException e) {
+                // отказ одной операции не откатывает соседей по пачке
+                results.add(WalletOperationResult.failure(e));
+            }
+        }
+
+        if (last != null) {
+            // версию несет только последний ответ: промежуточные балансы пачки в кэш попадать не должны
+            last.setVersion(wallet.getVersion() + 1);
+            wallet.setBalance(balance);
+            walletRepository.save(wallet);
+            transactionRepository.saveAll(transactions);
+        }
+
+        log.info("Пачка для кошелька {} применена: успешно {}, отклонено {}, новый баланс: {}",
+                walletId, transactions.size(), requests.size() - transactions.size(), balance);
+
+        return results;
+    }
+}
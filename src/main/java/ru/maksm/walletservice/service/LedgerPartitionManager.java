@@ -0,0 +1,203 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Обслуживание партиций ledger (таблица transactions разбита по месяцам created_at, см. changeset 007)
+ *
+ * - партиции создаются заранее на wallet.ledger.partitions.months-ahead месяцев вперед, вставка никогда
+ *   не ждет DDL; если не успели - строки падают в transactions_default, об этом пишем в лог,
+ *   а при создании партиции месяца его строки переезжают из default в нее (create_transaction_partition)
+ * - ошибка создания партиций только пишется в лог: проверка идет и на старте, и падать из-за нее
+ *   приложению незачем - вставки до тех пор уходят в default
+ * - retention: партиции старше keep-months отцепляются от таблицы (DETACH), в режиме archive перед этим
+ *   выгружаются в gzip CSV и удаляются - удаление целой партиции не оставляет мертвых строк для vacuum
+ * - ретеншн одной партиции - одна транзакция под advisory lock, параллельный инстанс ее пропустит
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.ledger.partitions.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class LedgerPartitionManager {
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("transactions_p(\\d{6})");
+    private static final DateTimeFormatter PARTITION_MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
+    // ключ advisory lock ретеншна ledger, общий для всех инстансов
+    private static final long RETENTION_LOCK_KEY = 0x4c45444745524cL;
+
+    private static final String LIST_PARTITIONS_SQL = """
+            SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+             WHERE i.inhparent = 'transactions'::regclass
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate archiveJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int monthsAhead;
+    private final boolean retentionEnabled;
+    private final int keepMonths;
+    private final RetentionMode retentionMode;
+    private final Path archiveDir;
+
+    public LedgerPartitionManager(JdbcTemplate jdbcTemplate,
+                                  PlatformTransactionManager transactionManager,
+                                  @Value("${wallet.ledger.partitions.months-ahead:3}") int monthsAhead,
+                                  @Value("${wallet.ledger.retention.enabled:false}") boolean retentionEnabled,
+                                  @Value("${wallet.ledger.retention.keep-months:24}") int keepMonths,
+                                  @Value("${wallet.ledger.retention.mode:archive}") RetentionMode retentionMode,
+                                  @Value("${wallet.ledger.retention.archive-dir:./ledger-archive}") Path archiveDir,
+                                  @Value("${wallet.ledger.retention.archive-fetch-size:5000}") int archiveFetchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.monthsAhead = monthsAhead;
+        this.retentionEnabled = retentionEnabled;
+        this.keepMonths = keepMonths;
+        this.retentionMode = retentionMode;
+        this.archiveDir = archiveDir;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        this.archiveJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.archiveJdbcTemplate.setFetchSize(archiveFetchSize);
+    }
+
+    /**
+     * Что делать с партицией после срока хранения
+     */
+    public enum RetentionMode {
+        // только отцепить: таблица остается в БД для pg_dump или переноса в другой tablespace
+        DETACH,
+        // выгрузить в gzip CSV в archive-dir, отцепить и удалить
+        ARCHIVE
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${wallet.ledger.partitions.check-interval:PT1H}",
+            initialDelayString = "${wallet.ledger.partitions.check-interval:PT1H}")
+    public void ensurePartitions() {
+        try {
+            Integer created = jdbcTemplate.queryForObject("SELECT ensure_transaction_partitions(?)", Integer.class, monthsAhead);
+            if (created != null && created > 0) {
+                log.info("Созданы партиции ledger: {}", created);
+            }
+
+            Boolean defaultUsed = jdbcTemplate.queryForObject(
+                    "SELECT EXISTS (SELECT 1 FROM transactions_default)", Boolean.class);
+            if (Boolean.TRUE.equals(defaultUsed)) {
+                log.warn("В transactions_default есть строки вне созданных партиций, ретеншн их не тронет");
+            }
+        } catch (RuntimeException e) {
+            // повторим на следующей проверке
+            log.error("Не удалось создать партиции ledger: {}", e.getMessage(), e);
+        }
+    }
+
+    @Scheduled(cron = "${wallet.ledger.retention.cron:0 30 3 * * *}")
+    public void applyRetention() {
+        if (!retentionEnabled) {
+            return;
+        }
+
+        YearMonth oldestKept = YearMonth.now().minusMonths(keepMonths);
+        List<String> expired = jdbcTemplate.queryForList(LIST_PARTITIONS_SQL, String.class).stream()
+                .filter(name -> partitionMonth(name) != null && partitionMonth(name).isBefore(oldestKept))
+                .sorted()
+                .toList();
+
+        for (String partition : expired) {
+            try {
+                retire(partition);
+            } catch (RuntimeException e) {
+                // партиция остается на месте, повторим в следующий запуск
+                log.error("Не удалось применить ретеншн к партиции {}: {}", partition, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void retire(String partition) {
+        transactionTemplate.executeWithoutResult(status -> {
+            Boolean locked = jdbcTemplate.queryForObject("SELECT pg_try_advisory_xact_lock(?)", Boolean.class, RETENTION_LOCK_KEY);
+            if (!Boolean.TRUE.equals(locked)) {
+                log.info("Ретеншн ledger выполняет другой инстанс, партиция {} пропущена", partition);
+                return;
+            }
+
+            if (retentionMode == RetentionMode.ARCHIVE) {
+                long rows = archive(partition);
+                jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + partition);
+                jdbcTemplate.execute("DROP TABLE " + partition);
+                log.info("Партиция {} выгружена в архив ({} записей) и удалена", partition, rows);
+            } else {
+                jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + partition);
+                log.info("Партиция {} отцеплена от ledger", partition);
+            }
+        });
+    }
+
+    /**
+     * Выгрузка партиции в gzip CSV серверным курсором: пишем во временный файл и переименовываем в конце,
+     * недописанный архив никогда не выглядит готовым
+     */
+    private long archive(String partition) {
+        Path target = archiveDir.resolve(partition + ".csv.gz");
+        Path temp = archiveDir.resolve(partition + ".csv.gz.tmp");
+        long[] rows = {0};
+        try {
+            Files.createDirectories(archiveDir);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(temp)), StandardCharsets.UTF_8))) {
+                out.write("id,wallet_id,operation_type,amount,balance_before,balance_after,slot,created_at,transfer_id\n");
+                archiveJdbcTemplate.query("SELECT id, wallet_id, operation_type, amount, balance_before, balance_after,"
+                        + " slot, created_at, transfer_id FROM " + partition + " ORDER BY created_at, id", rs -> {
+                    try {
+                        out.write(rs.getString("id") + ',' + rs.getString("wallet_id") + ','
+                                + rs.getString("operation_type") + ',' + rs.getBigDecimal("amount").toPlainString() + ','
+                                + rs.getBigDecimal("balance_before").toPlainString() + ','
+                                + rs.getBigDecimal("balance_after").toPlainString() + ','
+                                + (rs.getObject("slot") == null ? "" : rs.getInt("slot")) + ','
+                                + rs.getTimestamp("created_at").toLocalDateTime() + ','
+                                + (rs.getString("transfer_id") == null ? "" : rs.getString("transfer_id")) + '\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    rows[0]++;
+                });
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать архив партиции " + partition, e);
+        }
+        return rows[0];
+    }
+
+    private static YearMonth partitionMonth(String partition) {
+        Matcher matcher = PARTITION_NAME.matcher(partition);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return YearMonth.parse(matcher.group(1), PARTITION_MONTH);
+    }
+}
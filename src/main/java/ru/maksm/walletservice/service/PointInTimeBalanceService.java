@@ -0,0 +1,161 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.WalletBalanceAtResponse;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Баланс кошелька на момент asOf
+ *
+ * - ближайшая точка баланса не позже asOf (BalanceCheckpointWriter) плюс чистый оборот ledger в (точка, asOf] -
+ *   диапазон по idx_transaction_wallet_history длиной не больше every-operations операций плюс один запуск записи
+ * - точки раньше asOf нет (момент до появления точек) - от ближайшей более поздней точки назад,
+ *   нет и ее (кошелек с тех пор не менялся или точки выключены) - назад от текущего баланса, как в выписке
+ * - считается сумма операций, а не последний balance_after: цепочки balance_after идут по слотам striped кошелька,
+ *   а у операций с одинаковым created_at порядка нет; REBALANCE не входит, переводы входят
+ * - все читается в одной repeatable read транзакции, с реплики - в пределах ее допустимого отставания
+ * - в режиме wallet.engine=journal ledger отстает на время слива журнала: для asOf в последние секунды
+ *   ответ отражает уже слитые операции
+ */
+@Service
+@Slf4j
+public class PointInTimeBalanceService {
+
+    private static final String WALLET_CREATED_SQL = "SELECT created_at FROM wallets WHERE wallet_id = ?";
+
+    private static final String CHECKPOINT_BEFORE_SQL = """
+            SELECT as_of, balance FROM wallet_balance_checkpoints
+             WHERE wallet_id = ? AND as_of <= ?
+             ORDER BY as_of DESC LIMIT 1
+            """;
+
+    private static final String CHECKPOINT_AFTER_SQL = """
+            SELECT as_of, balance FROM wallet_balance_checkpoints
+             WHERE wallet_id = ? AND as_of > ?
+             ORDER BY as_of LIMIT 1
+            """;
+
+    private static final String NET_BETWEEN_SQL = """
+            SELECT COALESCE(SUM(CASE WHEN operation_type IN ('DEPOSIT', 'TRANSFER_IN') THEN amount ELSE -amount END), 0),
+                   COUNT(*)
+              FROM transactions
+             WHERE wallet_id = ? AND created_at > ? AND created_at <= ? AND operation_type <> 'REBALANCE'
+            """;
+
+    private static final String NET_AFTER_SQL = """
+            SELECT COALESCE(SUM(CASE WHEN operation_type IN ('DEPOSIT', 'TRANSFER_IN') THEN amount ELSE -amount END), 0),
+                   COUNT(*)
+              FROM transactions
+             WHERE wallet_id = ? AND created_at > ? AND operation_type <> 'REBALANCE'
+            """;
+
+    private static final RowMapper<Checkpoint> CHECKPOINT_MAPPER = (rs, rowNum) ->
+            new Checkpoint(rs.getTimestamp("as_of").toLocalDateTime(), Money.of(rs.getBigDecimal("balance")).minor());
+
+    private static final RowMapper<Net> NET_MAPPER = (rs, rowNum) ->
+            new Net(Money.of(rs.getBigDecimal(1)).minor(), rs.getLong(2));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate snapshotTransaction;
+    private final ConnectionPermitGate permitGate;
+    private final boolean retentionEnabled;
+    private final int keepMonths;
+
+    private record Checkpoint(LocalDateTime asOf, long balance) {
+    }
+
+    // чистый оборот в копейках и число прочитанных операций
+    private record Net(long amount, long operations) {
+    }
+
+    public PointInTimeBalanceService(JdbcTemplate jdbcTemplate,
+                                     PlatformTransactionManager transactionManager,
+                                     ConnectionPermitGate permitGate,
+                                     @Value("${wallet.ledger.retention.enabled:false}") boolean retentionEnabled,
+                                     @Value("${wallet.ledger.retention.keep-months:24}") int keepMonths) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.permitGate = permitGate;
+        this.retentionEnabled = retentionEnabled;
+        this.keepMonths = keepMonths;
+
+        this.snapshotTransaction = new TransactionTemplate(transactionManager);
+        this.snapshotTransaction.setReadOnly(true);
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    /**
+     * Баланс кошелька на момент
+     *
+     * @param walletId ID кошелька
+     * @param asOf момент: учитываются операции с created_at не позже него
+     * @return баланс и то, от чего он посчитан
+     */
+    public WalletBalanceAtResponse balanceAt(UUID walletId, LocalDateTime asOf) {
+        if (asOf.isAfter(LocalDateTime.now())) {
+            throw new IllegalArgumentException("Момент не может быть в будущем");
+        }
+        if (retentionEnabled) {
+            LocalDateTime horizon = YearMonth.now().minusMonths(keepMonths).atDay(1).atStartOfDay();
+            if (asOf.isBefore(horizon)) {
+                throw new IllegalArgumentException("История раньше " + horizon.toLocalDate() + " ушла в архив");
+            }
+        }
+
+        WalletBalanceAtResponse response = permitGate.call(() -> snapshotTransaction.execute(
+                status -> compute(walletId, asOf)));
+
+        log.debug("Баланс кошелька {} на {}: {}, прочитано операций {}", walletId, asOf,
+                response.getBalance(), response.getScannedOperations());
+        return response;
+    }
+
+    private WalletBalanceAtResponse compute(UUID walletId, LocalDateTime asOf) {
+        List<Timestamp> created = jdbcTemplate.queryForList(WALLET_CREATED_SQL, Timestamp.class, walletId);
+        if (created.isEmpty()) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+        if (created.get(0).toLocalDateTime().isAfter(asOf)) {
+            throw new WalletNotFoundException("Кошелек " + walletId + " создан позже " + asOf);
+        }
+
+        Timestamp at = Timestamp.valueOf(asOf);
+        List<Checkpoint> before = jdbcTemplate.query(CHECKPOINT_BEFORE_SQL, CHECKPOINT_MAPPER, walletId, at);
+        if (!before.isEmpty()) {
+            Checkpoint checkpoint = before.get(0);
+            Net net = jdbcTemplate.queryForObject(NET_BETWEEN_SQL, NET_MAPPER,
+                    walletId, Timestamp.valueOf(checkpoint.asOf()), at);
+            return new WalletBalanceAtResponse(walletId, asOf, Money.ofMinor(Money.plus(checkpoint.balance(), net.amount())),
+                    checkpoint.asOf(), net.operations());
+        }
+
+        List<Checkpoint> after = jdbcTemplate.query(CHECKPOINT_AFTER_SQL, CHECKPOINT_MAPPER, walletId, at);
+        if (!after.isEmpty()) {
+            Checkpoint checkpoint = after.get(0);
+            Net net = jdbcTemplate.queryForObject(NET_BETWEEN_SQL, NET_MAPPER,
+                    walletId, at, Timestamp.valueOf(checkpoint.asOf()));
+            return new WalletBalanceAtResponse(walletId, asOf, Money.ofMinor(Money.minus(checkpoint.balance(), net.amount())),
+                    checkpoint.asOf(), net.operations());
+        }
+
+        long balance = Money.of(jdbcTemplate.queryForObject(StripedWalletService.TOTAL_BALANCE_SQL, BigDecimal.class,
+                walletId)).minor();
+        Net net = jdbcTemplate.queryForObject(NET_AFTER_SQL, NET_MAPPER, walletId, at);
+        return new WalletBalanceAtResponse(walletId, asOf, Money.ofMinor(Money.minus(balance, net.amount())),
+                null, net.operations());
+    }
+}
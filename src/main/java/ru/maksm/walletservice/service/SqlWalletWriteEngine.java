@@ -0,0 +1,166 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.metrics.OperationPhases;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.model.TimeOrderedUuid;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Движок записи одним SQL выражением (wallet.engine=sql)
+ *
+ * вместо SELECT FOR UPDATE + merge через hibernate + отдельного инсерта делаем один условный UPDATE:
+ * - блокировку строки берет сам UPDATE и держит ее только до коммита
+ * - условие balance >= ? не дает уйти в минус, ноль обновленных строк = отказ
+ * - balance_before считается из RETURNING (после - дельта), ledger пишется тем же выражением через CTE
+ * - никаких загрузок сущностей и dirty checking, version и updated_at двигаем руками как это делал hibernate
+ */
+@Service
+@ConditionalOnProperty(name = "wallet.engine", havingValue = "sql")
+@RequiredArgsConstructor
+@Slf4j
+public class SqlWalletWriteEngine implements WalletWriteEngine {
+
+    private static final String APPLY_SQL = """
+            WITH updated AS (
+                UPDATE wallets
+                   SET balance = balance + ?, version = version + 1, updated_at = CURRENT_TIMESTAMP
+                 WHERE wallet_id = ? AND balance >= ?
+             RETURNING wallet_id, balance, version
+            ), ledger AS (
+                INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)
+                SELECT ?, wallet_id, ?, ?, balance - ?, balance, CURRENT_TIMESTAMP FROM updated
+            )
+            SELECT balance, version FROM updated
+            """;
+
+    private static final String LOCK_SQL = "SELECT balance FROM wallets WHERE wallet_id = ? FOR UPDATE";
+
+    private static final String UPDATE_SQL = """
+            UPDATE wallets SET balance = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP
+             WHERE wallet_id = ?
+            RETURNING version
+            """;
+
+    private static final String INSERT_TRANSACTION_SQL = """
+            INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Выполнить операцию одним выражением: UPDATE баланса и инсерт в ledger за один round trip
+     */
+    @Override
+    @Transactional(isolation = Isolation.READ_COMMITTED, timeout = 30)
+    public WalletOperationResponse apply(WalletOperationRequest request) {
+        log.debug("Выполнение операции {} для кошелька {} на сумму {}",
+                request.getOperationType(), request.getWalletId(), request.getAmount());
+        OperationPhases.transactionStarted();
+
+        BigDecimal delta = Money.toBigDecimal(WalletBalances.delta(request));
+        BigDecimal amount = request.getAmount().toBigDecimal();
+        BigDecimal required = request.getOperationType() == OperationType.WITHDRAW ? amount : BigDecimal.ZERO;
+
+        List<WalletOperationResponse> updated = jdbcTemplate.query(APPLY_SQL,
+                (rs, rowNum) -> new WalletOperationResponse(request.getWalletId(), Money.of(rs.getBigDecimal("balance")),
+                        "Операция выполнена успешно", rs.getLong("version")),
+                delta, request.getWalletId(), required,
+                TimeOrderedUuid.next(), request.getOperationType().name(), amount, delta);
+        // блокировка строки берется внутри выражения, отдельно ее ожидание не видно
+        OperationPhases.lockAcquired();
+
+        if (updated.isEmpty()) {
+            // ни одной строки: либо кошелька нет, либо не хватило средств - различаем вторым запросом,
+            // это путь отказа и на горячем пути не встречается
+            Money balance = currentBalance(request.getWalletId());
+            log.warn("Недостаточно средств для списания. Баланс: {}, запрошено: {}", balance, request.getAmount());
+            throw new InsufficientFundsException("Недостаточно средств. Баланс: " + balance);
+        }
+
+        WalletOperationResponse response = updated.get(0);
+        log.info("Операция {} выполнена успешно. Кошелек: {}, новый баланс: {}",
+                request.getOperationType(), request.getWalletId(), response.getBalance());
+
+        return response;
+    }
+
+    /**
+     * Пачка одного кошелька: блокировка строки, расчет в памяти, один UPDATE и батч-инсерт ledger
+     */
+    @Override
+    @Transactional(isolation = Isolation.READ_COMMITTED, timeout = 30)
+    public List<WalletOperationResult> applyBatch(UUID walletId, List<WalletOperationRequest> requests) {
+        log.debug("Выполнение пачки из {} операций для кошелька {}", requests.size(), walletId);
+        OperationPhases.transactionStarted();
+
+        List<WalletOperationResult> results = new ArrayList<>(requests.size());
+        List<BigDecimal> locked = jdbcTemplate.queryForList(LOCK_SQL, BigDecimal.class, walletId);
+        if (locked.isEmpty()) {
+            WalletNotFoundException notFound = new WalletNotFoundException("Кошелек не найден: " + walletId);
+            requests.forEach(request -> results.add(WalletOperationResult.failure(notFound)));
+            return results;
+        }
+        OperationPhases.lockAcquired();
+
+        // created_at раздаем с шагом в микросекунду, чтобы порядок внутри пачки был однозначным
+        LocalDateTime createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        long balance = Money.of(locked.get(0)).minor();
+        List<Object[]> rows = new ArrayList<>(requests.size());
+        WalletOperationResponse last = null;
+        for (WalletOperationRequest request : requests) {
+            try {
+                long newBalance = WalletBalances.apply(balance, request);
+                rows.add(new Object[]{
+                        TimeOrderedUuid.next(), walletId, request.getOperationType().name(), request.getAmount().toBigDecimal(),
+                        Money.toBigDecimal(balance), Money.toBigDecimal(newBalance),
+                        Timestamp.valueOf(createdAt.plus(rows.size(), ChronoUnit.MICROS))
+                });
+                balance = newBalance;
+                last = new WalletOperationResponse(walletId, Money.ofMinor(newBalance), "Операция выполнена успешно");
+                results.add(WalletOperationResult.success(last));
+            } catch (InsufficientFundsException e) {
+                results.add(WalletOperationResult.failure(e));
+            }
+        }
+
+        if (last != null) {
+            // версию несет только последний ответ: промежуточные балансы пачки в кэш попадать не должны
+            last.setVersion(jdbcTemplate.queryForObject(UPDATE_SQL, Long.class, Money.toBigDecimal(balance), walletId));
+            jdbcTemplate.batchUpdate(INSERT_TRANSACTION_SQL, rows);
+        }
+
+        log.info("Пачка для кошелька {} применена: успешно {}, отклонено {}, новый баланс: {}",
+                walletId, rows.size(), requests.size() - rows.size(), Money.ofMinor(balance));
+
+        return results;
+    }
+
+    private Money currentBalance(UUID walletId) {
+        List<BigDecimal> balance = jdbcTemplate.queryForList(
+                "SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class, walletId);
+        if (balance.isEmpty()) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+        return Money.of(balance.get(0));
+    }
+}
@@ -0,0 +1,67 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр striped кошельков в памяти
+ * горячий путь проверяет его без похода в БД, поэтому таблица слотов перечитывается периодически:
+ * так изменения, сделанные другим инстансом, доезжают с задержкой не больше интервала обновления
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StripedWalletRegistry {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private volatile Map<UUID, Integer> slotCounts = new ConcurrentHashMap<>();
+
+    public boolean isStriped(UUID walletId) {
+        return slotCounts.containsKey(walletId);
+    }
+
+    /**
+     * Количество слотов кошелька или 0, если кошелек обычный
+     */
+    public int slotCount(UUID walletId) {
+        return slotCounts.getOrDefault(walletId, 0);
+    }
+
+    public Set<UUID> stripedWallets() {
+        return slotCounts.keySet();
+    }
+
+    void register(UUID walletId, int slots) {
+        slotCounts.put(walletId, slots);
+    }
+
+    void unregister(UUID walletId) {
+        slotCounts.remove(walletId);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${wallet.striping.registry-refresh-interval:PT5S}",
+            initialDelayString = "${wallet.striping.registry-refresh-interval:PT5S}")
+    public void refresh() {
+        Map<UUID, Integer> loaded = new ConcurrentHashMap<>();
+        jdbcTemplate.query("SELECT wallet_id, COUNT(*) AS slots FROM wallet_slots GROUP BY wallet_id",
+                rs -> {
+                    loaded.put(rs.getObject("wallet_id", UUID.class), rs.getInt("slots"));
+                });
+        if (!loaded.keySet().equals(slotCounts.keySet())) {
+            log.info("Реестр striped кошельков обновлен: {} кошельков", loaded.size());
+        }
+        slotCounts = loaded;
+    }
+}
@@ -0,0 +1,392 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.dto.WalletStripingResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.model.TimeOrderedUuid;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Striped кошельки: баланс горячего кошелька разложен по N строкам wallet_slots
+ *
+ * одна строка wallets - глобальная точка сериализации кошелька, быстрее одной блокировки строки не прыгнуть.
+ * поэтому для горячих кошельков:
+ * - пополнение идет в случайный слот, конкуренты почти не пересекаются по блокировкам
+ * - списание пробует слоты по кругу условным UPDATE (balance >= ?), если ни в одном не хватает -
+ *   консолидирующий путь: блокируем все слоты по порядку и списываем из нескольких
+ * - баланс кошелька = wallets.balance + сумма слотов (у striped кошелька основная строка обнулена, но инстанс
+ *   с устаревшим кэшем реестра мог успеть записать в нее; консолидация переносит такой остаток в слот)
+ * - в ответе баланс после самой операции, а не перечитанный позже итог с чужими операциями
+ * - фоновый ребалансер выравнивает слоты, чтобы списания реже уходили в консолидацию
+ *
+ * ledger: у striped кошелька цепочка balance_before/balance_after ведется отдельно по каждому слоту
+ * (transactions.slot), перевод средств в слоты и обратно пишется как REBALANCE в обеих цепочках
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StripedWalletService {
+
+    // баланс кошелька в ответе - новый баланс слота плюс основная строка и остальные слоты из снимка
+    // того же оператора: это итог именно этой операции, без перечитывания после нее
+    private static final String APPLY_SLOT_SQL = """
+            WITH updated AS (
+                UPDATE wallet_slots
+                   SET balance = balance + ?, version = version + 1, updated_at = CURRENT_TIMESTAMP
+                 WHERE wallet_id = ? AND slot = ? AND balance >= ?
+             RETURNING wallet_id, slot, balance
+            ), inserted AS (
+                INSERT INTO transactions (id, wallet_id, slot, operation_type, amount, balance_before, balance_after, created_at)
+                SELECT ?, wallet_id, slot, ?, ?, balance - ?, balance, CURRENT_TIMESTAMP FROM updated
+             RETURNING wallet_id, slot, balance_after
+            )
+            SELECT i.balance_after + w.balance
+                   + COALESCE((SELECT SUM(s.balance) FROM wallet_slots s WHERE s.wallet_id = i.wallet_id AND s.slot <> i.slot), 0)
+              FROM inserted i JOIN wallets w ON w.wallet_id = i.wallet_id
+            """;
+
+    private static final String LOCK_SLOTS_SQL =
+            "SELECT slot, balance FROM wallet_slots WHERE wallet_id = ? ORDER BY slot FOR UPDATE";
+
+    private static final String UPDATE_SLOT_SQL = """
+            UPDATE wallet_slots SET balance = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP
+             WHERE wallet_id = ? AND slot = ?
+            """;
+
+    private static final String INSERT_TRANSACTION_SQL = """
+            INSERT INTO transactions (id, wallet_id, slot, operation_type, amount, balance_before, balance_after, created_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    static final String TOTAL_BALANCE_SQL = """
+            SELECT w.balance + COALESCE((SELECT SUM(s.balance) FROM wallet_slots s WHERE s.wallet_id = w.wallet_id), 0)
+              FROM wallets w WHERE w.wallet_id = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final StripedWalletRegistry registry;
+
+    @Value("${wallet.striping.max-slots:64}")
+    private int maxSlots;
+
+    // слот считается перекошенным, если в нем меньше этой доли от ровной части
+    @Value("${wallet.striping.rebalance-threshold:0.5}")
+    private double rebalanceThreshold;
+
+    /**
+     * Выполнить операцию над striped кошельком
+     * пустой результат - кошелек уже не striped (разжали параллельно), вызывающий идет обычным путем
+     */
+    public Optional<WalletOperationResponse> apply(WalletOperationRequest request) {
+        int slots = registry.slotCount(request.getWalletId());
+        if (slots == 0) {
+            return Optional.empty();
+        }
+        return withTransaction(() -> applyInTransaction(request, slots));
+    }
+
+    private Optional<WalletOperationResponse> applyInTransaction(WalletOperationRequest request, int slots) {
+        UUID walletId = request.getWalletId();
+        BigDecimal delta = Money.toBigDecimal(WalletBalances.delta(request));
+        BigDecimal amount = request.getAmount().toBigDecimal();
+        BigDecimal required = request.getOperationType() == OperationType.WITHDRAW ? amount : BigDecimal.ZERO;
+
+        // пополнению годится любой слот, списанию - любой где хватает средств; стартуем со случайного
+        int start = ThreadLocalRandom.current().nextInt(slots);
+        int attempts = request.getOperationType() == OperationType.DEPOSIT ? 1 : slots;
+        for (int i = 0; i < attempts; i++) {
+            int slot = (start + i) % slots;
+            List<BigDecimal> total = jdbcTemplate.queryForList(APPLY_SLOT_SQL, BigDecimal.class,
+                    delta, walletId, slot, required,
+                    TimeOrderedUuid.next(), request.getOperationType().name(), amount, delta);
+            if (!total.isEmpty()) {
+                log.debug("Операция {} для кошелька {} применена к слоту {}", request.getOperationType(), walletId, slot);
+                return Optional.of(response(walletId, Money.of(total.get(0)).minor()));
+            }
+        }
+
+        return consolidate(request);
+    }
+
+    /**
+     * Консолидирующий путь: блокируем основную строку и все слоты в том же порядке, что промоут и демоут,
+     * и собираем сумму из нескольких
+     */
+    private Optional<WalletOperationResponse> consolidate(WalletOperationRequest request) {
+        UUID walletId = request.getWalletId();
+        long amount = request.getAmount().minor();
+        long main = lockWallet(walletId);
+        List<SlotBalance> slots = lockSlots(walletId);
+        if (slots.isEmpty()) {
+            return Optional.empty();
+        }
+
+        LedgerClock clock = new LedgerClock();
+        if (main > 0) {
+            // инстанс с устаревшим кэшем реестра записал в основную строку уже после промоута:
+            // переносим остаток в нулевой слот, иначе списание его не видит
+            SlotBalance first = slots.get(0);
+            jdbcTemplate.update("UPDATE wallets SET balance = 0, version = version + 1, updated_at = CURRENT_TIMESTAMP "
+                    + "WHERE wallet_id = ?", walletId);
+            insertLedger(walletId, null, OperationType.REBALANCE, main, main, 0, clock);
+            writeSlot(walletId, first, Money.plus(first.balance, main), OperationType.REBALANCE, clock);
+            slots.set(0, new SlotBalance(first.slot, Money.plus(first.balance, main)));
+            log.info("Остаток основной строки {} striped кошелька {} перенесен в слот {}",
+                    Money.ofMinor(main), walletId, first.slot);
+        }
+
+        long total = sum(slots);
+        if (request.getOperationType() == OperationType.DEPOSIT) {
+            // слот пропал, а кошелек еще striped - промоут/демоут идет прямо сейчас, кладем в нулевой
+            SlotBalance first = slots.get(0);
+            writeSlot(walletId, first, Money.plus(first.balance, amount), OperationType.DEPOSIT, clock);
+            return Optional.of(response(walletId, Money.plus(total, amount)));
+        }
+
+        if (total < amount) {
+            String balance = Money.format(total);
+            log.warn("Недостаточно средств для списания. Баланс: {}, запрошено: {}", balance, request.getAmount());
+            throw new InsufficientFundsException("Недостаточно средств. Баланс: " + balance);
+        }
+
+        // списываем с самых полных слотов, чтобы затронуть их поменьше
+        long remaining = amount;
+        List<SlotBalance> byBalance = new ArrayList<>(slots);
+        byBalance.sort(Comparator.comparingLong(SlotBalance::balance).reversed());
+        for (SlotBalance slot : byBalance) {
+            if (remaining == 0) {
+                break;
+            }
+            long taken = Math.min(slot.balance, remaining);
+            if (taken > 0) {
+                writeSlot(walletId, slot, slot.balance - taken, OperationType.WITHDRAW, clock);
+                remaining -= taken;
+            }
+        }
+
+        log.info("Списание {} с кошелька {} выполнено через консолидацию слотов", request.getAmount(), walletId);
+        return Optional.of(response(walletId, total - amount));
+    }
+
+    /**
+     * Перевести кошелек в striped режим: баланс основной строки раскладывается по слотам поровну
+     */
+    public WalletStripingResponse promote(UUID walletId, int slots) {
+        if (slots < 2 || slots > maxSlots) {
+            throw new IllegalArgumentException("Количество слотов должно быть от 2 до " + maxSlots);
+        }
+
+        WalletStripingResponse response = withTransaction(() -> {
+            long balance = lockWallet(walletId);
+            if (!lockSlots(walletId).isEmpty()) {
+                throw new IllegalArgumentException("Кошелек уже в striped режиме: " + walletId);
+            }
+
+            LedgerClock clock = new LedgerClock();
+            jdbcTemplate.update("UPDATE wallets SET balance = 0, version = version + 1, updated_at = CURRENT_TIMESTAMP "
+                    + "WHERE wallet_id = ?", walletId);
+            if (balance > 0) {
+                insertLedger(walletId, null, OperationType.REBALANCE, balance, balance, 0, clock);
+            }
+
+            long[] shares = split(balance, slots);
+            List<Object[]> rows = new ArrayList<>(slots);
+            for (int slot = 0; slot < slots; slot++) {
+                rows.add(new Object[]{walletId, slot, Money.toBigDecimal(shares[slot])});
+            }
+            jdbcTemplate.batchUpdate("INSERT INTO wallet_slots (wallet_id, slot, balance) VALUES (?, ?, ?)", rows);
+            for (int slot = 0; slot < slots; slot++) {
+                if (shares[slot] > 0) {
+                    insertLedger(walletId, slot, OperationType.REBALANCE, shares[slot], 0, shares[slot], clock);
+                }
+            }
+            return new WalletStripingResponse(walletId, slots, Money.ofMinor(balance));
+        });
+
+        registry.register(walletId, slots);
+        log.info("Кошелек {} переведен в striped режим, слотов: {}", walletId, slots);
+        return response;
+    }
+
+    /**
+     * Вернуть кошелек в обычный режим: слоты сливаются обратно в основную строку
+     */
+    public WalletStripingResponse demote(UUID walletId) {
+        WalletStripingResponse response = withTransaction(() -> {
+            long balance = lockWallet(walletId);
+            List<SlotBalance> slots = lockSlots(walletId);
+            if (slots.isEmpty()) {
+                throw new IllegalArgumentException("Кошелек не в striped режиме: " + walletId);
+            }
+
+            LedgerClock clock = new LedgerClock();
+            long total = balance;
+            for (SlotBalance slot : slots) {
+                if (slot.balance > 0) {
+                    insertLedger(walletId, slot.slot, OperationType.REBALANCE, slot.balance, slot.balance, 0, clock);
+                    total = Money.plus(total, slot.balance);
+                }
+            }
+            jdbcTemplate.update("DELETE FROM wallet_slots WHERE wallet_id = ?", walletId);
+            jdbcTemplate.update("UPDATE wallets SET balance = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP "
+                    + "WHERE wallet_id = ?", Money.toBigDecimal(total), walletId);
+            if (total != balance) {
+                insertLedger(walletId, null, OperationType.REBALANCE, total - balance, balance, total, clock);
+            }
+            return new WalletStripingResponse(walletId, 0, Money.ofMinor(total));
+        });
+
+        registry.unregister(walletId);
+        log.info("Кошелек {} возвращен в обычный режим", walletId);
+        return response;
+    }
+
+    /**
+     * Баланс striped кошелька: основная строка плюс сумма слотов
+     */
+    public Money totalBalance(UUID walletId) {
+        List<BigDecimal> balance = jdbcTemplate.queryForList(TOTAL_BALANCE_SQL, BigDecimal.class, walletId);
+        if (balance.isEmpty()) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+        return Money.of(balance.get(0));
+    }
+
+    /**
+     * Фоновый ребалансер: выравнивает слоты, если какой-то заметно просел относительно ровной доли
+     * каждый кошелек - своя короткая транзакция, горячий путь ждет только на время одного ребаланса
+     */
+    @Scheduled(fixedDelayString = "${wallet.striping.rebalance-interval:PT10S}")
+    public void rebalance() {
+        for (UUID walletId : registry.stripedWallets()) {
+            try {
+                withTransaction(() -> rebalanceWallet(walletId));
+            } catch (RuntimeException e) {
+                log.warn("Не удалось выровнять слоты кошелька {}: {}", walletId, e.getMessage());
+            }
+        }
+    }
+
+    private boolean rebalanceWallet(UUID walletId) {
+        List<SlotBalance> slots = lockSlots(walletId);
+        if (slots.size() < 2) {
+            return false;
+        }
+        long total = sum(slots);
+        double threshold = (double) (total / slots.size()) * rebalanceThreshold;
+        boolean skewed = slots.stream().anyMatch(slot -> slot.balance < threshold);
+        if (!skewed || total == 0) {
+            return false;
+        }
+
+        long[] shares = split(total, slots.size());
+        LedgerClock clock = new LedgerClock();
+        for (int i = 0; i < slots.size(); i++) {
+            SlotBalance slot = slots.get(i);
+            if (slot.balance != shares[i]) {
+                writeSlot(walletId, slot, shares[i], OperationType.REBALANCE, clock);
+            }
+        }
+        log.debug("Слоты кошелька {} выровнены, баланс {}", walletId, Money.ofMinor(total));
+        return true;
+    }
+
+    private long lockWallet(UUID walletId) {
+        List<BigDecimal> balance = jdbcTemplate.queryForList(
+                "SELECT balance FROM wallets WHERE wallet_id = ? FOR UPDATE", BigDecimal.class, walletId);
+        if (balance.isEmpty()) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+        return Money.of(balance.get(0)).minor();
+    }
+
+    private List<SlotBalance> lockSlots(UUID walletId) {
+        return jdbcTemplate.query(LOCK_SLOTS_SQL,
+                (rs, rowNum) -> new SlotBalance(rs.getInt("slot"), Money.of(rs.getBigDecimal("balance")).minor()),
+                walletId);
+    }
+
+    private void writeSlot(UUID walletId, SlotBalance slot, long newBalance, OperationType type, LedgerClock clock) {
+        jdbcTemplate.update(UPDATE_SLOT_SQL, Money.toBigDecimal(newBalance), walletId, slot.slot);
+        insertLedger(walletId, slot.slot, type, Math.abs(newBalance - slot.balance), slot.balance, newBalance, clock);
+    }
+
+    private void insertLedger(UUID walletId, Integer slot, OperationType type, long amount,
+                              long balanceBefore, long balanceAfter, LedgerClock clock) {
+        jdbcTemplate.update(INSERT_TRANSACTION_SQL, TimeOrderedUuid.next(), walletId, slot, type.name(),
+                Money.toBigDecimal(amount), Money.toBigDecimal(balanceBefore), Money.toBigDecimal(balanceAfter),
+                clock.next());
+    }
+
+    private static WalletOperationResponse response(UUID walletId, long balance) {
+        return new WalletOperationResponse(walletId, Money.ofMinor(balance), "Операция выполнена успешно");
+    }
+
+    private static long sum(List<SlotBalance> slots) {
+        long total = 0;
+        for (SlotBalance slot : slots) {
+            total = Money.plus(total, slot.balance);
+        }
+        return total;
+    }
+
+    /**
+     * Разложить сумму на n равных частей (в копейках), остаток от деления уходит в нулевой слот
+     */
+    private static long[] split(long total, int parts) {
+        long share = total / parts;
+        long[] shares = new long[parts];
+        Arrays.fill(shares, share);
+        shares[0] += total - share * parts;
+        return shares;
+    }
+
+    private <T> T withTransaction(Supplier<T> action) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setIsolationLevel(Isolation.READ_COMMITTED.value());
+        template.setTimeout(30);
+        return template.execute(status -> action.get());
+    }
+
+    private record SlotBalance(int slot, long balance) {
+    }
+
+    /**
+     * created_at для записей одной транзакции с шагом в микросекунду, чтобы порядок в цепочке был однозначным
+     */
+    private static final class LedgerClock {
+        private LocalDateTime next = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+
+        Timestamp next() {
+            Timestamp value = Timestamp.valueOf(next);
+            next = next.plus(1, ChronoUnit.MICROS);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ru.maksm.walletservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.TransactionHistoryResponse;
+import ru.maksm.walletservice.dto.TransactionItem;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * История операций кошелька
+ *
+ * OFFSET + COUNT на кошельке с миллионами записей читает и выбрасывает все предыдущие страницы,
+ * а выборка периода целиком в List держит весь период в памяти, поэтому:
+ * - страницы keyset: курсор = (created_at, id) последней отданной записи, следующая страница
+ *   начинается с WHERE (created_at, id) < курсор по индексу (wallet_id, created_at, id), цена страницы не растет с глубиной
+ * - id - стабильный тайбрейк для записей с одинаковым created_at (пачки комбайнера и батчей)
+ * - отдельное условие created_at <= ? избыточно для результата, но по сравнению строк (created_at, id)
+ *   postgres не отсекает партиции ledger, а по простому диапазону отсекает
+ * - курсор непрозрачный (base64), клиент его не разбирает и не собирает
+ * - выгрузка в NDJSON идет серверным курсором с fetch size: postgres отдает строки порциями
+ *   только внутри транзакции, поэтому выгрузка живет в read-only транзакции, память не зависит от периода
+ */
+@Service
+@Slf4j
+public class TransactionHistoryService {
+
+    private static final String COLUMNS =
+            "id, wallet_id, operation_type, amount, balance_before, balance_after, slot, transfer_id, created_at";
+
+    private static final String FIRST_PAGE_SQL = "SELECT " + COLUMNS + " FROM transactions"
+            + " WHERE wallet_id = ? ORDER BY created_at DESC, id DESC LIMIT ?";
+
+    // не private: тест проверяет по плану, что страница читается из покрывающего индекса без сортировки
+    static final String NEXT_PAGE_SQL = "SELECT " + COLUMNS + " FROM transactions"
+            + " WHERE wallet_id = ? AND created_at <= ? AND (created_at, id) < (?, ?)"
+            + " ORDER BY created_at DESC, id DESC LIMIT ?";
+
+    private static final RowMapper<TransactionItem> ITEM_MAPPER = (rs, rowNum) -> new TransactionItem(
+            rs.getObject("id", UUID.class),
+            rs.getObject("wallet_id", UUID.class),
+            OperationType.valueOf(rs.getString("operation_type")),
+            Money.of(rs.getBigDecimal("amount")),
+            Money.of(rs.getBigDecimal("balance_before")),
+            Money.of(rs.getBigDecimal("balance_after")),
+            rs.getObject("slot", Integer.class),
+            rs.getObject("transfer_id", UUID.class),
+            rs.getTimestamp("created_at").toLocalDateTime());
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate exportJdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ConnectionPermitGate permitGate;
+    private final ObjectMapper objectMapper;
+    private final int defaultPageSize;
+    private final int maxPageSize;
+
+    public TransactionHistoryService(JdbcTemplate jdbcTemplate,
+                                     PlatformTransactionManager transactionManager,
+                                     ConnectionPermitGate permitGate,
+                                     ObjectMapper objectMapper,
+                                     @Value("${wallet.history.default-page-size:50}") int defaultPageSize,
+                                     @Value("${wallet.history.max-page-size:500}") int maxPageSize,
+                                     @Value("${wallet.history.export-fetch-size:1000}") int exportFetchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.permitGate = permitGate;
+        this.objectMapper = objectMapper;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+
+        // отдельный шаблон с fetch size, чтобы не менять поведение общего JdbcTemplate
+        this.exportJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.exportJdbcTemplate.setFetchSize(exportFetchSize);
+
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Страница истории от новых к старым
+     *
+     * @param walletId ID кошелька
+     * @param cursor курсор из предыдущей страницы, null - первая страница
+     * @param limit размер страницы, null - по умолчанию
+     * @return записи и курсор следующей страницы
+     */
+    public TransactionHistoryResponse page(UUID walletId, String cursor, Integer limit) {
+        int pageSize = limit == null ? defaultPageSize : limit;
+        if (pageSize < 1 || pageSize > maxPageSize) {
+            throw new IllegalArgumentException("Размер страницы должен быть от 1 до " + maxPageSize);
+        }
+
+        // берем на одну запись больше, чтобы узнать, есть ли следующая страница, без COUNT
+        // read-only транзакция: при включенных репликах страница читается с реплики
+        List<TransactionItem> items = permitGate.call(() -> readOnlyTransaction.execute(status -> {
+            if (cursor == null) {
+                List<TransactionItem> first = jdbcTemplate.query(FIRST_PAGE_SQL, ITEM_MAPPER, walletId, pageSize + 1);
+                if (first.isEmpty()) {
+                    requireWallet(walletId);
+                }
+                return first;
+            }
+            Cursor position = Cursor.decode(cursor);
+            Timestamp createdAt = Timestamp.valueOf(position.createdAt());
+            return jdbcTemplate.query(NEXT_PAGE_SQL, ITEM_MAPPER, walletId, createdAt, createdAt, position.id(), pageSize + 1);
+        }));
+
+        String nextCursor = null;
+        if (items.size() > pageSize) {
+            items = new ArrayList<>(items.subList(0, pageSize));
+            TransactionItem last = items.get(pageSize - 1);
+            nextCursor = new Cursor(last.getCreatedAt(), last.getId()).encode();
+        }
+
+        log.debug("Страница истории кошелька {}: {} записей, есть продолжение: {}",
+                walletId, items.size(), nextCursor != null);
+
+        return new TransactionHistoryResponse(walletId, items, nextCursor);
+    }
+
+    /**
+     * Выгрузка истории за период в NDJSON (по записи на строку) от старых к новым
+     * выгрузка не идет через шлюз коннектов: она держит коннект долго и не должна занимать разрешения горячего пути
+     *
+     * @param walletId ID кошелька
+     * @param from начало периода включительно, null - с первой операции
+     * @param to конец периода не включительно, null - до текущего момента
+     * @param out поток ответа
+     */
+    public void export(UUID walletId, LocalDateTime from, LocalDateTime to, OutputStream out) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS)
+                .append(" FROM transactions WHERE wallet_id = ?");
+        List<Object> args = new ArrayList<>(3);
+        args.add(walletId);
+        if (from != null) {
+            sql.append(" AND created_at >= ?");
+            args.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            sql.append(" AND created_at < ?");
+            args.add(Timestamp.valueOf(to));
+        }
+        sql.append(" ORDER BY created_at, id");
+
+        long[] exported = {0};
+        readOnlyTransaction.executeWithoutResult(status -> exportJdbcTemplate.query(sql.toString(), rs -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(ITEM_MAPPER.mapRow(rs, 0)));
+                out.write('\n');
+            } catch (IOException e) {
+                // клиент закрыл соединение - прерываем чтение курсора, транзакция откатится
+                throw new UncheckedIOException(e);
+            }
+            exported[0]++;
+        }, args.toArray()));
+
+        log.info("Выгрузка истории кошелька {} завершена: {} записей", walletId, exported[0]);
+    }
+
+    /**
+     * Кошелек существует, иначе WalletNotFoundException
+     * выгрузка проверяет это до начала ответа: после первых байт статус уже не поменять
+     */
+    public void requireWallet(UUID walletId) {
+        Integer wallets = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM wallets WHERE wallet_id = ?", Integer.class, walletId);
+        if (wallets == null || wallets == 0) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+    }
+
+    /**
+     * Позиция в истории: created_at и id последней отданной записи
+     */
+    record Cursor(LocalDateTime createdAt, UUID id) {
+
+        String encode() {
+            String raw = createdAt + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String cursor) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = raw.indexOf('|');
+                return new Cursor(LocalDateTime.parse(raw.substring(0, separator)),
+                        UUID.fromString(raw.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Некорректный курсор: " + cursor);
+            }
+        }
+    }
+}
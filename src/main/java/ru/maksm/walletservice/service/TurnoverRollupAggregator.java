@@ -0,0 +1,128 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Свертка ledger в дневные обороты кошельков (wallet_turnover_daily, см. changeset 009)
+ *
+ * - сворачиваются только закрытые дни: день D берется, когда с его конца прошло settle-delay,
+ *   к этому моменту все транзакции с created_at внутри дня закоммичены (и журнал успел слиться)
+ * - день - одна транзакция: пересчет дня целиком (INSERT ... GROUP BY wallet_id ON CONFLICT DO UPDATE) и сдвиг
+ *   wallet_turnover_state.rolled_until, так что повтор после сбоя или ручной откат rolled_until ничего не задваивает
+ * - на горячем пути ничего не меняется: ни один движок записи не трогает обороты, striped слоты
+ *   не сходятся на одной строке оборота
+ * - свертку выполняет один инстанс под advisory lock, остальные пропускают запуск
+ * - незакрытый хвост (rolled_until и дальше) выписка дочитывает из ledger сама, см. WalletStatementService
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.turnover.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class TurnoverRollupAggregator {
+
+    // ключ advisory lock свертки оборотов, общий для всех инстансов
+    static final long ROLLUP_LOCK_KEY = 0x5455524e4f564552L;
+
+    static final String STATE_ID = "daily";
+
+    static final String ROLLED_UNTIL_SQL = "SELECT rolled_until FROM wallet_turnover_state WHERE id = ?";
+
+    private static final String INSERT_DAY_SQL = """
+            INSERT INTO wallet_turnover_daily (wallet_id, day, deposits, withdrawals, deposit_count, withdrawal_count)
+            SELECT wallet_id, ?,
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')), 0),
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT')), 0),
+                   COUNT(*) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')),
+                   COUNT(*) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT'))
+              FROM transactions
+             WHERE created_at >= ? AND created_at < ? AND operation_type <> 'REBALANCE'
+             GROUP BY wallet_id
+                ON CONFLICT (wallet_id, day) DO UPDATE
+               SET deposits = EXCLUDED.deposits, withdrawals = EXCLUDED.withdrawals,
+                   deposit_count = EXCLUDED.deposit_count, withdrawal_count = EXCLUDED.withdrawal_count
+            """;
+
+    private static final String UPDATE_STATE_SQL = """
+            UPDATE wallet_turnover_state SET rolled_until = ?, updated_at = CURRENT_TIMESTAMP
+             WHERE id = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration settleDelay;
+    private final int maxDaysPerRun;
+
+    public TurnoverRollupAggregator(JdbcTemplate jdbcTemplate,
+                                    PlatformTransactionManager transactionManager,
+                                    @Value("${wallet.turnover.settle-delay:PT15M}") Duration settleDelay,
+                                    @Value("${wallet.turnover.max-days-per-run:31}") int maxDaysPerRun) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.settleDelay = settleDelay;
+        this.maxDaysPerRun = maxDaysPerRun;
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.turnover.interval:PT5M}",
+            initialDelayString = "${wallet.turnover.initial-delay:PT30S}")
+    public void rollUp() {
+        int rolled = 0;
+        try {
+            while (rolled < maxDaysPerRun && rollNextDay()) {
+                rolled++;
+            }
+        } catch (RuntimeException e) {
+            // rolled_until не сдвинулся, день пересчитается в следующий запуск
+            log.error("Ошибка свертки оборотов: {}", e.getMessage(), e);
+        }
+        if (rolled > 0) {
+            log.info("Свернуты обороты за дней: {}", rolled);
+        }
+    }
+
+    /**
+     * Свернуть следующий закрытый день
+     *
+     * @return false - закрытых несвернутых дней нет или свертку держит другой инстанс
+     */
+    boolean rollNextDay() {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            Boolean locked = jdbcTemplate.queryForObject("SELECT pg_try_advisory_xact_lock(?)", Boolean.class, ROLLUP_LOCK_KEY);
+            if (!Boolean.TRUE.equals(locked)) {
+                log.debug("Свертку оборотов выполняет другой инстанс");
+                return false;
+            }
+
+            List<LocalDate> state = jdbcTemplate.query(ROLLED_UNTIL_SQL, (rs, rowNum) -> rs.getDate(1).toLocalDate(), STATE_ID);
+            if (state.isEmpty()) {
+                log.warn("Нет строки состояния в wallet_turnover_state, свертка оборотов не выполняется");
+                return false;
+            }
+
+            LocalDate day = state.get(0);
+            LocalDateTime dayEnd = day.plusDays(1).atStartOfDay();
+            if (dayEnd.plus(settleDelay).isAfter(LocalDateTime.now())) {
+                return false;
+            }
+
+            int wallets = jdbcTemplate.update(INSERT_DAY_SQL, Date.valueOf(day),
+                    Timestamp.valueOf(day.atStartOfDay()), Timestamp.valueOf(dayEnd));
+            jdbcTemplate.update(UPDATE_STATE_SQL, Date.valueOf(day.plusDays(1)), STATE_ID);
+
+            log.debug("Свернут день {}: кошельков с оборотом {}", day, wallets);
+            return true;
+        }));
+    }
+}
@@ -0,0 +1,138 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+import ru.maksm.walletservice.metrics.OperationPhases;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Очередь допуска операций к кошельку
+ *
+ * без нее всплеск на один кошелек держит до 30 сек (таймаут транзакции) коннекты из общего пула
+ * в ожидании блокировки строки, и остальные кошельки остаются без коннектов.
+ * тут на каждый кошелек своя очередь в памяти:
+ * - глубина ограничена max-depth, лишние запросы сразу получают 429 с Retry-After
+ * - в очереди ждем не дольше max-wait, дальше тоже 429
+ * - коннект из пула берется только когда запрос дошел до головы очереди своего кошелька
+ */
+@Component
+@Slf4j
+public class WalletAdmissionQueue {
+
+    private final boolean enabled;
+    private final int permitsPerWallet;
+    private final int maxDepth;
+    private final long maxWaitNanos;
+    private final long retryAfterSeconds;
+
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Counter rejectedQueueFull;
+    private final Counter rejectedTimeout;
+
+    public WalletAdmissionQueue(MeterRegistry meterRegistry,
+                                @Value("${wallet.admission.enabled:false}") boolean enabled,
+                                @Value("${wallet.admission.permits-per-wallet:1}") int permitsPerWallet,
+                                @Value("${wallet.admission.max-depth:50}") int maxDepth,
+                                @Value("${wallet.admission.max-wait:PT2S}") Duration maxWait) {
+        this.enabled = enabled;
+        this.permitsPerWallet = permitsPerWallet;
+        this.maxDepth = maxDepth;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.retryAfterSeconds = Math.max(1, (maxWait.toMillis() + 999) / 1000);
+
+        this.rejectedQueueFull = Counter.builder("wallet.admission.rejected").tag("reason", "queue_full")
+                .register(meterRegistry);
+        this.rejectedTimeout = Counter.builder("wallet.admission.rejected").tag("reason", "timeout")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Выполнить операцию, дождавшись своей очереди в кошельке
+     * в очереди стоят не больше max-depth запросов, ждут не дольше max-wait
+     */
+    public <T> T admit(UUID walletId, Supplier<T> action) {
+        return enter(walletId, true, action);
+    }
+
+    /**
+     * Только ограничить глубину очереди кошелька, без сериализации
+     * для комбайнера: он сам сериализует операции и ему нужно, чтобы запросы копились параллельно
+     */
+    public <T> T bound(UUID walletId, Supplier<T> action) {
+        return enter(walletId, false, action);
+    }
+
+    private <T> T enter(UUID walletId, boolean serialize, Supplier<T> action) {
+        if (!enabled) {
+            return action.get();
+        }
+
+        // пустить или отказать решается под той же блокировкой записи, что и счет пользователей:
+        // иначе конкурент успевает увеличить счетчик между инкрементом и проверкой
+        boolean[] full = new boolean[1];
+        Entry entry = entries.compute(walletId, (id, current) -> {
+            Entry result = current == null ? new Entry(permitsPerWallet) : current;
+            if (result.users >= maxDepth + permitsPerWallet) {
+                full[0] = true;
+            } else {
+                result.users++;
+            }
+            return result;
+        });
+        if (full[0]) {
+            rejectedQueueFull.increment();
+            log.warn("Очередь кошелька {} переполнена: {} запросов", walletId, maxDepth + permitsPerWallet);
+            throw new WalletQueueFullException("Слишком много операций по кошельку, повторите позже", retryAfterSeconds);
+        }
+        try {
+            if (!serialize) {
+                return action.get();
+            }
+
+            if (!acquire(entry)) {
+                rejectedTimeout.increment();
+                log.warn("Операция по кошельку {} не дождалась очереди за {} мс", walletId, maxWaitNanos / 1_000_000);
+                throw new WalletQueueFullException("Кошелек занят, повторите операцию позже", retryAfterSeconds);
+            }
+            OperationPhases.admitted();
+            try {
+                return action.get();
+            } finally {
+                entry.permits.release();
+            }
+        } finally {
+            // последний вышедший убирает запись, чтобы карта не росла по всем кошелькам
+            entries.computeIfPresent(walletId, (id, current) -> --current.users == 0 ? null : current);
+        }
+    }
+
+    private boolean acquire(Entry entry) {
+        try {
+            return entry.permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        private final Semaphore permits;
+        // читается и меняется только внутри compute/computeIfPresent карты
+        private int users;
+
+        private Entry(int permits) {
+            this.permits = new Semaphore(permits, true);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+/**
+ * Арифметика баланса, общая для движков записи
+ * считаем в копейках на long: под блокировкой кошелька ни одной аллокации, переполнение - ArithmeticException
+ */
+@Slf4j
+final class WalletBalances {
+
+    private WalletBalances() {
+    }
+
+    /**
+     * Посчитать новый баланс после операции (в копейках)
+     * при списании больше остатка бросает InsufficientFundsException
+     */
+    static long apply(long balanceBefore, WalletOperationRequest request) {
+        long amount = request.getAmount().minor();
+
+        // выполняем операцию в зависимости от типа
+        if (request.getOperationType() == OperationType.DEPOSIT) {
+            return Money.plus(balanceBefore, amount);
+        }
+
+        // проверяем достаточность средств
+        if (balanceBefore < amount) {
+            // строки собираем только на пути отказа
+            String balance = Money.format(balanceBefore);
+            log.warn("Недостаточно средств для списания. Баланс: {}, запрошено: {}", balance, request.getAmount());
+            throw new InsufficientFundsException("Недостаточно средств. Баланс: " + balance);
+        }
+        return Money.minus(balanceBefore, amount);
+    }
+
+    static Money apply(Money balanceBefore, WalletOperationRequest request) {
+        return Money.ofMinor(apply(balanceBefore.minor(), request));
+    }
+
+    /**
+     * Знаковое изменение баланса в копейках: плюс для пополнения, минус для списания
+     */
+    static long delta(WalletOperationRequest request) {
+        long amount = request.getAmount().minor();
+        return request.getOperationType() == OperationType.DEPOSIT ? amount : -amount;
+    }
+}
@@ -0,0 +1,179 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.dto.BatchItemResult;
+import ru.maksm.walletservice.dto.BatchItemStatus;
+import ru.maksm.walletservice.dto.BatchOperationRequest;
+import ru.maksm.walletservice.dto.BatchOperationResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.model.Wallet;
+import ru.maksm.walletservice.repository.TransactionRepository;
+import ru.maksm.walletservice.repository.WalletRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Пакетные операции по многим кошелькам одной транзакцией
+ *
+ * для расчетных джоб, которые шлют тысячи пополнений в секунду по разным кошелькам:
+ * - все затронутые кошельки блокируются одним запросом в порядке wallet_id (без дедлоков между пачками)
+ * - операции применяются в порядке входного списка, баланс считается в памяти
+ * - записи ledger уходят JDBC батчами (hibernate.jdbc.batch_size + order_inserts), апдейты кошельков тоже
+ * - без atomic неудачная операция не мешает остальным, с atomic - откатывает всю пачку
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletBatchService {
+
+    private final WalletRepository walletRepository;
+    private final TransactionRepository transactionRepository;
+    private final StripedWalletRegistry stripedWalletRegistry;
+    private final StripedWalletService stripedWalletService;
+    private final PlatformTransactionManager transactionManager;
+    private final WalletBalanceCache balanceCache;
+
+    @Value("${wallet.batch.max-size:1000}")
+    private int maxBatchSize;
+
+    /**
+     * Выполнить пачку операций
+     *
+     * @param request операции и режим атомарности
+     * @return результат по каждой операции в порядке входного списка
+     */
+    public BatchOperationResponse performBatch(BatchOperationRequest request) {
+        List<WalletOperationRequest> operations = request.getOperations();
+        if (operations.size() > maxBatchSize) {
+            throw new IllegalArgumentException("Слишком большая пачка: " + operations.size() + ", максимум " + maxBatchSize);
+        }
+
+        // striped кошельки живут в слотах и под общую блокировку строк wallets не попадают
+        List<Integer> regular = new ArrayList<>(operations.size());
+        List<Integer> striped = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            (stripedWalletRegistry.isStriped(operations.get(i).getWalletId()) ? striped : regular).add(i);
+        }
+        if (request.isAtomic() && !striped.isEmpty()) {
+            throw new IllegalArgumentException("Атомарная пачка не может содержать striped кошельки");
+        }
+
+        BatchItemResult[] results = new BatchItemResult[operations.size()];
+        List<Wallet> locked = new ArrayList<>();
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setIsolationLevel(Isolation.READ_COMMITTED.value());
+        template.setTimeout(30);
+        boolean committed = Boolean.TRUE.equals(template.execute(status -> {
+            boolean allApplied = applyLocked(operations, regular, results, locked);
+            if (request.isAtomic() && !allApplied) {
+                status.setRollbackOnly();
+                markRolledBack(results);
+                return false;
+            }
+            return true;
+        }));
+
+        if (committed) {
+            // после коммита у сущностей уже новая версия, кэш примет ее только если она новее
+            locked.forEach(wallet -> balanceCache.put(wallet.getWalletId(), wallet.getBalance(), wallet.getVersion()));
+        }
+
+        for (int index : striped) {
+            results[index] = applyStriped(index, operations.get(index));
+        }
+
+        int applied = (int) Arrays.stream(results).filter(result -> result.getStatus() == BatchItemStatus.APPLIED).count();
+        log.info("Пачка из {} операций выполнена: применено {}, не применено {}, atomic: {}",
+                operations.size(), applied, operations.size() - applied, request.isAtomic());
+
+        return new BatchOperationResponse(applied, operations.size() - applied, committed, Arrays.asList(results));
+    }
+
+    private boolean applyLocked(List<WalletOperationRequest> operations, List<Integer> indexes,
+                                BatchItemResult[] results, List<Wallet> locked) {
+        if (indexes.isEmpty()) {
+            return true;
+        }
+
+        Set<UUID> walletIds = new HashSet<>();
+        indexes.forEach(index -> walletIds.add(operations.get(index).getWalletId()));
+        Map<UUID, Wallet> wallets = new HashMap<>();
+        locked.addAll(walletRepository.findAllByWalletIdInWithLock(walletIds));
+        locked.forEach(wallet -> wallets.put(wallet.getWalletId(), wallet));
+
+        boolean allApplied = true;
+        List<Transaction> ledger = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            WalletOperationRequest operation = operations.get(index);
+            Wallet wallet = wallets.get(operation.getWalletId());
+            if (wallet == null) {
+                results[index] = new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.WALLET_NOT_FOUND,
+                        null, "Кошелек не найден: " + operation.getWalletId());
+                allApplied = false;
+                continue;
+            }
+
+            Money balanceBefore = wallet.getBalance();
+            try {
+                Money newBalance = WalletBalances.apply(balanceBefore, operation);
+                wallet.setBalance(newBalance);
+                ledger.add(new Transaction(operation.getWalletId(), operation.getOperationType(),
+                        operation.getAmount(), balanceBefore, newBalance));
+                results[index] = new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.APPLIED,
+                        newBalance, "Операция выполнена успешно");
+            } catch (InsufficientFundsException e) {
+                results[index] = new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.INSUFFICIENT_FUNDS,
+                        null, e.getMessage());
+                allApplied = false;
+            }
+        }
+
+        // апдейты кошельков уйдут при флеше через dirty checking, тоже батчем
+        transactionRepository.saveAll(ledger);
+        return allApplied;
+    }
+
+    private BatchItemResult applyStriped(int index, WalletOperationRequest operation) {
+        try {
+            Optional<WalletOperationResponse> response = stripedWalletService.apply(operation);
+            if (response.isEmpty()) {
+                return new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.REJECTED,
+                        null, "Кошелек сменил режим, повторите операцию");
+            }
+            return new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.APPLIED,
+                    response.get().getBalance(), response.get().getMessage());
+        } catch (InsufficientFundsException e) {
+            return new BatchItemResult(index, operation.getWalletId(), BatchItemStatus.INSUFFICIENT_FUNDS,
+                    null, e.getMessage());
+        }
+    }
+
+    private static void markRolledBack(BatchItemResult[] results) {
+        for (BatchItemResult result : results) {
+            if (result != null && result.getStatus() == BatchItemStatus.APPLIED) {
+                result.setStatus(BatchItemStatus.ROLLED_BACK);
+                result.setBalance(null);
+                result.setMessage("Пачка откатана из-за ошибки в другой операции");
+            }
+        }
+    }
+}
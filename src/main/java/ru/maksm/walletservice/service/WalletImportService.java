@@ -0,0 +1,229 @@
+package ru.maksm.walletservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.WalletImportResponse;
+import ru.maksm.walletservice.model.Money;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Массовый импорт кошельков с начальными балансами (онбординг партнера)
+ *
+ * - тело читается потоком по строке, в памяти только текущая пачка (wallet.import.batch-size строк)
+ *   и первые max-errors ошибок, размер файла не ограничен
+ * - пачка - одно выражение и одна транзакция: массивы через unnest, INSERT ... ON CONFLICT DO NOTHING
+ *   и запись начального баланса в ledger (DEPOSIT с balance_before = 0) в том же выражении
+ * - уже существующие кошельки пропускаются, их баланс не меняется, поэтому повтор импорта после обрыва
+ *   безопасен: созданное раньше просто пропустится
+ * - пачки коммитятся по отдельности, каждая берет разрешение у шлюза коннектов и не вытесняет горячий путь
+ * - прогресс - в лог раз в progress-interval и в счетчик wallet.import.lines (тег outcome)
+ *
+ * форматы: CSV "wallet_id,balance" (заголовок и баланс необязательны) или NDJSON {"walletId": ..., "balance": ...}
+ */
+@Service
+@Slf4j
+public class WalletImportService {
+
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    private static final String IMPORT_BATCH_SQL = """
+            WITH created AS (
+                INSERT INTO wallets (wallet_id, balance)
+                SELECT wallet_id, balance FROM unnest(?::uuid[], ?::numeric[]) AS input(wallet_id, balance)
+                    ON CONFLICT (wallet_id) DO NOTHING
+                RETURNING wallet_id, balance
+            ), opening AS (
+                INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)
+                SELECT uuid_generate_v7(), wallet_id, 'DEPOSIT', balance, 0, balance, CURRENT_TIMESTAMP
+                  FROM created WHERE balance > 0
+            )
+            SELECT COUNT(*) FROM created
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ConnectionPermitGate permitGate;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final int maxErrors;
+    private final long progressIntervalNanos;
+
+    private final Counter createdLines;
+    private final Counter skippedLines;
+    private final Counter rejectedLines;
+
+    /**
+     * Строка NDJSON
+     */
+    record ImportLine(UUID walletId, Money balance) {
+    }
+
+    public WalletImportService(JdbcTemplate jdbcTemplate,
+                               PlatformTransactionManager transactionManager,
+                               ConnectionPermitGate permitGate,
+                               ObjectMapper objectMapper,
+                               MeterRegistry meterRegistry,
+                               @Value("${wallet.import.batch-size:5000}") int batchSize,
+                               @Value("${wallet.import.max-errors:100}") int maxErrors,
+                               @Value("${wallet.import.progress-interval:PT5S}") Duration progressInterval) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.permitGate = permitGate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.maxErrors = maxErrors;
+        this.progressIntervalNanos = progressInterval.toNanos();
+
+        this.createdLines = Counter.builder("wallet.import.lines").tag("outcome", "created").register(meterRegistry);
+        this.skippedLines = Counter.builder("wallet.import.lines").tag("outcome", "skipped").register(meterRegistry);
+        this.rejectedLines = Counter.builder("wallet.import.lines").tag("outcome", "rejected").register(meterRegistry);
+    }
+
+    /**
+     * Импортировать кошельки из потока
+     *
+     * @param in тело запроса
+     * @param format формат строк
+     * @return итог импорта
+     */
+    public WalletImportResponse importWallets(InputStream in, Format format) throws IOException {
+        long started = System.nanoTime();
+        long lastProgress = started;
+        long lines = 0;
+        long created = 0;
+        long skipped = 0;
+        long rejected = 0;
+        List<String> errors = new ArrayList<>();
+
+        UUID[] walletIds = new UUID[batchSize];
+        BigDecimal[] balances = new BigDecimal[batchSize];
+        int pending = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines++;
+            // BOM в начале файла из excel
+            line = (lines == 1 && line.startsWith("\uFEFF") ? line.substring(1) : line).strip();
+            if (line.isEmpty() || lines == 1 && format == Format.CSV && line.startsWith("wallet")) {
+                continue;
+            }
+
+            ImportLine parsed;
+            try {
+                parsed = parse(line, format);
+            } catch (RuntimeException | IOException e) {
+                rejected++;
+                rejectedLines.increment();
+                if (errors.size() < maxErrors) {
+                    errors.add("строка " + lines + ": " + e.getMessage());
+                }
+                continue;
+            }
+            walletIds[pending] = parsed.walletId();
+            balances[pending] = parsed.balance().toBigDecimal();
+            pending++;
+
+            if (pending == batchSize) {
+                int inserted = flush(walletIds, balances, pending);
+                created += inserted;
+                skipped += pending - inserted;
+                pending = 0;
+
+                long now = System.nanoTime();
+                if (now - lastProgress >= progressIntervalNanos) {
+                    lastProgress = now;
+                    log.info("Импорт кошельков: строк {}, создано {}, пропущено {}, отклонено {}, {} кошельков/с",
+                            lines, created, skipped, rejected,
+                            String.format("%.0f", perSecond(created + skipped, now - started)));
+                }
+            }
+        }
+        if (pending > 0) {
+            int inserted = flush(walletIds, balances, pending);
+            created += inserted;
+            skipped += pending - inserted;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        double rate = perSecond(created + skipped, elapsed);
+        log.info("Импорт кошельков завершен: строк {}, создано {}, пропущено {}, отклонено {} за {} мс ({} кошельков/с)",
+                lines, created, skipped, rejected, elapsed / 1_000_000, String.format("%.0f", rate));
+        return new WalletImportResponse(lines, created, skipped, rejected, errors, elapsed / 1_000_000, rate);
+    }
+
+    private ImportLine parse(String line, Format format) throws IOException {
+        ImportLine parsed;
+        if (format == Format.NDJSON) {
+            parsed = objectMapper.readValue(line, ImportLine.class);
+        } else {
+            int comma = line.indexOf(',');
+            String walletId = comma < 0 ? line : line.substring(0, comma).strip();
+            String balance = comma < 0 ? "" : line.substring(comma + 1).strip();
+            parsed = new ImportLine(UUID.fromString(walletId), balance.isEmpty() ? null : Money.parse(balance));
+        }
+
+        if (parsed.walletId() == null) {
+            throw new IllegalArgumentException("не указан walletId");
+        }
+        Money balance = parsed.balance() == null ? Money.ZERO : parsed.balance();
+        if (balance.isNegative()) {
+            throw new IllegalArgumentException("отрицательный баланс " + balance);
+        }
+        return new ImportLine(parsed.walletId(), balance);
+    }
+
+    /**
+     * Записать пачку одной транзакцией
+     *
+     * @return сколько кошельков создано (остальные уже существовали)
+     */
+    private int flush(UUID[] walletIds, BigDecimal[] balances, int count) {
+        UUID[] ids = count == walletIds.length ? walletIds : Arrays.copyOf(walletIds, count);
+        BigDecimal[] amounts = count == balances.length ? balances : Arrays.copyOf(balances, count);
+
+        Integer inserted = permitGate.call(() -> transactionTemplate.execute(status ->
+                jdbcTemplate.execute((ConnectionCallback<Integer>) connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(IMPORT_BATCH_SQL)) {
+                        statement.setArray(1, connection.createArrayOf("uuid", ids));
+                        statement.setArray(2, connection.createArrayOf("numeric", amounts));
+                        try (ResultSet rs = statement.executeQuery()) {
+                            rs.next();
+                            return rs.getInt(1);
+                        }
+                    }
+                })));
+
+        int result = inserted == null ? 0 : inserted;
+        createdLines.increment(result);
+        skippedLines.increment(count - result);
+        return result;
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1_000_000_000.0 / nanos;
+    }
+}
@@ -0,0 +1,112 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Комбайнер операций (group commit) для горячих кошельков
+ *
+ * идея: вместо того чтобы 200 потоков томката стояли в очереди на одну блокировку строки в postgres
+ * и каждый держал коннект из пула, запросы к одному кошельку копятся в памяти.
+ * поток, захвативший локальный лок кошелька, становится лидером: забирает всю накопившуюся очередь
+ * и применяет ее одной транзакцией (одна блокировка строки, один UPDATE, один батч-инсерт).
+ * остальные потоки ждут на локальном локе без коннекта к БД и, получив его, видят что их операция уже выполнена.
+ *
+ * корректность по-прежнему держит блокировка строки в БД, комбайнер только уменьшает число транзакций
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class WalletOperationCombiner {
+
+    private final WalletWriteEngine engine;
+    private final ConnectionPermitGate permitGate;
+
+    private final ConcurrentHashMap<UUID, Lane> lanes = new ConcurrentHashMap<>();
+
+    @Value("${wallet.combining.max-batch-size:200}")
+    private int maxBatchSize;
+
+    /**
+     * Поставить операцию в очередь кошелька и дождаться ее результата
+     * бросает те же исключения, что и поштучное выполнение
+     */
+    public WalletOperationResponse submit(WalletOperationRequest request) {
+        UUID walletId = request.getWalletId();
+        PendingOperation operation = new PendingOperation(request);
+        // постановка в очередь и удаление пустой полосы идут под одним локом ячейки карты (compute):
+        // операция не попадет в уже убранную полосу, и у кошелька не будет двух полос с двумя лидерами
+        Lane lane = lanes.compute(walletId, (id, current) -> {
+            Lane result = current == null ? new Lane() : current;
+            result.queue.add(operation);
+            return result;
+        });
+
+        lane.lock.lock();
+        try {
+            // пока держим лок, наша операция либо уже выполнена прошлым лидером, либо лежит в очереди
+            while (operation.result == null) {
+                drain(walletId, lane);
+            }
+        } finally {
+            // пустую полосу убираем чтобы карта не росла по всем когда-либо виденным кошелькам
+            lanes.compute(walletId, (id, current) -> current == lane && lane.queue.isEmpty() ? null : current);
+            lane.lock.unlock();
+        }
+
+        return operation.result.getOrThrow();
+    }
+
+    private void drain(UUID walletId, Lane lane) {
+        List<PendingOperation> batch = new ArrayList<>();
+        PendingOperation next;
+        while (batch.size() < maxBatchSize && (next = lane.queue.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<WalletOperationRequest> requests = new ArrayList<>(batch.size());
+        batch.forEach(operation -> requests.add(operation.request));
+
+        try {
+            List<WalletOperationResult> results = permitGate.call(() -> engine.applyBatch(walletId, requests));
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result = results.get(i);
+            }
+        } catch (RuntimeException e) {
+            // транзакция пачки откатилась целиком, значит ни одна операция не применена
+            log.error("Ошибка при применении пачки из {} операций для кошелька {}: {}",
+                    batch.size(), walletId, e.getMessage(), e);
+            WalletOperationResult failure = WalletOperationResult.failure(e);
+            batch.forEach(operation -> operation.result = failure);
+        }
+    }
+
+    private static final class Lane {
+        private final Queue<PendingOperation> queue = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock lock = new ReentrantLock();
+    }
+
+    private static final class PendingOperation {
+        private final WalletOperationRequest request;
+        private volatile WalletOperationResult result;
+
+        private PendingOperation(WalletOperationRequest request) {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.maksm.walletservice.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+
+/**
+ * Результат одной операции внутри пачки
+ * либо успешный ответ, либо бизнес-ошибка (недостаток средств, нет кошелька)
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class WalletOperationResult {
+
+    private final WalletOperationResponse response;
+    private final RuntimeException error;
+
+    public static WalletOperationResult success(WalletOperationResponse response) {
+        return new WalletOperationResult(response, null);
+    }
+
+    public static WalletOperationResult failure(RuntimeException error) {
+        return new WalletOperationResult(null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Вернуть ответ или пробросить исходное исключение
+     */
+    public WalletOperationResponse getOrThrow() {
+        if (error != null) {
+            throw error;
+        }
+        return response;
+    }
+}
@@ -2,22 +2,32 @@ package ru.maksm.walletservice.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.cluster.WalletOwnership;
+import ru.maksm.walletservice.datasource.ReadConsistency;
+import ru.maksm.walletservice.dto.BatchOperationRequest;
+import ru.maksm.walletservice.dto.BatchOperationResponse;
+import ru.maksm.walletservice.dto.TransferBatchRequest;
+import ru.maksm.walletservice.dto.TransferBatchResponse;
+import ru.maksm.walletservice.dto.TransferRequest;
+import ru.maksm.walletservice.dto.TransferResponse;
 import ru.maksm.walletservice.dto.WalletBalanceResponse;
 import ru.maksm.walletservice.dto.WalletOperationRequest;
 import ru.maksm.walletservice.dto.WalletOperationResponse;
-import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.dto.WalletStripingResponse;
 import ru.maksm.walletservice.exception.WalletNotFoundException;
-import ru.maksm.walletservice.model.OperationType;
-import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.metrics.WalletOperationMetrics;
+import ru.maksm.walletservice.model.TimeOrderedUuid;
 import ru.maksm.walletservice.model.Wallet;
-import ru.maksm.walletservice.repository.TransactionRepository;
 import ru.maksm.walletservice.repository.WalletRepository;
 
-import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * Сервис для работы с кошельками
@@ -30,6 +40,8 @@ import java.util.UUID;
  * - таймаут транзакции чтоб не было вечных подвисаний при очереди, а приложение не уходило в 50х
  * - индекс по wallet_id уменьшает время поиска строки => меньше удержание блокировки => выше пропускная
  * - оптимистическая версия в сущности как доп защита если вдруг будем апдейтить вне явной блоки (на будущее)
+ * - для горячих кошельков можно включить комбайнер (wallet.combining.enabled), тогда конкурентные
+ *   операции одного кошелька применяются пачкой под одной блокировкой
  */
 @Service
 @RequiredArgsConstructor
@@ -37,106 +49,278 @@ import java.util.UUID;
 public class WalletService {
     
     private final WalletRepository walletRepository;
-    private final TransactionRepository transactionRepository;
+    private final WalletWriteEngine writeEngine;
+    private final WalletOperationCombiner operationCombiner;
+    private final StripedWalletRegistry stripedWalletRegistry;
+    private final StripedWalletService stripedWalletService;
+    private final WalletBatchService batchService;
+    private final WalletTransferService transferService;
+    private final WalletBalanceCache balanceCache;
+    private final ConnectionPermitGate permitGate;
+    private final WalletAdmissionQueue admissionQueue;
+    private final IdempotencyService idempotencyService;
+    private final WalletOperationMetrics operationMetrics;
+    private final WalletOwnership walletOwnership;
+    
+    @Value("${wallet.combining.enabled:false}")
+    private boolean combiningEnabled;
     
     /**
      * Выполнить операцию с кошельком
-     * использует pessimistic locking для предотвращения race conditions
-     *
-     * примечание про настройки:
-     * - isolation READ_COMMITTED тут ок потому что мы блокируем запись и читаем внутри транзакции
-     * - timeout 30 сек чтобы очередь под высокой нагрузкой не превращалась в дедлок навсегда
+     * сама транзакция живет в движке записи (WalletWriteEngine), тут только выбор режима:
+     * - по умолчанию каждая операция идет своей короткой транзакцией с блокировкой строки
+     * - в режиме комбайнера конкурентные операции одного кошелька склеиваются в одну транзакцию
+     * - striped кошельки идут мимо основной строки, в свои слоты
      */
-    @Transactional(isolation = Isolation.READ_COMMITTED, timeout = 30)
     public WalletOperationResponse performOperation(WalletOperationRequest request) {
-        log.debug("Выполнение операции {} для кошелька {} на сумму {}", 
-                 request.getOperationType(), request.getWalletId(), request.getAmount());
-        
-        // получаем кошелек с блокировкой для записи
-        // тут важный момент для конкурентности 1000 rps: блокируем ровно одну строку и максимально коротко
-        Wallet wallet = walletRepository.findByWalletIdWithLock(request.getWalletId())
-                .orElseThrow(() -> new WalletNotFoundException("Кошелек не найден: " + request.getWalletId()));
+        return performOperation(request, null);
+    }
+    
+    /**
+     * Выполнить операцию с кошельком с ключом идемпотентности
+     * повтор с тем же ключом возвращает исходный результат без новой блокировки и записи в ledger
+     * 
+     * @param request запрос с данными операции
+     * @param idempotencyKey значение заголовка Idempotency-Key, может быть null
+     * @return результат операции
+     */
+    public WalletOperationResponse performOperation(WalletOperationRequest request, String idempotencyKey) {
+        return performOperation(request, idempotencyKey, null, null);
+    }
+    
+    /**
+     * Выполнить операцию с кошельком, возможно пересланную другим инстансом кластера
+     * 
+     * @param request запрос с данными операции
+     * @param idempotencyKey значение заголовка Idempotency-Key, может быть null
+     * @param forwardedBy адрес переславшего инстанса; пересланная операция выполняется здесь, без второго прыжка,
+     *                    если адрес - участник кластера и подпись сошлась, иначе заголовок игнорируется
+     * @param forwardSignature подпись пересылки общим секретом кластера
+     * @return результат операции
+     */
+    public WalletOperationResponse performOperation(WalletOperationRequest request, String idempotencyKey,
+                                                    String forwardedBy, String forwardSignature) {
+        boolean forwarded = forwardedBy != null && walletOwnership.isTrustedForwarder(forwardedBy, forwardSignature, request);
+        if (forwardedBy != null && !forwarded) {
+            log.warn("Заголовок {} с адресом {} проигнорирован: не участник кластера или подпись не сошлась",
+                    WalletOwnership.FORWARDED_BY_HEADER, forwardedBy);
+        }
+        // длительность целиком и по фазам (очередь, коннект, блокировка, коммит), см WalletOperationMetrics
+        return operationMetrics.record(request, () -> route(request, idempotencyKey, forwarded));
+    }
+    
+    /**
+     * В кластерном режиме операция выполняется на инстансе-владельце кошелька, остальные ее пересылают
+     */
+    private WalletOperationResponse route(WalletOperationRequest request, String idempotencyKey, boolean forwarded) {
+        UUID walletId = request.getWalletId();
+        if (!forwarded && walletOwnership.isRemote(walletId)) {
+            Optional<WalletOperationResponse> response = walletOwnership.forward(request, idempotencyKey);
+            if (response.isPresent()) {
+                balanceCache.put(walletId, response.get().getBalance(), response.get().getVersion());
+                return response.get();
+            }
+            // владелец недоступен и запрос до него не дошел - выполняем сами, порядок держит блокировка строки
+        }
         
-        BigDecimal balanceBefore = wallet.getBalance();
-        BigDecimal newBalance;
+        // комбайнер и striped кошельки сериализуют сами, владельцу остается только учет начатых операций
+        boolean serialize = !combiningEnabled && !stripedWalletRegistry.isStriped(walletId);
+        return walletOwnership.runAsOwner(walletId, serialize, () -> execute(request, idempotencyKey));
+    }
+    
+    private WalletOperationResponse execute(WalletOperationRequest request, String idempotencyKey) {
+        if (idempotencyKey != null) {
+            return performIdempotent(request, idempotencyKey);
+        }
         
-        // выполняем операцию в зависимости от типа
-        if (request.getOperationType() == OperationType.DEPOSIT) {
-            newBalance = balanceBefore.add(request.getAmount());
-            log.debug("Пополнение: {} + {} = {}", balanceBefore, request.getAmount(), newBalance);
-        } else {
-            // проверяем достаточность средств
-            if (balanceBefore.compareTo(request.getAmount()) < 0) {
-                log.warn("Недостаточно средств для списания. Баланс: {}, запрошено: {}", 
-                        balanceBefore, request.getAmount());
-                throw new InsufficientFundsException("Недостаточно средств. Баланс: " + balanceBefore);
+        if (stripedWalletRegistry.isStriped(request.getWalletId())) {
+            Optional<WalletOperationResponse> striped = permitGate.call(() -> stripedWalletService.apply(request));
+            if (striped.isPresent()) {
+                return striped.get();
             }
-            newBalance = balanceBefore.subtract(request.getAmount());
-            log.debug("Списание: {} - {} = {}", balanceBefore, request.getAmount(), newBalance);
+            // кошелек успели вернуть в обычный режим - идем обычным путем
         }
         
-        // обновляем баланс
-        // сохраняем сразу чтобы отпустить блокировку побыстрее после коммита
-        wallet.setBalance(newBalance);
-        wallet = walletRepository.save(wallet);
+        // сначала очередь кошелька, и только в ее голове - разрешение на коннект из пула.
+        // комбайнер сериализует сам и берет разрешение только у лидера, поэтому для него очередь лишь ограничивает глубину
+        WalletOperationResponse response = combiningEnabled
+                ? admissionQueue.bound(request.getWalletId(), () -> operationCombiner.submit(request))
+                : admissionQueue.admit(request.getWalletId(), () -> permitGate.call(() -> writeEngine.apply(request)));
         
-        // создаем запись о транзакции
-        Transaction transaction = new Transaction(
-                request.getWalletId(),
-                request.getOperationType(),
-                request.getAmount(),
-                balanceBefore,
-                newBalance
-        );
-        transactionRepository.save(transaction);
+        // транзакция уже закоммичена, кэш обновится только если версия новее закэшированной
+        balanceCache.put(request.getWalletId(), response.getBalance(), response.getVersion());
+        return response;
+    }
+    
+    private WalletOperationResponse performIdempotent(WalletOperationRequest request, String key) {
+        Optional<WalletOperationResponse> replay = idempotencyService.findRecent(key, request);
+        if (replay.isEmpty()) {
+            replay = permitGate.call(() -> idempotencyService.findStored(key, request));
+        }
+        if (replay.isPresent()) {
+            return replay.get();
+        }
         
-        log.info("Операция {} выполнена успешно. Кошелек: {}, новый баланс: {}", 
-                request.getOperationType(), request.getWalletId(), newBalance);
+        // операция с ключом идет мимо комбайнера: занятие ключа и операция должны быть одной транзакцией
+        boolean striped = stripedWalletRegistry.isStriped(request.getWalletId());
+        Supplier<WalletOperationResponse> execute = () -> permitGate.call(() ->
+                idempotencyService.executeOnce(key, request, () -> striped
+                        ? stripedWalletService.apply(request).orElseGet(() -> writeEngine.apply(request))
+                        : writeEngine.apply(request)));
+        WalletOperationResponse response = striped
+                ? execute.get()
+                : admissionQueue.admit(request.getWalletId(), execute);
         
-        return new WalletOperationResponse(
-                request.getWalletId(),
-                newBalance,
-                "Операция выполнена успешно"
-        );
+        balanceCache.put(request.getWalletId(), response.getBalance(), response.getVersion());
+        return response;
+    }
+    
+    /**
+     * Выполнить пачку операций по многим кошелькам одной транзакцией
+     * 
+     * @param request операции и режим атомарности
+     * @return результат по каждой операции
+     */
+    public BatchOperationResponse performBatch(BatchOperationRequest request) {
+        requireDatabaseOwnsBalances("пакетные операции");
+        return permitGate.call(() -> batchService.performBatch(request));
+    }
+    
+    /**
+     * Перевести деньги между кошельками одной транзакцией
+     * в кластерном режиме выполняется локально: обе строки блокируются в базе, владельцы кошельков не нужны
+     * 
+     * @param request кошельки и сумма
+     * @return балансы обеих сторон после перевода
+     */
+    public TransferResponse transfer(TransferRequest request) {
+        requireDatabaseOwnsBalances("переводы");
+        return permitGate.call(() -> transferService.transfer(request));
+    }
+    
+    /**
+     * Выполнить пачку переводов (неттинг) одной транзакцией
+     * 
+     * @param request переводы и режим атомарности
+     * @return результат по каждому переводу
+     */
+    public TransferBatchResponse transferBatch(TransferBatchRequest request) {
+        requireDatabaseOwnsBalances("переводы");
+        return permitGate.call(() -> transferService.transferBatch(request));
     }
     
     /**
      * Получить баланс кошелька
-     * использует обычное чтение без блокировки
+     * сначала ближний кэш (если его свежесть укладывается в max-staleness),
+     * иначе обычное чтение без блокировки в read-only транзакции репозитория
      * 
      * @param walletId ID кошелька
      * @return баланс кошелька
      */
-    @Transactional(readOnly = true)
     public WalletBalanceResponse getBalance(UUID walletId) {
+        return getBalance(walletId, null);
+    }
+    
+    /**
+     * Получить баланс кошелька не старее версии, которую клиент уже видел (read your writes)
+     * read-only чтение может уйти на реплику (wallet.datasource.replica.enabled): если реплика
+     * еще не догнала minVersion или не видит только что созданный кошелек, перечитываем с primary
+     * 
+     * @param walletId ID кошелька
+     * @param minVersion версия из ответа последней записи клиента, null - любая
+     * @return баланс кошелька
+     */
+    public WalletBalanceResponse getBalance(UUID walletId, Long minVersion) {
         log.debug("Получение баланса для кошелька: {}", walletId);
         
-        Wallet wallet = walletRepository.findByWalletId(walletId)
-                .orElseThrow(() -> new WalletNotFoundException("Кошелек не найден: " + walletId));
+        if (stripedWalletRegistry.isStriped(walletId)) {
+            return new WalletBalanceResponse(walletId, permitGate.call(() -> stripedWalletService.totalBalance(walletId)));
+        }
+        
+        // в режиме журнала wallets отстает, баланс знает только движок
+        Optional<WalletBalanceResponse> owned = writeEngine.ownedBalance(walletId);
+        if (owned.isPresent()) {
+            return owned.get();
+        }
+        
+        Optional<WalletBalanceCache.CachedBalance> cached = balanceCache.get(walletId);
+        if (cached.isPresent() && (minVersion == null || cached.get().version() >= minVersion)) {
+            return new WalletBalanceResponse(walletId, cached.get().balance(), cached.get().version());
+        }
+        
+        ReadConsistency.takeLastTarget();
+        Optional<Wallet> found = permitGate.call(() -> walletRepository.findByWalletId(walletId));
+        boolean fromReplica = ReadConsistency.takeLastTarget() == ReadConsistency.Target.REPLICA;
+        if (fromReplica && (found.isEmpty() || minVersion != null && found.get().getVersion() < minVersion)) {
+            log.debug("Реплика отстает для кошелька {} (нужна версия {}), читаем с primary", walletId, minVersion);
+            found = ReadConsistency.onPrimary(() -> permitGate.call(() -> walletRepository.findByWalletId(walletId)));
+            fromReplica = false;
+        }
+        Wallet wallet = found.orElseThrow(() -> new WalletNotFoundException("Кошелек не найден: " + walletId));
         
         log.debug("Баланс кошелька {}: {}", walletId, wallet.getBalance());
         
-        return new WalletBalanceResponse(walletId, wallet.getBalance());
+        // с реплики в кэш не кладем: отставание реплики сложилось бы с max-staleness кэша
+        if (!fromReplica) {
+            balanceCache.put(walletId, wallet.getBalance(), wallet.getVersion());
+        }
+        return new WalletBalanceResponse(walletId, wallet.getBalance(), wallet.getVersion());
     }
     
     /**
      * Создать новый кошелек
+     * идемпотентно: если кошелек уже есть, возвращается существующий, баланс не трогается
      * 
      * @param walletId ID кошелька
-     * @return созданный кошелек
+     * @return созданный или уже существующий кошелек
      */
     @Transactional
     public Wallet createWallet(UUID walletId) {
-        log.info("Создание нового кошелька: {}", walletId);
+        Wallet wallet = new Wallet(walletId);
+        wallet.setId(TimeOrderedUuid.next());
+        wallet.setVersion(0L);
+        wallet.setCreatedAt(LocalDateTime.now());
+        wallet.setUpdatedAt(wallet.getCreatedAt());
         
-        if (walletRepository.existsByWalletId(walletId)) {
-            throw new IllegalArgumentException("Кошелек уже существует: " + walletId);
+        if (walletRepository.insertIfAbsent(wallet.getId(), walletId, wallet.getCreatedAt()) == 1) {
+            log.info("Кошелек создан успешно: {}", walletId);
+            return wallet;
         }
         
-        Wallet wallet = new Wallet(walletId);
-        wallet = walletRepository.save(wallet);
-        
-        log.info("Кошелек создан успешно: {}", walletId);
-        return wallet;
+        // конфликт ждет коммита конкурента, поэтому следующее чтение его строку уже видит
+        log.info("Кошелек уже существует: {}", walletId);
+        return walletRepository.findByWalletId(walletId)
+                .orElseThrow(() -> new IllegalStateException("Кошелек не найден после конфликта создания: " + walletId));
+    }
+    
+    /**
+     * Перевести горячий кошелек в striped режим
+     * 
+     * @param walletId ID кошелька
+     * @param slots количество слотов баланса
+     * @return состояние кошелька после перевода
+     */
+    public WalletStripingResponse promoteToStriped(UUID walletId, int slots) {
+        requireDatabaseOwnsBalances("striped режим");
+        balanceCache.invalidate(walletId);
+        return stripedWalletService.promote(walletId, slots);
+    }
+    
+    /**
+     * Вернуть кошелек из striped режима в обычный
+     * 
+     * @param walletId ID кошелька
+     * @return состояние кошелька после возврата
+     */
+    public WalletStripingResponse demoteFromStriped(UUID walletId) {
+        WalletStripingResponse response = stripedWalletService.demote(walletId);
+        balanceCache.invalidate(walletId);
+        return response;
+    }
+    
+    private void requireDatabaseOwnsBalances(String feature) {
+        if (writeEngine.ownsBalances()) {
+            throw new IllegalArgumentException("Недоступно, движок записи держит балансы в памяти: " + feature);
+        }
     }
 }
@@ -0,0 +1,236 @@
+package ru.maksm.walletservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.dto.StatementBucket;
+import ru.maksm.walletservice.dto.WalletStatementResponse;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Выписка кошелька: обороты по дням или месяцам и остатки на конец каждого периода
+ *
+ * - свернутые дни (раньше wallet_turnover_state.rolled_until) берутся из wallet_turnover_daily,
+ *   из ledger дочитывается только несвернутый хвост - обычно сегодняшний день,
+ *   так что цена выписки зависит от длины периода, а не от числа операций
+ * - остаток на конец периода считается назад от текущего баланса (wallets + слоты):
+ *   остаток(t) = баланс - чистый оборот после t. так он верен и для кошельков, созданных сразу с балансом
+ *   без записи в ledger, и для периодов, чьи партиции ledger уже ушли в архив
+ * - все читается в одной repeatable read транзакции: баланс, rolled_until, обороты и хвост ledger из одного снимка
+ * - REBALANCE в оборот не входит (перенос между слотами не меняет баланс кошелька),
+ *   переводы входят: входящий - в поступления (deposits), исходящий - в списания (withdrawals)
+ */
+@Service
+@Slf4j
+public class WalletStatementService {
+
+    public enum Granularity {
+        DAY, MONTH
+    }
+
+    private static final String DAILY_SQL = """
+            SELECT day, deposits, withdrawals, deposit_count, withdrawal_count
+              FROM wallet_turnover_daily
+             WHERE wallet_id = ? AND day >= ? AND day < ?
+            """;
+
+    private static final String RAW_DAILY_SQL = """
+            SELECT CAST(created_at AS DATE) AS day,
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')), 0) AS deposits,
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT')), 0) AS withdrawals,
+                   COUNT(*) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')) AS deposit_count,
+                   COUNT(*) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT')) AS withdrawal_count
+              FROM transactions
+             WHERE wallet_id = ? AND created_at >= ? AND created_at < ? AND operation_type <> 'REBALANCE'
+             GROUP BY CAST(created_at AS DATE)
+            """;
+
+    private static final String ROLLED_NET_SQL = """
+            SELECT COALESCE(SUM(deposits - withdrawals), 0) FROM wallet_turnover_daily
+             WHERE wallet_id = ? AND day >= ? AND day < ?
+            """;
+
+    private static final String RAW_NET_SQL = """
+            SELECT COALESCE(SUM(CASE WHEN operation_type IN ('DEPOSIT', 'TRANSFER_IN') THEN amount ELSE -amount END), 0)
+              FROM transactions
+             WHERE wallet_id = ? AND created_at >= ? AND operation_type <> 'REBALANCE'
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate snapshotTransaction;
+    private final ConnectionPermitGate permitGate;
+    private final int maxDays;
+
+    public WalletStatementService(JdbcTemplate jdbcTemplate,
+                                  PlatformTransactionManager transactionManager,
+                                  ConnectionPermitGate permitGate,
+                                  @Value("${wallet.statement.max-days:1100}") int maxDays) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.permitGate = permitGate;
+        this.maxDays = maxDays;
+
+        this.snapshotTransaction = new TransactionTemplate(transactionManager);
+        this.snapshotTransaction.setReadOnly(true);
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    /**
+     * Выписка за период
+     *
+     * @param walletId ID кошелька
+     * @param from первый день периода включительно
+     * @param to последний день периода не включительно
+     * @param granularity day или month
+     * @return периоды с оборотами и остатками, от старых к новым
+     */
+    public WalletStatementResponse statement(UUID walletId, LocalDate from, LocalDate to, String granularity) {
+        Granularity bucketSize = parseGranularity(granularity);
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("Начало периода должно быть раньше конца");
+        }
+        if (ChronoUnit.DAYS.between(from, to) > maxDays) {
+            throw new IllegalArgumentException("Период выписки не длиннее " + maxDays + " дней");
+        }
+
+        WalletStatementResponse response = permitGate.call(() -> snapshotTransaction.execute(
+                status -> build(walletId, from, to, bucketSize)));
+
+        log.debug("Выписка кошелька {} за {} - {}: периодов {}", walletId, from, to, response.getBuckets().size());
+        return response;
+    }
+
+    private WalletStatementResponse build(UUID walletId, LocalDate from, LocalDate to, Granularity bucketSize) {
+        List<BigDecimal> balances = jdbcTemplate.queryForList(StripedWalletService.TOTAL_BALANCE_SQL, BigDecimal.class, walletId);
+        if (balances.isEmpty()) {
+            throw new WalletNotFoundException("Кошелек не найден: " + walletId);
+        }
+        long balance = Money.of(balances.get(0)).minor();
+
+        // без строки состояния считаем, что ничего не свернуто, и читаем все из ledger
+        List<LocalDate> state = jdbcTemplate.query(TurnoverRollupAggregator.ROLLED_UNTIL_SQL,
+                (rs, rowNum) -> rs.getDate(1).toLocalDate(), TurnoverRollupAggregator.STATE_ID);
+        LocalDate rolledUntil = state.isEmpty() ? from : state.get(0);
+
+        NavigableMap<LocalDate, DayTurnover> days = new TreeMap<>();
+        RowCallbackHandler mergeDay = rs -> merge(days, rs);
+        LocalDate rolledEnd = min(to, rolledUntil);
+        if (from.isBefore(rolledEnd)) {
+            jdbcTemplate.query(DAILY_SQL, mergeDay, walletId, Date.valueOf(from), Date.valueOf(rolledEnd));
+        }
+        LocalDate rawStart = max(from, rolledUntil);
+        if (rawStart.isBefore(to)) {
+            jdbcTemplate.query(RAW_DAILY_SQL, mergeDay, walletId,
+                    Timestamp.valueOf(rawStart.atStartOfDay()), Timestamp.valueOf(to.atStartOfDay()));
+        }
+
+        // чистый оборот после конца периода: свернутые дни до rolled_until плюс хвост ledger
+        long netAfter = 0;
+        if (to.isBefore(rolledUntil)) {
+            netAfter += minor(jdbcTemplate.queryForObject(ROLLED_NET_SQL, BigDecimal.class,
+                    walletId, Date.valueOf(to), Date.valueOf(rolledUntil)));
+        }
+        netAfter += minor(jdbcTemplate.queryForObject(RAW_NET_SQL, BigDecimal.class,
+                walletId, Timestamp.valueOf(max(to, rolledUntil).atStartOfDay())));
+
+        List<StatementBucket> buckets = new ArrayList<>();
+        for (LocalDate start = from; start.isBefore(to); start = bucketEnd(start, to, bucketSize)) {
+            LocalDate end = bucketEnd(start, to, bucketSize);
+            DayTurnover total = new DayTurnover();
+            for (DayTurnover day : days.subMap(start, true, end, false).values()) {
+                total.add(day);
+            }
+            buckets.add(new StatementBucket(start, end, Money.ofMinor(total.deposits), Money.ofMinor(total.withdrawals),
+                    total.depositCount, total.withdrawalCount, null));
+        }
+
+        // остатки идем от конца: остаток на конец периода минус его чистый оборот - остаток на его начало
+        long closingBalance = Money.minus(balance, netAfter);
+        long closing = closingBalance;
+        for (int i = buckets.size() - 1; i >= 0; i--) {
+            StatementBucket bucket = buckets.get(i);
+            bucket.setClosingBalance(Money.ofMinor(closing));
+            closing = Money.minus(closing, Money.minus(bucket.getDeposits().minor(), bucket.getWithdrawals().minor()));
+        }
+
+        return new WalletStatementResponse(walletId, from, to, bucketSize.name().toLowerCase(Locale.ROOT),
+                Money.ofMinor(closing), Money.ofMinor(closingBalance), buckets);
+    }
+
+    private static Granularity parseGranularity(String granularity) {
+        if (granularity == null) {
+            return Granularity.DAY;
+        }
+        try {
+            return Granularity.valueOf(granularity.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Неизвестная детализация выписки: " + granularity);
+        }
+    }
+
+    private static LocalDate bucketEnd(LocalDate start, LocalDate to, Granularity bucketSize) {
+        LocalDate next = bucketSize == Granularity.DAY
+                ? start.plusDays(1)
+                : start.withDayOfMonth(1).plusMonths(1);
+        return min(next, to);
+    }
+
+    private static void merge(Map<LocalDate, DayTurnover> days, ResultSet rs) throws SQLException {
+        DayTurnover day = days.computeIfAbsent(rs.getDate("day").toLocalDate(), key -> new DayTurnover());
+        DayTurnover row = new DayTurnover();
+        row.deposits = minor(rs.getBigDecimal("deposits"));
+        row.withdrawals = minor(rs.getBigDecimal("withdrawals"));
+        row.depositCount = rs.getLong("deposit_count");
+        row.withdrawalCount = rs.getLong("withdrawal_count");
+        day.add(row);
+    }
+
+    private static long minor(BigDecimal amount) {
+        return amount == null ? 0 : Money.of(amount).minor();
+    }
+
+    private static LocalDate min(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static LocalDate max(LocalDate a, LocalDate b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    /**
+     * Оборот кошелька за один день в копейках
+     */
+    private static final class DayTurnover {
+        long deposits;
+        long withdrawals;
+        long depositCount;
+        long withdrawalCount;
+
+        void add(DayTurnover other) {
+            deposits = Money.plus(deposits, other.deposits);
+            withdrawals = Money.plus(withdrawals, other.withdrawals);
+            depositCount += other.depositCount;
+            withdrawalCount += other.withdrawalCount;
+        }
+    }
+}
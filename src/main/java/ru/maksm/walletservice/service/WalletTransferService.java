@@ -0,0 +1,209 @@
+package ru.maksm.walletservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.dto.BatchItemStatus;
+import ru.maksm.walletservice.dto.TransferBatchRequest;
+import ru.maksm.walletservice.dto.TransferBatchResponse;
+import ru.maksm.walletservice.dto.TransferItemResult;
+import ru.maksm.walletservice.dto.TransferRequest;
+import ru.maksm.walletservice.dto.TransferResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.model.Wallet;
+import ru.maksm.walletservice.repository.TransactionRepository;
+import ru.maksm.walletservice.repository.WalletRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Переводы между кошельками
+ *
+ * раньше перевод был двумя запросами (WITHDRAW + DEPOSIT) и между ними деньги могли зависнуть:
+ * - обе стороны блокируются одним запросом в порядке wallet_id, поэтому встречные переводы
+ *   A->B и B->A не дедлочатся, а ждут друг друга
+ * - в ledger пишется пара TRANSFER_OUT / TRANSFER_IN с общим transfer_id в той же транзакции
+ * - пачка (ночной неттинг) блокирует всех участников сразу тем же запросом, переводы применяются
+ *   в порядке входного списка, промежуточные балансы считаются в памяти
+ * - без atomic неудачный перевод не мешает остальным, с atomic - откатывает всю пачку
+ * - striped кошельки в переводах не участвуют: их баланс разнесен по слотам вне строки wallets
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletTransferService {
+
+    private final WalletRepository walletRepository;
+    private final TransactionRepository transactionRepository;
+    private final StripedWalletRegistry stripedWalletRegistry;
+    private final PlatformTransactionManager transactionManager;
+    private final WalletBalanceCache balanceCache;
+
+    @Value("${wallet.transfer.max-batch-size:1000}")
+    private int maxBatchSize;
+
+    /**
+     * Выполнить один перевод
+     *
+     * @param request кошельки и сумма
+     * @return балансы и версии обеих сторон после перевода
+     */
+    public TransferResponse transfer(TransferRequest request) {
+        BatchOutcome outcome = execute(List.of(request), true);
+        TransferItemResult result = outcome.results()[0];
+        switch (result.getStatus()) {
+            case APPLIED -> {
+                Wallet from = outcome.locked().get(request.getFromWalletId());
+                Wallet to = outcome.locked().get(request.getToWalletId());
+                return new TransferResponse(result.getTransferId(), request.getFromWalletId(), request.getToWalletId(),
+                        request.getAmount(), result.getFromBalance(), result.getToBalance(),
+                        from.getVersion(), to.getVersion(), result.getMessage());
+            }
+            case WALLET_NOT_FOUND -> throw new WalletNotFoundException(result.getMessage());
+            case INSUFFICIENT_FUNDS -> throw new InsufficientFundsException(result.getMessage());
+            default -> throw new IllegalArgumentException(result.getMessage());
+        }
+    }
+
+    /**
+     * Выполнить пачку переводов
+     *
+     * @param request переводы и режим атомарности
+     * @return результат по каждому переводу в порядке входного списка
+     */
+    public TransferBatchResponse transferBatch(TransferBatchRequest request) {
+        List<TransferRequest> transfers = request.getTransfers();
+        if (transfers.size() > maxBatchSize) {
+            throw new IllegalArgumentException("Слишком большая пачка переводов: " + transfers.size()
+                    + ", максимум " + maxBatchSize);
+        }
+
+        BatchOutcome outcome = execute(transfers, request.isAtomic());
+        TransferItemResult[] results = outcome.results();
+        int applied = (int) Arrays.stream(results).filter(result -> result.getStatus() == BatchItemStatus.APPLIED).count();
+        log.info("Пачка из {} переводов выполнена: применено {}, не применено {}, участников {}, atomic: {}",
+                transfers.size(), applied, transfers.size() - applied, outcome.locked().size(), request.isAtomic());
+
+        return new TransferBatchResponse(applied, transfers.size() - applied, outcome.committed(), Arrays.asList(results));
+    }
+
+    private record BatchOutcome(TransferItemResult[] results, Map<UUID, Wallet> locked, boolean committed) {
+    }
+
+    private BatchOutcome execute(List<TransferRequest> transfers, boolean atomic) {
+        TransferItemResult[] results = new TransferItemResult[transfers.size()];
+        Map<UUID, Wallet> locked = new HashMap<>();
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setIsolationLevel(Isolation.READ_COMMITTED.value());
+        template.setTimeout(30);
+        boolean committed = Boolean.TRUE.equals(template.execute(status -> {
+            boolean allApplied = applyLocked(transfers, results, locked);
+            if (atomic && !allApplied) {
+                status.setRollbackOnly();
+                markRolledBack(results);
+                return false;
+            }
+            return true;
+        }));
+
+        if (committed) {
+            // после коммита у сущностей уже новая версия, кэш примет ее только если она новее
+            locked.values().forEach(wallet -> balanceCache.put(wallet.getWalletId(), wallet.getBalance(), wallet.getVersion()));
+        }
+        return new BatchOutcome(results, locked, committed);
+    }
+
+    private boolean applyLocked(List<TransferRequest> transfers, TransferItemResult[] results, Map<UUID, Wallet> locked) {
+        Set<UUID> walletIds = new HashSet<>();
+        for (TransferRequest transfer : transfers) {
+            walletIds.add(transfer.getFromWalletId());
+            walletIds.add(transfer.getToWalletId());
+        }
+        walletIds.removeIf(stripedWalletRegistry::isStriped);
+        // один запрос с ORDER BY wallet_id - все участники блокируются в каноническом порядке
+        if (!walletIds.isEmpty()) {
+            walletRepository.findAllByWalletIdInWithLock(walletIds).forEach(wallet -> locked.put(wallet.getWalletId(), wallet));
+        }
+
+        boolean allApplied = true;
+        List<Transaction> ledger = new ArrayList<>(transfers.size() * 2);
+        for (int index = 0; index < transfers.size(); index++) {
+            TransferItemResult result = applyOne(index, transfers.get(index), locked, ledger);
+            results[index] = result;
+            allApplied &= result.getStatus() == BatchItemStatus.APPLIED;
+        }
+
+        // апдейты кошельков уйдут при флеше через dirty checking, тоже батчем
+        transactionRepository.saveAll(ledger);
+        return allApplied;
+    }
+
+    private TransferItemResult applyOne(int index, TransferRequest transfer, Map<UUID, Wallet> locked,
+                                        List<Transaction> ledger) {
+        UUID fromId = transfer.getFromWalletId();
+        UUID toId = transfer.getToWalletId();
+        if (fromId.equals(toId)) {
+            return failed(index, transfer, BatchItemStatus.REJECTED, "Кошельки списания и зачисления должны различаться");
+        }
+        if (stripedWalletRegistry.isStriped(fromId) || stripedWalletRegistry.isStriped(toId)) {
+            return failed(index, transfer, BatchItemStatus.REJECTED, "Переводы со striped кошельками не поддерживаются");
+        }
+        Wallet from = locked.get(fromId);
+        Wallet to = locked.get(toId);
+        if (from == null || to == null) {
+            return failed(index, transfer, BatchItemStatus.WALLET_NOT_FOUND,
+                    "Кошелек не найден: " + (from == null ? fromId : toId));
+        }
+
+        Money amount = transfer.getAmount();
+        Money fromBefore = from.getBalance();
+        if (fromBefore.compareTo(amount) < 0) {
+            return failed(index, transfer, BatchItemStatus.INSUFFICIENT_FUNDS,
+                    "Недостаточно средств. Баланс: " + fromBefore);
+        }
+        Money toBefore = to.getBalance();
+        Money fromAfter = fromBefore.minus(amount);
+        Money toAfter = toBefore.plus(amount);
+        from.setBalance(fromAfter);
+        to.setBalance(toAfter);
+
+        UUID transferId = UUID.randomUUID();
+        ledger.add(new Transaction(fromId, OperationType.TRANSFER_OUT, amount, fromBefore, fromAfter, transferId));
+        ledger.add(new Transaction(toId, OperationType.TRANSFER_IN, amount, toBefore, toAfter, transferId));
+        return new TransferItemResult(index, transferId, fromId, toId, BatchItemStatus.APPLIED, fromAfter, toAfter,
+                "Перевод выполнен успешно");
+    }
+
+    private static TransferItemResult failed(int index, TransferRequest transfer, BatchItemStatus status, String message) {
+        return new TransferItemResult(index, null, transfer.getFromWalletId(), transfer.getToWalletId(), status,
+                null, null, message);
+    }
+
+    private static void markRolledBack(TransferItemResult[] results) {
+        for (TransferItemResult result : results) {
+            if (result != null && result.getStatus() == BatchItemStatus.APPLIED) {
+                result.setStatus(BatchItemStatus.ROLLED_BACK);
+                result.setTransferId(null);
+                result.setFromBalance(null);
+                result.setToBalance(null);
+                result.setMessage("Пачка откатана из-за ошибки в другом переводе");
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.maksm.walletservice.service;
+
+import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Движок записи операций в кошелек
+ * выбирается настройкой wallet.engine, чтобы разные стратегии можно было гонять друг против друга
+ *
+ * контракт одинаковый для всех реализаций:
+ * - баланс не уходит в минус, списание без средств -> InsufficientFundsException
+ * - на каждую примененную операцию пишется ровно одна запись в transactions с balance_before/balance_after
+ */
+public interface WalletWriteEngine {
+
+    /**
+     * Применить одну операцию
+     */
+    WalletOperationResponse apply(WalletOperationRequest request);
+
+    /**
+     * Применить пачку операций одного кошелька одной транзакцией
+     * операции идут строго в порядке поступления, каждая получает свой результат:
+     * списание без средств отклоняется, но остальные операции пачки проходят
+     */
+    List<WalletOperationResult> applyBatch(UUID walletId, List<WalletOperationRequest> requests);
+
+    /**
+     * Движок держит авторитетные балансы у себя, а wallets догоняет асинхронно
+     * тогда баланс читается только через движок, а писать в wallets в обход него нельзя (пачки, striped режим)
+     */
+    default boolean ownsBalances() {
+        return false;
+    }
+
+    /**
+     * Баланс из движка, если движок им владеет; пусто - читать из БД как обычно
+     */
+    default Optional<WalletBalanceResponse> ownedBalance(UUID walletId) {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,47 @@
+package ru.maksm.walletservice.startup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.validation.Validator;
+import liquibase.integration.spring.SpringLiquibase;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.servlet.HandlerAdapter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+/**
+ * Ленивая инициализация для быстрого старта (профиль fast-start, spring.main.lazy-initialization=true)
+ *
+ * лениво создается все, что не нужно первому запросу: springdoc, эндпоинты actuator, клиенты config server и т.п.
+ * Горячий путь остается жадным, чтобы первый запрос не платил за его создание:
+ * - все бины сервиса (пакет ru.maksm.walletservice) и то, от чего они зависят
+ * - пул, EntityManagerFactory, транзакции, liquibase (сверка схемы должна уронить старт, а не первый запрос)
+ * - Jackson, валидатор и маппинги MVC
+ * бины с @Scheduled Spring Boot сам оставляет жадными
+ */
+@Configuration(proxyBeanMethods = false)
+public class FastStartConfiguration {
+
+    private static final String APPLICATION_PACKAGE = "ru.maksm.walletservice.";
+
+    private static final List<Class<?>> HOT_PATH_TYPES = List.of(
+            DataSource.class,
+            EntityManagerFactory.class,
+            PlatformTransactionManager.class,
+            SpringLiquibase.class,
+            ObjectMapper.class,
+            Validator.class,
+            HandlerMapping.class,
+            HandlerAdapter.class);
+
+    @Bean
+    static LazyInitializationExcludeFilter hotPathEagerInitialization() {
+        return (beanName, beanDefinition, beanType) -> beanType.getName().startsWith(APPLICATION_PACKAGE)
+                || HOT_PATH_TYPES.stream().anyMatch(type -> type.isAssignableFrom(beanType));
+    }
+}
@@ -0,0 +1,137 @@
+package ru.maksm.walletservice.startup;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.command.core.UnexpectedChangesetsCommandStep;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.integration.spring.SpringLiquibase;
+import liquibase.integration.spring.SpringResourceAccessor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Дешевая проверка схемы вместо liquibase update на каждом старте
+ *
+ * liquibase на старте разбирает весь changelog, берет lock и сверяет каждый changeset с databasechangelog -
+ * при автоскейлинге это секунды на под. Поэтому перед запуском liquibase:
+ * - считаем отпечаток changelog из jar (SchemaFingerprint) и сравниваем с записанным в schema_fingerprint
+ * - совпал и wallet.schema.skip-if-current=true - liquibase не запускается
+ * - не совпал: on-change=migrate - обычный liquibase update и запись нового отпечатка,
+ *   on-change=fail - старт падает, миграции применяет отдельная задача (wallet.schema.migrate-and-exit=true)
+ *
+ * отпечаток пишется только после успешного update, поэтому упавшая миграция повторится на следующем старте
+ *
+ * при раскатке старые и новые поды стартуют вперемешку, а отпечатки не упорядочены - по ним не понять, чей новее.
+ * поэтому при несовпадении changelog разбирается и сверяется с databasechangelog: в БД есть changeset'ы, которых
+ * нет в changelog приложения - схему уже накатила более новая версия, старый под стартует без liquibase
+ * (иначе откатил бы runOnChange функции) и отпечаток не пишет. Та же проверка повторяется перед записью отпечатка,
+ * на случай если новая версия домигрировала, пока шел наш update
+ */
+@Component
+@Slf4j
+public class LiquibaseSchemaGate implements BeanPostProcessor {
+
+    private final boolean liquibaseEnabled;
+    private final boolean skipIfCurrent;
+    private final boolean migrateOnChange;
+    private final ResourceLoader resourceLoader;
+    private final ResourcePatternResolver resolver;
+    private final Map<String, String> pendingFingerprints = new ConcurrentHashMap<>();
+
+    public LiquibaseSchemaGate(@Value("${spring.liquibase.enabled:true}") boolean liquibaseEnabled,
+                               @Value("${wallet.schema.skip-if-current:true}") boolean skipIfCurrent,
+                               @Value("${wallet.schema.on-change:migrate}") String onChange,
+                               @Value("${wallet.schema.migrate-and-exit:false}") boolean migrateAndExit,
+                               ResourceLoader resourceLoader) {
+        if (!"migrate".equals(onChange) && !"fail".equals(onChange)) {
+            throw new IllegalArgumentException("wallet.schema.on-change: migrate или fail, получено " + onChange);
+        }
+        this.liquibaseEnabled = liquibaseEnabled;
+        this.skipIfCurrent = skipIfCurrent;
+        // задача миграции для того и запускается, чтобы мигрировать
+        this.migrateOnChange = "migrate".equals(onChange) || migrateAndExit;
+        this.resourceLoader = resourceLoader;
+        this.resolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (!liquibaseEnabled || !(bean instanceof SpringLiquibase liquibase)) {
+            return bean;
+        }
+
+        long start = System.nanoTime();
+        String changeLog = liquibase.getChangeLog();
+        String expected = SchemaFingerprint.compute(resolver, changeLog, liquibase.getContexts(), liquibase.getLabelFilter());
+        // JdbcTemplate из контекста сам ждет liquibase, поэтому свой поверх его DataSource
+        String recorded = SchemaFingerprint.recorded(new JdbcTemplate(liquibase.getDataSource()), changeLog);
+        boolean current = expected.equals(recorded);
+
+        if (current && skipIfCurrent) {
+            liquibase.setShouldRun(false);
+            log.info("Схема БД актуальна (отпечаток {}), liquibase пропущен, проверка заняла {} мс",
+                    expected.substring(0, 12), (System.nanoTime() - start) / 1_000_000);
+            return bean;
+        }
+        if (!current && recorded != null && newerSchemaApplied(liquibase)) {
+            liquibase.setShouldRun(false);
+            log.warn("Схема БД новее changelog приложения (в БД есть неизвестные ему changeset'ы), "
+                    + "liquibase пропущен, отпечаток {} не перезаписывается", recorded.substring(0, Math.min(12, recorded.length())));
+            return bean;
+        }
+        if (!current && !migrateOnChange) {
+            throw new IllegalStateException("Схема БД не соответствует changelog (в БД " + recorded + ", в приложении "
+                    + expected + "): миграции применяет отдельная задача с wallet.schema.migrate-and-exit=true");
+        }
+        log.info("Схема БД {}, запускается liquibase update", recorded == null ? "без отпечатка" : "изменилась");
+        pendingFingerprints.put(beanName, expected);
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        String fingerprint = pendingFingerprints.remove(beanName);
+        if (fingerprint != null && bean instanceof SpringLiquibase liquibase) {
+            if (newerSchemaApplied(liquibase)) {
+                log.warn("Пока шли миграции, схему обновила более новая версия, отпечаток {} не записан",
+                        fingerprint.substring(0, 12));
+                return bean;
+            }
+            SchemaFingerprint.record(new JdbcTemplate(liquibase.getDataSource()), liquibase.getChangeLog(), fingerprint);
+            log.info("Миграции применены, записан отпечаток схемы {}", fingerprint.substring(0, 12));
+        }
+        return bean;
+    }
+
+    /**
+     * В databasechangelog есть changeset'ы, которых нет в changelog приложения
+     */
+    private boolean newerSchemaApplied(SpringLiquibase liquibase) {
+        try (Connection connection = liquibase.getDataSource().getConnection()) {
+            Database database = DatabaseFactory.getInstance()
+                    .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            DatabaseChangeLog changeLog = new Liquibase(liquibase.getChangeLog(),
+                    new SpringResourceAccessor(resourceLoader), database).getDatabaseChangeLog();
+            return !UnexpectedChangesetsCommandStep.listUnexpectedChangeSets(database, changeLog,
+                    new Contexts(liquibase.getContexts()), new LabelExpression(liquibase.getLabelFilter())).isEmpty();
+        } catch (SQLException | LiquibaseException e) {
+            throw new IllegalStateException("Не удалось сверить changelog с databasechangelog: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.maksm.walletservice.startup;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Отпечаток changelog: sha-256 по всем файлам каталога master changelog (имя + содержимое)
+ * плюс contexts/labels, с которыми liquibase применяет изменения
+ *
+ * считается за миллисекунды и без разбора XML, поэтому при старте сравнивается вместо liquibase update;
+ * любая правка, новый файл или другой context дают другой отпечаток и полноценный прогон liquibase
+ */
+final class SchemaFingerprint {
+
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    private SchemaFingerprint() {
+    }
+
+    static String compute(ResourcePatternResolver resolver, String changeLog, String contexts, String labels) {
+        String path = changeLog.startsWith(CLASSPATH_PREFIX) ? changeLog.substring(CLASSPATH_PREFIX.length()) : changeLog;
+        String directory = path.contains("/") ? path.substring(0, path.lastIndexOf('/') + 1) : "";
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(contexts).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(labels).getBytes(StandardCharsets.UTF_8));
+
+            // порядок по пути внутри каталога: у jar и у распакованных классов url разные, а хеш должен совпадать
+            List<Resource> files = Arrays.stream(resolver.getResources("classpath*:" + directory + "**/*.*"))
+                    .filter(Resource::isReadable)
+                    .sorted(Comparator.comparing(resource -> relativePath(resource, directory)))
+                    .toList();
+            for (Resource file : files) {
+                digest.update((byte) 0);
+                digest.update(relativePath(file, directory).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(file.getContentAsByteArray());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать changelog " + changeLog, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Отпечаток, по которому схема была приведена в актуальное состояние; null - не записан или таблицы еще нет
+     */
+    static String recorded(JdbcTemplate jdbcTemplate, String changeLog) {
+        try {
+            List<String> found = jdbcTemplate.queryForList(
+                    "SELECT fingerprint FROM schema_fingerprint WHERE change_log = ?", String.class, changeLog);
+            return found.isEmpty() ? null : found.get(0);
+        } catch (DataAccessException e) {
+            // первый деплой: таблицу создаст сам liquibase
+            return null;
+        }
+    }
+
+    static void record(JdbcTemplate jdbcTemplate, String changeLog, String fingerprint) {
+        jdbcTemplate.update("""
+                INSERT INTO schema_fingerprint (change_log, fingerprint, recorded_at)
+                VALUES (?, ?, CURRENT_TIMESTAMP)
+                ON CONFLICT (change_log) DO UPDATE SET fingerprint = EXCLUDED.fingerprint, recorded_at = CURRENT_TIMESTAMP
+                """, changeLog, fingerprint);
+    }
+
+    private static String relativePath(Resource resource, String directory) {
+        try {
+            String url = resource.getURL().toString();
+            int index = directory.isEmpty() ? -1 : url.lastIndexOf(directory);
+            return index < 0 ? String.valueOf(resource.getFilename()) : url.substring(index + directory.length());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
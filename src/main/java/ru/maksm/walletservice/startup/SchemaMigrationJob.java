@@ -0,0 +1,39 @@
+package ru.maksm.walletservice.startup;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Отдельная задача миграции схемы (wallet.schema.migrate-and-exit=true)
+ *
+ * тот же jar: liquibase отрабатывает при подъеме контекста (LiquibaseSchemaGate), после чего процесс
+ * выходит с кодом 0. Запускается перед выкаткой (k8s Job, init-контейнер), а поды с
+ * wallet.schema.on-change=fail только сверяют отпечаток
+ */
+@Component
+@Slf4j
+public class SchemaMigrationJob implements ApplicationRunner {
+
+    private final ConfigurableApplicationContext context;
+    private final boolean enabled;
+
+    public SchemaMigrationJob(ConfigurableApplicationContext context,
+                              @Value("${wallet.schema.migrate-and-exit:false}") boolean enabled) {
+        this.context = context;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        log.info("Схема БД приведена к changelog, задача миграции завершается");
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+}
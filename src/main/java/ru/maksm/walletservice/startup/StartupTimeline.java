@@ -0,0 +1,69 @@
+package ru.maksm.walletservice.startup;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Время старта с точки зрения клиента: от запуска JVM до готовности контекста и до первого успешного запроса к API
+ *
+ * - wallet.startup.ready - ApplicationReadyEvent (контекст поднят, томкат слушает)
+ * - wallet.startup.first-success - первый ответ 2xx/3xx на /api/**: сюда входит и то,
+ *   что ленивая инициализация и JIT отложили до первого запроса
+ * оба значения один раз пишутся в лог, -1 - события еще не было
+ */
+@Component
+@Slf4j
+public class StartupTimeline extends OncePerRequestFilter {
+
+    private final AtomicBoolean firstSuccessSeen = new AtomicBoolean();
+    private volatile long readyMillis = -1;
+    private volatile long firstSuccessMillis = -1;
+
+    public StartupTimeline(MeterRegistry meterRegistry) {
+        TimeGauge.builder("wallet.startup.ready", this, TimeUnit.MILLISECONDS, timeline -> timeline.readyMillis)
+                .register(meterRegistry);
+        TimeGauge.builder("wallet.startup.first-success", this, TimeUnit.MILLISECONDS,
+                        timeline -> timeline.firstSuccessMillis)
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        readyMillis = sinceJvmStart();
+        log.info("Приложение готово через {} мс после запуска JVM", readyMillis);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return firstSuccessSeen.get() || !request.getRequestURI().startsWith("/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        chain.doFilter(request, response);
+        if (response.getStatus() < 400 && firstSuccessSeen.compareAndSet(false, true)) {
+            firstSuccessMillis = sinceJvmStart();
+            log.info("Первый успешный запрос {} {} через {} мс после запуска JVM",
+                    request.getMethod(), request.getRequestURI(), firstSuccessMillis);
+        }
+    }
+
+    private static long sinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
@@ -0,0 +1,270 @@
+package ru.maksm.walletservice.verifier;
+
+import ru.maksm.walletservice.model.OperationType;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Проверка цепочек balance_before/balance_after одного диапазона кошельков
+ *
+ * строки подаются потоком в порядке (wallet_id, created_at), в памяти только цепочки текущего кошелька:
+ * - цепочка своя у каждого (wallet_id, slot): balance_before строки = balance_after предыдущей
+ * - порядок created_at с порядком цепочки совпадает не всегда: движки sql и striped ставят CURRENT_TIMESTAMP,
+ *   то есть начало транзакции, а блокировку строки транзакция ждет уже после него. Поэтому цепочка собирается
+ *   по самим балансам: следующая - строка, чей balance_before равен текущему балансу, из ожидающих в окне
+ *   до REORDER_WINDOW строк цепочки. Разрыв фиксируется, только если продолжения нет во всем окне
+ *   (или кошелек закончился) - тогда цепочка идет дальше с самой ранней ожидающей строки
+ * - balance_after = balance_before +/- amount по типу операции, у REBALANCE направление любое
+ * - конец цепочки = баланс в wallets (основная строка) или wallet_slots (слот; строки нет - слот схлопнут, 0)
+ * - начало цепочки не проверяется: кошелек мог быть создан с балансом без записи в ledger,
+ *   а старые партиции - уйти в архив; первой берется строка, чей balance_before не выход другой ожидающей
+ * - с точкой продолжения (anchor) строки не позже нее пропускаются, первая следующая сверяется с ее балансом
+ */
+final class LedgerChainChecker {
+
+    // ключ слота основной строки кошелька
+    static final int MAIN = -1;
+
+    // сколько строк цепочки ждут своей очереди, прежде чем отсутствие продолжения считается разрывом:
+    // перестановки по created_at ограничены операциями, ждавшими одну блокировку строки
+    static final int REORDER_WINDOW = 256;
+
+    enum Kind {
+        BROKEN_CHAIN,      // balance_before не равен balance_after предыдущей операции
+        BAD_AMOUNT,        // balance_after не сходится с balance_before и суммой
+        BALANCE_MISMATCH,  // конец цепочки не равен балансу кошелька или слота
+        MISSING_WALLET     // операции есть, кошелька нет
+    }
+
+    record Row(UUID walletId, Integer slot, OperationType type, long amount, long before, long after,
+               LocalDateTime createdAt) {
+    }
+
+    record ChainKey(UUID walletId, int slot) {
+    }
+
+    // суммы в копейках; expected/actual = null - неприменимо
+    record Discrepancy(UUID walletId, Integer slot, Kind kind, LocalDateTime operationAt, Long expected, Long actual) {
+    }
+
+    record Anchor(LocalDateTime verifiedUntil, long balance) {
+    }
+
+    record ChainEnd(UUID walletId, int slot, LocalDateTime verifiedUntil, long balance) {
+    }
+
+    private static final class Chain {
+        Long balance;
+        LocalDateTime anchorAt;
+        LocalDateTime lastAt;
+        boolean checked;
+        // пришедшие, но еще не встроенные в цепочку строки, в порядке прихода
+        final List<Row> pending = new ArrayList<>();
+    }
+
+    private final Map<UUID, Long> walletBalances;
+    private final Map<ChainKey, Long> slotBalances;
+    private final Map<ChainKey, Anchor> anchors;
+    private final Consumer<Discrepancy> discrepancies;
+    private final Consumer<ChainEnd> chainEnds;
+    private final int window;
+
+    private final Map<Integer, Chain> chains = new HashMap<>();
+    private UUID wallet;
+    private boolean walletMissing;
+
+    private long rows;
+    private long wallets;
+    private long found;
+
+    LedgerChainChecker(Map<UUID, Long> walletBalances, Map<ChainKey, Long> slotBalances, Map<ChainKey, Anchor> anchors,
+                       Consumer<Discrepancy> discrepancies, Consumer<ChainEnd> chainEnds) {
+        this(walletBalances, slotBalances, anchors, discrepancies, chainEnds, REORDER_WINDOW);
+    }
+
+    LedgerChainChecker(Map<UUID, Long> walletBalances, Map<ChainKey, Long> slotBalances, Map<ChainKey, Anchor> anchors,
+                       Consumer<Discrepancy> discrepancies, Consumer<ChainEnd> chainEnds, int window) {
+        this.walletBalances = walletBalances;
+        this.slotBalances = slotBalances;
+        this.anchors = anchors;
+        this.discrepancies = discrepancies;
+        this.chainEnds = chainEnds;
+        this.window = window;
+    }
+
+    void accept(Row row) {
+        if (!row.walletId().equals(wallet)) {
+            finishWallet();
+            startWallet(row.walletId());
+        }
+        int slot = slotKey(row.slot());
+        Chain chain = chains.computeIfAbsent(slot, this::openChain);
+        if (chain.anchorAt != null && !row.createdAt().isAfter(chain.anchorAt)) {
+            return;
+        }
+        chain.pending.add(row);
+        drain(chain, false);
+    }
+
+    /**
+     * Строки диапазона закончились
+     */
+    void finish() {
+        finishWallet();
+        wallet = null;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    long wallets() {
+        return wallets;
+    }
+
+    long discrepancies() {
+        return found;
+    }
+
+    private void startWallet(UUID walletId) {
+        wallet = walletId;
+        wallets++;
+        chains.clear();
+        walletMissing = !walletBalances.containsKey(walletId);
+        if (walletMissing) {
+            report(new Discrepancy(walletId, null, Kind.MISSING_WALLET, null, null, null));
+        }
+    }
+
+    /**
+     * Встроить в цепочку все ожидающие строки, чье место уже известно
+     *
+     * @param force кошелек закончился: продолжения больше не придут, ожидающие встраиваются все
+     */
+    private void drain(Chain chain, boolean force) {
+        List<Row> pending = chain.pending;
+        while (!pending.isEmpty()) {
+            int next;
+            if (chain.balance == null) {
+                // начало цепочки: голову видно, только когда пришли строки после нее
+                if (!force && pending.size() < window) {
+                    return;
+                }
+                next = indexOfHead(pending);
+            } else {
+                next = indexOfBefore(pending, chain.balance);
+                if (next < 0) {
+                    if (!force && pending.size() < window) {
+                        return;
+                    }
+                    next = 0;
+                }
+            }
+            apply(chain, pending.remove(next));
+        }
+    }
+
+    private void apply(Chain chain, Row row) {
+        rows++;
+        if (chain.balance != null && row.before() != chain.balance) {
+            report(new Discrepancy(wallet, row.slot(), Kind.BROKEN_CHAIN, row.createdAt(), chain.balance, row.before()));
+        }
+        long expectedAfter = expectedAfter(row);
+        if (row.after() != expectedAfter) {
+            report(new Discrepancy(wallet, row.slot(), Kind.BAD_AMOUNT, row.createdAt(), expectedAfter, row.after()));
+        }
+        chain.balance = row.after();
+        // точка продолжения - самая поздняя created_at среди встроенных, а не у последней по цепочке
+        if (chain.lastAt == null || row.createdAt().isAfter(chain.lastAt)) {
+            chain.lastAt = row.createdAt();
+        }
+        chain.checked = true;
+    }
+
+    private Chain openChain(int slot) {
+        Chain chain = new Chain();
+        Anchor anchor = anchors.get(new ChainKey(wallet, slot));
+        if (anchor != null) {
+            chain.balance = anchor.balance();
+            chain.anchorAt = anchor.verifiedUntil();
+        }
+        return chain;
+    }
+
+    private void finishWallet() {
+        if (wallet == null) {
+            return;
+        }
+        chains.forEach((slot, chain) -> {
+            drain(chain, true);
+            if (!chain.checked) {
+                return;
+            }
+            if (!walletMissing) {
+                long expected = slot == MAIN
+                        ? walletBalances.get(wallet)
+                        : slotBalances.getOrDefault(new ChainKey(wallet, slot), 0L);
+                if (chain.balance != expected) {
+                    report(new Discrepancy(wallet, slot == MAIN ? null : slot, Kind.BALANCE_MISMATCH, null,
+                            expected, chain.balance));
+                }
+            }
+            chainEnds.accept(new ChainEnd(wallet, slot, chain.lastAt, chain.balance));
+        });
+    }
+
+    private void report(Discrepancy discrepancy) {
+        found++;
+        discrepancies.accept(discrepancy);
+    }
+
+    private static int indexOfBefore(List<Row> rows, long balance) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).before() == balance) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Голова ожидающих строк: ее balance_before не выход ни одной другой; нет такой - самая ранняя
+     */
+    private static int indexOfHead(List<Row> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (isHead(rows, i)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isHead(List<Row> rows, int index) {
+        long before = rows.get(index).before();
+        for (int i = 0; i < rows.size(); i++) {
+            if (i != index && rows.get(i).after() == before) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long expectedAfter(Row row) {
+        return switch (row.type()) {
+            case DEPOSIT, TRANSFER_IN -> row.before() + row.amount();
+            case WITHDRAW, TRANSFER_OUT -> row.before() - row.amount();
+            // перенос между основной строкой и слотами, направление видно по самой строке
+            case REBALANCE -> row.after() >= row.before() ? row.before() + row.amount() : row.before() - row.amount();
+        };
+    }
+
+    private static int slotKey(Integer slot) {
+        return slot == null ? MAIN : slot;
+    }
+}
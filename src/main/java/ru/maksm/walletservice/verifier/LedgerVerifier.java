@@ -0,0 +1,496 @@
+package ru.maksm.walletservice.verifier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Сверка цепочек ledger: balance_before/balance_after непрерывны и сходятся с балансами кошельков
+ *
+ * - пространство wallet_id делится на chunks диапазонов, диапазоны проверяются параллельно на ForkJoinPool
+ *   из parallelism потоков; диапазон - одна repeatable read транзакция: ledger, wallets и wallet_slots
+ *   из одного снимка, строки идут серверным курсором по fetch-size, в памяти - балансы кошельков диапазона
+ *   и цепочки одного кошелька (LedgerChainChecker)
+ * - прогресс: строка в ledger_verification_chunks пишется в транзакции диапазона, прерванный прогон
+ *   (рестарт, деплой) следующий запуск продолжает с непроверенных диапазонов
+ * - полный прогон (full) проверяет цепочки целиком и запоминает их концы в ledger_verified_chains;
+ *   инкрементальный (incremental) берет только кошельки с операциями после начала прошлого прогона
+ *   (минус settle-delay на долгие транзакции) и продолжает их цепочки от запомненных концов
+ * - прогон выполняет один инстанс (сессионный advisory lock на время прогона), в своем потоке -
+ *   планировщик остальных задач не ждет
+ * - расхождения пишутся в ledger_discrepancies, не больше max-discrepancies-per-chunk на диапазон,
+ *   счет - все; итоги и пропускная - в /actuator/ledgerverifier и метриках wallet.verifier.*
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.verifier.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class LedgerVerifier {
+
+    // ключ advisory lock сверки ledger, общий для всех инстансов
+    private static final long VERIFIER_LOCK_KEY = 0x5645524946594cL;
+
+    public enum Mode {
+        FULL, INCREMENTAL
+    }
+
+    record Run(long runId, Mode mode, LocalDateTime since, int chunks) {
+    }
+
+    record ChunkResult(long wallets, long rows, long discrepancies) {
+    }
+
+    private static final String UNFINISHED_RUN_SQL = """
+            SELECT run_id, mode, since, chunks FROM ledger_verification_runs
+             WHERE finished_at IS NULL ORDER BY run_id DESC LIMIT 1
+            """;
+
+    private static final String LAST_FINISHED_START_SQL =
+            "SELECT MAX(started_at) FROM ledger_verification_runs WHERE finished_at IS NOT NULL";
+
+    private static final String INSERT_RUN_SQL = """
+            INSERT INTO ledger_verification_runs (mode, since, chunks) VALUES (?, ?, ?) RETURNING run_id
+            """;
+
+    private static final String PRUNE_RUNS_SQL = """
+            WITH expired AS (
+                SELECT run_id FROM ledger_verification_runs ORDER BY run_id DESC OFFSET ?
+            ), chunks AS (
+                DELETE FROM ledger_verification_chunks WHERE run_id IN (SELECT run_id FROM expired)
+            ), found AS (
+                DELETE FROM ledger_discrepancies WHERE run_id IN (SELECT run_id FROM expired)
+            )
+            DELETE FROM ledger_verification_runs WHERE run_id IN (SELECT run_id FROM expired)
+            """;
+
+    private static final String DONE_CHUNKS_SQL = "SELECT chunk FROM ledger_verification_chunks WHERE run_id = ?";
+
+    private static final String FINISH_RUN_SQL =
+            "UPDATE ledger_verification_runs SET finished_at = CURRENT_TIMESTAMP WHERE run_id = ?";
+
+    // полный прогон: весь диапазон
+    private static final String RANGE_WALLETS_SQL =
+            "SELECT wallet_id, balance FROM wallets WHERE wallet_id BETWEEN ? AND ?";
+    private static final String RANGE_SLOTS_SQL =
+            "SELECT wallet_id, slot, balance FROM wallet_slots WHERE wallet_id BETWEEN ? AND ?";
+    private static final String RANGE_ROWS_SQL = """
+            SELECT wallet_id, slot, operation_type, amount, balance_before, balance_after, created_at
+              FROM transactions WHERE wallet_id BETWEEN ? AND ?
+             ORDER BY wallet_id, created_at
+            """;
+
+    // инкрементальный прогон: кошельки диапазона с операциями после since, один проход по хвосту ledger
+    private static final String CREATE_TOUCHED_SQL = """
+            CREATE TEMPORARY TABLE verifier_touched ON COMMIT DROP AS
+            SELECT DISTINCT wallet_id FROM transactions WHERE created_at > ? AND wallet_id BETWEEN ? AND ?
+            """;
+    private static final String TOUCHED_WALLETS_SQL =
+            "SELECT w.wallet_id, w.balance FROM wallets w JOIN verifier_touched t ON t.wallet_id = w.wallet_id";
+    private static final String TOUCHED_SLOTS_SQL =
+            "SELECT s.wallet_id, s.slot, s.balance FROM wallet_slots s JOIN verifier_touched t ON t.wallet_id = s.wallet_id";
+    private static final String TOUCHED_ANCHORS_SQL = """
+            SELECT c.wallet_id, c.slot, c.verified_until, c.balance
+              FROM ledger_verified_chains c JOIN verifier_touched t ON t.wallet_id = c.wallet_id
+            """;
+    private static final String TOUCHED_ROWS_SQL = """
+            SELECT wallet_id, slot, operation_type, amount, balance_before, balance_after, created_at
+              FROM transactions WHERE created_at > ? AND wallet_id BETWEEN ? AND ?
+             ORDER BY wallet_id, created_at
+            """;
+
+    private static final String UPSERT_CHAIN_SQL = """
+            INSERT INTO ledger_verified_chains (wallet_id, slot, verified_until, balance) VALUES (?, ?, ?, ?)
+                ON CONFLICT (wallet_id, slot) DO UPDATE
+               SET verified_until = EXCLUDED.verified_until, balance = EXCLUDED.balance
+            """;
+
+    private static final String INSERT_DISCREPANCY_SQL = """
+            INSERT INTO ledger_discrepancies (run_id, wallet_id, slot, kind, operation_at, expected, actual)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private static final String INSERT_CHUNK_SQL = """
+            INSERT INTO ledger_verification_chunks (run_id, chunk, wallets, rows_checked, discrepancies, millis)
+            VALUES (?, ?, ?, ?, ?, ?)
+            """;
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate streamingJdbcTemplate;
+    private final TransactionTemplate chunkTransaction;
+    private final MeterRegistry meterRegistry;
+    private final int parallelism;
+    private final int fullChunks;
+    private final int incrementalChunks;
+    private final int maxDiscrepanciesPerChunk;
+    private final int writeBatchSize;
+    private final Duration settleDelay;
+    private final int keepRuns;
+
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ledger-verifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicReference<Run> current = new AtomicReference<>();
+    private volatile boolean stopping;
+
+    private final Counter checkedRows;
+    private final Counter checkedChunks;
+
+    public LedgerVerifier(DataSource dataSource,
+                          JdbcTemplate jdbcTemplate,
+                          PlatformTransactionManager transactionManager,
+                          MeterRegistry meterRegistry,
+                          @Value("${wallet.verifier.parallelism:4}") int parallelism,
+                          @Value("${wallet.verifier.chunks:1024}") int fullChunks,
+                          @Value("${wallet.verifier.incremental-chunks:16}") int incrementalChunks,
+                          @Value("${wallet.verifier.fetch-size:5000}") int fetchSize,
+                          @Value("${wallet.verifier.max-discrepancies-per-chunk:100}") int maxDiscrepanciesPerChunk,
+                          @Value("${wallet.verifier.write-batch-size:1000}") int writeBatchSize,
+                          @Value("${wallet.verifier.settle-delay:PT15M}") Duration settleDelay,
+                          @Value("${wallet.verifier.keep-runs:20}") int keepRuns) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+        this.meterRegistry = meterRegistry;
+        this.parallelism = parallelism;
+        this.fullChunks = checkChunks(fullChunks);
+        this.incrementalChunks = checkChunks(incrementalChunks);
+        this.maxDiscrepanciesPerChunk = maxDiscrepanciesPerChunk;
+        this.writeBatchSize = writeBatchSize;
+        this.settleDelay = settleDelay;
+        this.keepRuns = keepRuns;
+
+        // курсор postgres работает только внутри транзакции - она есть, это транзакция диапазона
+        this.streamingJdbcTemplate = new JdbcTemplate(dataSource);
+        this.streamingJdbcTemplate.setFetchSize(fetchSize);
+
+        this.chunkTransaction = new TransactionTemplate(transactionManager);
+        this.chunkTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+
+        this.checkedRows = Counter.builder("wallet.verifier.rows").register(meterRegistry);
+        this.checkedChunks = Counter.builder("wallet.verifier.chunks").register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${wallet.verifier.full-cron:0 0 4 * * SUN}")
+    public void scheduledFull() {
+        start(Mode.FULL);
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.verifier.incremental-interval:PT1H}",
+            initialDelayString = "${wallet.verifier.initial-delay:PT5M}")
+    public void scheduledIncremental() {
+        start(Mode.INCREMENTAL);
+    }
+
+    /**
+     * Запустить прогон в фоне; незаконченный прерванный прогон продолжается вместо нового
+     *
+     * @return false - прогон на этом инстансе уже идет
+     */
+    public boolean start(Mode mode) {
+        if (stopping || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        runner.execute(() -> {
+            try {
+                runExclusively(mode);
+            } catch (RuntimeException e) {
+                // непроверенные диапазоны останутся за следующим запуском
+                log.error("Ошибка сверки ledger: {}", e.getMessage(), e);
+            } finally {
+                current.set(null);
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Прогон этого инстанса, если идет
+     */
+    Run currentRun() {
+        return current.get();
+    }
+
+    @PreDestroy
+    public void stop() {
+        // начатые диапазоны откатятся, прогон продолжится после рестарта
+        stopping = true;
+        runner.shutdownNow();
+    }
+
+    private void runExclusively(Mode mode) {
+        try (Connection lockConnection = dataSource.getConnection()) {
+            if (!advisoryLock(lockConnection, "SELECT pg_try_advisory_lock(?)")) {
+                log.debug("Сверку ledger выполняет другой инстанс");
+                return;
+            }
+            try {
+                verify(mode);
+            } finally {
+                advisoryLock(lockConnection, "SELECT pg_advisory_unlock(?)");
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Не удалось взять блокировку сверки ledger", e);
+        }
+    }
+
+    private void verify(Mode requested) {
+        Run run = resumeOrCreate(requested);
+        current.set(run);
+        Set<Integer> done = Set.copyOf(jdbcTemplate.queryForList(DONE_CHUNKS_SQL, Integer.class, run.runId()));
+        if (!done.isEmpty()) {
+            log.info("Продолжается сверка ledger #{} ({}): проверено диапазонов {} из {}",
+                    run.runId(), run.mode(), done.size(), run.chunks());
+        }
+
+        List<Callable<ChunkResult>> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < run.chunks(); chunk++) {
+            if (!done.contains(chunk)) {
+                int index = chunk;
+                tasks.add(() -> stopping ? null : verifyChunk(run, index));
+            }
+        }
+
+        long started = System.nanoTime();
+        long wallets = 0;
+        long rows = 0;
+        long discrepancies = 0;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<ChunkResult> future : pool.invokeAll(tasks)) {
+                ChunkResult result = future.get();
+                if (result == null) {
+                    return;
+                }
+                wallets += result.wallets();
+                rows += result.rows();
+                discrepancies += result.discrepancies();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Сверка ledger #" + run.runId() + " прервана: " + e.getCause().getMessage(),
+                    e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        jdbcTemplate.update(FINISH_RUN_SQL, run.runId());
+        double seconds = Math.max(0.001, (System.nanoTime() - started) / 1e9);
+        if (discrepancies > 0) {
+            log.error("Сверка ledger #{} ({}): расхождений {}, кошельков {}, операций {}, {} операций/с",
+                    run.runId(), run.mode(), discrepancies, wallets, rows, Math.round(rows / seconds));
+        } else {
+            log.info("Сверка ledger #{} ({}) без расхождений: кошельков {}, операций {}, {} операций/с",
+                    run.runId(), run.mode(), wallets, rows, Math.round(rows / seconds));
+        }
+    }
+
+    private Run resumeOrCreate(Mode requested) {
+        List<Run> unfinished = jdbcTemplate.query(UNFINISHED_RUN_SQL, (rs, rowNum) -> new Run(rs.getLong("run_id"),
+                Mode.valueOf(rs.getString("mode")), toLocalDateTime(rs.getTimestamp("since")), rs.getInt("chunks")));
+        if (!unfinished.isEmpty()) {
+            return unfinished.get(0);
+        }
+
+        Mode mode = requested;
+        LocalDateTime since = null;
+        if (mode == Mode.INCREMENTAL) {
+            Timestamp lastStart = jdbcTemplate.queryForObject(LAST_FINISHED_START_SQL, Timestamp.class);
+            if (lastStart == null) {
+                // концов цепочек еще нет, продолжать нечего
+                mode = Mode.FULL;
+            } else {
+                since = lastStart.toLocalDateTime().minus(settleDelay);
+            }
+        }
+        int chunks = mode == Mode.FULL ? fullChunks : incrementalChunks;
+        Long runId = jdbcTemplate.queryForObject(INSERT_RUN_SQL, Long.class, mode.name(),
+                since == null ? null : Timestamp.valueOf(since), chunks);
+        jdbcTemplate.update(PRUNE_RUNS_SQL, keepRuns);
+        log.info("Начата сверка ledger #{} ({}{}), диапазонов {}", runId, mode,
+                since == null ? "" : ", операции после " + since, chunks);
+        return new Run(runId, mode, since, chunks);
+    }
+
+    private ChunkResult verifyChunk(Run run, int chunk) {
+        long started = System.nanoTime();
+        UUID[] bounds = chunkBounds(chunk, run.chunks());
+        ChunkResult result = chunkTransaction.execute(status -> {
+            Map<UUID, Long> walletBalances = new HashMap<>();
+            Map<LedgerChainChecker.ChainKey, Long> slotBalances = new HashMap<>();
+            Map<LedgerChainChecker.ChainKey, LedgerChainChecker.Anchor> anchors = new HashMap<>();
+            boolean incremental = run.mode() == Mode.INCREMENTAL;
+
+            if (incremental) {
+                jdbcTemplate.update(CREATE_TOUCHED_SQL, Timestamp.valueOf(run.since()), bounds[0], bounds[1]);
+                jdbcTemplate.query(TOUCHED_WALLETS_SQL, rs -> {
+                    walletBalances.put(rs.getObject(1, UUID.class), minor(rs, 2));
+                });
+                jdbcTemplate.query(TOUCHED_SLOTS_SQL, rs -> {
+                    slotBalances.put(new LedgerChainChecker.ChainKey(rs.getObject(1, UUID.class), rs.getInt(2)), minor(rs, 3));
+                });
+                jdbcTemplate.query(TOUCHED_ANCHORS_SQL, rs -> {
+                    anchors.put(new LedgerChainChecker.ChainKey(rs.getObject(1, UUID.class), rs.getInt(2)),
+                            new LedgerChainChecker.Anchor(rs.getTimestamp(3).toLocalDateTime(), minor(rs, 4)));
+                });
+            } else {
+                jdbcTemplate.query(RANGE_WALLETS_SQL, rs -> {
+                    walletBalances.put(rs.getObject(1, UUID.class), minor(rs, 2));
+                }, bounds[0], bounds[1]);
+                jdbcTemplate.query(RANGE_SLOTS_SQL, rs -> {
+                    slotBalances.put(new LedgerChainChecker.ChainKey(rs.getObject(1, UUID.class), rs.getInt(2)), minor(rs, 3));
+                }, bounds[0], bounds[1]);
+            }
+
+            List<LedgerChainChecker.Discrepancy> found = new ArrayList<>();
+            List<Object[]> chainEnds = new ArrayList<>();
+            LedgerChainChecker checker = new LedgerChainChecker(walletBalances, slotBalances, anchors,
+                    discrepancy -> {
+                        meterRegistry.counter("wallet.verifier.discrepancies", "kind", discrepancy.kind().name()).increment();
+                        if (found.size() < maxDiscrepanciesPerChunk) {
+                            found.add(discrepancy);
+                        }
+                    },
+                    end -> {
+                        chainEnds.add(new Object[]{end.walletId(), end.slot(), Timestamp.valueOf(end.verifiedUntil()),
+                                Money.toBigDecimal(end.balance())});
+                        if (chainEnds.size() >= writeBatchSize) {
+                            jdbcTemplate.batchUpdate(UPSERT_CHAIN_SQL, chainEnds);
+                            chainEnds.clear();
+                        }
+                    });
+
+            long[] streamed = {0};
+            if (incremental) {
+                streamingJdbcTemplate.query(TOUCHED_ROWS_SQL, rs -> {
+                    checker.accept(row(rs));
+                    countRow(streamed);
+                }, Timestamp.valueOf(run.since()), bounds[0], bounds[1]);
+            } else {
+                streamingJdbcTemplate.query(RANGE_ROWS_SQL, rs -> {
+                    checker.accept(row(rs));
+                    countRow(streamed);
+                }, bounds[0], bounds[1]);
+            }
+            checker.finish();
+
+            if (!chainEnds.isEmpty()) {
+                jdbcTemplate.batchUpdate(UPSERT_CHAIN_SQL, chainEnds);
+            }
+            if (!found.isEmpty()) {
+                jdbcTemplate.batchUpdate(INSERT_DISCREPANCY_SQL, found.stream()
+                        .map(d -> new Object[]{run.runId(), d.walletId(), d.slot(), d.kind().name(),
+                                d.operationAt() == null ? null : Timestamp.valueOf(d.operationAt()),
+                                d.expected() == null ? null : Money.toBigDecimal(d.expected()),
+                                d.actual() == null ? null : Money.toBigDecimal(d.actual())})
+                        .toList());
+            }
+            jdbcTemplate.update(INSERT_CHUNK_SQL, run.runId(), chunk, checker.wallets(), checker.rows(),
+                    checker.discrepancies(), (System.nanoTime() - started) / 1_000_000);
+            return new ChunkResult(checker.wallets(), checker.rows(), checker.discrepancies());
+        });
+        checkedChunks.increment();
+        return result;
+    }
+
+    private void countRow(long[] streamed) {
+        // счетчик сдвигается пачками, а не на каждую строку
+        if (++streamed[0] % 1000 == 0) {
+            checkedRows.increment(1000);
+        }
+        if (stopping) {
+            throw new IllegalStateException("Сверка ledger остановлена");
+        }
+    }
+
+    /**
+     * Границы диапазона chunk из chunks (степень двойки) включительно: старшие биты wallet_id - номер диапазона,
+     * postgres сравнивает uuid побайтно
+     */
+    static UUID[] chunkBounds(int chunk, int chunks) {
+        int bits = Integer.numberOfTrailingZeros(chunks);
+        if (bits == 0) {
+            return new UUID[]{new UUID(0, 0), new UUID(-1L, -1L)};
+        }
+        long lower = (long) chunk << (64 - bits);
+        long upper = ((long) (chunk + 1) << (64 - bits)) - 1;
+        return new UUID[]{new UUID(lower, 0), new UUID(upper, -1L)};
+    }
+
+    private static int checkChunks(int chunks) {
+        if (chunks < 1 || chunks > 65536 || Integer.bitCount(chunks) != 1) {
+            throw new IllegalArgumentException("Число диапазонов сверки - степень двойки от 1 до 65536, получено " + chunks);
+        }
+        return chunks;
+    }
+
+    private static LedgerChainChecker.Row row(ResultSet rs) throws SQLException {
+        return new LedgerChainChecker.Row(
+                rs.getObject("wallet_id", UUID.class),
+                rs.getObject("slot", Integer.class),
+                OperationType.valueOf(rs.getString("operation_type")),
+                minor(rs, "amount"),
+                minor(rs, "balance_before"),
+                minor(rs, "balance_after"),
+                rs.getTimestamp("created_at").toLocalDateTime());
+    }
+
+    private static long minor(ResultSet rs, int column) throws SQLException {
+        return Money.of(rs.getBigDecimal(column)).minor();
+    }
+
+    private static long minor(ResultSet rs, String column) throws SQLException {
+        return Money.of(rs.getBigDecimal(column)).minor();
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toLocalDateTime();
+    }
+
+    private static boolean advisoryLock(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, VERIFIER_LOCK_KEY);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ru.maksm.walletservice.verifier;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * GET /actuator/ledgerverifier - последний прогон сверки ledger: прогресс по диапазонам, пропускная,
+ * число расхождений и последние 20 из них (GET /actuator/ledgerverifier/{limit} - другое число)
+ *
+ * POST /actuator/ledgerverifier - запустить incremental прогон вне расписания,
+ * POST /actuator/ledgerverifier/full - полный; как и у /actuator/hotwallets, без необязательных параметров
+ */
+@Component
+@Endpoint(id = "ledgerverifier")
+@ConditionalOnProperty(name = "wallet.verifier.enabled", havingValue = "true", matchIfMissing = true)
+@RequiredArgsConstructor
+public class LedgerVerifierEndpoint {
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    private static final String LAST_RUN_SQL = """
+            SELECT r.run_id, r.mode, r.since, r.chunks, r.started_at, r.finished_at,
+                   COUNT(c.chunk), COALESCE(SUM(c.wallets), 0), COALESCE(SUM(c.rows_checked), 0),
+                   COALESCE(SUM(c.discrepancies), 0), MAX(c.verified_at)
+              FROM ledger_verification_runs r
+              LEFT JOIN ledger_verification_chunks c ON c.run_id = r.run_id
+             GROUP BY r.run_id, r.mode, r.since, r.chunks, r.started_at, r.finished_at
+             ORDER BY r.run_id DESC LIMIT 1
+            """;
+
+    private static final String DISCREPANCIES_SQL = """
+            SELECT wallet_id, slot, kind, operation_at, expected, actual FROM ledger_discrepancies
+             WHERE run_id = ? ORDER BY id DESC LIMIT ?
+            """;
+
+    private final LedgerVerifier verifier;
+    private final JdbcTemplate jdbcTemplate;
+
+    public record Status(boolean running, Run lastRun, List<Discrepancy> discrepancies) {
+    }
+
+    public record Run(long runId, String mode, LocalDateTime since, int chunks, long chunksDone,
+                      LocalDateTime startedAt, LocalDateTime finishedAt,
+                      long wallets, long rows, long discrepancies, double rowsPerSecond) {
+    }
+
+    public record Discrepancy(UUID walletId, Integer slot, String kind, LocalDateTime operationAt,
+                              BigDecimal expected, BigDecimal actual) {
+    }
+
+    public record Started(boolean started, String mode) {
+    }
+
+    @ReadOperation
+    public Status status() {
+        return status(DEFAULT_LIMIT);
+    }
+
+    @ReadOperation
+    public Status status(@Selector int limit) {
+        if (limit < 1) {
+            throw new InvalidEndpointRequestException("limit должен быть положительным: " + limit, "limit < 1");
+        }
+        List<Run> runs = jdbcTemplate.query(LAST_RUN_SQL, (rs, rowNum) -> {
+            LocalDateTime startedAt = toLocalDateTime(rs.getTimestamp(5));
+            LocalDateTime finishedAt = toLocalDateTime(rs.getTimestamp(6));
+            LocalDateTime lastChunkAt = toLocalDateTime(rs.getTimestamp(11));
+            long rows = rs.getLong(9);
+            // для идущего прогона - по последнему проверенному диапазону
+            LocalDateTime until = finishedAt != null ? finishedAt : lastChunkAt;
+            double seconds = until == null ? 0 : Math.max(0.001, Duration.between(startedAt, until).toMillis() / 1000.0);
+            return new Run(rs.getLong(1), rs.getString(2), toLocalDateTime(rs.getTimestamp(3)), rs.getInt(4),
+                    rs.getLong(7), startedAt, finishedAt, rs.getLong(8), rows, rs.getLong(10),
+                    seconds == 0 ? 0 : rows / seconds);
+        });
+        if (runs.isEmpty()) {
+            return new Status(verifier.currentRun() != null, null, List.of());
+        }
+
+        Run run = runs.get(0);
+        List<Discrepancy> discrepancies = jdbcTemplate.query(DISCREPANCIES_SQL, (rs, rowNum) -> new Discrepancy(
+                rs.getObject(1, UUID.class), rs.getObject(2, Integer.class), rs.getString(3),
+                toLocalDateTime(rs.getTimestamp(4)), rs.getBigDecimal(5), rs.getBigDecimal(6)), run.runId(), limit);
+        return new Status(verifier.currentRun() != null, run, discrepancies);
+    }
+
+    @WriteOperation
+    public Started start() {
+        return start(LedgerVerifier.Mode.INCREMENTAL);
+    }
+
+    @WriteOperation
+    public Started start(@Selector String mode) {
+        LedgerVerifier.Mode requested;
+        try {
+            requested = LedgerVerifier.Mode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidEndpointRequestException("Неизвестный режим сверки: " + mode, "unknown mode");
+        }
+        return start(requested);
+    }
+
+    private Started start(LedgerVerifier.Mode mode) {
+        return new Started(verifier.start(mode), mode.name());
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toLocalDateTime();
+    }
+}
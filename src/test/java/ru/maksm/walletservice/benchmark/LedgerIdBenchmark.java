@@ -0,0 +1,144 @@
+package ru.maksm.walletservice.benchmark;
+
+import liquibase.command.CommandScope;
+import liquibase.command.core.UpdateCommandStep;
+import liquibase.command.core.helpers.DbUrlConnectionArgumentsCommandStep;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.model.TimeOrderedUuid;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Бенчмарк ключей ledger на растущей партиции: случайный UUIDv4 против UUIDv7 (TimeOrderedUuid)
+ * и прежний набор индексов против урезанного (changeset 014)
+ *
+ * три таблицы по образцу партиции текущего месяца:
+ * - v4 + old: первичный ключ (id, created_at) и прежние (wallet_id), (created_at), (wallet_id, created_at, id)
+ * - v4 + lean: первичный ключ и покрывающий idx_transaction_wallet_history
+ * - v7 + lean: то же с ключами по времени
+ * таблицы доливаются шагами по batch-инсертам из приложения (как пишут движки), на каждом шаге - строк/с
+ * и размеры индексов. Случайный ключ пишет в случайные страницы первичного ключа, и когда индекс перерастает
+ * shared_buffers, пропускная v4 проседает, а v7 пишет в правый край и держится; страницы v7 заполнены
+ * плотнее, поэтому и первичный ключ меньше
+ *
+ * запуск (нужен docker): gradle ledgerIdBenchmark -PledgerIdBenchmarkSteps=10 -PledgerIdBenchmarkStepRows=1000000
+ */
+@Tag("benchmark")
+@Testcontainers(disabledWithoutDocker = true)
+class LedgerIdBenchmark {
+
+    private static final int WALLETS = 10_000;
+    private static final int BATCH = 1_000;
+
+    private static final String LEAN_INDEX = "(wallet_id, created_at, id)"
+            + " INCLUDE (operation_type, amount, balance_before, balance_after, slot, transfer_id)";
+
+    private record Variant(String table, Supplier<UUID> ids, List<String> indexes) {
+    }
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine")
+            .withCommand("postgres", "-c", "shared_buffers=128MB");
+
+    @Test
+    void timeOrderedIdsKeepInsertThroughputAndIndexSize() throws Exception {
+        int steps = Integer.getInteger("ledger.id-benchmark.steps", 5);
+        int stepRows = Integer.getInteger("ledger.id-benchmark.step-rows", 1_000_000);
+
+        List<Variant> variants = List.of(
+                new Variant("ledger_v4_old", UUID::randomUUID,
+                        List.of("(wallet_id)", "(created_at)", "(wallet_id, created_at, id)")),
+                new Variant("ledger_v4_lean", UUID::randomUUID, List.of(LEAN_INDEX)),
+                new Variant("ledger_v7_lean", TimeOrderedUuid::next, List.of(LEAN_INDEX)));
+
+        try (Connection connection = DriverManager.getConnection(
+                POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            migrate(connection);
+            for (Variant variant : variants) {
+                createTable(connection, variant);
+            }
+
+            System.out.printf("%12s | %-16s | %10s | %10s | %12s%n", "rows", "variant", "rows/s", "pk MB", "indexes MB");
+            for (int step = 1; step <= steps; step++) {
+                for (Variant variant : variants) {
+                    double rowsPerSecond = fill(connection, variant, stepRows);
+                    long[] sizes = indexSizes(connection, variant.table());
+                    System.out.printf("%12d | %-16s | %10.0f | %10.1f | %12.1f%n", (long) step * stepRows,
+                            variant.table(), rowsPerSecond, sizes[0] / 1048576.0, sizes[1] / 1048576.0);
+                }
+            }
+        }
+    }
+
+    private static void migrate(Connection connection) throws Exception {
+        Database database = DatabaseFactory.getInstance()
+                .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+        new CommandScope(UpdateCommandStep.COMMAND_NAME)
+                .addArgumentValue(DbUrlConnectionArgumentsCommandStep.DATABASE_ARG, database)
+                .addArgumentValue(UpdateCommandStep.CHANGELOG_FILE_ARG, "db/changelog/db.changelog-master.xml")
+                .execute();
+    }
+
+    private static void createTable(Connection connection, Variant variant) throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE " + variant.table() + " (LIKE transactions INCLUDING DEFAULTS)");
+            statement.execute("ALTER TABLE " + variant.table() + " ADD PRIMARY KEY (id, created_at)");
+            for (String index : variant.indexes()) {
+                statement.execute("CREATE INDEX ON " + variant.table() + " " + index);
+            }
+        }
+    }
+
+    /**
+     * Долить rows строк батчами по BATCH в транзакции на батч; возвращает строк в секунду
+     */
+    private static double fill(Connection connection, Variant variant, int rows) throws Exception {
+        long start = System.nanoTime();
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + variant.table()
+                + " (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)"
+                + " VALUES (?, ?, 'DEPOSIT', 1.00, 0.00, 1.00, CURRENT_TIMESTAMP)")) {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < rows; i++) {
+                insert.setObject(1, variant.ids().get());
+                insert.setObject(2, new UUID(0x0000000000004000L, 0x8000000000000000L | (i % WALLETS)));
+                insert.addBatch();
+                if ((i + 1) % BATCH == 0 || i == rows - 1) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        return rows / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Размер первичного ключа и всех индексов таблицы в байтах
+     */
+    private static long[] indexSizes(Connection connection, String table) throws Exception {
+        try (PreparedStatement query = connection.prepareStatement(
+                "SELECT pg_relation_size(?::regclass), pg_indexes_size(?::regclass)")) {
+            query.setString(1, table + "_pkey");
+            query.setString(2, table);
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                return new long[]{rs.getLong(1), rs.getLong(2)};
+            }
+        }
+    }
+}
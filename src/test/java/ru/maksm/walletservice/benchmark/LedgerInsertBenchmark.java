@@ -0,0 +1,133 @@
+package ru.maksm.walletservice.benchmark;
+
+import liquibase.command.CommandScope;
+import liquibase.command.core.UpdateCommandStep;
+import liquibase.command.core.helpers.DbUrlConnectionArgumentsCommandStep;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Бенчмарк вставки в ledger по мере роста таблицы: партиционированная transactions (схема из changelog)
+ * против плоской таблицы со старыми четырьмя индексами (changeset 002 + 003)
+ *
+ * на каждом шаге таблицы доливаются историей за прошлые 24 месяца, потом меряется латентность одиночных
+ * инсертов "сейчас" - так пишет горячий путь. У партиционированной латентность должна стоять на месте:
+ * инсерт трогает только индексы текущей партиции, а у плоской растут все четыре индекса целиком
+ *
+ * запуск (нужен docker): gradle ledgerBenchmark -PledgerBenchmarkSteps=2000000,2000000,2000000
+ */
+@Tag("benchmark")
+@Testcontainers(disabledWithoutDocker = true)
+class LedgerInsertBenchmark {
+
+    private static final int WALLETS = 10_000;
+    private static final int MEASURED_INSERTS = 5_000;
+    private static final int WARMUP_INSERTS = 500;
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    @Test
+    void insertLatencyStaysFlatAsLedgerGrows() throws Exception {
+        long[] steps = Arrays.stream(System.getProperty("ledger.benchmark.steps", "1000000,1000000,1000000").split(","))
+                .mapToLong(step -> Long.parseLong(step.trim()))
+                .toArray();
+
+        try (Connection connection = DriverManager.getConnection(
+                POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            migrate(connection);
+            createFlatLedger(connection);
+
+            System.out.printf("%12s | %22s | %22s%n", "rows", "partitioned p50/p99 us", "flat p50/p99 us");
+            long rows = 0;
+            for (int step = 0; step <= steps.length; step++) {
+                if (step > 0) {
+                    fill(connection, "transactions", steps[step - 1]);
+                    fill(connection, "transactions_flat", steps[step - 1]);
+                    rows += steps[step - 1];
+                }
+                long[] partitioned = measure(connection, "transactions");
+                long[] flat = measure(connection, "transactions_flat");
+                System.out.printf("%12d | %10d / %9d | %10d / %9d%n",
+                        rows, partitioned[0], partitioned[1], flat[0], flat[1]);
+            }
+        }
+    }
+
+    private static void migrate(Connection connection) throws Exception {
+        Database database = DatabaseFactory.getInstance()
+                .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+        new CommandScope(UpdateCommandStep.COMMAND_NAME)
+                .addArgumentValue(DbUrlConnectionArgumentsCommandStep.DATABASE_ARG, database)
+                .addArgumentValue(UpdateCommandStep.CHANGELOG_FILE_ARG, "db/changelog/db.changelog-master.xml")
+                .execute();
+
+        // история за два года должна лечь в свои партиции, а не в default
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT create_transaction_partition(month::DATE) FROM generate_series("
+                    + "date_trunc('month', CURRENT_DATE) - INTERVAL '24 months', date_trunc('month', CURRENT_DATE),"
+                    + " INTERVAL '1 month') AS month");
+        }
+    }
+
+    private static void createFlatLedger(Connection connection) throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE transactions_flat (LIKE transactions INCLUDING DEFAULTS)");
+            statement.execute("ALTER TABLE transactions_flat ADD PRIMARY KEY (id)");
+            statement.execute("CREATE INDEX ON transactions_flat (wallet_id)");
+            statement.execute("CREATE INDEX ON transactions_flat (created_at)");
+            statement.execute("CREATE INDEX ON transactions_flat (wallet_id, created_at)");
+        }
+    }
+
+    private static void fill(Connection connection, String table, long rows) throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO " + table
+                    + " (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)"
+                    + " SELECT gen_random_uuid(), ('00000000-0000-4000-8000-' || lpad((n % " + WALLETS + ")::TEXT, 12, '0'))::UUID,"
+                    + " 'DEPOSIT', 1.00, 0.00, 1.00,"
+                    + " date_trunc('month', CURRENT_DATE) - random() * INTERVAL '730 days'"
+                    + " FROM generate_series(1, " + rows + ") AS n");
+            statement.execute("VACUUM ANALYZE " + table);
+        }
+    }
+
+    /**
+     * Одиночные инсерты в автокоммите, как у горячего пути; возвращает p50 и p99 в микросекундах
+     */
+    private static long[] measure(Connection connection, String table) throws Exception {
+        long[] latencies = new long[MEASURED_INSERTS];
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table
+                + " (id, wallet_id, operation_type, amount, balance_before, balance_after, created_at)"
+                + " VALUES (?, ?, 'DEPOSIT', ?, ?, ?, CURRENT_TIMESTAMP)")) {
+            for (int i = 0; i < WARMUP_INSERTS + MEASURED_INSERTS; i++) {
+                insert.setObject(1, UUID.randomUUID());
+                insert.setObject(2, new UUID(0x0000000000004000L, 0x8000000000000000L | (i % WALLETS)));
+                insert.setBigDecimal(3, BigDecimal.ONE);
+                insert.setBigDecimal(4, BigDecimal.ZERO);
+                insert.setBigDecimal(5, BigDecimal.ONE);
+                long start = System.nanoTime();
+                insert.executeUpdate();
+                if (i >= WARMUP_INSERTS) {
+                    latencies[i - WARMUP_INSERTS] = (System.nanoTime() - start) / 1_000;
+                }
+            }
+        }
+        Arrays.sort(latencies);
+        return new long[]{latencies[latencies.length / 2], latencies[(int) (latencies.length * 0.99)]};
+    }
+}
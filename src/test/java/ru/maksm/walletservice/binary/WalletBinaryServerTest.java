@@ -0,0 +1,193 @@
+package ru.maksm.walletservice.binary;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.maksm.walletservice.dto.WalletBalanceResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.service.WalletService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Сервер на loopback с WalletService-заглушкой и настоящий клиент
+ */
+class WalletBinaryServerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private WalletService walletService;
+    private WalletBinaryServer server;
+    private WalletBinaryClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        walletService = mock(WalletService.class);
+        server = new WalletBinaryServer(walletService, meterRegistry, "127.0.0.1", 0, 8, 4);
+        server.start();
+        client = WalletBinaryClient.connect("127.0.0.1", server.port());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    void pipelinedRequestsAreMatchedByCorrelationId() throws Exception {
+        // ответ на первый запрос задерживаем: остальные обгоняют его и все равно находят своих отправителей
+        CountDownLatch release = new CountDownLatch(1);
+        when(walletService.performOperation(any(), isNull(), isNull(), isNull())).thenAnswer(invocation -> {
+            WalletOperationRequest request = invocation.getArgument(0);
+            if (request.getAmount().minor() == 100) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return new WalletOperationResponse(request.getWalletId(), request.getAmount(), "ok", request.getAmount().minor());
+        });
+
+        // запросов больше, чем max-in-flight: сервер притормаживает чтение, но ничего не теряет
+        List<CompletableFuture<WalletOperationResponse>> futures = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            futures.add(client.performOperation(request(UUID.randomUUID(), OperationType.DEPOSIT, i * 100L)));
+        }
+        futures.get(futures.size() - 1).thenRun(release::countDown);
+        release.await(5, TimeUnit.SECONDS);
+
+        for (int i = 0; i < futures.size(); i++) {
+            WalletOperationResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertThat(response.getBalance()).isEqualTo(Money.ofMinor((i + 1) * 100L));
+            assertThat(response.getVersion()).isEqualTo((i + 1) * 100L);
+        }
+        assertThat(client.inFlight()).isZero();
+        assertThat(meterRegistry.get("wallet.binary.responses").tag("status", "OK").counter().count()).isEqualTo(50.0);
+    }
+
+    @Test
+    void framesBeyondMaxInFlightWaitInBufferUntilResponsesGoOut() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(walletService.performOperation(any(), isNull(), isNull(), isNull())).thenAnswer(invocation -> {
+            started.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            release.await(5, TimeUnit.SECONDS);
+            running.decrementAndGet();
+            WalletOperationRequest request = invocation.getArgument(0);
+            return new WalletOperationResponse(request.getWalletId(), request.getAmount(), "ok", 1L);
+        });
+
+        try (SocketChannel raw = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()))) {
+            // 20 кадров одной записью - в буфер чтения сервера они приходят разом, воркеров 8, предел 4
+            ByteBuffer pipelined = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i <= 20; i++) {
+                pipelined.put(WalletFrame.encodeOperation(i, request(UUID.randomUUID(), OperationType.DEPOSIT, i), null));
+            }
+            pipelined.flip();
+            while (pipelined.hasRemaining()) {
+                raw.write(pipelined);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (started.get() < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            assertThat(started).hasValue(4);
+
+            release.countDown();
+            List<WalletFrame.Response> responses = new ArrayList<>();
+            ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+            while (responses.size() < 20 && raw.read(input) >= 0) {
+                input.flip();
+                ByteBuffer body;
+                while ((body = WalletFrame.nextFrame(input)) != null) {
+                    responses.add(WalletFrame.decodeResponse(body));
+                }
+                input.compact();
+            }
+
+            assertThat(responses).hasSize(20).extracting(WalletFrame.Response::status).containsOnly(WalletFrame.Status.OK);
+            assertThat(responses).extracting(WalletFrame.Response::correlationId).containsExactlyInAnyOrder(
+                    LongStream.rangeClosed(1, 20).boxed().toArray(Long[]::new));
+        }
+        assertThat(maxRunning.get()).isLessThanOrEqualTo(4);
+        assertThat(started).hasValue(20);
+    }
+
+    @Test
+    void errorsBecomeSameExceptionsAsRest() {
+        UUID walletId = UUID.randomUUID();
+        when(walletService.performOperation(any(), eq("key-1"), isNull(), isNull()))
+                .thenThrow(new InsufficientFundsException("Недостаточно средств. Баланс: 1.00"));
+        when(walletService.getBalance(walletId, 7L)).thenThrow(new WalletQueueFullException("Кошелек занят", 2));
+
+        assertThatThrownBy(() -> client.performOperation(request(walletId, OperationType.WITHDRAW, 500), "key-1").join())
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(InsufficientFundsException.class)
+                .hasRootCauseMessage("Недостаточно средств. Баланс: 1.00");
+        assertThatThrownBy(() -> client.getBalance(walletId, 7L).join())
+                .hasCauseInstanceOf(WalletQueueFullException.class)
+                .satisfies(e -> assertThat(((WalletQueueFullException) e.getCause()).getRetryAfterSeconds()).isEqualTo(2));
+    }
+
+    @Test
+    void invalidOperationIsRejectedWithoutCallingService() {
+        assertThatThrownBy(() -> client.performOperation(request(UUID.randomUUID(), OperationType.REBALANCE, 100)).join())
+                .hasCauseInstanceOf(IllegalArgumentException.class)
+                .hasRootCauseMessage("Недопустимый тип операции");
+        assertThatThrownBy(() -> client.performOperation(request(UUID.randomUUID(), OperationType.DEPOSIT, 0)).join())
+                .hasRootCauseMessage("Сумма должна быть положительной");
+
+        verify(walletService, never()).performOperation(any(), any(), any(), any());
+    }
+
+    @Test
+    void balanceCarriesVersion() throws Exception {
+        UUID walletId = UUID.randomUUID();
+        when(walletService.getBalance(walletId, null))
+                .thenReturn(new WalletBalanceResponse(walletId, Money.parse("12.34"), 9L));
+
+        WalletBalanceResponse response = client.getBalance(walletId, null).get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("12.34"));
+        assertThat(response.getVersion()).isEqualTo(9L);
+    }
+
+    private static WalletOperationRequest request(UUID walletId, OperationType type, long amountMinor) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.ofMinor(amountMinor));
+        return request;
+    }
+}
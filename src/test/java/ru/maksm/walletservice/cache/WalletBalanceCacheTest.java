@@ -0,0 +1,68 @@
+package ru.maksm.walletservice.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import ru.maksm.walletservice.model.Money;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WalletBalanceCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void staleVersionDoesNotOverwriteNewerEntry() {
+        WalletBalanceCache cache = cache("bounded", 1000);
+        UUID walletId = UUID.randomUUID();
+
+        cache.put(walletId, Money.parse("150.00"), 5L);
+        cache.put(walletId, Money.parse("100.00"), 4L);
+
+        assertThat(cache.get(walletId)).get()
+                .satisfies(cached -> assertThat(cached.balance()).isEqualTo(Money.parse("150.00")));
+    }
+
+    @Test
+    void entryOlderThanMaxStalenessIsMiss() {
+        WalletBalanceCache cache = cache("bounded", 1000);
+        UUID walletId = UUID.randomUUID();
+
+        cache.put(walletId, Money.ofMinor(1_000), 1L);
+        clock.addAndGet(Duration.ofSeconds(3).toNanos());
+
+        assertThat(cache.get(walletId)).isEmpty();
+        assertThat(meterRegistry.get("cache.gets").tag("result", "miss").counter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void strictModeBypassesCache() {
+        WalletBalanceCache cache = cache("strict", 1000);
+        UUID walletId = UUID.randomUUID();
+
+        cache.put(walletId, Money.ofMinor(1_000), 1L);
+
+        assertThat(cache.get(walletId)).isEmpty();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void sizeIsBounded() {
+        WalletBalanceCache cache = cache("bounded", 160);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(UUID.randomUUID(), Money.ofMinor(100), 1L);
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(160);
+        assertThat(meterRegistry.get("cache.evictions").counter().count()).isGreaterThan(0.0);
+    }
+
+    private WalletBalanceCache cache(String consistency, int maxSize) {
+        return new WalletBalanceCache(meterRegistry, consistency, Duration.ofSeconds(2), maxSize, clock::get);
+    }
+}
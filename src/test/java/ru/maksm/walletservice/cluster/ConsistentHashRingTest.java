@@ -0,0 +1,61 @@
+package ru.maksm.walletservice.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConsistentHashRingTest {
+
+    private static final List<String> THREE = List.of("http://127.0.0.1:8081", "http://127.0.0.1:8082", "http://127.0.0.1:8083");
+
+    private final List<UUID> wallets = IntStream.range(0, 30_000).mapToObj(i -> UUID.randomUUID()).toList();
+
+    @Test
+    void ownerDoesNotDependOnMemberOrder() {
+        ConsistentHashRing ring = new ConsistentHashRing(THREE, 128);
+        ConsistentHashRing reordered = new ConsistentHashRing(List.of(THREE.get(2), THREE.get(0), THREE.get(1)), 128);
+
+        assertThat(wallets).allSatisfy(walletId -> assertThat(reordered.owner(walletId)).isEqualTo(ring.owner(walletId)));
+    }
+
+    @Test
+    void walletsSpreadEvenly() {
+        ConsistentHashRing ring = new ConsistentHashRing(THREE, 128);
+
+        Map<String, Integer> owned = new HashMap<>();
+        wallets.forEach(walletId -> owned.merge(ring.owner(walletId), 1, Integer::sum));
+
+        assertThat(owned).hasSize(3);
+        assertThat(owned.values()).allSatisfy(count -> assertThat(count).isBetween(7_500, 12_500));
+    }
+
+    @Test
+    void addingMemberMovesOnlyItsShare() {
+        ConsistentHashRing before = new ConsistentHashRing(THREE, 128);
+        String added = "http://127.0.0.1:8084";
+        ConsistentHashRing after = new ConsistentHashRing(
+                List.of(THREE.get(0), THREE.get(1), THREE.get(2), added), 128);
+
+        long moved = 0;
+        for (UUID walletId : wallets) {
+            String owner = after.owner(walletId);
+            if (!owner.equals(before.owner(walletId))) {
+                // кошельки переезжают только к новому участнику, между старыми ничего не перемешивается
+                assertThat(owner).isEqualTo(added);
+                moved++;
+            }
+        }
+        assertThat(moved).isBetween(5_000L, 10_000L);
+    }
+
+    @Test
+    void emptyRingHasNoOwner() {
+        assertThat(new ConsistentHashRing(List.of(), 128).owner(UUID.randomUUID())).isNull();
+    }
+}
@@ -0,0 +1,263 @@
+package ru.maksm.walletservice.cluster;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.client.RestClient;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Два участника на loopback: этот инстанс (self) и заглушка второго на HttpServer, общий секрет SECRET
+ */
+class WalletOwnershipTest {
+
+    private static final String SECRET = "cluster-secret";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger handoffRequests = new AtomicInteger();
+    private final AtomicReference<String> forwardedBy = new AtomicReference<>();
+    private final AtomicReference<String> forwardSignature = new AtomicReference<>();
+    private final AtomicReference<String> handoffSignature = new AtomicReference<>();
+
+    private HttpServer peer;
+    private String self;
+    private String peerAddress;
+    private ClusterMembership membership;
+    private WalletOwnership ownership;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.createContext("/api/v1/wallet", this::operation);
+        peer.createContext("/api/v1/cluster/handoff/", exchange -> {
+            handoffRequests.incrementAndGet();
+            handoffSignature.set(exchange.getRequestHeaders().getFirst(WalletOwnership.SIGNATURE_HEADER));
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        peer.start();
+
+        peerAddress = "http://127.0.0.1:" + peer.getAddress().getPort();
+        self = "http://127.0.0.1:" + freePort();
+        membership = membership(List.of(self, peerAddress));
+        ownership = ownership(membership, meterRegistry, SECRET);
+    }
+
+    @AfterEach
+    void tearDown() {
+        peer.stop(0);
+    }
+
+    @Test
+    void operationOnPeerWalletIsForwardedToOwner() {
+        UUID walletId = walletOwnedBy(peerAddress);
+        assertThat(ownership.isRemote(walletId)).isTrue();
+
+        Optional<WalletOperationResponse> response = ownership.forward(request(walletId, "10.00"), null);
+
+        assertThat(response).get().satisfies(r -> {
+            assertThat(r.getBalance()).isEqualTo(Money.parse("10.00"));
+            assertThat(r.getVersion()).isEqualTo(7L);
+        });
+        assertThat(forwardedBy.get()).isEqualTo(self);
+        // владелец с тем же секретом принимает пересылку
+        assertThat(ownership.isTrustedForwarder(forwardedBy.get(), forwardSignature.get(), request(walletId, "10.00")))
+                .isTrue();
+    }
+
+    @Test
+    void ownerErrorBecomesSameException() {
+        UUID walletId = walletOwnedBy(peerAddress);
+
+        assertThatThrownBy(() -> ownership.forward(request(walletId, "999.00"), null))
+                .isInstanceOf(InsufficientFundsException.class)
+                .hasMessage("Недостаточно средств");
+    }
+
+    @Test
+    void unreachableOwnerFallsBackToLocalExecution() {
+        ClusterMembership withDeadPeer = membership(List.of(self, "http://127.0.0.1:" + freePort()));
+        WalletOwnership local = ownership(withDeadPeer, new SimpleMeterRegistry(), SECRET);
+        UUID walletId = UUID.randomUUID();
+        while (!local.isRemote(walletId)) {
+            walletId = UUID.randomUUID();
+        }
+
+        assertThat(local.forward(request(walletId, "10.00"), null)).isEmpty();
+    }
+
+    @Test
+    void newOwnerAsksPreviousOwnerOnceBeforeFirstOperations() throws Exception {
+        // кошелек принадлежал заглушке, она выходит из кластера - теперь он наш
+        UUID walletId = walletOwnedBy(peerAddress);
+        membership.update(List.of(self));
+        assertThat(ownership.isRemote(walletId)).isFalse();
+        assertThat(membership.previousOwner(walletId)).isEqualTo(peerAddress);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AtomicInteger applied = new AtomicInteger();
+            List<Future<Integer>> operations = executor.invokeAll(List.of(
+                    () -> ownership.runAsOwner(walletId, true, applied::incrementAndGet),
+                    () -> ownership.runAsOwner(walletId, true, applied::incrementAndGet),
+                    () -> ownership.runAsOwner(walletId, true, applied::incrementAndGet),
+                    () -> ownership.runAsOwner(walletId, true, applied::incrementAndGet)));
+            for (Future<Integer> operation : operations) {
+                operation.get();
+            }
+            assertThat(applied).hasValue(4);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(handoffRequests).hasValue(1);
+        assertThat(ownership.isSignedHandoff(walletId, self, handoffSignature.get())).isTrue();
+        assertThat(meterRegistry.get("wallet.cluster.handoffs").tag("outcome", "drained").counter().count())
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    void releasedWalletIsForwardedToNewOwner() {
+        // кошелек был нашим, по новому составу он у заглушки - она и просит передачу
+        UUID walletId = walletOwnedBy(self);
+        membership.update(List.of(peerAddress));
+
+        assertThat(ownership.release(walletId, peerAddress)).isTrue();
+
+        assertThat(ownership.isRemote(walletId)).isTrue();
+        assertThat(ownership.forward(request(walletId, "10.00"), null)).isPresent();
+    }
+
+    @Test
+    void handoffIsRefusedToNonMembersAndNonOwners() {
+        UUID ours = walletOwnedBy(self);
+        UUID peers = walletOwnedBy(peerAddress);
+
+        assertThat(ownership.isHandoffTarget(peers, peerAddress)).isTrue();
+        assertThat(ownership.isHandoffTarget(ours, peerAddress)).isFalse();
+        assertThat(ownership.isHandoffTarget(peers, "http://attacker.example")).isFalse();
+        assertThatThrownBy(() -> ownership.release(ours, "http://attacker.example"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(ownership.isRemote(ours)).isFalse();
+
+        assertThat(ownership.isSignedHandoff(peers, peerAddress, null)).isFalse();
+        assertThat(ownership.isSignedHandoff(peers, peerAddress, signed(SECRET, peerAddress, WalletOwnership.handoffSubject(ours))))
+                .isFalse();
+        assertThat(ownership.isSignedHandoff(peers, peerAddress, signed(SECRET, peerAddress, WalletOwnership.handoffSubject(peers))))
+                .isTrue();
+    }
+
+    @Test
+    void spoofedForwardedByHeaderIsRejected() {
+        WalletOperationRequest request = request(walletOwnedBy(self), "10.00");
+
+        // клиент подставил адрес участника: без подписи, с чужим секретом или подписью другой операции - не в счет
+        assertThat(ownership.isTrustedForwarder(peerAddress, null, request)).isFalse();
+        assertThat(ownership.isTrustedForwarder(peerAddress, "garbage", request)).isFalse();
+        assertThat(ownership.isTrustedForwarder(peerAddress,
+                signed("guessed-secret", peerAddress, WalletOwnership.operationSubject(request)), request)).isFalse();
+        assertThat(ownership.isTrustedForwarder(peerAddress,
+                signed(SECRET, peerAddress, WalletOwnership.operationSubject(request(request.getWalletId(), "1.00"))),
+                request)).isFalse();
+        // подслушанная подпись участника не подходит другому отправителю и устаревает
+        assertThat(ownership.isTrustedForwarder("http://attacker.example",
+                signed(SECRET, "http://attacker.example", WalletOwnership.operationSubject(request)), request)).isFalse();
+        String stale = new ClusterSignature(SECRET, Duration.ofMinutes(1)).sign(peerAddress,
+                WalletOwnership.operationSubject(request), System.currentTimeMillis() / 1000 - 120);
+        assertThat(ownership.isTrustedForwarder(peerAddress, stale, request)).isFalse();
+
+        assertThat(ownership.isTrustedForwarder(peerAddress + "/",
+                signed(SECRET, peerAddress, WalletOwnership.operationSubject(request)), request)).isTrue();
+    }
+
+    @Test
+    void clusterModeDoesNotStartWithoutSecret() {
+        assertThatThrownBy(() -> ownership(membership, new SimpleMeterRegistry(), ""))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("wallet.cluster.secret");
+    }
+
+    private void operation(HttpExchange exchange) throws IOException {
+        forwardedBy.set(exchange.getRequestHeaders().getFirst(WalletOwnership.FORWARDED_BY_HEADER));
+        forwardSignature.set(exchange.getRequestHeaders().getFirst(WalletOwnership.SIGNATURE_HEADER));
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String walletId = body.replaceAll(".*\"walletId\"\\s*:\\s*\"([^\"]+)\".*", "$1");
+
+        int status = body.contains("999.00") ? 422 : 200;
+        String response = status == 200
+                ? "{\"walletId\":\"" + walletId + "\",\"balance\":10.00,\"message\":\"ok\",\"version\":7}"
+                : "{\"walletId\":\"" + walletId + "\",\"balance\":null,\"message\":\"Недостаточно средств\"}";
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private UUID walletOwnedBy(String owner) {
+        UUID walletId = UUID.randomUUID();
+        while (!owner.equals(membership.owner(walletId))) {
+            walletId = UUID.randomUUID();
+        }
+        return walletId;
+    }
+
+    private static WalletOwnership ownership(ClusterMembership membership, SimpleMeterRegistry meterRegistry, String secret) {
+        return new WalletOwnership(membership, RestClient.builder(), meterRegistry, Duration.ofSeconds(2),
+                Duration.ofSeconds(1), Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ofSeconds(30),
+                secret, Duration.ofMinutes(1));
+    }
+
+    private static String signed(String secret, String sender, String subject) {
+        return new ClusterSignature(secret, Duration.ofMinutes(1)).sign(sender, subject);
+    }
+
+    private ClusterMembership membership(List<String> members) {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("wallet.cluster.members", String.join(",", members));
+        return new ClusterMembership(environment, new SimpleMeterRegistry(), true, self, 128,
+                Duration.ofSeconds(30), "jpa");
+    }
+
+    private static WalletOperationRequest request(UUID walletId, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(OperationType.DEPOSIT);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.maksm.walletservice.datasource;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Две локальные H2 вместо primary и реплики: в каждой таблица с именем базы, по ней видно, куда ушло чтение
+ */
+class ReadRoutingDataSourceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private ReadReplica replica;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate readOnly;
+    private TransactionTemplate readWrite;
+
+    @BeforeEach
+    void setUp() {
+        DataSource primary = database("primary");
+        replica = new ReadReplica("replica-0", database("replica"));
+
+        ReadRoutingDataSource routing = new ReadRoutingDataSource(primary, List.of(replica), Duration.ofSeconds(1),
+                meterRegistry);
+        DataSource dataSource = new LazyConnectionDataSourceProxy(routing);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        readWrite = new TransactionTemplate(transactionManager);
+        readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+    }
+
+    @Test
+    void readOnlyTransactionGoesToFreshReplica() {
+        replica.recordLag(100);
+
+        assertThat(readOnly()).isEqualTo("replica");
+        assertThat(ReadConsistency.takeLastTarget()).isEqualTo(ReadConsistency.Target.REPLICA);
+        assertThat(routes("replica-0", "replica")).isEqualTo(1.0);
+    }
+
+    @Test
+    void writeTransactionAlwaysGoesToPrimary() {
+        replica.recordLag(0);
+        // ленивый прокси при первом коннекте сам читает настройки по умолчанию вне транзакции - тоже primary
+        double before = routes("primary", "read_write");
+
+        assertThat(readWrite()).isEqualTo("primary");
+        assertThat(ReadConsistency.takeLastTarget()).isEqualTo(ReadConsistency.Target.PRIMARY);
+        assertThat(routes("primary", "read_write")).isGreaterThan(before);
+    }
+
+    @Test
+    void laggingReplicaFallsBackToPrimary() {
+        replica.recordLag(5_000);
+
+        assertThat(readOnly()).isEqualTo("primary");
+        assertThat(routes("primary", "stale")).isEqualTo(1.0);
+
+        // клиент согласен на большее отставание
+        String relaxed = ReadConsistency.withMaxStaleness(Duration.ofSeconds(10), this::readOnly);
+        assertThat(relaxed).isEqualTo("replica");
+    }
+
+    @Test
+    void unknownLagFallsBackToPrimary() {
+        replica.recordLag(0);
+        replica.markUnknown();
+
+        assertThat(readOnly()).isEqualTo("primary");
+        assertThat(routes("primary", "stale")).isEqualTo(1.0);
+    }
+
+    @Test
+    void onPrimaryBypassesReplica() {
+        replica.recordLag(0);
+
+        String target = ReadConsistency.onPrimary(this::readOnly);
+
+        assertThat(target).isEqualTo("primary");
+        assertThat(routes("primary", "forced")).isEqualTo(1.0);
+        assertThat(ReadConsistency.maxStaleness()).isNull();
+    }
+
+    private String readOnly() {
+        return readOnly.execute(status -> whereAmI());
+    }
+
+    private String readWrite() {
+        return readWrite.execute(status -> whereAmI());
+    }
+
+    private String whereAmI() {
+        return jdbcTemplate.queryForObject("SELECT name FROM whoami", String.class);
+    }
+
+    private double routes(String target, String reason) {
+        return meterRegistry.get("wallet.datasource.route").tag("target", target).tag("reason", reason)
+                .counter().count();
+    }
+
+    private static DataSource database(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + "-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("CREATE TABLE whoami (name VARCHAR(16))");
+        jdbc.update("INSERT INTO whoami VALUES (?)", name);
+        return dataSource;
+    }
+}
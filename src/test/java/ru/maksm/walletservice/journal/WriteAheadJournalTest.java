@@ -0,0 +1,114 @@
+package ru.maksm.walletservice.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WriteAheadJournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path dir;
+
+    private final UUID walletId = UUID.randomUUID();
+
+    @Test
+    void appendedRecordsSurviveReopen() throws IOException {
+        List<JournalRecord> written = records(3);
+        WriteAheadJournal journal = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+        journal.awaitDurable(journal.append(written));
+        // без close: как после kill -9
+        List<WriteAheadJournal.Entry> before = journal.peekDurable(10);
+
+        WriteAheadJournal reopened = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+
+        List<WriteAheadJournal.Entry> recovered = reopened.peekDurable(10);
+        assertThat(recovered).extracting(WriteAheadJournal.Entry::record).containsExactlyElementsOf(written);
+        assertThat(recovered).extracting(WriteAheadJournal.Entry::endLsn)
+                .containsExactlyElementsOf(before.stream().map(WriteAheadJournal.Entry::endLsn).toList());
+        reopened.close();
+    }
+
+    @Test
+    void drainedRecordsAreNotReplayed() throws IOException {
+        WriteAheadJournal journal = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+        journal.awaitDurable(journal.append(records(3)));
+        long drainedLsn = journal.peekDurable(2).get(1).endLsn();
+        journal.close();
+
+        WriteAheadJournal reopened = WriteAheadJournal.open(dir, SEGMENT_SIZE, drainedLsn);
+
+        assertThat(reopened.peekDurable(10)).hasSize(1);
+        reopened.close();
+    }
+
+    @Test
+    void tornTailIsDropped() throws IOException {
+        WriteAheadJournal journal = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+        journal.awaitDurable(journal.append(records(2)));
+        long secondEnd = journal.peekDurable(2).get(1).endLsn();
+        journal.close();
+
+        // портим последний байт второй записи: crc не сойдется
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f}), secondEnd - 1);
+        }
+
+        WriteAheadJournal reopened = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+
+        assertThat(reopened.peekDurable(10)).hasSize(1);
+        reopened.close();
+    }
+
+    @Test
+    void fullyDrainedSegmentsAreDeleted() throws IOException {
+        WriteAheadJournal journal = WriteAheadJournal.open(dir, SEGMENT_SIZE, 0);
+        List<JournalRecord> written = records(200);
+        for (JournalRecord record : written) {
+            journal.awaitDurable(journal.append(List.of(record)));
+        }
+        assertThat(segments()).hasSizeGreaterThan(1);
+
+        journal.release(written.size());
+
+        assertThat(segments()).hasSize(1);
+        assertThat(journal.undrainedCount()).isZero();
+        journal.close();
+    }
+
+    private List<JournalRecord> records(int count) {
+        List<JournalRecord> records = new ArrayList<>(count);
+        LocalDateTime createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        Money balance = Money.ZERO;
+        for (int i = 0; i < count; i++) {
+            Money amount = Money.parse("10.50");
+            records.add(new JournalRecord(UUID.randomUUID(), walletId, OperationType.DEPOSIT, amount,
+                    balance, balance.plus(amount), i + 1, createdAt.plus(i, ChronoUnit.MICROS)));
+            balance = balance.plus(amount);
+        }
+        return records;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.maksm.walletservice.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HeavyHittersTest {
+
+    @Test
+    void hotWalletsSurviveLongColdTail() {
+        HeavyHitters heavyHitters = new HeavyHitters(64, 4);
+        List<UUID> hot = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        Random random = new Random(42);
+
+        // 3 горячих кошелька по ~10% трафика и 100 000 холодных по одной операции
+        for (int i = 0; i < 100_000; i++) {
+            heavyHitters.add(UUID.randomUUID(), 1);
+            if (random.nextInt(3) == 0) {
+                heavyHitters.add(hot.get(random.nextInt(hot.size())), 1);
+            }
+        }
+
+        assertThat(heavyHitters.top(3)).extracting(HeavyHitters.Entry::walletId)
+                .containsExactlyInAnyOrderElementsOf(hot);
+    }
+
+    @Test
+    void countsAreExactWhileUnderCapacity() {
+        HeavyHitters heavyHitters = new HeavyHitters(64, 4);
+        List<UUID> wallets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UUID walletId = UUID.randomUUID();
+            wallets.add(walletId);
+            heavyHitters.add(walletId, (i + 1) * 1_000L);
+        }
+        heavyHitters.add(wallets.get(0), 0);
+
+        List<HeavyHitters.Entry> top = heavyHitters.top(2);
+
+        assertThat(top).extracting(HeavyHitters.Entry::walletId).containsExactly(wallets.get(9), wallets.get(8));
+        assertThat(top).extracting(HeavyHitters.Entry::count).containsExactly(10_000L, 9_000L);
+        assertThat(top).extracting(HeavyHitters.Entry::error).containsOnly(0L);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.maksm.walletservice.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MoneyTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void parsesAndFormatsWithTwoDecimals() {
+        assertThat(Money.parse("10.5").minor()).isEqualTo(1050);
+        assertThat(Money.parse("10.500").minor()).isEqualTo(1050);
+        assertThat(Money.parse("-0.05").toString()).isEqualTo("-0.05");
+        assertThat(Money.ofMinor(10_000).toString()).isEqualTo("100.00");
+        assertThat(Money.of(new BigDecimal("1E+2"))).isEqualTo(Money.ofMinor(10_000));
+
+        assertThatThrownBy(() -> Money.parse("10.005")).isInstanceOf(ArithmeticException.class);
+        assertThatThrownBy(() -> Money.ofMinor(Long.MAX_VALUE).plus(Money.ofMinor(1)))
+                .isInstanceOf(ArithmeticException.class);
+    }
+
+    @Test
+    void jsonIsExact() throws Exception {
+        assertThat(objectMapper.readValue("100", Money.class)).isEqualTo(Money.ofMinor(10_000));
+        assertThat(objectMapper.readValue("\"12.34\"", Money.class)).isEqualTo(Money.ofMinor(1234));
+        assertThat(objectMapper.readValue("1.5e1", Money.class)).isEqualTo(Money.ofMinor(1500));
+        assertThat(objectMapper.writeValueAsString(Money.ofMinor(10_000))).isEqualTo("100.00");
+
+        assertThatThrownBy(() -> objectMapper.readValue("0.001", Money.class))
+                .isInstanceOf(InvalidFormatException.class);
+    }
+
+    @Test
+    @Timeout(5)
+    void rejectsHugeExponentWithoutRescaling() throws Exception {
+        // setScale на таком порядке не заканчивается, отказ должен прийти сразу
+        assertThatThrownBy(() -> objectMapper.readValue("1e99999999", Money.class))
+                .isInstanceOf(InvalidFormatException.class);
+        assertThatThrownBy(() -> objectMapper.readValue("\"1e-99999999\"", Money.class))
+                .isInstanceOf(InvalidFormatException.class);
+        assertThatThrownBy(() -> Money.of(new BigDecimal("1E+21"))).isInstanceOf(ArithmeticException.class);
+        assertThat(objectMapper.readValue("0e99999999", Money.class)).isEqualTo(Money.ZERO);
+    }
+}
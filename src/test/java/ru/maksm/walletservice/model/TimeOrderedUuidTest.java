@@ -0,0 +1,39 @@
+package ru.maksm.walletservice.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TimeOrderedUuidTest {
+
+    @Test
+    void carriesVersionVariantAndCreationTime() {
+        long before = System.currentTimeMillis();
+        UUID id = TimeOrderedUuid.next();
+        long after = System.currentTimeMillis();
+
+        assertThat(id.version()).isEqualTo(7);
+        assertThat(id.variant()).isEqualTo(2);
+        assertThat(TimeOrderedUuid.timestamp(id)).isBetween(before, after + 1);
+        assertThatThrownBy(() -> TimeOrderedUuid.timestamp(UUID.randomUUID()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void growsStrictlyWithinOneMillisecondAndInPostgresByteOrder() {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            ids.add(TimeOrderedUuid.next());
+        }
+
+        // postgres сравнивает uuid побайтно без знака - как строки в hex
+        for (int i = 1; i < ids.size(); i++) {
+            assertThat(ids.get(i).toString()).isGreaterThan(ids.get(i - 1).toString());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.controller.WalletController;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.IdempotencyKeyConflictException;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Идемпотентность на настоящем postgres: ключ занимает настоящий INSERT ... ON CONFLICT DO NOTHING,
+ * операция - sql движок в той же транзакции
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class IdempotencyServiceTest {
+
+    private static final String KEY = "payment-42";
+
+    private static final String LOCK_WAITERS_SQL = "SELECT COUNT(*) FROM pg_stat_activity"
+            + " WHERE datname = current_database() AND wait_event_type = 'Lock'";
+
+    private final UUID walletId = UUID.randomUUID();
+    private final AtomicInteger executions = new AtomicInteger();
+
+    private JdbcTemplate jdbcTemplate;
+    private SqlWalletWriteEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, 100.00)", walletId);
+        engine = new SqlWalletWriteEngine(jdbcTemplate);
+    }
+
+    @Test
+    void repeatedKeyReplaysOriginalResultWithoutExecutingAgain() {
+        IdempotencyService service = service();
+        WalletOperationResponse first = service.executeOnce(KEY, withdraw("30.00"), () -> execute(withdraw("30.00")));
+
+        // тот же инстанс отвечает из памяти
+        assertThat(service.findRecent(KEY, withdraw("30.00"))).contains(first);
+        // другой инстанс или после рестарта: из таблицы
+        IdempotencyService other = service();
+        assertThat(other.findRecent(KEY, withdraw("30.00"))).isEmpty();
+        assertThat(other.findStored(KEY, withdraw("30.00"))).contains(first);
+        // гонка мимо обеих проверок: ключ уже занят, операция не выполняется второй раз
+        assertThat(service().executeOnce(KEY, withdraw("30.00"), () -> execute(withdraw("30.00")))).isEqualTo(first);
+
+        assertThat(executions).hasValue(1);
+        assertThat(first.getBalance()).isEqualTo(Money.parse("70.00"));
+        assertThat(first.getVersion()).isEqualTo(1L);
+        assertThat(balance()).isEqualByComparingTo("70.00");
+        assertThat(ledgerRows()).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentRequestsWithOneKeyWriteOnceAndReplayTheResult() throws Exception {
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // первый занял ключ и списал, но еще не закоммитил
+            Future<WalletOperationResponse> first = executor.submit(() ->
+                    service().executeOnce(KEY, withdraw("30.00"), () -> {
+                        WalletOperationResponse response = execute(withdraw("30.00"));
+                        written.countDown();
+                        await(commit);
+                        return response;
+                    }));
+            assertThat(written.await(10, TimeUnit.SECONDS)).isTrue();
+
+            // второй упирается в уникальный индекс ключа и ждет исхода первой транзакции
+            Future<WalletOperationResponse> second = executor.submit(() ->
+                    service().executeOnce(KEY, withdraw("30.00"), () -> execute(withdraw("30.00"))));
+            awaitLockWaiter();
+            commit.countDown();
+
+            assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(first.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(executions).hasValue(1);
+        assertThat(balance()).isEqualByComparingTo("70.00");
+        assertThat(ledgerRows()).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM idempotency_keys", Integer.class)).isEqualTo(1);
+    }
+
+    @Test
+    void sameKeyWithDifferentBodyIsConflict() {
+        IdempotencyService service = service();
+        service.executeOnce(KEY, withdraw("30.00"), () -> execute(withdraw("30.00")));
+
+        assertThatThrownBy(() -> service.findRecent(KEY, withdraw("31.00")))
+                .isInstanceOf(IdempotencyKeyConflictException.class)
+                .hasMessageContaining(KEY);
+        assertThatThrownBy(() -> service().findStored(KEY, withdraw("31.00")))
+                .isInstanceOf(IdempotencyKeyConflictException.class);
+        assertThatThrownBy(() -> service().executeOnce(KEY, withdraw("31.00"), () -> execute(withdraw("31.00"))))
+                .isInstanceOf(IdempotencyKeyConflictException.class);
+        assertThat(executions).hasValue(1);
+        assertThat(balance()).isEqualByComparingTo("70.00");
+    }
+
+    @Test
+    void conflictIsAnsweredWith409() {
+        IdempotencyService service = service();
+        service.executeOnce(KEY, withdraw("30.00"), () -> execute(withdraw("30.00")));
+        WalletOperationRequest mismatch = withdraw("31.00");
+        WalletService walletService = mock(WalletService.class);
+        when(walletService.performOperation(mismatch, KEY, null, null)).thenAnswer(invocation ->
+                service.findRecent(KEY, mismatch).orElseThrow());
+        WalletController controller = new WalletController(walletService, null, null, null, null);
+
+        ResponseEntity<WalletOperationResponse> response = controller.performOperation(mismatch, KEY, null, null);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        assertThat(response.getBody().getMessage()).contains(KEY);
+    }
+
+    @Test
+    void failedOperationReleasesKeySoItCanBeClaimedAgain() {
+        IdempotencyService service = service();
+        assertThatThrownBy(() -> service.executeOnce(KEY, withdraw("130.00"), () -> execute(withdraw("130.00"))))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        // отказ откатил и занятие ключа
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM idempotency_keys WHERE idempotency_key = ?",
+                Integer.class, KEY)).isZero();
+        assertThat(service.findStored(KEY, withdraw("130.00"))).isEmpty();
+
+        // после пополнения ретрай с тем же ключом выполняется заново и занимает ключ
+        engine.apply(deposit("50.00"));
+        WalletOperationResponse retried = service.executeOnce(KEY, withdraw("130.00"), () -> execute(withdraw("130.00")));
+
+        assertThat(retried.getBalance()).isEqualTo(Money.parse("20.00"));
+        assertThat(executions).hasValue(2);
+        assertThat(service().findStored(KEY, withdraw("130.00"))).contains(retried);
+    }
+
+    private IdempotencyService service() {
+        return new IdempotencyService(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                100, Duration.ofDays(1));
+    }
+
+    private WalletOperationResponse execute(WalletOperationRequest request) {
+        executions.incrementAndGet();
+        return engine.apply(request);
+    }
+
+    private void awaitLockWaiter() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (jdbcTemplate.queryForObject(LOCK_WAITERS_SQL, Integer.class) == 0) {
+            assertThat(System.nanoTime() - deadline).as("второй запрос не дошел до ожидания ключа").isNegative();
+            Thread.sleep(10);
+        }
+    }
+
+    private BigDecimal balance() {
+        return jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class, walletId);
+    }
+
+    private int ledgerRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions WHERE wallet_id = ?",
+                Integer.class, walletId);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private WalletOperationRequest withdraw(String amount) {
+        return request(OperationType.WITHDRAW, amount);
+    }
+
+    private WalletOperationRequest deposit(String amount) {
+        return request(OperationType.DEPOSIT, amount);
+    }
+
+    private WalletOperationRequest request(OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
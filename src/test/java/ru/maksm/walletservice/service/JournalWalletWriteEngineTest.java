@@ -0,0 +1,125 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Журнальный движок на H2 в режиме PostgreSQL и журнале во временном каталоге
+ */
+class JournalWalletWriteEngineTest {
+
+    @TempDir
+    Path journalDir;
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:journal-engine;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        jdbcTemplate = spy(new JdbcTemplate(dataSource));
+        jdbcTemplate.execute("CREATE TABLE wallets (wallet_id UUID PRIMARY KEY, balance DECIMAL(19,2),"
+                + " version BIGINT, updated_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE transactions (id UUID, wallet_id UUID, operation_type VARCHAR(32),"
+                + " amount DECIMAL(19,2), balance_before DECIMAL(19,2), balance_after DECIMAL(19,2), created_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE journal_state (journal_id VARCHAR(64) PRIMARY KEY,"
+                + " drained_lsn BIGINT DEFAULT 0 NOT NULL, updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance, version) VALUES (?, 100.00, 0)", walletId);
+        // ON CONFLICT с колонками H2 не разбирает: строку журнала заводим сами
+        jdbcTemplate.update("INSERT INTO journal_state (journal_id) VALUES ('test')");
+        doReturn(0).when(jdbcTemplate).update(startsWith("INSERT INTO journal_state"), any(Object[].class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    @Timeout(20)
+    void stopDrainsEverythingBeforeClosingJournal() throws Exception {
+        // слив раз в минуту: до остановки поток слива записи не трогает
+        JournalWalletWriteEngine engine = engine(Duration.ofMinutes(1), Duration.ofMinutes(10));
+        for (int i = 0; i < 50; i++) {
+            engine.apply(request(OperationType.DEPOSIT, "1.00"));
+        }
+        engine.apply(request(OperationType.WITHDRAW, "30.00"));
+
+        engine.stop();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class,
+                walletId)).isEqualByComparingTo("120.00");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions", Integer.class)).isEqualTo(51);
+
+        // следующий старт ничего не повторяет
+        JournalWalletWriteEngine restarted = engine(Duration.ofMinutes(1), Duration.ofMinutes(10));
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions", Integer.class)).isEqualTo(51);
+        restarted.stop();
+    }
+
+    @Test
+    @Timeout(20)
+    void idleDrainedStateIsEvictedAndReloadedFromWallets() throws Exception {
+        JournalWalletWriteEngine engine = engine(Duration.ofMillis(10), Duration.ofMillis(1));
+        try {
+            engine.apply(request(OperationType.DEPOSIT, "25.00"));
+            Map<?, ?> states = (Map<?, ?>) ReflectionTestUtils.getField(engine, "states");
+            assertThat(states).hasSize(1);
+
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (!states.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertThat(states).isEmpty();
+
+            // выгружено только слитое: баланс из wallets тот же, что был в памяти
+            assertThat(engine.apply(request(OperationType.WITHDRAW, "5.00")).getBalance())
+                    .isEqualTo(Money.parse("120.00"));
+            assertThat(states).hasSize(1);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    private JournalWalletWriteEngine engine(Duration drainInterval, Duration stateIdleTimeout) throws Exception {
+        JournalWalletWriteEngine engine = new JournalWalletWriteEngine(jdbcTemplate,
+                new DataSourceTransactionManager(dataSource), new SimpleMeterRegistry(), "test", journalDir,
+                DataSize.ofKilobytes(64), 1000, drainInterval, 1_000_000, stateIdleTimeout);
+        engine.start();
+        return engine;
+    }
+
+    private WalletOperationRequest request(OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
@@ -0,0 +1,113 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.dto.WalletBalanceAtResponse;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Баланс на момент на настоящем postgres; balance_before/after сервис не читает, в ledger они нулевые
+ *
+ * ledger кошелька (текущий баланс 150.00 = 100.00 в основной строке + 50.00 в слоте):
+ * 05-01 +100, 05-02 -30, 05-02 REBALANCE 50 в слот, 05-03 +50 в слот, 05-04 перевод +40, 05-05 перевод -10
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class PointInTimeBalanceServiceTest {
+
+    private static final LocalDateTime MAY_1 = LocalDateTime.of(2024, 5, 1, 0, 0);
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private JdbcTemplate jdbcTemplate;
+    private PointInTimeBalanceService service;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance, created_at) VALUES (?, 100.00, ?)",
+                walletId, Timestamp.valueOf(MAY_1));
+        jdbcTemplate.update("INSERT INTO wallet_slots (wallet_id, slot, balance) VALUES (?, 0, 50.00)", walletId);
+        operation("DEPOSIT", "100.00", null, MAY_1.plusHours(10));
+        operation("WITHDRAW", "30.00", null, MAY_1.plusDays(1).plusHours(10));
+        operation("REBALANCE", "50.00", null, MAY_1.plusDays(1).plusHours(11));
+        operation("REBALANCE", "50.00", 0, MAY_1.plusDays(1).plusHours(11));
+        operation("DEPOSIT", "50.00", 0, MAY_1.plusDays(2).plusHours(10));
+        operation("TRANSFER_IN", "40.00", null, MAY_1.plusDays(3).plusHours(10));
+        operation("TRANSFER_OUT", "10.00", null, MAY_1.plusDays(4).plusHours(10));
+
+        ConnectionPermitGate permitGate = new ConnectionPermitGate(new SimpleMeterRegistry(), false, 1, Duration.ofSeconds(1));
+        service = new PointInTimeBalanceService(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                permitGate, false, 24);
+    }
+
+    @Test
+    void countsForwardFromNearestEarlierCheckpoint() {
+        checkpoint(MAY_1.plusDays(2).plusHours(12), "120.00");
+
+        WalletBalanceAtResponse response = service.balanceAt(walletId, MAY_1.plusDays(3).plusHours(12));
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("160.00"));
+        assertThat(response.getCheckpointAsOf()).isEqualTo(MAY_1.plusDays(2).plusHours(12));
+        assertThat(response.getScannedOperations()).isEqualTo(1);
+    }
+
+    @Test
+    void countsBackFromLaterCheckpointBeforeFirstOne() {
+        checkpoint(MAY_1.plusDays(2).plusHours(12), "120.00");
+
+        WalletBalanceAtResponse response = service.balanceAt(walletId, MAY_1.plusDays(1).plusHours(12));
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("70.00"));
+        assertThat(response.getCheckpointAsOf()).isEqualTo(MAY_1.plusDays(2).plusHours(12));
+        assertThat(response.getScannedOperations()).isEqualTo(1);
+    }
+
+    @Test
+    void withoutCheckpointsCountsBackFromCurrentBalanceAcrossSlots() {
+        WalletBalanceAtResponse response = service.balanceAt(walletId, MAY_1.plusDays(1).plusHours(12));
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("70.00"));
+        assertThat(response.getCheckpointAsOf()).isNull();
+        assertThat(response.getScannedOperations()).isEqualTo(3);
+
+        // операция ровно в asOf уже учтена
+        assertThat(service.balanceAt(walletId, MAY_1.plusHours(10)).getBalance()).isEqualTo(Money.parse("100.00"));
+    }
+
+    @Test
+    void rejectsMomentsOutsideWalletLifetime() {
+        assertThatThrownBy(() -> service.balanceAt(walletId, MAY_1.minusDays(1)))
+                .isInstanceOf(WalletNotFoundException.class);
+        assertThatThrownBy(() -> service.balanceAt(UUID.randomUUID(), MAY_1.plusDays(1)))
+                .isInstanceOf(WalletNotFoundException.class);
+        assertThatThrownBy(() -> service.balanceAt(walletId, LocalDateTime.now().plusMinutes(1)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private void operation(String type, String amount, Integer slot, LocalDateTime createdAt) {
+        jdbcTemplate.update("INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before,"
+                + " balance_after, slot, created_at) VALUES (?, ?, ?, ?, 0, 0, ?, ?)",
+                UUID.randomUUID(), walletId, type, new BigDecimal(amount), slot, Timestamp.valueOf(createdAt));
+    }
+
+    private void checkpoint(LocalDateTime asOf, String balance) {
+        jdbcTemplate.update("INSERT INTO wallet_balance_checkpoints (wallet_id, as_of, balance) VALUES (?, ?, ?)",
+                walletId, Timestamp.valueOf(asOf), new BigDecimal(balance));
+    }
+}
@@ -0,0 +1,148 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * sql движок на настоящем postgres: условный UPDATE и инсерт в ledger одним выражением через CTE
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class SqlWalletWriteEngineTest {
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private JdbcTemplate jdbcTemplate;
+    private SqlWalletWriteEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, 100.00)", walletId);
+        engine = new SqlWalletWriteEngine(jdbcTemplate);
+    }
+
+    @Test
+    void depositAndWithdrawEachMoveBalanceBumpVersionAndWriteOneLedgerRow() {
+        WalletOperationResponse deposit = engine.apply(request(walletId, OperationType.DEPOSIT, "25.00"));
+
+        assertThat(deposit.getBalance()).isEqualTo(Money.parse("125.00"));
+        assertThat(deposit.getVersion()).isEqualTo(1L);
+        assertWallet("125.00", 1);
+        assertThat(ledger()).singleElement().satisfies(row -> assertRow(row, "DEPOSIT", "25.00", "100.00", "125.00"));
+
+        WalletOperationResponse withdraw = engine.apply(request(walletId, OperationType.WITHDRAW, "40.00"));
+
+        assertThat(withdraw.getBalance()).isEqualTo(Money.parse("85.00"));
+        assertThat(withdraw.getVersion()).isEqualTo(2L);
+        assertWallet("85.00", 2);
+        assertThat(ledger()).hasSize(2)
+                .last().satisfies(row -> assertRow(row, "WITHDRAW", "40.00", "125.00", "85.00"));
+    }
+
+    @Test
+    void withdrawOfWholeBalanceLeavesZero() {
+        assertThat(engine.apply(request(walletId, OperationType.WITHDRAW, "100.00")).getBalance())
+                .isEqualTo(Money.parse("0.00"));
+        assertWallet("0.00", 1);
+    }
+
+    @Test
+    void unknownWalletIsNotFoundRatherThanInsufficientFunds() {
+        UUID unknown = UUID.randomUUID();
+
+        assertThatThrownBy(() -> engine.apply(request(unknown, OperationType.DEPOSIT, "5.00")))
+                .isInstanceOf(WalletNotFoundException.class)
+                .hasMessageContaining(unknown.toString());
+        assertThatThrownBy(() -> engine.apply(request(unknown, OperationType.WITHDRAW, "5.00")))
+                .isInstanceOf(WalletNotFoundException.class);
+        assertThat(ledger()).isEmpty();
+    }
+
+    @Test
+    void withdrawBeyondBalanceIsInsufficientFundsAndChangesNothing() {
+        assertThatThrownBy(() -> engine.apply(request(walletId, OperationType.WITHDRAW, "100.01")))
+                .isInstanceOf(InsufficientFundsException.class)
+                .hasMessageContaining("100.00");
+
+        assertWallet("100.00", 0);
+        assertThat(ledger()).isEmpty();
+    }
+
+    @Test
+    void batchAppliesInOrderWithOneUpdateAndRejectsOnlyTheOverdraw() {
+        List<WalletOperationResult> results = engine.applyBatch(walletId, List.of(
+                request(walletId, OperationType.DEPOSIT, "5.00"),
+                request(walletId, OperationType.WITHDRAW, "1000.00"),
+                request(walletId, OperationType.WITHDRAW, "3.00")));
+
+        assertThat(results).extracting(WalletOperationResult::isSuccess).containsExactly(true, false, true);
+        assertThat(results.get(1).getError()).isInstanceOf(InsufficientFundsException.class);
+        assertThat(results.get(2).getResponse().getBalance()).isEqualTo(Money.parse("102.00"));
+        // пачка двигает версию один раз, версию несет последний ответ
+        assertThat(results.get(2).getResponse().getVersion()).isEqualTo(1L);
+        assertWallet("102.00", 1);
+        assertThat(ledger()).hasSize(2);
+        assertRow(ledger().get(0), "DEPOSIT", "5.00", "100.00", "105.00");
+        assertRow(ledger().get(1), "WITHDRAW", "3.00", "105.00", "102.00");
+    }
+
+    @Test
+    void batchForUnknownWalletFailsEveryOperationAsNotFound() {
+        UUID unknown = UUID.randomUUID();
+
+        List<WalletOperationResult> results = engine.applyBatch(unknown, List.of(
+                request(unknown, OperationType.DEPOSIT, "1.00"),
+                request(unknown, OperationType.WITHDRAW, "1.00")));
+
+        assertThat(results).hasSize(2).allSatisfy(result -> {
+            assertThat(result.isSuccess()).isFalse();
+            assertThat(result.getError()).isInstanceOf(WalletNotFoundException.class);
+        });
+        assertThat(ledger()).isEmpty();
+    }
+
+    private void assertWallet(String balance, long version) {
+        Map<String, Object> wallet = jdbcTemplate.queryForMap(
+                "SELECT balance, version FROM wallets WHERE wallet_id = ?", walletId);
+        assertThat((BigDecimal) wallet.get("balance")).isEqualByComparingTo(balance);
+        assertThat(((Number) wallet.get("version")).longValue()).isEqualTo(version);
+    }
+
+    private List<Map<String, Object>> ledger() {
+        return jdbcTemplate.queryForList("SELECT operation_type, amount, balance_before, balance_after"
+                + " FROM transactions ORDER BY created_at");
+    }
+
+    private static void assertRow(Map<String, Object> row, String type, String amount, String before, String after) {
+        assertThat(row.get("operation_type")).isEqualTo(type);
+        assertThat((BigDecimal) row.get("amount")).isEqualByComparingTo(amount);
+        assertThat((BigDecimal) row.get("balance_before")).isEqualByComparingTo(before);
+        assertThat((BigDecimal) row.get("balance_after")).isEqualByComparingTo(after);
+    }
+
+    private static WalletOperationRequest request(UUID walletId, OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
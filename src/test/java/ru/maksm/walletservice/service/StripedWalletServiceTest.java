@@ -0,0 +1,137 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Striped кошелек на H2 в режиме PostgreSQL
+ *
+ * быстрый путь - один оператор с data-modifying CTE, H2 его не выполняет: в тестах он подменен на spy
+ * (пустой ответ = ни в одном слоте не хватило), консолидация идет по настоящей базе
+ */
+class StripedWalletServiceTest {
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private JdbcTemplate jdbcTemplate;
+    private StripedWalletService service;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:striped;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        jdbcTemplate = spy(new JdbcTemplate(dataSource));
+        jdbcTemplate.execute("CREATE TABLE wallets (wallet_id UUID PRIMARY KEY, balance DECIMAL(19,2),"
+                + " version BIGINT DEFAULT 0, updated_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE wallet_slots (wallet_id UUID, slot INT, balance DECIMAL(19,2),"
+                + " version BIGINT DEFAULT 0, updated_at TIMESTAMP, PRIMARY KEY (wallet_id, slot))");
+        jdbcTemplate.execute("CREATE TABLE transactions (id UUID, wallet_id UUID, slot INT, operation_type VARCHAR(32),"
+                + " amount DECIMAL(19,2), balance_before DECIMAL(19,2), balance_after DECIMAL(19,2), created_at TIMESTAMP)");
+
+        StripedWalletRegistry registry = new StripedWalletRegistry(jdbcTemplate);
+        service = new StripedWalletService(jdbcTemplate, new DataSourceTransactionManager(dataSource), registry);
+        ReflectionTestUtils.setField(service, "maxSlots", 64);
+        ReflectionTestUtils.setField(service, "rebalanceThreshold", 0.5);
+
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, 40.00)", walletId);
+        service.promote(walletId, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void withdrawCountsMainRowWrittenByInstanceWithStaleRegistry() {
+        slotPathReturns(List.of());
+        // инстанс, еще не увидевший промоут, пополнил основную строку
+        jdbcTemplate.update("UPDATE wallets SET balance = balance + 50.00 WHERE wallet_id = ?", walletId);
+
+        WalletOperationResponse response = service.apply(request(OperationType.WITHDRAW, "70.00")).orElseThrow();
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("20.00"));
+        assertThat(service.totalBalance(walletId)).isEqualTo(Money.parse("20.00"));
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class,
+                walletId)).isEqualByComparingTo("0");
+        // остаток основной строки ушел в нулевой слот парой REBALANCE в обеих цепочках
+        assertThat(jdbcTemplate.queryForList("SELECT slot FROM transactions WHERE operation_type = 'REBALANCE'"
+                        + " AND amount = 50.00 ORDER BY created_at", Integer.class))
+                .containsExactly(null, 0);
+    }
+
+    @Test
+    void withdrawBeyondMainRowAndSlotsIsRejectedWithoutChanges() {
+        slotPathReturns(List.of());
+        jdbcTemplate.update("UPDATE wallets SET balance = balance + 5.00 WHERE wallet_id = ?", walletId);
+
+        assertThatThrownBy(() -> service.apply(request(OperationType.WITHDRAW, "45.01")))
+                .isInstanceOf(InsufficientFundsException.class)
+                .hasMessageContaining("45.00");
+
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class,
+                walletId)).isEqualByComparingTo("5.00");
+        assertThat(service.totalBalance(walletId)).isEqualTo(Money.parse("45.00"));
+    }
+
+    @Test
+    void respondsWithBalanceOfTheOperationItselfWithoutRereading() {
+        // баланс после операции возвращает сам оператор со слотом
+        slotPathReturns(List.of(new BigDecimal("55.00")));
+
+        WalletOperationResponse response = service.apply(request(OperationType.DEPOSIT, "15.00")).orElseThrow();
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("55.00"));
+        verify(jdbcTemplate, never()).queryForList(eq(StripedWalletService.TOTAL_BALANCE_SQL), eq(BigDecimal.class),
+                any(Object[].class));
+    }
+
+    @Test
+    void consolidatedWithdrawRespondsWithItsOwnBalance() {
+        slotPathReturns(List.of());
+
+        WalletOperationResponse response = service.apply(request(OperationType.WITHDRAW, "30.00")).orElseThrow();
+
+        assertThat(response.getBalance()).isEqualTo(Money.parse("10.00"));
+        assertThat(service.totalBalance(walletId)).isEqualTo(Money.parse("10.00"));
+        verify(jdbcTemplate).queryForList(eq(StripedWalletService.TOTAL_BALANCE_SQL), eq(BigDecimal.class),
+                any(Object[].class));
+    }
+
+    private void slotPathReturns(List<BigDecimal> result) {
+        doReturn(result).when(jdbcTemplate).queryForList(argThat((String sql) -> sql.contains("inserted AS")),
+                eq(BigDecimal.class), any(Object[].class));
+    }
+
+    private WalletOperationRequest request(OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
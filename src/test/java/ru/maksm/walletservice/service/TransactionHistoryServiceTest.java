@@ -0,0 +1,236 @@
+package ru.maksm.walletservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.controller.WalletController;
+import ru.maksm.walletservice.dto.TransactionHistoryResponse;
+import ru.maksm.walletservice.dto.TransactionItem;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Keyset страницы истории на настоящем postgres
+ *
+ * записи идут группами с одинаковым created_at (как пачки комбайнера), группы режутся границами страниц;
+ * схема настоящая: ledger партиционирован по месяцам, страницы читаются из покрывающего индекса
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class TransactionHistoryServiceTest {
+
+    private static final LocalDateTime T = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionHistoryService service;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id) VALUES (?)", walletId);
+
+        ConnectionPermitGate permitGate = new ConnectionPermitGate(new SimpleMeterRegistry(), false, 1,
+                Duration.ofSeconds(1));
+        // как настраивает spring boot: даты в выгрузке строкой ISO
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json()
+                .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build();
+        service = new TransactionHistoryService(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                permitGate, objectMapper, 50, 500, 100);
+    }
+
+    @Test
+    void cursorWalksEveryRowExactlyOnceAcrossTiedTimestamps() {
+        // 8 групп по 3 записи с одним created_at: при странице 5 границы попадают внутрь групп
+        for (int group = 0; group < 8; group++) {
+            for (int i = 0; i < 3; i++) {
+                insert(UUID.randomUUID(), walletId, T.plusSeconds(group));
+            }
+        }
+        // чужой кошелек в тех же секундах не должен попасть в выдачу
+        insert(UUID.randomUUID(), UUID.randomUUID(), T.plusSeconds(3));
+
+        List<UUID> expected = jdbcTemplate.queryForList("SELECT id FROM transactions WHERE wallet_id = ?"
+                + " ORDER BY created_at DESC, id DESC", UUID.class, walletId);
+
+        List<UUID> walked = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        String cursor = null;
+        do {
+            TransactionHistoryResponse page = service.page(walletId, cursor, 5);
+            page.getItems().forEach(item -> walked.add(item.getId()));
+            pageSizes.add(page.getItems().size());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertThat(walked).hasSize(24).doesNotHaveDuplicates().containsExactlyElementsOf(expected);
+        assertThat(pageSizes).containsExactly(5, 5, 5, 5, 4);
+    }
+
+    @Test
+    void newOperationsDuringWalkDoNotShiftFollowingPages() {
+        for (int i = 0; i < 10; i++) {
+            insert(UUID.randomUUID(), walletId, T.plusSeconds(i));
+        }
+
+        TransactionHistoryResponse first = service.page(walletId, null, 4);
+        // пока клиент листает, приходят новые операции: offset сдвинул бы страницы и повторил записи
+        insert(UUID.randomUUID(), walletId, T.plusMinutes(1));
+        insert(UUID.randomUUID(), walletId, T.plusMinutes(2));
+        TransactionHistoryResponse second = service.page(walletId, first.getNextCursor(), 4);
+        TransactionHistoryResponse third = service.page(walletId, second.getNextCursor(), 4);
+
+        assertThat(first.getItems()).extracting(TransactionItem::getCreatedAt)
+                .containsExactly(T.plusSeconds(9), T.plusSeconds(8), T.plusSeconds(7), T.plusSeconds(6));
+        assertThat(second.getItems()).extracting(TransactionItem::getCreatedAt)
+                .containsExactly(T.plusSeconds(5), T.plusSeconds(4), T.plusSeconds(3), T.plusSeconds(2));
+        assertThat(third.getItems()).extracting(TransactionItem::getCreatedAt)
+                .containsExactly(T.plusSeconds(1), T);
+        assertThat(third.getNextCursor()).isNull();
+    }
+
+    @Test
+    void pageSizeEqualToRemainingRowsHasNoNextCursor() {
+        for (int i = 0; i < 6; i++) {
+            insert(UUID.randomUUID(), walletId, T);
+        }
+
+        TransactionHistoryResponse first = service.page(walletId, null, 3);
+        TransactionHistoryResponse second = service.page(walletId, first.getNextCursor(), 3);
+
+        assertThat(first.getNextCursor()).isNotNull();
+        assertThat(second.getItems()).hasSize(3);
+        // ровно на границе: пустой страницы-хвоста не бывает
+        assertThat(second.getNextCursor()).isNull();
+    }
+
+    @Test
+    void rejectsUnknownWalletMalformedCursorAndOversizedPage() {
+        assertThatThrownBy(() -> service.page(UUID.randomUUID(), null, 5))
+                .isInstanceOf(WalletNotFoundException.class);
+        assertThatThrownBy(() -> service.page(walletId, "not-a-cursor", 5))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.page(walletId, null, 501))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void cursorWalksAcrossMonthPartitionsAndTheDefaultPartition() {
+        for (int month = 0; month < 3; month++) {
+            for (int i = 0; i < 3; i++) {
+                insert(UUID.randomUUID(), walletId, T.minusMonths(month).plusHours(i));
+            }
+        }
+        // строки марта и апреля уже лежат в default: создание партиции переносит их туда
+        jdbcTemplate.queryForObject("SELECT create_transaction_partition(DATE '2024-03-01')", Boolean.class);
+        jdbcTemplate.queryForObject("SELECT create_transaction_partition(DATE '2024-04-01')", Boolean.class);
+        assertThat(jdbcTemplate.queryForList("SELECT DISTINCT tableoid::regclass::text FROM transactions WHERE wallet_id = ?",
+                String.class, walletId))
+                .containsExactlyInAnyOrder("transactions_p202403", "transactions_p202404", "transactions_default");
+
+        List<LocalDateTime> walked = new ArrayList<>();
+        String cursor = null;
+        do {
+            TransactionHistoryResponse page = service.page(walletId, cursor, 2);
+            page.getItems().forEach(item -> walked.add(item.getCreatedAt()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertThat(walked).hasSize(9).isSortedAccordingTo(Comparator.reverseOrder());
+        assertThat(walked.get(0)).isEqualTo(T.plusHours(2));
+        assertThat(walked.get(8)).isEqualTo(T.minusMonths(2));
+    }
+
+    @Test
+    void nextPageIsReadFromCoveringIndexWithoutSort() {
+        for (int i = 0; i < 200; i++) {
+            insert(UUID.randomUUID(), walletId, T.plusSeconds(i));
+            insert(UUID.randomUUID(), UUID.randomUUID(), T.plusSeconds(i));
+        }
+        // visibility map и статистика, как у давно дописанного ledger
+        jdbcTemplate.execute("VACUUM ANALYZE transactions");
+
+        List<String> plan = jdbcTemplate.execute((ConnectionCallback<List<String>>) connection -> {
+            try (Statement statement = connection.createStatement()) {
+                // таблица маленькая, без этого планировщику дешевле прочитать ее целиком
+                statement.execute("SET enable_seqscan = off");
+            }
+            try (PreparedStatement explain = connection.prepareStatement(
+                    "EXPLAIN (COSTS OFF) " + TransactionHistoryService.NEXT_PAGE_SQL)) {
+                Timestamp cursorAt = Timestamp.valueOf(T.plusSeconds(100));
+                explain.setObject(1, walletId);
+                explain.setTimestamp(2, cursorAt);
+                explain.setTimestamp(3, cursorAt);
+                explain.setObject(4, UUID.randomUUID());
+                explain.setInt(5, 51);
+                List<String> lines = new ArrayList<>();
+                try (ResultSet rs = explain.executeQuery()) {
+                    while (rs.next()) {
+                        lines.add(rs.getString(1));
+                    }
+                }
+                return lines;
+            }
+        });
+
+        assertThat(String.join("\n", plan))
+                .contains("Index Only Scan Backward")
+                .doesNotContain("Sort");
+    }
+
+    @Test
+    void exportStreamsPeriodOldestFirstAndUnknownWalletIs404() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            insert(UUID.randomUUID(), walletId, T.plusSeconds(i));
+        }
+        WalletController controller = new WalletController(null, service, null, null, null);
+
+        ResponseEntity<StreamingResponseBody> response = controller.exportTransactions(walletId,
+                T.plusSeconds(1), T.plusSeconds(4));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> lines = out.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).contains("2024-05-01T12:00:01");
+        assertThat(lines.get(2)).contains("2024-05-01T12:00:03");
+
+        // как и у постраничной истории: не пустой 200, а 404
+        assertThat(controller.exportTransactions(UUID.randomUUID(), null, null).getStatusCode())
+                .isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    private void insert(UUID id, UUID wallet, LocalDateTime createdAt) {
+        jdbcTemplate.update("INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before,"
+                + " balance_after, created_at) VALUES (?, ?, 'DEPOSIT', 1.00, 0, 1.00, ?)",
+                id, wallet, Timestamp.valueOf(createdAt));
+    }
+}
@@ -0,0 +1,169 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Свертка оборотов на настоящем postgres: дни сравниваются с агрегацией сырого ledger
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class TurnoverRollupAggregatorTest {
+
+    private static final LocalDate DAY = LocalDate.of(2024, 5, 1);
+
+    private static final String RAW_DAY_SQL = """
+            SELECT wallet_id,
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')), 0.00) AS deposits,
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT')), 0.00) AS withdrawals
+              FROM transactions
+             WHERE created_at >= ? AND created_at < ? AND operation_type <> 'REBALANCE'
+             GROUP BY wallet_id ORDER BY wallet_id
+            """;
+
+    private final UUID first = UUID.fromString("00000000-0000-4000-8000-00000000000a");
+    private final UUID second = UUID.fromString("00000000-0000-4000-8000-00000000000b");
+
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+    }
+
+    @Test
+    void rollsClosedDaysIntoTheSameSumsAsRawLedger() {
+        rolledUntil(DAY);
+        insert(first, "DEPOSIT", "100.00", DAY.atTime(0, 0));
+        insert(first, "WITHDRAW", "30.00", DAY.atTime(12, 0));
+        insert(first, "REBALANCE", "500.00", DAY.atTime(12, 0));
+        insert(first, "TRANSFER_OUT", "20.00", DAY.atTime(23, 59, 59));
+        insert(second, "TRANSFER_IN", "20.00", DAY.atTime(23, 59, 59));
+        // полночь - уже следующий день
+        insert(first, "DEPOSIT", "7.00", DAY.plusDays(1).atStartOfDay());
+        insert(second, "WITHDRAW", "1.00", DAY.plusDays(2).atTime(9, 0));
+
+        aggregator(Duration.ofMinutes(15), 2).rollUp();
+
+        assertThat(rolledUntil()).isEqualTo(DAY.plusDays(2));
+        assertThat(rolled(DAY)).isEqualTo(raw(DAY));
+        assertThat(rolled(DAY.plusDays(1))).isEqualTo(raw(DAY.plusDays(1)));
+        assertThat(rolled(DAY)).containsExactly(
+                Map.of("wallet_id", first, "deposits", new BigDecimal("100.00"),
+                        "withdrawals", new BigDecimal("50.00")),
+                Map.of("wallet_id", second, "deposits", new BigDecimal("20.00"),
+                        "withdrawals", new BigDecimal("0.00")));
+        assertThat(jdbcTemplate.queryForObject("SELECT deposit_count FROM wallet_turnover_daily WHERE wallet_id = ?"
+                + " AND day = ?", Long.class, first, Date.valueOf(DAY))).isEqualTo(1);
+        // третий день за пределами max-days-per-run
+        assertThat(rolled(DAY.plusDays(2))).isEmpty();
+    }
+
+    @Test
+    void recomputingADayAfterManualRewindDoesNotDoubleCount() {
+        rolledUntil(DAY);
+        insert(first, "DEPOSIT", "100.00", DAY.atTime(10, 0));
+        TurnoverRollupAggregator aggregator = aggregator(Duration.ofMinutes(15), 1);
+        aggregator.rollUp();
+
+        // опоздавшая запись внутри уже свернутого дня и ручной откат rolled_until
+        insert(first, "DEPOSIT", "5.00", DAY.atTime(11, 0));
+        rolledUntil(DAY);
+        aggregator.rollUp();
+
+        assertThat(rolled(DAY)).isEqualTo(raw(DAY));
+        assertThat(jdbcTemplate.queryForObject("SELECT deposit_count FROM wallet_turnover_daily WHERE day = ?",
+                Long.class, Date.valueOf(DAY))).isEqualTo(2);
+    }
+
+    @Test
+    void dayIsNotRolledUntilSettleDelayPassesAfterItsEnd() {
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        rolledUntil(yesterday);
+        insert(first, "DEPOSIT", "1.00", yesterday.atTime(23, 59, 59));
+
+        // конец вчерашнего дня плюс задержка еще впереди: день не закрыт
+        Duration sinceMidnight = Duration.between(LocalDate.now().atStartOfDay(), LocalDateTime.now());
+        TurnoverRollupAggregator unsettled = aggregator(sinceMidnight.plusMinutes(15), 31);
+        assertThat(unsettled.rollNextDay()).isFalse();
+        assertThat(rolledUntil()).isEqualTo(yesterday);
+        assertThat(rolled(yesterday)).isEmpty();
+
+        // задержка прошла: день сворачивается, а сегодняшний - нет
+        TurnoverRollupAggregator settled = aggregator(Duration.ZERO, 31);
+        settled.rollUp();
+        assertThat(rolledUntil()).isEqualTo(LocalDate.now());
+        assertThat(rolled(yesterday)).isEqualTo(raw(yesterday));
+    }
+
+    @Test
+    void onlyTheInstanceHoldingTheAdvisoryLockRollsUp() throws Exception {
+        rolledUntil(DAY);
+        insert(first, "DEPOSIT", "1.00", DAY.atTime(10, 0));
+        TurnoverRollupAggregator aggregator = aggregator(Duration.ofMinutes(15), 1);
+
+        // другой инстанс держит блокировку свертки
+        try (Connection other = PostgresSchema.dataSource().getConnection()) {
+            JdbcTemplate otherInstance = new JdbcTemplate(new SingleConnectionDataSource(other, true));
+            otherInstance.queryForObject("SELECT pg_advisory_lock(?)", Object.class, TurnoverRollupAggregator.ROLLUP_LOCK_KEY);
+
+            assertThat(aggregator.rollNextDay()).isFalse();
+            aggregator.rollUp();
+            assertThat(rolledUntil()).isEqualTo(DAY);
+
+            otherInstance.queryForObject("SELECT pg_advisory_unlock(?)", Boolean.class, TurnoverRollupAggregator.ROLLUP_LOCK_KEY);
+        }
+
+        assertThat(aggregator.rollNextDay()).isTrue();
+        assertThat(rolledUntil()).isEqualTo(DAY.plusDays(1));
+    }
+
+    private TurnoverRollupAggregator aggregator(Duration settleDelay, int maxDaysPerRun) {
+        return new TurnoverRollupAggregator(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                settleDelay, maxDaysPerRun);
+    }
+
+    private List<Map<String, Object>> rolled(LocalDate day) {
+        return jdbcTemplate.queryForList("SELECT wallet_id, deposits, withdrawals FROM wallet_turnover_daily"
+                + " WHERE day = ? ORDER BY wallet_id", Date.valueOf(day));
+    }
+
+    private List<Map<String, Object>> raw(LocalDate day) {
+        return jdbcTemplate.queryForList(RAW_DAY_SQL,
+                Timestamp.valueOf(day.atStartOfDay()), Timestamp.valueOf(day.plusDays(1).atStartOfDay()));
+    }
+
+    private void rolledUntil(LocalDate day) {
+        jdbcTemplate.update("UPDATE wallet_turnover_state SET rolled_until = ? WHERE id = ?",
+                Date.valueOf(day), TurnoverRollupAggregator.STATE_ID);
+    }
+
+    private LocalDate rolledUntil() {
+        return jdbcTemplate.queryForObject(TurnoverRollupAggregator.ROLLED_UNTIL_SQL, LocalDate.class,
+                TurnoverRollupAggregator.STATE_ID);
+    }
+
+    private void insert(UUID walletId, String type, String amount, LocalDateTime createdAt) {
+        jdbcTemplate.update("INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before,"
+                + " balance_after, created_at) VALUES (?, ?, ?, ?::numeric, 0, 0, ?)",
+                UUID.randomUUID(), walletId, type, amount, Timestamp.valueOf(createdAt));
+    }
+}
@@ -0,0 +1,168 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.maksm.walletservice.exception.WalletQueueFullException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.fail;
+
+class WalletAdmissionQueueTest {
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @Timeout(10)
+    void rejectsRequestBeyondDepthAndAdmitsAgainAfterQueueDrains() throws Exception {
+        WalletAdmissionQueue queue = queue(2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // один выполняется, двое ждут в очереди - глубина 2 исчерпана
+        List<Future<Integer>> admitted = new ArrayList<>();
+        admitted.add(executor.submit(() -> queue.admit(walletId, () -> await(release, 1))));
+        waitUntil(() -> permits(queue).availablePermits() == 0);
+        for (int i = 2; i <= 3; i++) {
+            int value = i;
+            admitted.add(executor.submit(() -> queue.admit(walletId, () -> value)));
+            waitUntil(() -> permits(queue).getQueueLength() == value - 1);
+        }
+
+        assertThatThrownBy(() -> queue.admit(walletId, () -> 4))
+                .isInstanceOf(WalletQueueFullException.class);
+        assertThatThrownBy(() -> queue.bound(walletId, () -> 4))
+                .isInstanceOf(WalletQueueFullException.class);
+
+        release.countDown();
+        for (int i = 0; i < admitted.size(); i++) {
+            assertThat(admitted.get(i).get(5, TimeUnit.SECONDS)).isEqualTo(i + 1);
+        }
+        assertThat(entries(queue)).isEmpty();
+        assertThat(queue.admit(walletId, () -> 5)).isEqualTo(5);
+    }
+
+    @Test
+    @Timeout(10)
+    void servesWaitingRequestsInArrivalOrder() throws Exception {
+        WalletAdmissionQueue queue = queue(20);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> order = new ArrayList<>();
+
+        Future<Integer> head = executor.submit(() -> queue.admit(walletId, () -> await(release, 0)));
+        waitUntil(() -> permits(queue).availablePermits() == 0);
+        List<Future<Boolean>> waiting = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            int value = i;
+            // следующий встает в очередь только после того, как предыдущий уже в ней
+            waiting.add(executor.submit(() -> queue.admit(walletId, () -> order.add(value))));
+            waitUntil(() -> permits(queue).getQueueLength() == value);
+        }
+
+        release.countDown();
+        head.get(5, TimeUnit.SECONDS);
+        for (Future<Boolean> future : waiting) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // admit пускает по одному, так что список меняется без гонок
+        assertThat(order).containsExactly(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    }
+
+    @Test
+    @Timeout(20)
+    void concurrentArrivalsAdmitExactlyUpToTheBound() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            WalletAdmissionQueue queue = queue(3);
+            int threads = 32;
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger admitted = new AtomicInteger();
+            AtomicInteger rejected = new AtomicInteger();
+
+            for (int i = 0; i < threads; i++) {
+                executor.submit(() -> {
+                    try {
+                        start.await();
+                        // bound не сериализует: пропущенные держат место, пока не отпустим всех
+                        queue.bound(walletId, () -> {
+                            admitted.incrementAndGet();
+                            done.countDown();
+                            return await(release, 0);
+                        });
+                    } catch (WalletQueueFullException e) {
+                        rejected.incrementAndGet();
+                        done.countDown();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+            release.countDown();
+
+            // глубина 3 плюс одно разрешение: пропущено ровно 4, не меньше и не больше
+            assertThat(admitted.get()).isEqualTo(4);
+            assertThat(rejected.get()).isEqualTo(threads - 4);
+            waitUntil(() -> entries(queue).isEmpty());
+        }
+    }
+
+    private static WalletAdmissionQueue queue(int maxDepth) {
+        return new WalletAdmissionQueue(new SimpleMeterRegistry(), true, 1, maxDepth, Duration.ofSeconds(5));
+    }
+
+    private static int await(CountDownLatch latch, int value) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<UUID, Object> entries(WalletAdmissionQueue queue) {
+        return (Map<UUID, Object>) ReflectionTestUtils.getField(queue, "entries");
+    }
+
+    private Semaphore permits(WalletAdmissionQueue queue) {
+        Object entry = entries(queue).get(walletId);
+        return entry == null ? new Semaphore(1) : (Semaphore) ReflectionTestUtils.getField(entry, "permits");
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Условие не выполнилось за 5 секунд");
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.dto.BatchItemResult;
+import ru.maksm.walletservice.dto.BatchItemStatus;
+import ru.maksm.walletservice.dto.BatchOperationRequest;
+import ru.maksm.walletservice.dto.BatchOperationResponse;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.support.InMemoryWallets;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static ru.maksm.walletservice.support.InMemoryWallets.A;
+import static ru.maksm.walletservice.support.InMemoryWallets.B;
+import static ru.maksm.walletservice.support.InMemoryWallets.C;
+
+/**
+ * Кошельки живут в памяти вместо БД: проверяем результат по каждой операции пачки
+ *
+ * C - striped кошелек, он идет мимо общей блокировки
+ */
+class WalletBatchServiceTest {
+
+    private static final UUID MISSING = UUID.fromString("00000000-0000-4000-8000-0000000000ff");
+
+    private final InMemoryWallets wallets = new InMemoryWallets();
+
+    private StripedWalletService stripedWalletService;
+    private WalletBalanceCache balanceCache;
+    private WalletBatchService service;
+
+    @BeforeEach
+    void setUp() {
+        StripedWalletRegistry registry = mock(StripedWalletRegistry.class);
+        when(registry.isStriped(C)).thenReturn(true);
+        stripedWalletService = mock(StripedWalletService.class);
+        balanceCache = mock(WalletBalanceCache.class);
+
+        service = new WalletBatchService(wallets.walletRepository(), wallets.transactionRepository(), registry,
+                stripedWalletService, wallets.transactionManager(), balanceCache);
+        ReflectionTestUtils.setField(service, "maxBatchSize", 100);
+
+        wallets.add(A, "100.00");
+        wallets.add(B, "100.00");
+    }
+
+    @Test
+    void reportsEveryOperationInInputOrderWithoutFailingTheRest() {
+        BatchOperationResponse response = service.performBatch(batch(false,
+                operation(A, OperationType.DEPOSIT, "10.00"),
+                operation(MISSING, OperationType.DEPOSIT, "1.00"),
+                operation(A, OperationType.WITHDRAW, "200.00"),
+                operation(B, OperationType.WITHDRAW, "30.00"),
+                operation(A, OperationType.WITHDRAW, "50.00")));
+
+        assertThat(response.getResults()).extracting(BatchItemResult::getIndex).containsExactly(0, 1, 2, 3, 4);
+        assertThat(response.getResults()).extracting(BatchItemResult::getStatus).containsExactly(
+                BatchItemStatus.APPLIED, BatchItemStatus.WALLET_NOT_FOUND, BatchItemStatus.INSUFFICIENT_FUNDS,
+                BatchItemStatus.APPLIED, BatchItemStatus.APPLIED);
+        // баланс в ответе - после своей операции, а не итоговый по пачке
+        assertThat(response.getResults()).extracting(BatchItemResult::getBalance).containsExactly(
+                Money.parse("110.00"), null, null, Money.parse("70.00"), Money.parse("60.00"));
+        assertThat(response.getApplied()).isEqualTo(3);
+        assertThat(response.getFailed()).isEqualTo(2);
+        assertThat(response.isCommitted()).isTrue();
+
+        assertThat(wallets.ledger()).extracting(Transaction::getBalanceAfter).containsExactly(
+                Money.parse("110.00"), Money.parse("70.00"), Money.parse("60.00"));
+        verify(balanceCache).put(eq(A), eq(Money.parse("60.00")), any());
+        verify(balanceCache).put(eq(B), eq(Money.parse("70.00")), any());
+    }
+
+    @Test
+    void atomicBatchWithFailureRollsBackAppliedOperations() {
+        BatchOperationResponse response = service.performBatch(batch(true,
+                operation(A, OperationType.DEPOSIT, "10.00"),
+                operation(B, OperationType.WITHDRAW, "100.01"),
+                operation(B, OperationType.DEPOSIT, "5.00")));
+
+        assertThat(response.getResults()).extracting(BatchItemResult::getStatus).containsExactly(
+                BatchItemStatus.ROLLED_BACK, BatchItemStatus.INSUFFICIENT_FUNDS, BatchItemStatus.ROLLED_BACK);
+        assertThat(response.getResults()).extracting(BatchItemResult::getBalance).containsOnlyNulls();
+        assertThat(response.getApplied()).isZero();
+        assertThat(response.getFailed()).isEqualTo(3);
+        assertThat(response.isCommitted()).isFalse();
+        verify(balanceCache, never()).put(any(), any(), any());
+    }
+
+    @Test
+    void stripedWalletIsAppliedOutsideTheLockAndKeepsItsPosition() {
+        WalletOperationRequest striped = operation(C, OperationType.DEPOSIT, "5.00");
+        WalletOperationRequest stale = operation(C, OperationType.WITHDRAW, "1.00");
+        when(stripedWalletService.apply(striped)).thenReturn(Optional.of(
+                new WalletOperationResponse(C, Money.parse("25.00"), "Операция выполнена успешно")));
+        // кошелек вышел из striped режима между проверкой и операцией
+        when(stripedWalletService.apply(stale)).thenReturn(Optional.empty());
+
+        BatchOperationResponse response = service.performBatch(batch(false,
+                striped, operation(A, OperationType.DEPOSIT, "1.00"), stale));
+
+        assertThat(response.getResults()).extracting(BatchItemResult::getStatus).containsExactly(
+                BatchItemStatus.APPLIED, BatchItemStatus.APPLIED, BatchItemStatus.REJECTED);
+        assertThat(response.getResults()).extracting(BatchItemResult::getWalletId).containsExactly(C, A, C);
+        assertThat(response.getResults().get(0).getBalance()).isEqualTo(Money.parse("25.00"));
+        assertThat(response.getApplied()).isEqualTo(2);
+        assertThat(wallets.ledger()).hasSize(1);
+    }
+
+    private static WalletOperationRequest operation(UUID walletId, OperationType type, String amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(walletId);
+        request.setOperationType(type);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+
+    private static BatchOperationRequest batch(boolean atomic, WalletOperationRequest... operations) {
+        BatchOperationRequest request = new BatchOperationRequest();
+        request.setAtomic(atomic);
+        request.setOperations(List.of(operations));
+        return request;
+    }
+}
@@ -0,0 +1,177 @@
+package ru.maksm.walletservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.controller.WalletController;
+import ru.maksm.walletservice.dto.WalletImportResponse;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.Wallet;
+import ru.maksm.walletservice.support.PostgresJpa;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Импорт кошельков на настоящем postgres: пачки по 2 строки, чтобы файл резался на несколько выражений
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class WalletImportServiceTest {
+
+    private static final UUID A = UUID.fromString("00000000-0000-4000-8000-00000000000a");
+    private static final UUID B = UUID.fromString("00000000-0000-4000-8000-00000000000b");
+    private static final UUID C = UUID.fromString("00000000-0000-4000-8000-00000000000c");
+
+    private JdbcTemplate jdbcTemplate;
+    private WalletImportService service;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        ConnectionPermitGate permitGate = new ConnectionPermitGate(new SimpleMeterRegistry(), false, 1,
+                Duration.ofSeconds(1));
+        service = new WalletImportService(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                permitGate, new ObjectMapper(), new SimpleMeterRegistry(), 2, 100, Duration.ofSeconds(5));
+    }
+
+    @Test
+    void csvCreatesWalletsWithOpeningDepositAndReportsRejectedLines() throws IOException {
+        WalletImportResponse response = importCsv("\uFEFFwallet_id,balance",
+                A + ",100.00",
+                "",
+                B.toString(),
+                "not-a-uuid,1.00",
+                C + ",-5.00",
+                C + ", 7.50 ");
+
+        assertThat(response.getLines()).isEqualTo(7);
+        assertThat(response.getCreated()).isEqualTo(3);
+        assertThat(response.getSkipped()).isZero();
+        assertThat(response.getRejected()).isEqualTo(2);
+        assertThat(response.getErrors()).hasSize(2);
+        assertThat(response.getErrors().get(0)).startsWith("строка 5:");
+        assertThat(response.getErrors().get(1)).startsWith("строка 6:").contains("отрицательный баланс");
+
+        assertThat(balance(A)).isEqualByComparingTo("100.00");
+        assertThat(balance(B)).isEqualByComparingTo("0.00");
+        assertThat(balance(C)).isEqualByComparingTo("7.50");
+        // начальный баланс - DEPOSIT от нуля, у пустого кошелька записи нет
+        assertThat(ledger(A)).containsExactly(Map.of("operation_type", "DEPOSIT",
+                "amount", new BigDecimal("100.00"), "balance_before", new BigDecimal("0.00"),
+                "balance_after", new BigDecimal("100.00")));
+        assertThat(ledger(B)).isEmpty();
+        assertThat(ledger(C)).hasSize(1);
+    }
+
+    @Test
+    void ndjsonAcceptsNumbersAndStringsAndRejectsMalformedLines() throws IOException {
+        WalletImportResponse response = service.importWallets(body(
+                "{\"walletId\": \"" + A + "\", \"balance\": 10.50}",
+                "{\"walletId\": \"" + B + "\", \"balance\": \"20\"}",
+                "{\"walletId\": ",
+                "{\"balance\": 1.00}",
+                "{\"walletId\": \"" + C + "\"}"), WalletImportService.Format.NDJSON);
+
+        assertThat(response.getLines()).isEqualTo(5);
+        assertThat(response.getCreated()).isEqualTo(3);
+        assertThat(response.getRejected()).isEqualTo(2);
+        assertThat(response.getErrors()).hasSize(2);
+        assertThat(response.getErrors().get(1)).isEqualTo("строка 4: не указан walletId");
+
+        assertThat(balance(A)).isEqualByComparingTo("10.50");
+        assertThat(balance(B)).isEqualByComparingTo("20.00");
+        assertThat(balance(C)).isEqualByComparingTo("0.00");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions", Integer.class)).isEqualTo(2);
+    }
+
+    @Test
+    void repeatedImportSkipsExistingWalletsWithoutSecondOpeningRow() throws IOException {
+        importCsv(A + ",100.00");
+
+        // повтор после обрыва: A уже есть и с другим балансом в файле не меняется
+        WalletImportResponse response = importCsv(A + ",500.00", B + ",5.00", A + ",1.00");
+
+        assertThat(response.getCreated()).isEqualTo(1);
+        assertThat(response.getSkipped()).isEqualTo(2);
+        assertThat(balance(A)).isEqualByComparingTo("100.00");
+        assertThat(balance(B)).isEqualByComparingTo("5.00");
+        assertThat(ledger(A)).hasSize(1);
+        assertThat(ledger(B)).hasSize(1);
+    }
+
+    @Test
+    void importEndpointPicksFormatByContentType() {
+        WalletController controller = new WalletController(null, null, null, service, null);
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/wallets/import");
+        request.setContentType("application/x-ndjson");
+        request.setContent(("{\"walletId\": \"" + A + "\", \"balance\": 3.00}\nnot-json\n").getBytes(StandardCharsets.UTF_8));
+
+        ResponseEntity<WalletImportResponse> response = controller.importWallets(request);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody().getCreated()).isEqualTo(1);
+        assertThat(response.getBody().getRejected()).isEqualTo(1);
+        assertThat(balance(A)).isEqualByComparingTo("3.00");
+
+        request = new MockHttpServletRequest("POST", "/api/v1/wallets/import");
+        request.setContentType("text/csv");
+        request.setContent((B + ",4.00\n").getBytes(StandardCharsets.UTF_8));
+        assertThat(controller.importWallets(request).getBody().getCreated()).isEqualTo(1);
+        assertThat(balance(B)).isEqualByComparingTo("4.00");
+    }
+
+    @Test
+    void createWalletReturnsImportedWalletOnRepeatedId() throws IOException {
+        importCsv(A + ",100.00");
+        WalletService walletService = new WalletService(PostgresJpa.walletRepository(), null, null, null, null, null,
+                null, null, null, null, null, null, null);
+        TransactionTemplate transaction = new TransactionTemplate(PostgresJpa.transactionManager());
+
+        Wallet existing = transaction.execute(status -> walletService.createWallet(A));
+        Wallet created = transaction.execute(status -> walletService.createWallet(B));
+        Wallet again = transaction.execute(status -> walletService.createWallet(B));
+
+        assertThat(existing.getWalletId()).isEqualTo(A);
+        assertThat(existing.getBalance()).isEqualTo(Money.parse("100.00"));
+        assertThat(again.getId()).isEqualTo(created.getId());
+        assertThat(again.getBalance()).isEqualTo(Money.ZERO);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM wallets", Integer.class)).isEqualTo(2);
+        assertThat(ledger(A)).hasSize(1);
+        assertThat(ledger(B)).isEmpty();
+    }
+
+    private WalletImportResponse importCsv(String... lines) throws IOException {
+        return service.importWallets(body(lines), WalletImportService.Format.CSV);
+    }
+
+    private static ByteArrayInputStream body(String... lines) {
+        return new ByteArrayInputStream(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private BigDecimal balance(UUID walletId) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class, walletId);
+    }
+
+    private List<Map<String, Object>> ledger(UUID walletId) {
+        return jdbcTemplate.queryForList("SELECT operation_type, amount, balance_before, balance_after"
+                + " FROM transactions WHERE wallet_id = ?", walletId);
+    }
+}
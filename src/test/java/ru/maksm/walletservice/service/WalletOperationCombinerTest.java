@@ -0,0 +1,166 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.maksm.walletservice.dto.WalletOperationRequest;
+import ru.maksm.walletservice.dto.WalletOperationResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class WalletOperationCombinerTest {
+
+    private static final UUID WALLET_ID = UUID.randomUUID();
+
+    private WalletWriteEngine engine;
+    private WalletOperationCombiner combiner;
+
+    @BeforeEach
+    void setUp() {
+        engine = mock(WalletWriteEngine.class);
+        ConnectionPermitGate permitGate = new ConnectionPermitGate(new SimpleMeterRegistry(), false, 1, Duration.ofSeconds(1));
+        combiner = new WalletOperationCombiner(engine, permitGate);
+        ReflectionTestUtils.setField(combiner, "maxBatchSize", 50);
+    }
+
+    @Test
+    void concurrentOperationsAreMergedAndEachCallerGetsOwnResult() throws Exception {
+        // первая пачка притормаживает, чтобы за это время в очереди накопились остальные
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        AtomicInteger batches = new AtomicInteger();
+        when(engine.applyBatch(any(), anyList())).thenAnswer(invocation -> {
+            if (batches.incrementAndGet() == 1) {
+                firstBatchStarted.countDown();
+                Thread.sleep(200);
+            }
+            List<WalletOperationRequest> requests = invocation.getArgument(1);
+            List<WalletOperationResult> results = new ArrayList<>();
+            for (WalletOperationRequest request : requests) {
+                results.add(WalletOperationResult.success(
+                        new WalletOperationResponse(WALLET_ID, request.getAmount(), "ok")));
+            }
+            return results;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        try {
+            List<Future<WalletOperationResponse>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> combiner.submit(request(1))));
+            assertThat(firstBatchStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            for (int i = 2; i <= 20; i++) {
+                int amount = i;
+                futures.add(executor.submit(() -> combiner.submit(request(amount))));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertThat(futures.get(i).get(5, TimeUnit.SECONDS).getBalance())
+                        .isEqualByComparingTo(Money.ofMinor((i + 1) * 100L));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(batches.get()).isLessThan(20);
+    }
+
+    @Test
+    void laneRemovedByFinishingLeaderNeverRunsTwoLeadersOrReorders() throws Exception {
+        // пачки маленькие и быстрые: лидеры постоянно заканчивают и убирают полосу, пока другие потоки
+        // ставят новые операции; пачки кошелька не должны идти параллельно, а операции потока - обгонять друг друга
+        ReflectionTestUtils.setField(combiner, "maxBatchSize", 1);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        int threads = 8;
+        int perThread = 2_000;
+        long[] lastApplied = new long[threads];
+        AtomicInteger reordered = new AtomicInteger();
+        when(engine.applyBatch(any(), anyList())).thenAnswer(invocation -> {
+            if (inFlight.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                List<WalletOperationRequest> requests = invocation.getArgument(1);
+                List<WalletOperationResult> results = new ArrayList<>();
+                for (WalletOperationRequest request : requests) {
+                    // сумма = поток * 10^6 + номер операции потока
+                    long minor = request.getAmount().minor();
+                    int thread = (int) (minor / 1_000_000);
+                    if (minor % 1_000_000 <= lastApplied[thread]) {
+                        reordered.incrementAndGet();
+                    }
+                    lastApplied[thread] = minor % 1_000_000;
+                    results.add(WalletOperationResult.success(new WalletOperationResponse(WALLET_ID, request.getAmount(), "ok")));
+                }
+                return results;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 1; i <= perThread; i++) {
+                        WalletOperationRequest request = request(0);
+                        request.setAmount(Money.ofMinor(thread * 1_000_000L + i));
+                        combiner.submit(request);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(overlaps).hasValue(0);
+        assertThat(reordered).hasValue(0);
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(combiner, "lanes")).isEmpty();
+    }
+
+    @Test
+    void rejectedOperationRethrowsOriginalException() {
+        when(engine.applyBatch(any(), anyList())).thenReturn(List.of(
+                WalletOperationResult.failure(new InsufficientFundsException("Недостаточно средств. Баланс: 0"))));
+
+        assertThatThrownBy(() -> combiner.submit(request(10)))
+                .isInstanceOf(InsufficientFundsException.class);
+    }
+
+    private static WalletOperationRequest request(int amount) {
+        WalletOperationRequest request = new WalletOperationRequest();
+        request.setWalletId(WALLET_ID);
+        request.setOperationType(OperationType.DEPOSIT);
+        request.setAmount(Money.ofMinor(amount * 100L));
+        return request;
+    }
+}
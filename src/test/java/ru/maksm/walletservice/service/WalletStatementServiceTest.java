@@ -0,0 +1,232 @@
+package ru.maksm.walletservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.dto.StatementBucket;
+import ru.maksm.walletservice.dto.WalletStatementResponse;
+import ru.maksm.walletservice.exception.WalletNotFoundException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Выписка на настоящем postgres: каждый период сверяется с агрегацией сырого ledger за те же границы
+ *
+ * кошелек создан сразу с балансом OPENING без записи в ledger, поэтому остатки верны только если
+ * считаются назад от текущего баланса
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class WalletStatementServiceTest {
+
+    private static final LocalDate START = LocalDate.of(2024, 5, 1);
+    private static final BigDecimal OPENING = new BigDecimal("1000.00");
+
+    private static final String RAW_BUCKET_SQL = """
+            SELECT COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')), 0),
+                   COALESCE(SUM(amount) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT')), 0),
+                   COUNT(*) FILTER (WHERE operation_type IN ('DEPOSIT', 'TRANSFER_IN')),
+                   COUNT(*) FILTER (WHERE operation_type IN ('WITHDRAW', 'TRANSFER_OUT'))
+              FROM transactions
+             WHERE wallet_id = ? AND created_at >= ? AND created_at < ?
+            """;
+
+    private static final String RAW_NET_AFTER_SQL = """
+            SELECT COALESCE(SUM(CASE operation_type WHEN 'DEPOSIT' THEN amount WHEN 'TRANSFER_IN' THEN amount
+                                                    WHEN 'WITHDRAW' THEN -amount WHEN 'TRANSFER_OUT' THEN -amount
+                                                    ELSE 0 END), 0)
+              FROM transactions WHERE wallet_id = ? AND created_at >= ?
+            """;
+
+    private final UUID walletId = UUID.fromString("00000000-0000-4000-8000-00000000000a");
+    private final UUID other = UUID.fromString("00000000-0000-4000-8000-00000000000b");
+
+    private JdbcTemplate jdbcTemplate;
+    private WalletStatementService service;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        ConnectionPermitGate permitGate = new ConnectionPermitGate(new SimpleMeterRegistry(), false, 1,
+                Duration.ofSeconds(1));
+        service = new WalletStatementService(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                permitGate, 1100);
+
+        // два с половиной месяца операций: несколько в день, на границах суток, переносы слотов и переводы
+        for (int day = 0; day < 75; day++) {
+            LocalDateTime midnight = START.plusDays(day).atStartOfDay();
+            insert(walletId, "DEPOSIT", 10 + day + ".00", midnight);
+            insert(walletId, day % 3 == 0 ? "TRANSFER_OUT" : "WITHDRAW", 3 + day % 5 + ".50", midnight.plusHours(13));
+            insert(walletId, "REBALANCE", "40.00", midnight.plusHours(14));
+            if (day % 7 == 0) {
+                insert(walletId, "TRANSFER_IN", "25.00", midnight.plusDays(1).minusSeconds(1));
+            }
+            insert(other, "DEPOSIT", "999.00", midnight.plusHours(12));
+        }
+        // операции после периодов выписки: остаток на их конец должен их вычесть
+        insert(walletId, "WITHDRAW", "12.34", LocalDate.now().atTime(0, 5));
+        insert(walletId, "DEPOSIT", "0.01", LocalDateTime.now().minusSeconds(1));
+
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, ?)", walletId,
+                OPENING.add(netAfter(START)));
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, 0)", other);
+        // ничего не свернуто: все читается из ledger
+        rolledUntil(START);
+    }
+
+    @Test
+    void dailyStatementMergesRollupsWithRawTailAndMatchesRawLedger() {
+        // свернуты первые 20 дней, период выписки начинается внутри свертки и кончается в сыром хвосте
+        rollUp(20);
+        assertThat(rolledUntil()).isEqualTo(START.plusDays(20));
+        LocalDate from = START.plusDays(9);
+        LocalDate to = START.plusDays(40);
+
+        WalletStatementResponse statement = service.statement(walletId, from, to, "day");
+
+        List<LocalDate> bounds = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            bounds.add(day);
+        }
+        assertMatchesRawLedger(statement, bounds);
+    }
+
+    @Test
+    void monthStatementBucketsByCalendarMonthAndClipsToPeriod() {
+        rollUp(31);
+        LocalDate from = LocalDate.of(2024, 5, 10);
+        LocalDate to = LocalDate.of(2024, 7, 5);
+
+        WalletStatementResponse statement = service.statement(walletId, from, to, "month");
+
+        assertThat(statement.getGranularity()).isEqualTo("month");
+        assertMatchesRawLedger(statement, List.of(from, LocalDate.of(2024, 6, 1), LocalDate.of(2024, 7, 1), to));
+    }
+
+    @Test
+    void rollupDoesNotChangeTheStatement() {
+        LocalDate from = START;
+        LocalDate to = START.plusDays(75);
+        WalletStatementResponse raw = service.statement(walletId, from, to, "month");
+
+        rollUp(45);
+        WalletStatementResponse rolled = service.statement(walletId, from, to, "month");
+
+        assertThat(rolled).usingRecursiveComparison().isEqualTo(raw);
+        // начало истории: остаток до первой операции - баланс, с которым кошелек создан
+        assertThat(raw.getOpeningBalance()).isEqualTo(Money.of(OPENING));
+    }
+
+    @Test
+    void dayStraddlingSettleDelayIsReadFromLedgerUntilRolled() {
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        insert(walletId, "DEPOSIT", "5.00", yesterday.atTime(23, 59, 59));
+        jdbcTemplate.update("UPDATE wallets SET balance = balance + 5.00 WHERE wallet_id = ?", walletId);
+        rolledUntil(yesterday);
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+        // вчерашний день еще не закрыт (конец дня плюс задержка впереди) - он целиком в хвосте ledger
+        Duration sinceMidnight = Duration.between(LocalDate.now().atStartOfDay(), LocalDateTime.now());
+        new TurnoverRollupAggregator(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                sinceMidnight.plusMinutes(15), 31).rollUp();
+        assertThat(rolledUntil()).isEqualTo(yesterday);
+        WalletStatementResponse unsettled = service.statement(walletId, yesterday, tomorrow, "day");
+
+        // задержка прошла - вчерашний день из свертки, сегодняшний по-прежнему из ledger
+        new TurnoverRollupAggregator(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                Duration.ZERO, 31).rollUp();
+        assertThat(rolledUntil()).isEqualTo(LocalDate.now());
+        WalletStatementResponse settled = service.statement(walletId, yesterday, tomorrow, "day");
+
+        assertThat(settled).usingRecursiveComparison().isEqualTo(unsettled);
+        assertMatchesRawLedger(settled, List.of(yesterday, LocalDate.now(), tomorrow));
+        assertThat(settled.getClosingBalance()).isEqualTo(balance());
+    }
+
+    @Test
+    void rejectsUnknownWalletAndBadPeriods() {
+        assertThatThrownBy(() -> service.statement(UUID.randomUUID(), START, START.plusDays(1), "day"))
+                .isInstanceOf(WalletNotFoundException.class);
+        assertThatThrownBy(() -> service.statement(walletId, START, START, "day"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.statement(walletId, START, START.plusDays(1101), "day"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.statement(walletId, START, START.plusDays(1), "week"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Периоды выписки идут по границам bounds, обороты и остаток на конец каждого - как в сыром ledger
+     */
+    private void assertMatchesRawLedger(WalletStatementResponse statement, List<LocalDate> bounds) {
+        List<StatementBucket> buckets = statement.getBuckets();
+        assertThat(buckets).hasSize(bounds.size() - 1);
+        Money current = balance();
+        for (int i = 0; i < buckets.size(); i++) {
+            StatementBucket bucket = buckets.get(i);
+            LocalDate start = bounds.get(i);
+            LocalDate end = bounds.get(i + 1);
+            assertThat(bucket.getFrom()).isEqualTo(start);
+            assertThat(bucket.getTo()).isEqualTo(end);
+
+            jdbcTemplate.query(RAW_BUCKET_SQL, rs -> {
+                assertThat(bucket.getDeposits()).as("поступления %s", start).isEqualTo(Money.of(rs.getBigDecimal(1)));
+                assertThat(bucket.getWithdrawals()).as("списания %s", start).isEqualTo(Money.of(rs.getBigDecimal(2)));
+                assertThat(bucket.getDepositCount()).isEqualTo(rs.getLong(3));
+                assertThat(bucket.getWithdrawalCount()).isEqualTo(rs.getLong(4));
+            }, walletId, Timestamp.valueOf(start.atStartOfDay()), Timestamp.valueOf(end.atStartOfDay()));
+
+            assertThat(bucket.getClosingBalance()).as("остаток на %s", end)
+                    .isEqualTo(current.minus(Money.of(netAfter(end))));
+        }
+        assertThat(statement.getOpeningBalance()).isEqualTo(current.minus(Money.of(netAfter(bounds.get(0)))));
+        assertThat(statement.getClosingBalance()).isEqualTo(buckets.get(buckets.size() - 1).getClosingBalance());
+    }
+
+    private void rollUp(int days) {
+        new TurnoverRollupAggregator(jdbcTemplate, new DataSourceTransactionManager(PostgresSchema.dataSource()),
+                Duration.ofMinutes(15), days).rollUp();
+    }
+
+    private void rolledUntil(LocalDate day) {
+        jdbcTemplate.update("UPDATE wallet_turnover_state SET rolled_until = ? WHERE id = ?",
+                Date.valueOf(day), TurnoverRollupAggregator.STATE_ID);
+    }
+
+    private LocalDate rolledUntil() {
+        return jdbcTemplate.queryForObject(TurnoverRollupAggregator.ROLLED_UNTIL_SQL, LocalDate.class,
+                TurnoverRollupAggregator.STATE_ID);
+    }
+
+    private BigDecimal netAfter(LocalDate day) {
+        return jdbcTemplate.queryForObject(RAW_NET_AFTER_SQL, BigDecimal.class, walletId,
+                Timestamp.valueOf(day.atStartOfDay()));
+    }
+
+    private Money balance() {
+        return Money.of(jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?",
+                BigDecimal.class, walletId));
+    }
+
+    private void insert(UUID wallet, String type, String amount, LocalDateTime createdAt) {
+        jdbcTemplate.update("INSERT INTO transactions (id, wallet_id, operation_type, amount, balance_before,"
+                + " balance_after, created_at) VALUES (?, ?, ?, ?::numeric, 0, 0, ?)",
+                UUID.randomUUID(), wallet, type, amount, Timestamp.valueOf(createdAt));
+    }
+}
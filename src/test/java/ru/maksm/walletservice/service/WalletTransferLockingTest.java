@@ -0,0 +1,146 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.dto.TransferRequest;
+import ru.maksm.walletservice.dto.TransferResponse;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.support.PostgresJpa;
+import ru.maksm.walletservice.support.PostgresSchema;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static ru.maksm.walletservice.support.InMemoryWallets.A;
+import static ru.maksm.walletservice.support.InMemoryWallets.B;
+
+/**
+ * Переводы на настоящем postgres: настоящие JPA репозитории, блокировки строк и запись ledger
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class WalletTransferLockingTest {
+
+    private static final String LOCK_WAITERS_SQL = "SELECT COUNT(*) FROM pg_stat_activity"
+            + " WHERE datname = current_database() AND wait_event_type = 'Lock'";
+
+    private JdbcTemplate jdbcTemplate;
+    private WalletTransferService service;
+
+    @BeforeEach
+    void setUp() {
+        PostgresSchema.reset();
+        jdbcTemplate = new JdbcTemplate(PostgresSchema.dataSource());
+        jdbcTemplate.update("INSERT INTO wallets (wallet_id, balance) VALUES (?, 100.00), (?, 100.00)", A, B);
+
+        service = new WalletTransferService(PostgresJpa.walletRepository(), PostgresJpa.transactionRepository(),
+                mock(StripedWalletRegistry.class), PostgresJpa.transactionManager(), mock(WalletBalanceCache.class));
+        ReflectionTestUtils.setField(service, "maxBatchSize", 100);
+    }
+
+    @Test
+    void transferWritesOutAndInPairWithOneTransferId() {
+        TransferResponse response = service.transfer(transfer(B, A, "30.00"));
+
+        assertThat(balance(A)).isEqualByComparingTo("130.00");
+        assertThat(balance(B)).isEqualByComparingTo("70.00");
+        assertThat(jdbcTemplate.queryForList("SELECT version FROM wallets ORDER BY wallet_id", Long.class))
+                .containsExactly(1L, 1L);
+        assertThat(response.getFromVersion()).isEqualTo(1L);
+
+        List<Map<String, Object>> ledger = jdbcTemplate.queryForList("SELECT wallet_id, operation_type, amount,"
+                + " balance_before, balance_after, transfer_id FROM transactions ORDER BY operation_type DESC");
+        assertThat(ledger).hasSize(2);
+        assertThat(ledger.get(0)).containsEntry("wallet_id", B).containsEntry("operation_type", "TRANSFER_OUT")
+                .containsEntry("balance_before", new BigDecimal("100.00"))
+                .containsEntry("balance_after", new BigDecimal("70.00"));
+        assertThat(ledger.get(1)).containsEntry("wallet_id", A).containsEntry("operation_type", "TRANSFER_IN")
+                .containsEntry("balance_after", new BigDecimal("130.00"));
+        assertThat(ledger).extracting(row -> row.get("transfer_id")).containsOnly(response.getTransferId());
+        assertThat(ledger).extracting(row -> row.get("amount")).containsOnly(new BigDecimal("30.00"));
+    }
+
+    @Test
+    void participantsAreLockedInWalletIdOrderNotTransferDirection() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (Connection holder = PostgresSchema.dataSource().getConnection();
+             Connection probe = PostgresSchema.dataSource().getConnection()) {
+            // другая транзакция держит B - сторону списания перевода B -> A
+            holder.setAutoCommit(false);
+            new JdbcTemplate(new SingleConnectionDataSource(holder, true))
+                    .queryForList("SELECT 1 FROM wallets WHERE wallet_id = ? FOR UPDATE", B);
+
+            Future<TransferResponse> transfer = executor.submit(() -> service.transfer(transfer(B, A, "30.00")));
+            awaitLockWaiter();
+
+            // перевод ждет B, а A (меньший wallet_id) уже взял, хотя A - получатель
+            JdbcTemplate probing = new JdbcTemplate(new SingleConnectionDataSource(probe, true));
+            assertThatThrownBy(() -> probing.queryForList("SELECT 1 FROM wallets WHERE wallet_id = ? FOR UPDATE NOWAIT", A))
+                    .hasMessageContaining("could not obtain lock");
+
+            holder.rollback();
+            assertThat(transfer.get(10, TimeUnit.SECONDS).getToBalance()).isEqualTo(Money.parse("130.00"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void opposingTransfersDoNotDeadlock() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<TransferResponse>> transfers = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                transfers.add(executor.submit(() -> service.transfer(transfer(A, B, "1.00"))));
+                transfers.add(executor.submit(() -> service.transfer(transfer(B, A, "1.00"))));
+            }
+            for (Future<TransferResponse> transfer : transfers) {
+                transfer.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(balance(A)).isEqualByComparingTo("100.00");
+        assertThat(balance(B)).isEqualByComparingTo("100.00");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions", Integer.class)).isEqualTo(200);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(DISTINCT transfer_id) FROM transactions", Integer.class))
+                .isEqualTo(100);
+        assertThat(jdbcTemplate.queryForList("SELECT version FROM wallets", Long.class)).containsOnly(100L);
+    }
+
+    private void awaitLockWaiter() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (jdbcTemplate.queryForObject(LOCK_WAITERS_SQL, Integer.class) == 0) {
+            assertThat(System.nanoTime() - deadline).as("перевод не дошел до ожидания блокировки").isNegative();
+            Thread.sleep(10);
+        }
+    }
+
+    private BigDecimal balance(UUID walletId) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM wallets WHERE wallet_id = ?", BigDecimal.class, walletId);
+    }
+
+    private static TransferRequest transfer(UUID from, UUID to, String amount) {
+        TransferRequest request = new TransferRequest();
+        request.setFromWalletId(from);
+        request.setToWalletId(to);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.maksm.walletservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.maksm.walletservice.cache.WalletBalanceCache;
+import ru.maksm.walletservice.dto.BatchItemStatus;
+import ru.maksm.walletservice.dto.TransferBatchRequest;
+import ru.maksm.walletservice.dto.TransferBatchResponse;
+import ru.maksm.walletservice.dto.TransferItemResult;
+import ru.maksm.walletservice.dto.TransferRequest;
+import ru.maksm.walletservice.dto.TransferResponse;
+import ru.maksm.walletservice.exception.InsufficientFundsException;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.OperationType;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.support.InMemoryWallets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static ru.maksm.walletservice.support.InMemoryWallets.A;
+import static ru.maksm.walletservice.support.InMemoryWallets.B;
+import static ru.maksm.walletservice.support.InMemoryWallets.C;
+
+/**
+ * Кошельки живут в памяти вместо БД: проверяем пары записей ledger и порядок применения в пачке
+ *
+ * блокировки и запись на настоящей схеме - в WalletTransferLockingTest
+ */
+class WalletTransferServiceTest {
+
+    private final InMemoryWallets wallets = new InMemoryWallets();
+
+    private WalletTransferService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new WalletTransferService(wallets.walletRepository(), wallets.transactionRepository(),
+                mock(StripedWalletRegistry.class), wallets.transactionManager(), mock(WalletBalanceCache.class));
+        ReflectionTestUtils.setField(service, "maxBatchSize", 100);
+
+        wallets.add(A, "100.00");
+        wallets.add(B, "100.00");
+        wallets.add(C, "0.00");
+    }
+
+    @Test
+    void transferWritesPairedLedgerEntries() {
+        TransferResponse response = service.transfer(transfer(A, B, "30.00"));
+
+        assertThat(response.getFromBalance()).isEqualTo(Money.parse("70.00"));
+        assertThat(response.getToBalance()).isEqualTo(Money.parse("130.00"));
+        assertThat(wallets.ledger()).extracting(Transaction::getOperationType)
+                .containsExactly(OperationType.TRANSFER_OUT, OperationType.TRANSFER_IN);
+        assertThat(wallets.ledger()).extracting(Transaction::getTransferId).containsOnly(response.getTransferId());
+        assertThat(wallets.ledger().get(0).getWalletId()).isEqualTo(A);
+        assertThat(wallets.ledger().get(1).getBalanceAfter()).isEqualTo(Money.parse("130.00"));
+    }
+
+    @Test
+    void insufficientFundsLeavesBothWalletsUntouched() {
+        assertThatThrownBy(() -> service.transfer(transfer(A, B, "100.01")))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        assertThat(wallets.get(A).getBalance()).isEqualTo(Money.parse("100.00"));
+        assertThat(wallets.get(B).getBalance()).isEqualTo(Money.parse("100.00"));
+        assertThat(wallets.ledger()).isEmpty();
+    }
+
+    @Test
+    void batchLocksAllParticipantsOnceAndAppliesInInputOrder() {
+        // B может отдать 150 только после того, как получит 80 от A
+        TransferBatchResponse response = service.transferBatch(batch(false,
+                transfer(A, B, "80.00"),
+                transfer(B, C, "150.00"),
+                transfer(C, A, "500.00")));
+
+        assertThat(response.isCommitted()).isTrue();
+        assertThat(response.getResults()).extracting(TransferItemResult::getStatus).containsExactly(
+                BatchItemStatus.APPLIED, BatchItemStatus.APPLIED, BatchItemStatus.INSUFFICIENT_FUNDS);
+        assertThat(wallets.get(A).getBalance()).isEqualTo(Money.parse("20.00"));
+        assertThat(wallets.get(B).getBalance()).isEqualTo(Money.parse("30.00"));
+        assertThat(wallets.get(C).getBalance()).isEqualTo(Money.parse("150.00"));
+        assertThat(wallets.ledger()).hasSize(4);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<UUID>> locked = ArgumentCaptor.forClass(Collection.class);
+        verify(wallets.walletRepository(), times(1)).findAllByWalletIdInWithLock(locked.capture());
+        assertThat(locked.getValue()).containsExactlyInAnyOrder(A, B, C);
+    }
+
+    @Test
+    void atomicBatchIsRolledBackByAnyFailure() {
+        TransferBatchResponse response = service.transferBatch(batch(true,
+                transfer(A, B, "10.00"),
+                transfer(A, UUID.randomUUID(), "10.00")));
+
+        assertThat(response.isCommitted()).isFalse();
+        assertThat(response.getApplied()).isZero();
+        assertThat(response.getResults()).extracting(TransferItemResult::getStatus)
+                .containsExactly(BatchItemStatus.ROLLED_BACK, BatchItemStatus.WALLET_NOT_FOUND);
+        assertThat(response.getResults().get(0).getTransferId()).isNull();
+    }
+
+    private static TransferRequest transfer(UUID from, UUID to, String amount) {
+        TransferRequest request = new TransferRequest();
+        request.setFromWalletId(from);
+        request.setToWalletId(to);
+        request.setAmount(Money.parse(amount));
+        return request;
+    }
+
+    private static TransferBatchRequest batch(boolean atomic, TransferRequest... transfers) {
+        TransferBatchRequest request = new TransferBatchRequest();
+        request.setAtomic(atomic);
+        request.setTransfers(List.of(transfers));
+        return request;
+    }
+}
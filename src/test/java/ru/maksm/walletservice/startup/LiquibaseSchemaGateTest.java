@@ -0,0 +1,83 @@
+package ru.maksm.walletservice.startup;
+
+import liquibase.integration.spring.SpringLiquibase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Раскатка: в одной БД changelog версии 1 и версии 2 (schema-gate/v1, v2 в test resources),
+ * у обоих logicalFilePath как у настоящего master changelog
+ */
+class LiquibaseSchemaGateTest {
+
+    private static final String V1 = "classpath:schema-gate/v1/changelog.xml";
+    private static final String V2 = "classpath:schema-gate/v2/changelog.xml";
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:schema-gate;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE schema_fingerprint (change_log VARCHAR(255) PRIMARY KEY,"
+                + " fingerprint VARCHAR(64) NOT NULL, recorded_at TIMESTAMP)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void olderVersionSkipsMigrationAndKeepsNewerFingerprint() throws Exception {
+        migrate(V2);
+        jdbcTemplate.update("INSERT INTO schema_fingerprint (change_log, fingerprint) VALUES (?, 'v2-fingerprint')", V1);
+
+        SpringLiquibase older = liquibase(V1);
+        LiquibaseSchemaGate gate = gate();
+        gate.postProcessBeforeInitialization(older, "liquibase");
+        older.afterPropertiesSet();
+        gate.postProcessAfterInitialization(older, "liquibase");
+
+        assertThat(ReflectionTestUtils.getField(older, "shouldRun")).isEqualTo(false);
+        assertThat(jdbcTemplate.queryForObject("SELECT fingerprint FROM schema_fingerprint WHERE change_log = ?",
+                String.class, V1)).isEqualTo("v2-fingerprint");
+    }
+
+    @Test
+    void newerVersionStillMigrates() throws Exception {
+        migrate(V1);
+        jdbcTemplate.update("INSERT INTO schema_fingerprint (change_log, fingerprint) VALUES (?, 'v1-fingerprint')", V2);
+
+        SpringLiquibase newer = liquibase(V2);
+        gate().postProcessBeforeInitialization(newer, "liquibase");
+        newer.afterPropertiesSet();
+
+        assertThat(ReflectionTestUtils.getField(newer, "shouldRun")).isEqualTo(true);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM databasechangelog", Integer.class)).isEqualTo(2);
+    }
+
+    private void migrate(String changeLog) throws Exception {
+        liquibase(changeLog).afterPropertiesSet();
+    }
+
+    private SpringLiquibase liquibase(String changeLog) {
+        SpringLiquibase liquibase = new SpringLiquibase();
+        liquibase.setDataSource(dataSource);
+        liquibase.setChangeLog(changeLog);
+        liquibase.setResourceLoader(new DefaultResourceLoader());
+        return liquibase;
+    }
+
+    private static LiquibaseSchemaGate gate() {
+        return new LiquibaseSchemaGate(true, true, "migrate", false, new DefaultResourceLoader());
+    }
+}
@@ -0,0 +1,84 @@
+package ru.maksm.walletservice.support;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import ru.maksm.walletservice.model.Money;
+import ru.maksm.walletservice.model.Transaction;
+import ru.maksm.walletservice.model.Wallet;
+import ru.maksm.walletservice.repository.TransactionRepository;
+import ru.maksm.walletservice.repository.WalletRepository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Кошельки в памяти вместо БД для сервисов, которые блокируют набор кошельков одним запросом
+ *
+ * - findAllByWalletIdInWithLock отдает найденные кошельки в порядке wallet_id, как ORDER BY в запросе
+ * - saveAll складывает записи ledger в список в порядке сохранения
+ * - менеджер транзакций ничего не делает: откат проверяется по результатам, а не по данным
+ */
+public final class InMemoryWallets {
+
+    public static final UUID A = UUID.fromString("00000000-0000-4000-8000-00000000000a");
+    public static final UUID B = UUID.fromString("00000000-0000-4000-8000-00000000000b");
+    public static final UUID C = UUID.fromString("00000000-0000-4000-8000-00000000000c");
+
+    private final Map<UUID, Wallet> wallets = new HashMap<>();
+    private final List<Transaction> ledger = new ArrayList<>();
+    private final WalletRepository walletRepository = mock(WalletRepository.class);
+    private final TransactionRepository transactionRepository = mock(TransactionRepository.class);
+    private final PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+
+    @SuppressWarnings("unchecked")
+    public InMemoryWallets() {
+        when(walletRepository.findAllByWalletIdInWithLock(anyCollection())).thenAnswer(invocation ->
+                ((Collection<UUID>) invocation.getArgument(0)).stream()
+                        .filter(wallets::containsKey).sorted().map(wallets::get).toList());
+        when(transactionRepository.saveAll(any())).thenAnswer(invocation -> {
+            ((Iterable<Transaction>) invocation.getArgument(0)).forEach(ledger::add);
+            return List.of();
+        });
+        when(transactionManager.getTransaction(any())).thenAnswer(invocation -> new SimpleTransactionStatus());
+    }
+
+    /**
+     * Завести кошелек с балансом и нулевой версией
+     */
+    public Wallet add(UUID walletId, String balance) {
+        Wallet wallet = new Wallet(walletId);
+        wallet.setBalance(Money.parse(balance));
+        wallet.setVersion(0L);
+        wallets.put(walletId, wallet);
+        return wallet;
+    }
+
+    public Wallet get(UUID walletId) {
+        return wallets.get(walletId);
+    }
+
+    public List<Transaction> ledger() {
+        return ledger;
+    }
+
+    public WalletRepository walletRepository() {
+        return walletRepository;
+    }
+
+    public TransactionRepository transactionRepository() {
+        return transactionRepository;
+    }
+
+    public PlatformTransactionManager transactionManager() {
+        return transactionManager;
+    }
+}
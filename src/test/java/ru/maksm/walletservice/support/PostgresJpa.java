@@ -0,0 +1,67 @@
+package ru.maksm.walletservice.support;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.maksm.walletservice.repository.TransactionRepository;
+import ru.maksm.walletservice.repository.WalletRepository;
+
+import java.util.Map;
+
+/**
+ * Настоящие JPA репозитории поверх схемы PostgresSchema, без контекста spring
+ *
+ * - hibernate сверяет сущности со схемой (ddl-auto=validate, как в приложении)
+ * - репозитории работают в транзакциях transactionManager(), как под @Transactional сервиса
+ * - фабрика одна на весь прогон, данные между тестами чистит PostgresSchema.reset()
+ */
+public final class PostgresJpa {
+
+    private static EntityManagerFactory entityManagerFactory;
+    private static PlatformTransactionManager transactionManager;
+    private static WalletRepository walletRepository;
+    private static TransactionRepository transactionRepository;
+
+    private PostgresJpa() {
+    }
+
+    public static WalletRepository walletRepository() {
+        init();
+        return walletRepository;
+    }
+
+    public static TransactionRepository transactionRepository() {
+        init();
+        return transactionRepository;
+    }
+
+    public static PlatformTransactionManager transactionManager() {
+        init();
+        return transactionManager;
+    }
+
+    private static synchronized void init() {
+        if (entityManagerFactory != null) {
+            return;
+        }
+        LocalContainerEntityManagerFactoryBean factoryBean = new LocalContainerEntityManagerFactoryBean();
+        factoryBean.setDataSource(PostgresSchema.dataSource());
+        factoryBean.setPackagesToScan("ru.maksm.walletservice.model");
+        factoryBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factoryBean.setJpaPropertyMap(Map.of("hibernate.hbm2ddl.auto", "validate"));
+        factoryBean.afterPropertiesSet();
+        EntityManagerFactory factory = factoryBean.getObject();
+
+        EntityManager entityManager = SharedEntityManagerCreator.createSharedEntityManager(factory);
+        JpaRepositoryFactory repositoryFactory = new JpaRepositoryFactory(entityManager);
+        walletRepository = repositoryFactory.getRepository(WalletRepository.class);
+        transactionRepository = repositoryFactory.getRepository(TransactionRepository.class);
+        transactionManager = new JpaTransactionManager(factory);
+        entityManagerFactory = factory;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.maksm.walletservice.support;
+
+import liquibase.command.CommandScope;
+import liquibase.command.core.UpdateCommandStep;
+import liquibase.command.core.helpers.DbUrlConnectionArgumentsCommandStep;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Общая схема для тестов на настоящем postgres
+ *
+ * - один контейнер на весь прогон, схему накатывает настоящий master changelog, как при старте приложения
+ * - между тестами reset() очищает все таблицы, кроме журнала liquibase (партиции чистятся вместе с родителем),
+ *   и возвращает строки, которые вставили сами миграции (состояние свертки оборотов, чекпоинтов) - копия
+ *   в схеме test_seed снимается сразу после миграции
+ * - тестовый класс помечается @Testcontainers(disabledWithoutDocker = true): без docker тесты пропускаются
+ */
+public final class PostgresSchema {
+
+    private static final String CHANGE_LOG = "db/changelog/db.changelog-master.xml";
+
+    private static final String TABLES_SQL = """
+            SELECT c.relname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace
+             WHERE n.nspname = current_schema() AND c.relkind IN ('r', 'p') AND NOT c.relispartition
+               AND c.relname NOT LIKE 'databasechangelog%'
+            """;
+
+    private static final String SEED_SCHEMA = "test_seed";
+
+    private static PostgreSQLContainer<?> postgres;
+    private static DataSource dataSource;
+    private static List<String> seededTables;
+
+    private PostgresSchema() {
+    }
+
+    /**
+     * Источник соединений к мигрированной схеме; первый вызов поднимает контейнер
+     */
+    public static synchronized DataSource dataSource() {
+        if (dataSource == null) {
+            postgres = new PostgreSQLContainer<>("postgres:16-alpine");
+            postgres.start();
+            DriverManagerDataSource started = new DriverManagerDataSource(
+                    postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+            migrate(started);
+            seededTables = snapshotSeed(new JdbcTemplate(started));
+            dataSource = started;
+        }
+        return dataSource;
+    }
+
+    /**
+     * Очистить данные всех таблиц и вернуть строки миграций, схема остается
+     */
+    public static void reset() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource());
+        List<String> tables = jdbcTemplate.queryForList(TABLES_SQL, String.class);
+        jdbcTemplate.execute("TRUNCATE " + String.join(", ", tables) + " CASCADE");
+        for (String table : seededTables) {
+            jdbcTemplate.execute("INSERT INTO " + table + " SELECT * FROM " + SEED_SCHEMA + "." + table);
+        }
+    }
+
+    /**
+     * Скопировать непустые после миграции таблицы в схему test_seed
+     */
+    private static List<String> snapshotSeed(JdbcTemplate jdbcTemplate) {
+        jdbcTemplate.execute("CREATE SCHEMA " + SEED_SCHEMA);
+        List<String> seeded = new ArrayList<>();
+        for (String table : jdbcTemplate.queryForList(TABLES_SQL, String.class)) {
+            if (Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + table + ")", Boolean.class))) {
+                jdbcTemplate.execute("CREATE TABLE " + SEED_SCHEMA + "." + table + " AS TABLE " + table);
+                seeded.add(table);
+            }
+        }
+        return seeded;
+    }
+
+    private static void migrate(DataSource target) {
+        try (Connection connection = target.getConnection()) {
+            Database database = DatabaseFactory.getInstance()
+                    .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            new CommandScope(UpdateCommandStep.COMMAND_NAME)
+                    .addArgumentValue(DbUrlConnectionArgumentsCommandStep.DATABASE_ARG, database)
+                    .addArgumentValue(UpdateCommandStep.CHANGELOG_FILE_ARG, CHANGE_LOG)
+                    .execute();
+        } catch (Exception e) {
+            throw new IllegalStateException("Не удалось накатить схему на тестовый postgres", e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package ru.maksm.walletservice.verifier;
+
+import org.junit.jupiter.api.Test;
+import ru.maksm.walletservice.model.OperationType;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ru.maksm.walletservice.verifier.LedgerChainChecker.Kind.BAD_AMOUNT;
+import static ru.maksm.walletservice.verifier.LedgerChainChecker.Kind.BALANCE_MISMATCH;
+import static ru.maksm.walletservice.verifier.LedgerChainChecker.Kind.BROKEN_CHAIN;
+import static ru.maksm.walletservice.verifier.LedgerChainChecker.Kind.MISSING_WALLET;
+
+/**
+ * Проверка цепочек без базы: суммы в копейках, строки подаются в порядке (wallet_id, created_at)
+ */
+class LedgerChainCheckerTest {
+
+    private static final LocalDateTime T = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    private final UUID walletId = UUID.randomUUID();
+
+    private final Map<UUID, Long> walletBalances = new HashMap<>();
+    private final Map<LedgerChainChecker.ChainKey, Long> slotBalances = new HashMap<>();
+    private final Map<LedgerChainChecker.ChainKey, LedgerChainChecker.Anchor> anchors = new HashMap<>();
+    private final List<LedgerChainChecker.Discrepancy> found = new ArrayList<>();
+    private final List<LedgerChainChecker.ChainEnd> ends = new ArrayList<>();
+
+    private final LedgerChainChecker checker = new LedgerChainChecker(walletBalances, slotBalances, anchors,
+            found::add, ends::add);
+
+    @Test
+    void continuousChainEndingAtWalletBalanceIsClean() {
+        walletBalances.put(walletId, 7000L);
+        checker.accept(row(null, OperationType.DEPOSIT, 10000, 0, 10000, T));
+        checker.accept(row(null, OperationType.WITHDRAW, 3000, 10000, 7000, T.plusMinutes(1)));
+        checker.finish();
+
+        assertThat(found).isEmpty();
+        assertThat(checker.rows()).isEqualTo(2);
+        assertThat(checker.wallets()).isEqualTo(1);
+        assertThat(ends).containsExactly(
+                new LedgerChainChecker.ChainEnd(walletId, LedgerChainChecker.MAIN, T.plusMinutes(1), 7000));
+    }
+
+    @Test
+    void reportsBrokenChainBadAmountAndBalanceMismatch() {
+        walletBalances.put(walletId, 9000L);
+        checker.accept(row(null, OperationType.DEPOSIT, 10000, 0, 10000, T));
+        checker.accept(row(null, OperationType.WITHDRAW, 3000, 9000, 6000, T.plusMinutes(1)));
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 6000, 8000, T.plusMinutes(2)));
+        checker.finish();
+
+        assertThat(found).extracting(LedgerChainChecker.Discrepancy::kind)
+                .containsExactly(BROKEN_CHAIN, BAD_AMOUNT, BALANCE_MISMATCH);
+        assertThat(found.get(0).expected()).isEqualTo(10000L);
+        assertThat(found.get(0).actual()).isEqualTo(9000L);
+        assertThat(found.get(1).expected()).isEqualTo(7000L);
+        assertThat(found.get(2).expected()).isEqualTo(9000L);
+        assertThat(found.get(2).actual()).isEqualTo(8000L);
+        assertThat(checker.discrepancies()).isEqualTo(3);
+    }
+
+    @Test
+    void ordersOperationsOfOneTransactionByTheChainItself() {
+        walletBalances.put(walletId, 12000L);
+        checker.accept(row(null, OperationType.DEPOSIT, 10000, 0, 10000, T));
+        // пачка в одной транзакции: created_at одинаковый, строки пришли не по порядку
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 11000, 12000, T.plusMinutes(1)));
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 10000, 11000, T.plusMinutes(1)));
+        checker.finish();
+
+        assertThat(found).isEmpty();
+        assertThat(checker.rows()).isEqualTo(3);
+    }
+
+    @Test
+    void followsBalancesWhenCreatedAtIsInvertedByLockWait() {
+        // sql и striped движки ставят created_at на начале транзакции, до ожидания блокировки строки:
+        // вторая по цепочке операция может получить более ранний created_at
+        walletBalances.put(walletId, 13000L);
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 11000, 12000, T));
+        checker.accept(row(null, OperationType.DEPOSIT, 10000, 0, 10000, T.plusSeconds(1)));
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 10000, 11000, T.plusSeconds(2)));
+        checker.accept(row(null, OperationType.WITHDRAW, 500, 12500, 12000, T.plusSeconds(3)));
+        checker.accept(row(null, OperationType.DEPOSIT, 500, 12000, 12500, T.plusSeconds(4)));
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 12000, 13000, T.plusSeconds(5)));
+        checker.finish();
+
+        assertThat(found).isEmpty();
+        assertThat(checker.rows()).isEqualTo(6);
+        assertThat(ends).singleElement().satisfies(end -> {
+            assertThat(end.balance()).isEqualTo(13000L);
+            assertThat(end.verifiedUntil()).isEqualTo(T.plusSeconds(5));
+        });
+    }
+
+    @Test
+    void reportsGapOnlyWhenContinuationIsNotInWindow() {
+        LedgerChainChecker narrow = new LedgerChainChecker(walletBalances, slotBalances, anchors, found::add, ends::add, 2);
+        walletBalances.put(walletId, 4000L);
+        narrow.accept(row(null, OperationType.DEPOSIT, 1000, 0, 1000, T));
+        narrow.accept(row(null, OperationType.DEPOSIT, 1000, 1000, 2000, T.plusSeconds(1)));
+        // строки с balance_before = 2000 нет: операция потеряна
+        narrow.accept(row(null, OperationType.DEPOSIT, 1000, 2500, 3500, T.plusSeconds(2)));
+        narrow.accept(row(null, OperationType.DEPOSIT, 500, 3500, 4000, T.plusSeconds(3)));
+        narrow.finish();
+
+        assertThat(found).singleElement().satisfies(d -> {
+            assertThat(d.kind()).isEqualTo(BROKEN_CHAIN);
+            assertThat(d.expected()).isEqualTo(2000L);
+            assertThat(d.actual()).isEqualTo(2500L);
+        });
+    }
+
+    @Test
+    void checksSlotChainsSeparatelyAndCollapsedSlotAgainstZero() {
+        walletBalances.put(walletId, 5000L);
+        slotBalances.put(new LedgerChainChecker.ChainKey(walletId, 0), 2000L);
+        checker.accept(row(null, OperationType.DEPOSIT, 10000, 0, 10000, T));
+        checker.accept(row(null, OperationType.REBALANCE, 5000, 10000, 5000, T.plusMinutes(1)));
+        checker.accept(row(0, OperationType.REBALANCE, 2500, 0, 2500, T.plusMinutes(1)));
+        checker.accept(row(1, OperationType.REBALANCE, 2500, 0, 2500, T.plusMinutes(1)));
+        checker.accept(row(0, OperationType.WITHDRAW, 500, 2500, 2000, T.plusMinutes(2)));
+        checker.finish();
+
+        // слота 1 в wallet_slots нет - он схлопнут, конец его цепочки должен быть 0
+        assertThat(found).singleElement().satisfies(d -> {
+            assertThat(d.kind()).isEqualTo(BALANCE_MISMATCH);
+            assertThat(d.slot()).isEqualTo(1);
+            assertThat(d.expected()).isZero();
+            assertThat(d.actual()).isEqualTo(2500L);
+        });
+        assertThat(ends).hasSize(3);
+    }
+
+    @Test
+    void continuesFromAnchorSkippingAlreadyVerifiedRows() {
+        walletBalances.put(walletId, 8000L);
+        anchors.put(new LedgerChainChecker.ChainKey(walletId, LedgerChainChecker.MAIN),
+                new LedgerChainChecker.Anchor(T, 10000));
+        checker.accept(row(null, OperationType.DEPOSIT, 99999, 0, 99999, T));
+        checker.accept(row(null, OperationType.WITHDRAW, 2000, 10000, 8000, T.plusMinutes(1)));
+        checker.finish();
+
+        assertThat(found).isEmpty();
+        assertThat(checker.rows()).isEqualTo(1);
+        assertThat(ends).singleElement().extracting(LedgerChainChecker.ChainEnd::verifiedUntil)
+                .isEqualTo(T.plusMinutes(1));
+    }
+
+    @Test
+    void reportsMissingWalletOnce() {
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 0, 1000, T));
+        checker.accept(row(null, OperationType.DEPOSIT, 1000, 1000, 2000, T.plusMinutes(1)));
+        checker.finish();
+
+        assertThat(found).extracting(LedgerChainChecker.Discrepancy::kind).containsExactly(MISSING_WALLET);
+    }
+
+    private LedgerChainChecker.Row row(Integer slot, OperationType type, long amount, long before, long after,
+                                       LocalDateTime createdAt) {
+        return new LedgerChainChecker.Row(walletId, slot, type, amount, before, after, createdAt);
+    }
+}